@@ -0,0 +1,153 @@
+package com.anddle.anddlechat;
+
+import android.os.Handler;
+import android.os.Looper;
+import android.support.v7.widget.RecyclerView;
+import android.test.ActivityInstrumentationTestCase2;
+import android.util.Log;
+import android.view.Choreographer;
+
+import java.io.File;
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Replays a burst of incoming messages into the message list and reports how long the frames took
+ * while it was drawn. AboutActivity only hosts the list, since ChatActivity needs Bluetooth.
+ */
+public class MessageListFrameBenchmark extends ActivityInstrumentationTestCase2<AboutActivity> {
+
+    private static final String TAG = "MessageListFrameBenchmark";
+    private static final int MESSAGES = 10000;
+    private static final long FRAME_BUDGET_NANOS = 16666667;
+
+    private final long[] mFrameNanos = new long[100000];
+    private int mFrames;
+    private volatile boolean mRecording;
+
+    public MessageListFrameBenchmark() {
+        super(AboutActivity.class);
+    }
+
+    public void testBurstOfIncomingMessages() throws Exception {
+        final AboutActivity activity = getActivity();
+        File dir = new File(activity.getCacheDir(), "frame-benchmark");
+        deleteRecursively(dir);
+        final HistoryLog log = new HistoryLog(dir);
+        final ExecutorService loader = Executors.newSingleThreadExecutor();
+        final Handler main = new Handler(Looper.getMainLooper());
+        final MessagePager[] pager = new MessagePager[1];
+
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                RecyclerView list = new RecyclerView(activity);
+                MessageAdapter adapter = new MessageAdapter(activity, R.layout.me_list_item, R.layout.others_list_item);
+                final Choreographer choreographer = Choreographer.getInstance();
+                pager[0] = new MessagePager(log, loader, new Executor() {
+                    @Override
+                    public void execute(Runnable command) {
+                        main.post(command);
+                    }
+                }, new InboundDispatcher.FrameScheduler() {
+                    @Override
+                    public void postFrame(final Runnable callback) {
+                        choreographer.postFrameCallback(new Choreographer.FrameCallback() {
+                            @Override
+                            public void doFrame(long frameTimeNanos) {
+                                callback.run();
+                            }
+                        });
+                    }
+                }, adapter, MessagePager.DEFAULT_PAGE_SIZE, MessagePager.DEFAULT_MAX_PAGES);
+                adapter.setPager(pager[0]);
+                adapter.attachTo(list);
+                activity.setContentView(list);
+            }
+        });
+        getInstrumentation().waitForIdleSync();
+
+        final Choreographer.FrameCallback frameCallback = new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                if(mRecording && mFrames < mFrameNanos.length) {
+                    mFrameNanos[mFrames++] = frameTimeNanos;
+                    Choreographer.getInstance().postFrameCallback(this);
+                }
+            }
+        };
+        mRecording = true;
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                Choreographer.getInstance().postFrameCallback(frameCallback);
+            }
+        });
+
+        // the way a connection's reader hands messages over, as fast as they can be read
+        long start = System.nanoTime();
+        for(int i = 0; i < MESSAGES; i++) {
+            byte[] text = ("burst message " + i + (i % 5 == 0 ? " 你好，收到了吗？" : "")).getBytes("UTF-8");
+            pager[0].append(i % 3 == 0 ? ChatMessage.MSG_SENDER_ME : ChatMessage.MSG_SENDER_OTHERS, text, 0, text.length);
+        }
+        long appended = System.nanoTime();
+        getInstrumentation().waitForIdleSync();
+        long drained = System.nanoTime();
+        mRecording = false;
+        getInstrumentation().waitForIdleSync();
+
+        final int[] count = new int[1];
+        getInstrumentation().runOnMainSync(new Runnable() {
+            @Override
+            public void run() {
+                count[0] = pager[0].getCount();
+            }
+        });
+        assertEquals(MESSAGES, count[0]);
+
+        long[] frameTimes = new long[Math.max(0, mFrames - 1)];
+        int janky = 0;
+        for(int i = 1; i < mFrames; i++) {
+            frameTimes[i - 1] = mFrameNanos[i] - mFrameNanos[i - 1];
+            if(frameTimes[i - 1] > FRAME_BUDGET_NANOS + FRAME_BUDGET_NANOS / 2) {
+                janky++;
+            }
+        }
+        Arrays.sort(frameTimes);
+        Log.i(TAG, String.format(Locale.US,
+                "%d messages appended in %.1f ms, on screen after %.1f ms; %d frames, p50 %.1f ms, p90 %.1f ms, p99 %.1f ms, max %.1f ms, %d janky",
+                MESSAGES, (appended - start) / 1e6, (drained - start) / 1e6, frameTimes.length,
+                percentile(frameTimes, 0.50) / 1e6, percentile(frameTimes, 0.90) / 1e6,
+                percentile(frameTimes, 0.99) / 1e6,
+                frameTimes.length == 0 ? 0 : frameTimes[frameTimes.length - 1] / 1e6, janky));
+        InboundDispatcher<?> inbound = pager[0].getInboundDispatcher();
+        Log.i(TAG, String.format(Locale.US, "%d batches, mean %.1f, max %d messages; queue to screen mean %.2f ms, max %.2f ms",
+                inbound.getBatchCount(), inbound.getMeanBatchSize(), inbound.getMaxBatchSize(),
+                inbound.getMeanLatencyNanos() / 1e6, inbound.getMaxLatencyNanos() / 1e6));
+
+        loader.shutdownNow();
+        log.close();
+        deleteRecursively(dir);
+    }
+
+    private static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}
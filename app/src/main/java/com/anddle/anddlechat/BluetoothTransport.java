@@ -0,0 +1,90 @@
+package com.anddle.anddlechat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.bluetooth.BluetoothDevice;
+import android.bluetooth.BluetoothServerSocket;
+import android.bluetooth.BluetoothSocket;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.UUID;
+
+/**
+ * {@link Transport} over Bluetooth RFCOMM sockets.
+ */
+public class BluetoothTransport implements Transport {
+
+    private static final String BT_NAME = "AnddleChat";
+    private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");//("fa87c0d0-afac-11de-8a39-0800200c9a66");
+
+    private final BluetoothAdapter mBluetoothAdapter;
+
+    public BluetoothTransport() {
+        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+    }
+
+    @Override
+    public ServerEndpoint listen() throws IOException {
+        return new RfcommServerEndpoint(mBluetoothAdapter.listenUsingRfcommWithServiceRecord(BT_NAME, BT_UUID));
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(address);
+        return new RfcommConnection(device.createRfcommSocketToServiceRecord(BT_UUID));
+    }
+
+    private static class RfcommServerEndpoint implements ServerEndpoint {
+
+        private final BluetoothServerSocket mServerSocket;
+
+        RfcommServerEndpoint(BluetoothServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            return new RfcommConnection(mServerSocket.accept());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static class RfcommConnection implements Connection {
+
+        private final BluetoothSocket mSocket;
+
+        RfcommConnection(BluetoothSocket socket) {
+            mSocket = socket;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mSocket.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            BluetoothDevice device = mSocket.getRemoteDevice();
+            return device == null ? null : device.getAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
@@ -0,0 +1,79 @@
+package com.anddle.anddlechat;
+
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Per-peer outcome of one {@link ConnectionManager#broadcast} call. Latencies are measured from
+ * the broadcast call until the peer's writer finished (or gave up on) the write.
+ */
+public class BroadcastReport {
+
+    private final byte[] mData;
+    private final String[] mPeers;
+    private final boolean[] mDelivered;
+    private final long[] mLatencies;
+
+    BroadcastReport(byte[] data, String[] peers, boolean[] delivered, long[] latencies) {
+        mData = data;
+        mPeers = peers;
+        mDelivered = delivered;
+        mLatencies = latencies;
+    }
+
+    public byte[] getData() {
+        return mData;
+    }
+
+    /**
+     * @return the peers in the order their writes completed.
+     */
+    public List<String> getPeers() {
+        return Collections.unmodifiableList(Arrays.asList(mPeers));
+    }
+
+    public boolean isDelivered(String address) {
+        int index = indexOf(address);
+        return index >= 0 && mDelivered[index];
+    }
+
+    public long getLatencyNanos(String address) {
+        int index = indexOf(address);
+        return index >= 0 ? mLatencies[index] : -1;
+    }
+
+    public int getDeliveredCount() {
+        int count = 0;
+        for(boolean delivered : mDelivered) {
+            if(delivered) {
+                count++;
+            }
+        }
+        return count;
+    }
+
+    public long getFastestNanos() {
+        return mLatencies.length == 0 ? 0 : mLatencies[0];
+    }
+
+    public long getSlowestNanos() {
+        return mLatencies.length == 0 ? 0 : mLatencies[mLatencies.length - 1];
+    }
+
+    /**
+     * @return the time between the first and the last peer finishing.
+     */
+    public long getSpreadNanos() {
+        return getSlowestNanos() - getFastestNanos();
+    }
+
+    private int indexOf(String address) {
+        for(int i = 0; i < mPeers.length; i++) {
+            if(mPeers[i].equals(address)) {
+                return i;
+            }
+        }
+        return -1;
+    }
+}
@@ -0,0 +1,92 @@
+package com.anddle.anddlechat;
+
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Recycles {@link PooledBuffer}s in power-of-two size classes from 256 bytes up to a maximum size.
+ * Requests above the maximum get a one-off buffer that is simply dropped on release.
+ *
+ * {@link #getAllocationCount()} counts every buffer the pool had to create, so a steady-state
+ * path that acquires and releases in balance keeps it constant.
+ */
+public class BufferPool {
+
+    private static final int MIN_SIZE_SHIFT = 8;
+    private static final int DEFAULT_MAX_BUFFER_SIZE = 64 * 1024;
+    private static final int DEFAULT_BUFFERS_PER_CLASS = 32;
+
+    private final int mMaxBufferSize;
+    private final PooledBuffer[][] mFree;
+    private final int[] mFreeCount;
+    private final AtomicLong mAllocations = new AtomicLong();
+
+    public BufferPool() {
+        this(DEFAULT_MAX_BUFFER_SIZE, DEFAULT_BUFFERS_PER_CLASS);
+    }
+
+    public BufferPool(int maxBufferSize, int buffersPerClass) {
+        mMaxBufferSize = Math.max(1 << MIN_SIZE_SHIFT, Integer.highestOneBit(maxBufferSize - 1) << 1);
+        int classes = sizeClass(mMaxBufferSize) + 1;
+        mFree = new PooledBuffer[classes][buffersPerClass];
+        mFreeCount = new int[classes];
+    }
+
+    /**
+     * @return a buffer of at least {@code length} bytes with {@link PooledBuffer#length()} set to
+     * {@code length} and one holder.
+     */
+    public PooledBuffer acquire(int length) {
+
+        PooledBuffer buffer = null;
+        if(length <= mMaxBufferSize) {
+            int sizeClass = sizeClass(length);
+            synchronized (this) {
+                int count = mFreeCount[sizeClass];
+                if(count > 0) {
+                    buffer = mFree[sizeClass][count - 1];
+                    mFree[sizeClass][count - 1] = null;
+                    mFreeCount[sizeClass] = count - 1;
+                }
+            }
+            if(buffer == null) {
+                buffer = new PooledBuffer(this, new byte[1 << (sizeClass + MIN_SIZE_SHIFT)]);
+                mAllocations.incrementAndGet();
+            }
+        }
+        else {
+            buffer = new PooledBuffer(null, new byte[length]);
+            mAllocations.incrementAndGet();
+        }
+
+        buffer.reset(length);
+        return buffer;
+    }
+
+    public PooledBuffer wrap(byte[] data, int offset, int length) {
+        PooledBuffer buffer = acquire(length);
+        System.arraycopy(data, offset, buffer.array(), 0, length);
+        return buffer;
+    }
+
+    public long getAllocationCount() {
+        return mAllocations.get();
+    }
+
+    void recycle(PooledBuffer buffer) {
+        int sizeClass = sizeClass(buffer.capacity());
+        synchronized (this) {
+            int count = mFreeCount[sizeClass];
+            if(count < mFree[sizeClass].length) {
+                mFree[sizeClass][count] = buffer;
+                mFreeCount[sizeClass] = count + 1;
+            }
+        }
+    }
+
+    private static int sizeClass(int length) {
+        if(length <= 1 << MIN_SIZE_SHIFT) {
+            return 0;
+        }
+        return 32 - Integer.numberOfLeadingZeros(length - 1) - MIN_SIZE_SHIFT;
+    }
+}
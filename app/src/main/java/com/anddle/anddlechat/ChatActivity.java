@@ -8,8 +8,10 @@ import android.os.Handler;
 import android.os.Message;
 import android.support.v4.app.ActivityCompat;
 import android.support.v7.app.AppCompatActivity;
+import android.support.v7.widget.RecyclerView;
 import android.os.Bundle;
 import android.util.Log;
+import android.view.Choreographer;
 import android.view.KeyEvent;
 import android.view.Menu;
 import android.view.MenuItem;
@@ -17,23 +19,41 @@ import android.view.View;
 import android.view.inputmethod.EditorInfo;
 import android.widget.EditText;
 import android.widget.ImageButton;
-import android.widget.ListView;
 import android.widget.TextView;
 import android.widget.Toast;
 
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
 public class ChatActivity extends AppCompatActivity {
 
     private static final String TAG = "ChatActivity";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
     private final int RESULT_CODE_BTDEVICE = 0;
 
     private ConnectionManager mConnectionManager;
+    private LinkProbe mLinkProbe;
+    private HistoryLog mHistoryLog;
+    private MessagePager mMessagePager;
+    private ExecutorService mHistoryLoader;
     private EditText mMessageEditor;
     private ImageButton mSendBtn;
-    private ListView mMessageListView;
+    private RecyclerView mMessageListView;
     private MenuItem mConnectionMenuItem;
-
-    private final static int MSG_SENT_DATA = 0;
-    private final static int MSG_RECEIVE_DATA = 1;
+    private volatile boolean mResumed;
+    private DeviceRegistry mDeviceRegistry;
+    /** The device picked from the device list while the connect to it is under way. */
+    private volatile String mConnectingAddress;
+    private StartupTrace mStartupTrace;
+    /** Guards mHistoryLog and mDestroyed between the history loader and onDestroy(). */
+    private final Object mHistoryLock = new Object();
+    private boolean mDestroyed;
+
+    private final static int MSG_SEND_FAILED = 0;
     private final static int MSG_UPDATE_UI = 2;
 
     private Handler mHandler = new Handler() {
@@ -41,39 +61,8 @@ public class ChatActivity extends AppCompatActivity {
         public void handleMessage(Message msg) {
 
             switch (msg.what) {
-                case MSG_SENT_DATA: {
-
-                    byte [] data = (byte []) msg.obj;
-                    boolean suc = msg.arg1 == 1;
-                    if(data != null && suc) {
-
-                        ChatMessage chatMsg = new ChatMessage();
-                        chatMsg.messageSender = ChatMessage.MSG_SENDER_ME;
-                        chatMsg.messageContent = new String(data);
-
-                        MessageAdapter adapter = (MessageAdapter) mMessageListView.getAdapter();
-                        adapter.add(chatMsg);
-                        adapter.notifyDataSetChanged();
-
-                        mMessageEditor.setText("");
-                    }
-                }
-                break;
-
-                case MSG_RECEIVE_DATA: {
-
-                    byte [] data = (byte []) msg.obj;
-                    if(data != null) {
-
-                        ChatMessage chatMsg = new ChatMessage();
-                        chatMsg.messageSender = ChatMessage.MSG_SENDER_OTHERS;
-                        chatMsg.messageContent = new String(data);
-
-                        MessageAdapter adapter = (MessageAdapter) mMessageListView.getAdapter();
-                        adapter.add(chatMsg);
-                        adapter.notifyDataSetChanged();
-                    }
-
+                case MSG_SEND_FAILED: {
+                    Toast.makeText(ChatActivity.this, R.string.send_fail, Toast.LENGTH_SHORT).show();
                 }
                 break;
 
@@ -86,15 +75,26 @@ public class ChatActivity extends AppCompatActivity {
         }
     };
 
+    /**
+     * Only the views are set up here, so the first frame isn't held up by disk or Bluetooth. The
+     * chat history and the device registry are opened on the history loader; the connection comes
+     * up once they are, see {@link #onHistoryOpened}, and starts listening in the background.
+     */
     @Override
     protected void onCreate(Bundle savedInstanceState) {
+        mStartupTrace = new StartupTrace(MetricsRegistry.getDefault());
+        mStartupTrace.begin("first_frame");
         super.onCreate(savedInstanceState);
+        mStartupTrace.begin("content_view");
         setContentView(R.layout.activity_chat);
+        mStartupTrace.end("content_view");
 
+        mStartupTrace.begin("checks");
         BluetoothAdapter BTAdapter = BluetoothAdapter.getDefaultAdapter();
         if (!BTAdapter.isEnabled()) {
             Intent i = new Intent(BluetoothAdapter.ACTION_REQUEST_ENABLE);
             startActivity(i);
+            mStartupTrace.abandon();
             finish();
             return;
         }
@@ -106,10 +106,13 @@ public class ChatActivity extends AppCompatActivity {
                     new String[]{
                             android.Manifest.permission.ACCESS_COARSE_LOCATION},
                     0);
+            mStartupTrace.abandon();
             finish();
             return;
         }
+        mStartupTrace.end("checks");
 
+        mStartupTrace.begin("views");
         mMessageEditor = (EditText) findViewById(R.id.msg_editor);
         mMessageEditor.setOnEditorActionListener(new TextView.OnEditorActionListener() {
 
@@ -128,12 +131,50 @@ public class ChatActivity extends AppCompatActivity {
         mSendBtn = (ImageButton) findViewById(R.id.send_btn);
         mSendBtn.setOnClickListener(mSendClickListener);
 
-        mMessageListView = (ListView) findViewById(R.id.message_list);
-        MessageAdapter adapter = new MessageAdapter(this, R.layout.me_list_item, R.layout.others_list_item);
-        mMessageListView.setAdapter(adapter);
+        mMessageListView = (RecyclerView) findViewById(R.id.message_list);
+        updateUI();
+        mStartupTrace.end("views");
+        Choreographer.getInstance().postFrameCallback(new Choreographer.FrameCallback() {
+            @Override
+            public void doFrame(long frameTimeNanos) {
+                mStartupTrace.end("first_frame");
+            }
+        });
 
-        mConnectionManager = new ConnectionManager(mConnectionListener);
-        mConnectionManager.startListen();
+        mHistoryLoader = Executors.newSingleThreadExecutor();
+        mStartupTrace.begin("history_open");
+        mHistoryLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                HistoryLog opened = null;
+                try {
+                    opened = new HistoryLog(new File(getFilesDir(), "history"));
+                } catch (IOException e) {
+                    // still chat, just without history
+                    Log.e(TAG, "can't open chat history", e);
+                }
+                synchronized (mHistoryLock) {
+                    if(mDestroyed) {
+                        closeHistory(opened);
+                        return;
+                    }
+                    // set here rather than in onHistoryOpened(), which onDestroy() may cancel
+                    mHistoryLog = opened;
+                }
+                mStartupTrace.end("history_open");
+
+                mStartupTrace.begin("device_registry");
+                final DeviceRegistry deviceRegistry = DeviceListActivity.getDeviceRegistry(getApplicationContext());
+                mStartupTrace.end("device_registry");
+
+                mHandler.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        onHistoryOpened(deviceRegistry);
+                    }
+                });
+            }
+        });
 
         if(BTAdapter.getScanMode() != BluetoothAdapter.SCAN_MODE_CONNECTABLE_DISCOVERABLE) {
             Intent i = new Intent(BluetoothAdapter.ACTION_REQUEST_DISCOVERABLE);
@@ -142,43 +183,161 @@ public class ChatActivity extends AppCompatActivity {
         }
     }
 
+    /**
+     * mHistoryLog is open by now, or null if the history couldn't be opened.
+     */
+    private void onHistoryOpened(DeviceRegistry deviceRegistry) {
+        if(mDestroyed) {
+            return;
+        }
+        mDeviceRegistry = deviceRegistry;
+
+        mStartupTrace.begin("history_attach");
+        MessageAdapter adapter = new MessageAdapter(this, R.layout.me_list_item, R.layout.others_list_item);
+        final Choreographer choreographer = Choreographer.getInstance();
+        mMessagePager = new MessagePager(mHistoryLog, mHistoryLoader, new Executor() {
+            @Override
+            public void execute(Runnable command) {
+                mHandler.post(command);
+            }
+        }, new InboundDispatcher.FrameScheduler() {
+            @Override
+            public void postFrame(final Runnable callback) {
+                choreographer.postFrameCallback(new Choreographer.FrameCallback() {
+                    @Override
+                    public void doFrame(long frameTimeNanos) {
+                        callback.run();
+                    }
+                });
+            }
+        }, adapter, MessagePager.DEFAULT_PAGE_SIZE, MessagePager.DEFAULT_MAX_PAGES);
+        adapter.setPager(mMessagePager);
+        adapter.attachTo(mMessageListView);
+        mStartupTrace.end("history_attach");
+
+        mStartupTrace.begin("connection");
+        mConnectionManager = new ConnectionManager(mConnectionListener);
+        mConnectionManager.setRadioScheduler(DeviceListActivity.getRadioScheduler());
+        mConnectionManager.setCompression(true);
+        mConnectionManager.setSessionResumption(true);
+        mConnectionManager.setAutoReconnect(true);
+        mConnectionManager.setTextListener(new ConnectionManager.TextListener() {
+            @Override
+            public void onReadText(String address, String text, PooledBuffer data) {
+                mMessagePager.append(ChatMessage.MSG_SENDER_OTHERS, text, data.array(), 0, data.length());
+                data.release();
+                if(mResumed) {
+                    mConnectionManager.markRead(address);
+                }
+            }
+        });
+        mLinkProbe = new LinkProbe(mConnectionManager, null);
+        mLinkProbe.start(LinkProbe.DEFAULT_INTERVAL_MS);
+        mStartupTrace.begin("listen");
+        mConnectionManager.startListen();
+        mStartupTrace.end("connection");
+
+        updateUI();
+        mStartupTrace.interactive();
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mResumed = true;
+        if(mConnectionManager != null) {
+            for(String peer : mConnectionManager.getConnectedPeers()) {
+                mConnectionManager.markRead(peer);
+            }
+        }
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mResumed = false;
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        mHandler.removeMessages(MSG_UPDATE_UI);
-        mHandler.removeMessages(MSG_SENT_DATA);
-        mHandler.removeMessages(MSG_RECEIVE_DATA);
+        HistoryLog historyLog;
+        synchronized (mHistoryLock) {
+            mDestroyed = true;
+            historyLog = mHistoryLog;
+        }
+        mHandler.removeCallbacksAndMessages(null);
 
+        if(mLinkProbe != null) {
+            mLinkProbe.stop();
+        }
         if(mConnectionManager != null) {
             mConnectionManager.disconnect();
             mConnectionManager.stopListen();
         }
+
+        if(mHistoryLoader != null) {
+            mHistoryLoader.shutdownNow();
+        }
+        closeHistory(historyLog);
+    }
+
+    private static void closeHistory(HistoryLog historyLog) {
+        if(historyLog != null) {
+            try {
+                historyLog.close();
+            } catch (IOException e) {
+                Log.e(TAG, "close chat history failed", e);
+            }
+        }
     }
 
+
     private ConnectionManager.ConnectionListener mConnectionListener = new ConnectionManager.ConnectionListener() {
 
         @Override
         public void onConnectStateChange(int oldState, int State) {
 
+            String address = mConnectingAddress;
+            if(address != null && State != ConnectionManager.CONNECT_STATE_CONNECTING) {
+                mConnectingAddress = null;
+                mDeviceRegistry.recordConnect(address, State == ConnectionManager.CONNECT_STATE_CONNECTED);
+                try {
+                    mDeviceRegistry.save();
+                } catch (IOException e) {
+                    Log.e(TAG, "save device registry failed", e);
+                }
+            }
             mHandler.obtainMessage(MSG_UPDATE_UI).sendToTarget();
         }
 
         @Override
         public void onListenStateChange(int oldState, int State) {
 
+            if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                mStartupTrace.end("listen");
+            }
             mHandler.obtainMessage(MSG_UPDATE_UI).sendToTarget();
         }
 
         @Override
         public void onSendData(boolean suc, byte[] data) {
 
-            mHandler.obtainMessage(MSG_SENT_DATA, suc?1:0, 0, data).sendToTarget();
+            if(suc) {
+                mMessagePager.append(ChatMessage.MSG_SENDER_ME, data, 0, data.length);
+            }
+            else {
+                // reports come late, and may be replayed, so only failures reach the UI: the
+                // editor was cleared when the message was queued
+                mHandler.obtainMessage(MSG_SEND_FAILED, data).sendToTarget();
+            }
         }
 
         @Override
-        public void onReadData(byte[] data) {
+        public void onReadData(PooledBuffer data) {
 
-            mHandler.obtainMessage(MSG_RECEIVE_DATA,  data).sendToTarget();
+            // messages arrive as text through the TextListener
+            data.release();
 
         }
 
@@ -197,8 +356,11 @@ public class ChatActivity extends AppCompatActivity {
         if(content != null) {
             content = content.trim();
             if(content.length() > 0) {
-                boolean ret = mConnectionManager.sendData(content.getBytes());
-                if(!ret) {
+                boolean ret = mConnectionManager.sendData(content.getBytes(UTF_8));
+                if(ret) {
+                    mMessageEditor.setText("");
+                }
+                else {
                     Toast.makeText(ChatActivity.this, R.string.send_fail, Toast.LENGTH_SHORT).show();
                 }
             }
@@ -222,7 +384,10 @@ public class ChatActivity extends AppCompatActivity {
         switch (item.getItemId())
         {
             case R.id.connect_menu: {
-                if(mConnectionManager.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                if(mConnectionManager == null) {
+                    // still starting up
+                }
+                else if(mConnectionManager.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED) {
                     mConnectionManager.disconnect();
 
                 }
@@ -238,6 +403,12 @@ public class ChatActivity extends AppCompatActivity {
             }
             return true;
 
+            case R.id.diagnostics_menu: {
+                Intent i = new Intent(this, DiagnosticsActivity.class);
+                startActivity(i);
+            }
+            return true;
+
             case R.id.about_menu: {
                 Intent i = new Intent(this, AboutActivity.class);
                 startActivity(i);
@@ -256,22 +427,27 @@ public class ChatActivity extends AppCompatActivity {
         Log.d(TAG, "onActivityResult, requestCode="+requestCode+" resultCode="+resultCode );
         if(requestCode == RESULT_CODE_BTDEVICE && resultCode == RESULT_OK) {
             String deviceAddr = data.getStringExtra("DEVICE_ADDR");
+            mConnectingAddress = deviceAddr;
             mConnectionManager.connect(deviceAddr);
         }
     }
 
     private void updateUI()
     {
-        if(mConnectionManager == null) {
+        if(mMessageEditor == null) {
             return;
         }
 
-        if(mConnectionMenuItem == null) {
+        if(mConnectionManager == null || mConnectionMenuItem == null) {
             mMessageEditor.setEnabled(false);
             mSendBtn.setEnabled(false);
+            if(mConnectionMenuItem != null) {
+                mConnectionMenuItem.setEnabled(false);
+            }
 
             return;
         }
+        mConnectionMenuItem.setEnabled(true);
 
         Log.d(TAG, "current BT ConnectState="+mConnectionManager.getState(mConnectionManager.getCurrentConnectState())
                 +" ListenState="+mConnectionManager.getState(mConnectionManager.getCurrentListenState()));
@@ -9,5 +9,6 @@ public class ChatMessage {
     static public final int MSG_SENDER_OTHERS = 1;
 
     public int messageSender;
+    public long messageTime;
     public String messageContent;
 }
@@ -1,14 +1,32 @@
 package com.anddle.anddlechat;
 
-import android.bluetooth.BluetoothAdapter;
-import android.bluetooth.BluetoothDevice;
-import android.bluetooth.BluetoothServerSocket;
-import android.bluetooth.BluetoothSocket;
 import android.util.Log;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.util.UUID;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.AtomicReferenceArray;
+import java.util.zip.Inflater;
 
 /**
  * Created by Gym on 16/6/12.
@@ -23,97 +41,628 @@ public class ConnectionManager {
     public static final int LISTEN_STATE_IDLE = 3;
     public static final int LISTEN_STATE_LISTENING = 4;
 
-    private static final String BT_NAME = "AnddleChat";
-    private static final UUID BT_UUID = UUID.fromString("00001101-0000-1000-8000-00805F9B34FB");//("fa87c0d0-afac-11de-8a39-0800200c9a66");
-
-    private int mConnectState = CONNECT_STATE_IDLE;
-    private int mListenState = LISTEN_STATE_IDLE;
+    public static final String METRIC_BYTES_IN = "connection.bytes_in";
+    public static final String METRIC_BYTES_OUT = "connection.bytes_out";
+    public static final String METRIC_MESSAGES_IN = "connection.messages_in";
+    public static final String METRIC_MESSAGES_OUT = "connection.messages_out";
+    public static final String METRIC_CONNECTS = "connection.connects";
+    public static final String METRIC_CONNECT_FAILURES = "connection.connect_failures";
+    public static final String METRIC_RECONNECTS = "connection.reconnects";
+    public static final String METRIC_SEND_QUEUE_DEPTH = "connection.send_queue_depth";
+    public static final String METRIC_CONNECT_NANOS = "connection.connect_nanos";
+    public static final String METRIC_ACCEPT_TO_CONNECTED_NANOS = "connection.accept_to_connected_nanos";
+    public static final String METRIC_SEND_LATENCY_NANOS = "connection.send_latency_nanos";
+    public static final String METRIC_RECONNECT_ATTEMPTS = "connection.reconnect_attempts";
+    public static final String METRIC_REPLAYED_FRAMES = "connection.replayed_frames";
+    public static final String METRIC_DELIVERY_LATENCY_NANOS = "connection.delivery_latency_nanos";
+    public static final String METRIC_IO_THREADS_CREATED = "connection.io_threads_created";
+    public static final String METRIC_FIRST_BYTE_NANOS = "connection.first_byte_nanos";
+
+    public static final long DEFAULT_RECONNECT_INITIAL_MS = 500;
+    public static final long DEFAULT_RECONNECT_MAX_MS = 30 * 1000;
+    public static final int DEFAULT_RECONNECT_ATTEMPTS = 10;
+    public static final int DEFAULT_SEND_WINDOW = 64;
+    public static final int DEFAULT_MAX_IO_THREADS = 32;
+
+    private static final long EVENT_THREAD_KEEP_ALIVE_MS = 1000;
+    private static final long IO_THREAD_KEEP_ALIVE_MS = 30 * 1000;
+    private static final long RECONNECT_THREAD_KEEP_ALIVE_MS = 1000;
+    private static final long SESSION_EXPIRY_MS = 2 * 60 * 1000;
+    private static final int MAX_BACKLOG_FRAMES = 256;
+
+    // Written only on the event thread, so the listener sees the changes in the order they were made.
+    private final StateMachine mConnectState = new StateMachine("connect state", CONNECT_STATE_IDLE, 3)
+            .allow(CONNECT_STATE_IDLE, CONNECT_STATE_CONNECTING, CONNECT_STATE_CONNECTED)
+            .allow(CONNECT_STATE_CONNECTING, CONNECT_STATE_IDLE, CONNECT_STATE_CONNECTED)
+            .allow(CONNECT_STATE_CONNECTED, CONNECT_STATE_IDLE, CONNECT_STATE_CONNECTING);
+    private final StateMachine mListenState = new StateMachine("listen state", LISTEN_STATE_IDLE, 5)
+            .allow(LISTEN_STATE_IDLE, LISTEN_STATE_LISTENING)
+            .allow(LISTEN_STATE_LISTENING, LISTEN_STATE_IDLE);
+    private final ExecutorService mEvents;
+    private final IoWorkers mIoWorkers;
     private ConnectionListener mConnectionListener;
-    private final BluetoothAdapter mBluetoothAdapter;
-
-    private AcceptThread mAcceptThread;
-    private ConnectedThread mConnectedThread;
-
+    private final Transport mTransport;
+    private final BufferPool mReceivePool = new BufferPool();
+    private final BufferPool mSendPool = new BufferPool();
+    private final FrameCompressor mCompressor = new FrameCompressor();
+    private volatile boolean mCompression;
+    private volatile int mCompressionThreshold = FrameCompressor.DEFAULT_THRESHOLD;
+
+    private volatile PeerListener mPeerListener;
+    private volatile TextListener mTextListener;
+    private volatile int mMaxPeers = 1;
+    private final AtomicInteger mAnonymousPeers = new AtomicInteger();
+    private final AtomicInteger mPeerSlots = new AtomicInteger();
+
+    private volatile boolean mAutoReconnect;
+    private volatile long mReconnectInitialMs = DEFAULT_RECONNECT_INITIAL_MS;
+    private volatile long mReconnectMaxMs = DEFAULT_RECONNECT_MAX_MS;
+    private volatile int mMaxReconnectAttempts = DEFAULT_RECONNECT_ATTEMPTS;
+    private volatile String mLastPeerAddress;
+    private ScheduledExecutorService mReconnectScheduler;
+    private final Map<String, ScheduledFuture<?>> mPendingReconnects = new ConcurrentHashMap<>();
+    private final Random mRandom = new Random();
+
+    private volatile boolean mResumption;
+    private volatile int mSendWindow = DEFAULT_SEND_WINDOW;
+    private volatile DeliveryListener mDeliveryListener;
+    private final Map<String, Session> mSessions = new ConcurrentHashMap<>();
+    private volatile RadioScheduler mRadioScheduler;
+
+    private final AtomicReference<AcceptLoop> mAcceptLoop = new AtomicReference<>();
+    private final Map<String, PeerLink> mConnections = new ConcurrentHashMap<>();
+    private final List<FrameHandler> mFrameHandlers = new CopyOnWriteArrayList<>();
+    private final AtomicReferenceArray<FrameHandler> mFrameTypes = new AtomicReferenceArray<>(256);
+    private final Set<String> mKnownPeers = Collections.newSetFromMap(new ConcurrentHashMap<String, Boolean>());
+
+    private final MetricsRegistry mMetrics;
+    private final MetricsRegistry.Counter mBytesIn;
+    private final MetricsRegistry.Counter mBytesOut;
+    private final MetricsRegistry.Counter mMessagesIn;
+    private final MetricsRegistry.Counter mMessagesOut;
+    private final MetricsRegistry.Counter mConnects;
+    private final MetricsRegistry.Counter mConnectFailures;
+    private final MetricsRegistry.Counter mReconnects;
+    private final Histogram mSendQueueDepth;
+    private final Histogram mConnectNanos;
+    private final Histogram mAcceptToConnectedNanos;
+    private final Histogram mSendLatencyNanos;
+    private final MetricsRegistry.Counter mReconnectAttempts;
+    private final MetricsRegistry.Counter mReplayedFrames;
+    private final Histogram mDeliveryLatencyNanos;
+    private final Histogram mFirstByteNanos;
+
+    /**
+     * State changes are delivered in order on a single event thread, never on the thread that
+     * caused them.
+     */
     public interface ConnectionListener {
 
         public void onConnectStateChange(int oldState, int State);
         public void onListenStateChange(int oldState, int State);
+        /**
+         * Called on the connection's writer thread once {@code data} has been written to the
+         * link ({@code suc} true) or dropped because the write failed or the link went down.
+         * With {@link ConnectionManager#setSessionResumption} on, messages lost with the link
+         * are held for replay and reported once: when they are written again, acknowledged or
+         * given up on.
+         */
         public void onSendData(boolean suc, byte[] data);
-        public void onReadData(byte [] data);
+        /**
+         * Called on the connection thread for every received message. The listener owns
+         * {@code data} and must {@link PooledBuffer#release()} it once done, on any thread.
+         */
+        public void onReadData(PooledBuffer data);
+    }
+
+    /**
+     * Per-peer callbacks, keyed by peer address. When a PeerListener is set, received data and send
+     * results go to it instead of {@link ConnectionListener#onReadData} and
+     * {@link ConnectionListener#onSendData}; the overall connect state is still reported to both.
+     */
+    public interface PeerListener {
+
+        /**
+         * Called on the event thread, in order, before the overall connect state is updated.
+         */
+        public void onPeerConnectStateChange(String address, int oldState, int state);
+        public void onPeerSendData(String address, boolean suc, byte[] data);
+        public void onPeerReadData(String address, PooledBuffer data);
+    }
+
+    /**
+     * Receives messages as text, decoded from UTF-8 on the connection's reader thread. When a
+     * TextListener is set, received data goes to it instead of the other listeners. {@code data}
+     * holds the original bytes and must be released by the listener.
+     */
+    public interface TextListener {
+
+        public void onReadText(String address, String text, PooledBuffer data);
+    }
+
+    /**
+     * Follows messages through a session with a peer, see {@link ConnectionManager#setSessionResumption}.
+     * Message ids count from 1 in every session. Delivered and read are cumulative: they cover
+     * every message up to {@code id}.
+     */
+    public interface DeliveryListener {
+
+        /**
+         * Called once message {@code id} has been written to the link, or acknowledged if that
+         * comes first, and always before the message is reported delivered. Sent and delivered
+         * reports of a session come one at a time and in order, on the connection's writer or
+         * connection thread.
+         */
+        public void onMessageSent(String address, long id, byte[] data);
+        /**
+         * Called once the peer has acknowledged receiving the messages.
+         */
+        public void onMessagesDelivered(String address, long id);
+        /**
+         * Called on the connection thread once the peer has called {@link ConnectionManager#markRead}.
+         */
+        public void onMessagesRead(String address, long id);
+    }
+
+    public interface BroadcastListener {
+
+        public void onBroadcastComplete(BroadcastReport report);
+    }
+
+    /**
+     * Handles frame types other than {@link FrameCodec#TYPE_DATA}, so protocols can be layered on
+     * top of the connections. All methods are called on the peer's connection thread; the frame
+     * buffer is only valid until {@link #onFrame} returns.
+     */
+    public interface FrameHandler {
+
+        public void onPeerConnected(String address);
+        public void onFrame(String address, int type, byte[] buffer, int offset, int length);
+        public void onPeerDisconnected(String address);
     }
 
     public ConnectionManager(ConnectionListener cl) {
+        this(cl, new BluetoothTransport());
+    }
+
+    public ConnectionManager(ConnectionListener cl, Transport transport) {
+        this(cl, transport, MetricsRegistry.getDefault());
+    }
+
+    /**
+     * Records traffic, connect times and send latencies into the {@code METRIC_*} metrics of
+     * {@code metrics}.
+     */
+    public ConnectionManager(ConnectionListener cl, Transport transport, MetricsRegistry metrics) {
         mConnectionListener = cl;
-        mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mTransport = transport;
+        ThreadPoolExecutor events = new ThreadPoolExecutor(1, 1, EVENT_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "ConnectionEvents");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        events.allowCoreThreadTimeOut(true);
+        mEvents = events;
+        mMetrics = metrics;
+        mBytesIn = metrics.counter(METRIC_BYTES_IN);
+        mBytesOut = metrics.counter(METRIC_BYTES_OUT);
+        mMessagesIn = metrics.counter(METRIC_MESSAGES_IN);
+        mMessagesOut = metrics.counter(METRIC_MESSAGES_OUT);
+        mConnects = metrics.counter(METRIC_CONNECTS);
+        mConnectFailures = metrics.counter(METRIC_CONNECT_FAILURES);
+        mReconnects = metrics.counter(METRIC_RECONNECTS);
+        mSendQueueDepth = metrics.histogram(METRIC_SEND_QUEUE_DEPTH);
+        mConnectNanos = metrics.histogram(METRIC_CONNECT_NANOS);
+        mAcceptToConnectedNanos = metrics.histogram(METRIC_ACCEPT_TO_CONNECTED_NANOS);
+        mSendLatencyNanos = metrics.histogram(METRIC_SEND_LATENCY_NANOS);
+        mReconnectAttempts = metrics.counter(METRIC_RECONNECT_ATTEMPTS);
+        mReplayedFrames = metrics.counter(METRIC_REPLAYED_FRAMES);
+        mDeliveryLatencyNanos = metrics.histogram(METRIC_DELIVERY_LATENCY_NANOS);
+        mFirstByteNanos = metrics.histogram(METRIC_FIRST_BYTE_NANOS);
+        mIoWorkers = new IoWorkers("ConnectionIo", DEFAULT_MAX_IO_THREADS, IO_THREAD_KEEP_ALIVE_MS,
+                metrics.counter(METRIC_IO_THREADS_CREATED));
+    }
+
+    public MetricsRegistry getMetrics() {
+        return mMetrics;
+    }
+
+    public void setPeerListener(PeerListener listener) {
+        mPeerListener = listener;
+    }
+
+    public void setTextListener(TextListener listener) {
+        mTextListener = listener;
+    }
+
+    public void setDeliveryListener(DeliveryListener listener) {
+        mDeliveryListener = listener;
     }
 
+    /**
+     * Routes the given frame types to {@code handler} and reports peer connects and disconnects to it.
+     */
+    public void registerFrameHandler(FrameHandler handler, int... types) {
+        for(int type : types) {
+            if(type == FrameCodec.TYPE_DATA || type == FrameCodec.TYPE_DATA_DEFLATE || type == FrameCodec.TYPE_HELLO
+                    || type == FrameCodec.TYPE_RESUME || type == FrameCodec.TYPE_ACK || type == FrameCodec.TYPE_READ
+                    || type < 0 || type >= mFrameTypes.length()) {
+                throw new IllegalArgumentException("frame type " + type + " can't be handled");
+            }
+            if(!mFrameTypes.compareAndSet(type, null, handler)) {
+                throw new IllegalStateException("frame type " + type + " already has a handler");
+            }
+        }
+        mFrameHandlers.add(handler);
+    }
+
+    /**
+     * Sets how many peers may be connected or connecting at the same time. The default of 1 keeps
+     * the classic one-to-one chat behaviour.
+     */
+    public void setMaxPeers(int maxPeers) {
+        if(maxPeers < 1) {
+            throw new IllegalArgumentException("maxPeers must be at least 1");
+        }
+        mMaxPeers = maxPeers;
+    }
+
+    public int getMaxPeers() {
+        return mMaxPeers;
+    }
+
+    /**
+     * Sets how many threads may run listening and connections at the same time: one to accept,
+     * and a reader and a writer per connection. A connection that would need more is refused.
+     * Threads are kept for a while after their connection ends and reused by the next one.
+     */
+    public void setMaxIoThreads(int maxThreads) {
+        if(maxThreads < 3) {
+            throw new IllegalArgumentException("maxThreads must be at least 3");
+        }
+        mIoWorkers.setMaxThreads(maxThreads);
+    }
+
+    /**
+     * Turns on Deflate compression of messages. It takes effect for connections made afterwards:
+     * each end announces it in a hello frame when it connects, and messages are only compressed
+     * towards peers that announced it too, so older peers keep getting raw frames.
+     */
+    public void setCompression(boolean enabled) {
+        mCompression = enabled;
+    }
+
+    /**
+     * Messages shorter than {@code bytes} are always sent raw.
+     */
+    public void setCompressionThreshold(int bytes) {
+        mCompressionThreshold = bytes;
+    }
+
+    /**
+     * Redials a peer this end connected to whenever its link drops without {@link #disconnect}
+     * being called, waiting a jittered, doubling delay between attempts. A link that comes up
+     * starts the delays over.
+     */
+    public void setAutoReconnect(boolean enabled) {
+        mAutoReconnect = enabled;
+        if(!enabled) {
+            cancelReconnects();
+        }
+    }
+
+    /**
+     * Attempt n waits between half and all of {@code initialMillis * 2^(n-1)}, at most
+     * {@code maxMillis}. After {@code maxAttempts} failed attempts in a row the peer is given up.
+     */
+    public void setReconnectBackoff(long initialMillis, long maxMillis, int maxAttempts) {
+        if(initialMillis < 1 || maxMillis < initialMillis || maxAttempts < 1) {
+            throw new IllegalArgumentException("bad reconnect backoff " + initialMillis + ", " + maxMillis + ", " + maxAttempts);
+        }
+        mReconnectInitialMs = initialMillis;
+        mReconnectMaxMs = maxMillis;
+        mMaxReconnectAttempts = maxAttempts;
+    }
+
+    /**
+     * @return the address most recently passed to {@link #connect}, or null.
+     */
+    public String getLastPeerAddress() {
+        return mLastPeerAddress;
+    }
+
+    /**
+     * Keeps the messages sent to each peer until the peer acknowledges them, and resumes the
+     * session when the same peer connects again, within a couple of minutes: messages the peer
+     * never received are sent again before anything new, in their original order. Both ends have
+     * to turn this on before connecting; a link to a peer that doesn't answer the resume
+     * handshake stays connecting.
+     */
+    public void setSessionResumption(boolean enabled) {
+        mResumption = enabled;
+    }
+
+    /**
+     * Sets how many messages may be on their way to a peer before its acknowledgements come back.
+     * Messages beyond the window wait in the session, up to MAX_BACKLOG_FRAMES of them, and go
+     * out as acknowledgements arrive. Only applies with {@link #setSessionResumption} on.
+     */
+    public void setSendWindow(int messages) {
+        if(messages < 1) {
+            throw new IllegalArgumentException("send window must be at least 1");
+        }
+        mSendWindow = messages;
+    }
+
+    /**
+     * Lets {@code scheduler} stop discovery before every outgoing connect and hold scans back
+     * until the connect is over.
+     */
+    public void setRadioScheduler(RadioScheduler scheduler) {
+        mRadioScheduler = scheduler;
+    }
+
+    /**
+     * Tells the peer at {@code address} that every message received from it so far has been read.
+     *
+     * @return false if the peer is not connected with a session.
+     */
+    public boolean markRead(String address) {
+        PeerLink peerLink = mConnections.get(address);
+        Session session = peerLink == null ? null : peerLink.mSession;
+        if(session == null || !peerLink.isConnected()) {
+            return false;
+        }
+        long read = session.takeRead();
+        if(read < 0) {
+            return true;
+        }
+        byte[] payload = new byte[8];
+        FrameCodec.writeLong(payload, 0, read);
+        return peerLink.send(new OutboundFrame(null, encode(FrameCodec.TYPE_READ, payload), null));
+    }
+
+    /**
+     * @return true if messages to the peer at {@code address} are currently sent compressed.
+     */
+    public boolean isCompressing(String address) {
+        PeerLink peerLink = mConnections.get(address);
+        return mCompression && peerLink != null && peerLink.mPeerInflates;
+    }
+
+    /**
+     * Returns right away; the listen state becomes LISTEN_STATE_LISTENING once the server socket
+     * is open.
+     */
     public void startListen() {
 
         Log.d(TAG, "ConnectionManager startListen");
 
-        if(mAcceptThread != null) {
-            mAcceptThread.cancel();
+        AcceptLoop acceptLoop = new AcceptLoop();
+        AcceptLoop old = mAcceptLoop.getAndSet(acceptLoop);
+        if(old != null) {
+            old.cancel();
+        }
+        if(!acceptLoop.startOn(mIoWorkers, "Accept")) {
+            mAcceptLoop.compareAndSet(acceptLoop, null);
+            acceptLoop.cancel();
         }
-
-        mAcceptThread = new AcceptThread();
-        mAcceptThread.start();
     }
 
     public void stopListen() {
 
         Log.d(TAG, "ConnectionManager stopListen");
 
-        if(mAcceptThread != null) {
-            mAcceptThread.cancel();
+        AcceptLoop old = mAcceptLoop.getAndSet(null);
+        if(old != null) {
+            old.cancel();
         }
     }
 
-    public synchronized void connect(String deviceAddr) {
+    public void connect(String deviceAddr) {
+
+        mLastPeerAddress = deviceAddr;
+        if(mMaxPeers == 1) {
+            // a redial to another peer would only take the slot back from this one
+            cancelReconnects();
+        }
+        else {
+            cancelReconnect(deviceAddr);
+        }
+        connect(deviceAddr, 0);
+    }
+
+    /**
+     * @param attempt 0 for a connect asked for by the user, otherwise the reconnect attempt.
+     */
+    private void connect(String deviceAddr, int attempt) {
 
         Log.d(TAG, "ConnectionManager about to connect BT device at:" + deviceAddr);
-        if(mConnectedThread != null) {
-            mConnectedThread.cancel();
+        PeerLink existing = mConnections.remove(deviceAddr);
+        if(existing != null) {
+            existing.cancel();
+            releasePeerSlot();
+            postConnectState();
         }
 
-        BluetoothDevice device = mBluetoothAdapter.getRemoteDevice(deviceAddr);
+        if(!acquirePeerSlot()) {
+            Log.w(TAG, "Connect refused, already at the peer limit of " + mMaxPeers);
+            if(attempt > 0) {
+                scheduleReconnect(deviceAddr, attempt + 1);
+            }
+            return;
+        }
 
         try {
 
-            BluetoothSocket socket = device.createRfcommSocketToServiceRecord(BT_UUID);
-            connected(socket, true);
+            Transport.Connection socket = mTransport.open(deviceAddr);
+            connected(deviceAddr, socket, attempt);
 
         } catch (IOException e) {
+            releasePeerSlot();
             Log.e(TAG, "Connect failed", e);
+            if(attempt > 0) {
+                scheduleReconnect(deviceAddr, attempt + 1);
+            }
         }
 
     }
 
+    /**
+     * Disconnects every peer. Pending reconnects are dropped and the sessions end, so messages
+     * still waiting for replay are reported as failed.
+     */
     public void disconnect() {
 
         Log.d(TAG, "ConnectionManager disconnect connection");
 
-        if(mConnectedThread != null) {
-            mConnectedThread.cancel();
+        cancelReconnects();
+        for(String address : mSessions.keySet()) {
+            endSession(address);
+        }
+        for(PeerLink peerLink : mConnections.values()) {
+            peerLink.cancel();
+        }
+    }
+
+    public void disconnect(String address) {
+
+        Log.d(TAG, "ConnectionManager disconnect " + address);
+
+        cancelReconnect(address);
+        endSession(address);
+        PeerLink peerLink = mConnections.get(address);
+        if(peerLink != null) {
+            peerLink.cancel();
         }
     }
 
-    public synchronized int getCurrentConnectState() {
-        return mConnectState;
+    /**
+     * @return CONNECTED if any peer is connected, otherwise CONNECTING if any peer is connecting.
+     */
+    public int getCurrentConnectState() {
+        return mConnectState.get();
     }
 
-    public synchronized int getCurrentListenState() {
-        return mListenState;
+    public int getCurrentListenState() {
+        return mListenState.get();
     }
 
-    public synchronized boolean sendData(byte[] data) {
-        if(mConnectedThread != null && mConnectState == CONNECT_STATE_CONNECTED) {
-            mConnectedThread.sendData(data);
+    public int getConnectState(String address) {
+        PeerLink peerLink = mConnections.get(address);
+        return peerLink == null ? CONNECT_STATE_IDLE : peerLink.mState.get();
+    }
 
-            return true;
+    public List<String> getConnectedPeers() {
+        List<String> peers = new ArrayList<>();
+        for(PeerLink peerLink : mConnections.values()) {
+            if(peerLink.isConnected()) {
+                peers.add(peerLink.mAddress);
+            }
+        }
+        return peers;
+    }
+
+    /**
+     * Queues {@code data} for every connected peer and returns immediately. The result of each
+     * write is reported later through {@link ConnectionListener#onSendData}.
+     *
+     * @return false if no peer is connected or no peer could take the message.
+     */
+    public boolean sendData(byte[] data) {
+        EncodedMessage message = new EncodedMessage(data);
+        boolean queued = false;
+        for(PeerLink peerLink : mConnections.values()) {
+            if(peerLink.isConnected()) {
+                queued |= peerLink.sendMessage(new OutboundFrame(data, message.frameFor(peerLink), null));
+            }
+        }
+        message.release();
+        return queued;
+    }
+
+    /**
+     * Queues {@code data} for the peer at {@code address} and returns immediately.
+     *
+     * @return false if that peer is not connected or its send queue is full.
+     */
+    public boolean sendData(String address, byte[] data) {
+        PeerLink peerLink = mConnections.get(address);
+        if(peerLink != null && peerLink.isConnected()) {
+            EncodedMessage message = new EncodedMessage(data);
+            boolean queued = peerLink.sendMessage(new OutboundFrame(data, message.frameFor(peerLink), null));
+            message.release();
+            return queued;
+        }
+        return false;
+    }
+
+    /**
+     * Queues a frame of a registered protocol {@code type} for the peer at {@code address}. The
+     * write is not reported through the listeners.
+     *
+     * @return false if that peer is not connected or its send queue is full.
+     */
+    public boolean sendFrame(String address, int type, byte[] data) {
+        return sendFrame(address, type, data, 0, data.length);
+    }
+
+    public boolean sendFrame(String address, int type, byte[] data, int offset, int length) {
+        PeerLink peerLink = mConnections.get(address);
+        if(peerLink != null && peerLink.isConnected()) {
+            return peerLink.send(new OutboundFrame(null, encode(type, data, offset, length), null));
         }
         return false;
     }
 
+    /**
+     * Sends {@code data} to every connected peer. The frame is encoded once into a shared buffer
+     * and each peer's writer drains it independently, so a slow peer doesn't hold up the others.
+     * A peer whose send queue is full is reported as failed right away.
+     *
+     * The outcome for every peer is reported once through {@code listener}, instead of through
+     * {@link ConnectionListener#onSendData} or {@link PeerListener#onPeerSendData}.
+     *
+     * @return the number of peers the message was sent to.
+     */
+    public int broadcast(byte[] data, BroadcastListener listener) {
+        List<PeerLink> targets = new ArrayList<>();
+        for(PeerLink peerLink : mConnections.values()) {
+            if(peerLink.isConnected()) {
+                targets.add(peerLink);
+            }
+        }
+
+        Broadcast broadcast = new Broadcast(data, targets.size(), listener);
+        if(targets.isEmpty()) {
+            if(listener != null) {
+                listener.onBroadcastComplete(new BroadcastReport(data, new String[0], new boolean[0], new long[0]));
+            }
+            return 0;
+        }
+
+        EncodedMessage message = new EncodedMessage(data);
+        for(PeerLink peerLink : targets) {
+            if(!peerLink.sendMessage(new OutboundFrame(data, message.frameFor(peerLink), broadcast))) {
+                broadcast.onPeerResult(peerLink.mAddress, false);
+            }
+        }
+        message.release();
+        return targets.size();
+    }
+
+    public BufferPool getReceivePool() {
+        return mReceivePool;
+    }
+
+    public BufferPool getSendPool() {
+        return mSendPool;
+    }
+
     public String getState(int state) {
         switch (state) {
             case CONNECT_STATE_IDLE:
@@ -137,99 +686,427 @@ public class ConnectionManager {
     }
 
     //==============================================================================================
-    private synchronized void setConnectState(int state) {
+    /**
+     * Runs {@code event} on the event thread after every event posted before it. A listener that
+     * throws is logged and doesn't stop the events after it.
+     */
+    private void post(final Runnable event) {
+        mEvents.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    event.run();
+                } catch (RuntimeException e) {
+                    Log.e(TAG, "state listener failed", e);
+                }
+            }
+        });
+    }
 
-        if(mConnectState == state) {
+    private void setConnectState(int state) {
+
+        int oldState = mConnectState.moveTo(state);
+        if(oldState == state) {
             return;
         }
 
-        int oldState = mConnectState;
-        mConnectState = state;
+        if(mConnectionListener != null) {
+
+            Log.d(TAG, "BT state change: "+getState(oldState)+" -> "+ getState(state));
+            mConnectionListener.onConnectStateChange(oldState, state);
+        }
+    }
+
+    private void setListenState(int state) {
+
+        int oldState = mListenState.moveTo(state);
+        if(oldState == state) {
+            return;
+        }
 
         if(mConnectionListener != null) {
 
-            Log.d(TAG, "BT state change: "+getState(oldState)+" -> "+ getState(mConnectState));
-            mConnectionListener.onConnectStateChange(oldState, mConnectState);
+            Log.d(TAG, "BT state change: "+getState(oldState)+" -> "+ getState(state));
+            mConnectionListener.onListenStateChange(oldState, state);
         }
     }
 
-    private synchronized void setListenState(int state) {
+    private void postListenState(final AcceptLoop acceptLoop, final int state) {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                // A thread that was replaced by startListen() must not report the new one idle.
+                AcceptLoop current = mAcceptLoop.get();
+                if(state == LISTEN_STATE_LISTENING ? current == acceptLoop : current == null) {
+                    setListenState(state);
+                }
+            }
+        });
+    }
+
+    private void postConnectState() {
+        post(new Runnable() {
+            @Override
+            public void run() {
+                updateConnectState();
+            }
+        });
+    }
+
+    private PooledBuffer encode(int type, byte[] data) {
+        return encode(type, data, 0, data.length);
+    }
+
+    private PooledBuffer encode(int type, byte[] data, int offset, int length) {
+        PooledBuffer frame = mSendPool.acquire(FrameCodec.HEADER_SIZE + length);
+        FrameCodec.writeHeader(frame.array(), 0, type, length);
+        System.arraycopy(data, offset, frame.array(), FrameCodec.HEADER_SIZE, length);
+        return frame;
+    }
 
-        if(mListenState == state) {
+    /**
+     * Recomputes the overall connect state from the peers. Only called on the event thread.
+     */
+    private void updateConnectState() {
+
+        int state = CONNECT_STATE_IDLE;
+        for(PeerLink peerLink : mConnections.values()) {
+            int peerState = peerLink.mState.get();
+            if(peerState == CONNECT_STATE_CONNECTED) {
+                state = CONNECT_STATE_CONNECTED;
+                break;
+            }
+            if(peerState == CONNECT_STATE_CONNECTING) {
+                state = CONNECT_STATE_CONNECTING;
+            }
+        }
+        setConnectState(state);
+    }
+
+    /**
+     * Takes one of the {@link #setMaxPeers} slots. A slot is held by every thread in
+     * {@link #mConnections} and is given back by whoever removes the thread from it.
+     */
+    private boolean acquirePeerSlot() {
+        while(true) {
+            int used = mPeerSlots.get();
+            if(used >= mMaxPeers) {
+                return false;
+            }
+            if(mPeerSlots.compareAndSet(used, used + 1)) {
+                return true;
+            }
+        }
+    }
+
+    private void releasePeerSlot() {
+        mPeerSlots.decrementAndGet();
+    }
+
+    /**
+     * @return the delay before reconnect {@code attempt}, counting from 0: between half and all
+     * of {@code initialMillis * 2^attempt}, capped at {@code maxMillis}. The jitter keeps peers
+     * that dropped together from redialing in lockstep.
+     */
+    static long reconnectDelayMillis(int attempt, long initialMillis, long maxMillis, Random random) {
+        long delay = initialMillis << Math.min(attempt, 30);
+        if(delay <= 0 || delay > maxMillis) {
+            delay = maxMillis;
+        }
+        return delay - (long) (random.nextDouble() * (delay / 2));
+    }
+
+    private synchronized ScheduledExecutorService getReconnectScheduler() {
+        if(mReconnectScheduler == null) {
+            ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "Reconnect");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+            // nothing shuts a manager down, so its thread only lives while a reconnect is pending
+            scheduler.setKeepAliveTime(RECONNECT_THREAD_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS);
+            scheduler.allowCoreThreadTimeOut(true);
+            mReconnectScheduler = scheduler;
+        }
+        return mReconnectScheduler;
+    }
+
+    private void scheduleReconnect(final String address, final int attempt) {
+
+        if(!mAutoReconnect) {
             return;
         }
+        if(attempt > mMaxReconnectAttempts) {
+            Log.w(TAG, "giving up on " + address + " after " + mMaxReconnectAttempts + " reconnect attempts");
+            endSession(address);
+            return;
+        }
+
+        long delay = reconnectDelayMillis(attempt - 1, mReconnectInitialMs, mReconnectMaxMs, mRandom);
+        Log.d(TAG, "reconnect attempt " + attempt + " to " + address + " in " + delay + "ms");
+        ScheduledFuture<?> reconnect = getReconnectScheduler().schedule(new Runnable() {
+            @Override
+            public void run() {
+                mPendingReconnects.remove(address);
+                if(mMaxPeers == 1 && !address.equals(mLastPeerAddress)) {
+                    // the user has dialled another peer since the link dropped
+                    return;
+                }
+                if(mAutoReconnect && !mConnections.containsKey(address)) {
+                    mReconnectAttempts.increment();
+                    connect(address, attempt);
+                }
+            }
+        }, delay, TimeUnit.MILLISECONDS);
+        ScheduledFuture<?> replaced = mPendingReconnects.put(address, reconnect);
+        if(replaced != null) {
+            replaced.cancel(false);
+        }
+    }
 
-        int oldState = mListenState;
-        mListenState = state;
+    private void cancelReconnect(String address) {
+        ScheduledFuture<?> reconnect = mPendingReconnects.remove(address);
+        if(reconnect != null) {
+            reconnect.cancel(false);
+        }
+    }
 
-        if(mConnectionListener != null) {
+    private void cancelReconnects() {
+        for(String address : mPendingReconnects.keySet()) {
+            cancelReconnect(address);
+        }
+    }
 
-            Log.d(TAG, "BT state change: "+getState(oldState)+" -> "+ getState(mListenState));
-            mConnectionListener.onListenStateChange(oldState, mListenState);
+    /**
+     * @return the session with the peer at {@code address}, started if there is none. Sessions
+     * of peers that have been gone for longer than SESSION_EXPIRY_MS are ended on the way.
+     */
+    private Session attachSession(String address) {
+        long now = System.nanoTime();
+        for(Map.Entry<String, Session> entry : mSessions.entrySet()) {
+            Session session = entry.getValue();
+            if(session.isExpired(now) && mSessions.remove(entry.getKey(), session)) {
+                settle(entry.getKey(), session, session.end(), false);
+            }
+        }
+
+        Session session = mSessions.get(address);
+        if(session == null) {
+            Session created = new Session();
+            session = mSessions.putIfAbsent(address, created);
+            if(session == null) {
+                session = created;
+            }
         }
+        session.attach();
+        return session;
     }
 
-    private synchronized void connected(BluetoothSocket socket, boolean needConnect) {
+    private void endSession(String address) {
+        Session session = mSessions.remove(address);
+        if(session != null) {
+            settle(address, session, session.end(), false);
+        }
+    }
 
-        mConnectedThread = new ConnectedThread(socket, needConnect);
-        mConnectedThread.start();
+    /**
+     * Drops the session's hold on frames it let go of, reporting those that weren't reported yet:
+     * frames given up on as failed, acknowledged frames as sent, which they are even if the
+     * writer hasn't got round to saying so.
+     *
+     * @param suc true if the peer acknowledged them, false if they were given up on.
+     */
+    private void settle(String address, Session session, List<OutboundFrame> frames, boolean suc) {
+        long now = System.nanoTime();
+        boolean run = false;
+        synchronized (session.mReports) {
+            // queued together, so the writer can't report one of them in between
+            for(OutboundFrame frame : frames) {
+                run |= queueReport(address, suc, frame);
+            }
+        }
+        if(run) {
+            session.mReports.run();
+        }
+        for(OutboundFrame frame : frames) {
+            if(suc) {
+                mDeliveryLatencyNanos.record(now - frame.queueTime);
+            }
+            frame.frame.release();
+        }
     }
 
-    private class AcceptThread extends Thread {
+    /**
+     * Reports the outcome of a message to the listeners, unless it was reported before.
+     */
+    private void reportSent(String address, boolean suc, OutboundFrame frame) {
+        ReportQueue reports = frame.reports;
+        if(reports == null) {
+            if(frame.markReported()) {
+                notifyListeners(address, suc, frame);
+            }
+            return;
+        }
+        if(queueReport(address, suc, frame)) {
+            reports.run();
+        }
+    }
 
-        private final String TAG = "AcceptThread";
+    /**
+     * Queues the report of a session's frame, unless it was reported before.
+     *
+     * @return true if the caller must run the queue.
+     */
+    private boolean queueReport(final String address, final boolean suc, final OutboundFrame frame) {
+        synchronized (frame.reports) {
+            if(!frame.markReported()) {
+                return false;
+            }
+            return frame.reports.add(new Runnable() {
+                @Override
+                public void run() {
+                    notifyListeners(address, suc, frame);
+                }
+            });
+        }
+    }
 
-        private BluetoothServerSocket mServerSocket;
-        private boolean mUserCancel;
+    private void notifyListeners(String address, boolean suc, OutboundFrame frame) {
+        if(suc && (frame.data != null || frame.broadcast != null)) {
+            mMessagesOut.increment();
+            mSendLatencyNanos.record(System.nanoTime() - frame.queueTime);
+        }
 
-        public AcceptThread() {
-            Log.d(TAG, "create AcceptThread");
-            BluetoothServerSocket tmp = null;
-            mUserCancel = false;
+        DeliveryListener deliveryListener = mDeliveryListener;
+        if(suc && frame.seq > 0 && deliveryListener != null) {
+            deliveryListener.onMessageSent(address, frame.seq, frame.data);
+        }
 
-            // Create a new listening server socket
-            try {
-                tmp = mBluetoothAdapter.listenUsingRfcommWithServiceRecord(
-                        BT_NAME, BT_UUID);
-            } catch (IOException e) {
-                Log.e(TAG, "AcceptThread create fail: ", e);
+        if(frame.broadcast != null) {
+            frame.broadcast.onPeerResult(address, suc);
+            return;
+        }
+        if(frame.data == null) {
+            return;
+        }
+
+        PeerListener peerListener = mPeerListener;
+        if(peerListener != null) {
+            peerListener.onPeerSendData(address, suc, frame.data);
+        }
+        else if(mConnectionListener != null) {
+            mConnectionListener.onSendData(suc, frame.data);
+        }
+    }
+
+    private void connected(String address, Transport.Connection socket, int attempt) {
+
+        PeerLink peerLink = new PeerLink(address, socket, true, attempt);
+        PeerLink replaced = mConnections.put(address, peerLink);
+        if(replaced != null) {
+            // connect() raced with another connect() to the same peer; the last one wins
+            replaced.cancel();
+            releasePeerSlot();
+        }
+        if(!peerLink.startOn(mIoWorkers, "Reader-" + address)) {
+            peerLink.closeSocket();
+            peerLink.finish();
+        }
+    }
+
+    private boolean accepted(Transport.Connection socket) {
+
+        String address = socket.getRemoteAddress();
+        if(address == null) {
+            address = "peer-" + mAnonymousPeers.incrementAndGet();
+        }
+
+        PeerLink peerLink = new PeerLink(address, socket, false, 0);
+        PeerLink stale = mResumption ? mConnections.get(address) : null;
+        if(stale != null) {
+            // the peer dialled again, so the link we have is dead even if it hasn't noticed yet;
+            // the new one takes over its slot and resumes its session
+            if(!mConnections.replace(address, stale, peerLink)) {
+                return false;
             }
-            mServerSocket = tmp;
+            Log.d(TAG, "replacing stale link with " + address);
+            stale.cancel();
+        }
+        else {
+            if(mConnections.containsKey(address) || !acquirePeerSlot()) {
+                return false;
+            }
+            if(mConnections.putIfAbsent(address, peerLink) != null) {
+                releasePeerSlot();
+                return false;
+            }
+        }
+        if(!peerLink.startOn(mIoWorkers, "Reader-" + address)) {
+            if(mConnections.remove(address, peerLink)) {
+                releasePeerSlot();
+            }
+            return false;
+        }
+        return true;
+    }
+
+    private class AcceptLoop extends IoWorkers.Loop {
+
+        private final String TAG = "AcceptLoop";
+
+        private volatile Transport.ServerEndpoint mServerSocket;
+        private volatile boolean mUserCancel;
+
+        public AcceptLoop() {
+            Log.d(TAG, "create AcceptLoop");
+            mUserCancel = false;
         }
 
         @Override
         public void run() {
 
-            Log.d(TAG, "AcceptThread START");
+            Log.d(TAG, "AcceptLoop START");
 
-            setName("AcceptThread");
+            // Create a new listening server socket here rather than on the caller's thread:
+            // on Bluetooth it registers an SDP record, which can take a while
+            Transport.ServerEndpoint tmp = null;
+            try {
+                tmp = mTransport.listen();
+            } catch (IOException e) {
+                Log.e(TAG, "AcceptLoop create fail: ", e);
+            }
+            // a cancel() that came first didn't see the socket: the loop won't run and it's closed below
+            mServerSocket = tmp;
 
-            setListenState(LISTEN_STATE_LISTENING);
+            if(mServerSocket != null && !mUserCancel) {
+                postListenState(this, LISTEN_STATE_LISTENING);
+            }
 
-            BluetoothSocket socket = null;
+            Transport.Connection socket = null;
 
-            while(!mUserCancel) {
+            while(!mUserCancel && mServerSocket != null) {
                 try {
-                    Log.d(TAG, "AcceptThread wait for accept a new socket");
+                    Log.d(TAG, "AcceptLoop wait for accept a new socket");
                     socket = mServerSocket.accept();
 
                 } catch (IOException e) {
-                    Log.d(TAG, "AcceptThread exception: " + e);
+                    Log.d(TAG, "AcceptLoop exception: " + e);
                     mServerSocket = null;
                     break;
                 }
 
-                Log.d(TAG, "AcceptThread accepted a connection, ConnectState=: " + ConnectionManager.this.getState(mConnectState));
-                if(mConnectState == CONNECT_STATE_CONNECTED || mConnectState == CONNECT_STATE_CONNECTING) {
+                Log.d(TAG, "AcceptLoop accepted a connection, peers=: " + mConnections.size());
+                if(!accepted(socket)) {
+                    Log.d(TAG, "AcceptLoop refused a connection, peer or thread limit reached");
                     try {
                         socket.close();
                     } catch (IOException e) {
                         e.printStackTrace();
                     }
                 }
-                else if(mConnectState == CONNECT_STATE_IDLE) {
-                    connected(socket, false);
-                }
             }
 
             if(mServerSocket != null) {
@@ -240,45 +1117,60 @@ public class ConnectionManager {
                 }
                 mServerSocket = null;
             }
-            setListenState(LISTEN_STATE_IDLE);
-            mAcceptThread = null;
+            mAcceptLoop.compareAndSet(this, null);
+            postListenState(this, LISTEN_STATE_IDLE);
 
             if(mUserCancel == true) {
-                Log.d(TAG, "AcceptThread END since user cancel.");
+                Log.d(TAG, "AcceptLoop END since user cancel.");
             }
             else {
-                Log.d(TAG, "AcceptThread END");
+                Log.d(TAG, "AcceptLoop END");
             }
         }
 
         public void cancel() {
-            Log.d(TAG, "AcceptThread cancel");
+            Log.d(TAG, "AcceptLoop cancel");
             try {
                 mUserCancel = true;
                 if(mServerSocket != null) {
                     mServerSocket.close();
                 }
             } catch (IOException e) {
-                Log.e(TAG, "AcceptThread cancel fail, e: ");
+                Log.e(TAG, "AcceptLoop cancel fail, e: ");
             }
         }
     }
 
-    private class ConnectedThread extends Thread {
+    private class PeerLink extends IoWorkers.Loop implements FrameDecoder.FrameListener {
 
-        private final int MAX_BUFFER_SIZE = 1024;
+        private final int RING_BUFFER_SIZE = 16 * 1024;
 
-        private BluetoothSocket mSocket;
+        private final String mAddress;
+        private final StateMachine mState = new StateMachine("peer state", CONNECT_STATE_IDLE, 3)
+                .allow(CONNECT_STATE_IDLE, CONNECT_STATE_CONNECTING)
+                .allow(CONNECT_STATE_CONNECTING, CONNECT_STATE_CONNECTED, CONNECT_STATE_IDLE)
+                .allow(CONNECT_STATE_CONNECTED, CONNECT_STATE_IDLE);
+        private volatile Transport.Connection mSocket;
         private InputStream mInStream;
         private OutputStream mOutStream;
-        private boolean mUserCancel;
+        private volatile Writer mWriter;
+        private volatile boolean mUserCancel;
         private boolean mNeedConnect;
-
-        public ConnectedThread(BluetoothSocket socket, boolean needConnect) {
-            Log.d(TAG, "create ConnectedThread");
-
-            setName("ConnectedThread");
+        private final int mAttempt;
+        private volatile Session mSession;
+        private boolean mReady;
+        private volatile boolean mPeerInflates;
+        private Inflater mInflater;
+        private Utf8Decoder mTextDecoder;
+        private final long mCreateTime = System.nanoTime();
+        private boolean mFirstByte;
+
+        public PeerLink(String address, Transport.Connection socket, boolean needConnect, int attempt) {
+            Log.d(TAG, "create PeerLink for " + address);
+
+            mAddress = address;
             mNeedConnect = needConnect;
+            mAttempt = attempt;
             mSocket = socket;
             mUserCancel = false;
         }
@@ -286,21 +1178,30 @@ public class ConnectionManager {
         @Override
         public void run() {
 
-            Log.d(TAG, "ConnectedThread START");
+            Log.d(TAG, "PeerLink START");
 
-            setConnectState(CONNECT_STATE_CONNECTING);
+            setState(CONNECT_STATE_CONNECTING);
 
             if(mNeedConnect && !mUserCancel) {
+                RadioScheduler radio = mRadioScheduler;
+                if(radio != null) {
+                    radio.connectStarted();
+                }
+                long start = System.nanoTime();
                 try {
                     mSocket.connect();
+                    mConnectNanos.record(System.nanoTime() - start);
                 } catch (IOException e) {
 
-                    Log.d(TAG, "ConnectedThread END at connect(), " + e);
-                    setConnectState(CONNECT_STATE_IDLE);
-                    mSocket = null;
-                    mConnectedThread = null;
+                    Log.d(TAG, "PeerLink END at connect(), " + e);
+                    mConnectFailures.increment();
+                    finish();
 
                     return;
+                } finally {
+                    if(radio != null) {
+                        radio.connectEnded();
+                    }
                 }
             }
 
@@ -311,10 +1212,8 @@ public class ConnectionManager {
                 tmpIn = mSocket.getInputStream();
                 tmpOut = mSocket.getOutputStream();
             } catch (IOException e) {
-                Log.d(TAG, "ConnectedThread END at getStream(), "+ e);
-                setConnectState(CONNECT_STATE_IDLE);
-                mSocket = null;
-                mConnectedThread = null;
+                Log.d(TAG, "PeerLink END at getStream(), "+ e);
+                finish();
 
                 return;
             }
@@ -322,71 +1221,770 @@ public class ConnectionManager {
             mInStream = tmpIn;
             mOutStream = tmpOut;
 
+            Writer writer = new Writer(this, mOutStream);
+            if(!writer.startOn(mIoWorkers, "Writer-" + mAddress)) {
+                Log.d(TAG, "PeerLink END, no thread left for its writer");
+                closeSocket();
+                finish();
 
-            setConnectState(CONNECT_STATE_CONNECTED);
+                return;
+            }
+            mWriter = writer;
+            if(mCompression) {
+                send(new OutboundFrame(null, encode(FrameCodec.TYPE_HELLO, new byte[] {FrameCompressor.FEATURE_DEFLATE}), null));
+            }
+
+            if(mResumption) {
+                // connected once the peer's resume arrives and the replay is queued
+                mSession = attachSession(mAddress);
+                send(new OutboundFrame(null, encode(FrameCodec.TYPE_RESUME, mSession.resumeRequest()), null));
+            }
+            else {
+                linkReady();
+            }
 
-            byte[] buffer = new byte[MAX_BUFFER_SIZE];
-            int bytes;
+            FrameDecoder decoder = new FrameDecoder(RING_BUFFER_SIZE);
 
             while (!mUserCancel) {
                 try {
-                    Log.d(TAG, "ConnectedThread wait for read data");
-                    bytes = mInStream.read(buffer);
-
-                    if(mConnectionListener != null && bytes > 0) {
-
-                        byte [] data = new byte[bytes];
-                        System.arraycopy(buffer, 0, data, 0, bytes);
-                        mConnectionListener.onReadData(data);
+                    Log.d(TAG, "PeerLink wait for read data");
+                    if(!decoder.readFrom(mInStream, this)) {
+                        Log.d(TAG, "PeerLink reached end of stream");
+                        break;
                     }
                 } catch (IOException e) {
-                    Log.d(TAG, "ConnectedThread disconnected, ", e);
+                    Log.d(TAG, "PeerLink disconnected, ", e);
                     break;
                 }
+
+                if(mSession != null) {
+                    long received = mSession.takeAck();
+                    if(received >= 0) {
+                        byte[] payload = new byte[8];
+                        FrameCodec.writeLong(payload, 0, received);
+                        send(new OutboundFrame(null, encode(FrameCodec.TYPE_ACK, payload), null));
+                    }
+                }
             }
 
-            setConnectState(CONNECT_STATE_IDLE);
-            mSocket = null;
-            mConnectedThread = null;
+            mWriter.finish();
+            closeSocket();
+            try {
+                // the link ends with its writer, so no frame is still being written after it
+                mWriter.await();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+            }
+            if(mInflater != null) {
+                mInflater.end();
+            }
+            finish();
+            if(mReady) {
+                for(FrameHandler handler : mFrameHandlers) {
+                    handler.onPeerDisconnected(mAddress);
+                }
+            }
 
             if(mUserCancel == true) {
-                Log.d(TAG, "ConnectedThread END since user cancel.");
+                Log.d(TAG, "PeerLink END since user cancel.");
+            }
+            else {
+                Log.d(TAG, "PeerLink END");
+            }
+        }
+
+        boolean isConnected() {
+            return mState.get() == CONNECT_STATE_CONNECTED;
+        }
+
+        private void linkReady() {
+            if(!mNeedConnect) {
+                mAcceptToConnectedNanos.record(System.nanoTime() - mCreateTime);
+            }
+            mConnects.increment();
+            if(!mKnownPeers.add(mAddress)) {
+                mReconnects.increment();
+            }
+            mReady = true;
+            setState(CONNECT_STATE_CONNECTED);
+            for(FrameHandler handler : mFrameHandlers) {
+                handler.onPeerConnected(mAddress);
+            }
+        }
+
+        /**
+         * Picks the session up where the peer's resume says it left off: messages it acknowledges
+         * are settled, the rest are queued again ahead of anything new. A peer that doesn't know
+         * this session any more starts a new one, and the old messages are given up on.
+         */
+        private void resume(long peerId, long knownId, long received) {
+            if(mSession.onResume(peerId, knownId)) {
+                delivered(mSession.acknowledge(received));
+            }
+            else {
+                settle(mAddress, mSession, mSession.restart(), false);
+            }
+
+            mReplayedFrames.add(mSession.replay(mWriter));
+            Log.d(TAG, "resumed session with " + mAddress + ", peer had " + received + " messages");
+            linkReady();
+        }
+
+        private void delivered(List<OutboundFrame> acked) {
+            if(acked.isEmpty()) {
+                return;
+            }
+            settle(mAddress, mSession, acked, true);
+            final DeliveryListener deliveryListener = mDeliveryListener;
+            if(deliveryListener != null) {
+                final long seq = acked.get(acked.size() - 1).seq;
+                // after the frames' own reports, even those another thread is still running
+                mSession.mReports.post(new Runnable() {
+                    @Override
+                    public void run() {
+                        deliveryListener.onMessagesDelivered(mAddress, seq);
+                    }
+                });
+            }
+        }
+
+        private void acknowledged(long received) {
+            delivered(mSession.acknowledge(received));
+            mSession.pump(mWriter);
+        }
+
+        private void setState(final int state) {
+
+            final int oldState = mState.moveTo(state);
+            if(oldState == state) {
+                return;
+            }
+
+            post(new Runnable() {
+                @Override
+                public void run() {
+                    PeerListener peerListener = mPeerListener;
+                    if(peerListener != null) {
+                        peerListener.onPeerConnectStateChange(mAddress, oldState, state);
+                    }
+                    updateConnectState();
+                }
+            });
+        }
+
+        private void finish() {
+            if(mConnections.remove(mAddress, this)) {
+                releasePeerSlot();
+            }
+            if(mSession != null) {
+                mSession.detach();
+            }
+            setState(CONNECT_STATE_IDLE);
+            mSocket = null;
+
+            // only links that were up, or attempts to bring them back, are retried
+            if(mNeedConnect && !mUserCancel && (mReady || mAttempt > 0)) {
+                scheduleReconnect(mAddress, mReady ? 1 : mAttempt + 1);
+            }
+        }
+
+        @Override
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+            if(!mFirstByte) {
+                mFirstByte = true;
+                mFirstByteNanos.record(System.nanoTime() - mCreateTime);
+            }
+            mBytesIn.add(FrameCodec.HEADER_SIZE + length);
+            switch (type) {
+                case FrameCodec.TYPE_DATA:
+                    mMessagesIn.increment();
+                    if(mSession != null) {
+                        mSession.onReceived();
+                    }
+                    deliver(mReceivePool.wrap(buffer, offset, length));
+                    break;
+                case FrameCodec.TYPE_DATA_DEFLATE:
+                    mMessagesIn.increment();
+                    if(mSession != null) {
+                        mSession.onReceived();
+                    }
+                    if(mInflater == null) {
+                        mInflater = FrameCompressor.newInflater();
+                    }
+                    deliver(FrameCompressor.decompress(mInflater, buffer, offset, length, mReceivePool));
+                    break;
+                case FrameCodec.TYPE_HELLO:
+                    mPeerInflates = length > 0 && (buffer[offset] & FrameCompressor.FEATURE_DEFLATE) != 0;
+                    Log.d(TAG, "hello from " + mAddress + ", inflates=" + mPeerInflates);
+                    break;
+                case FrameCodec.TYPE_RESUME:
+                    if(mSession != null && !mReady && length >= 24) {
+                        resume(FrameCodec.readLong(buffer, offset), FrameCodec.readLong(buffer, offset + 8),
+                                FrameCodec.readLong(buffer, offset + 16));
+                    }
+                    break;
+                case FrameCodec.TYPE_ACK:
+                    if(mSession != null && length >= 8) {
+                        acknowledged(FrameCodec.readLong(buffer, offset));
+                    }
+                    break;
+                case FrameCodec.TYPE_READ:
+                    if(mSession != null && length >= 8) {
+                        // a read receipt can overtake the ack that covers the same messages
+                        long read = FrameCodec.readLong(buffer, offset);
+                        acknowledged(read);
+                        DeliveryListener deliveryListener = mDeliveryListener;
+                        if(deliveryListener != null) {
+                            deliveryListener.onMessagesRead(mAddress, read);
+                        }
+                    }
+                    break;
+                default:
+                    FrameHandler handler = mFrameTypes.get(type);
+                    if(handler != null) {
+                        handler.onFrame(mAddress, type, buffer, offset, length);
+                    }
+                    break;
+            }
+        }
+
+        private void deliver(PooledBuffer data) {
+            TextListener textListener = mTextListener;
+            if(textListener != null) {
+                if(mTextDecoder == null) {
+                    mTextDecoder = new Utf8Decoder();
+                }
+                textListener.onReadText(mAddress, mTextDecoder.decodeMessage(data.array(), 0, data.length()), data);
+                return;
+            }
+
+            PeerListener peerListener = mPeerListener;
+            if(peerListener != null) {
+                peerListener.onPeerReadData(mAddress, data);
+            }
+            else if(mConnectionListener != null) {
+                mConnectionListener.onReadData(data);
             }
             else {
-                Log.d(TAG, "ConnectedThread END");
+                data.release();
             }
         }
 
         public void cancel() {
-            Log.d(TAG, "ConnectedThread cancel START");
+            Log.d(TAG, "PeerLink cancel START");
+            mUserCancel = true;
+            closeSocket();
+            Log.d(TAG, "PeerLink cancel END");
+        }
+
+        private void closeSocket() {
+            Transport.Connection socket = mSocket;
             try {
-                mUserCancel = true;
-                if(mSocket != null) {
-                    mSocket.close();
+                if(socket != null) {
+                    socket.close();
                 }
 
             } catch (IOException e) {
-                Log.e(TAG, "ConnectedThread cancel failed", e);
+                Log.e(TAG, "PeerLink close socket failed", e);
+            }
+        }
+
+        public boolean send(OutboundFrame frame) {
+            Writer writer = mWriter;
+            if(writer != null && writer.enqueue(frame)) {
+                return true;
+            }
+            frame.frame.release();
+            return false;
+        }
+
+        /**
+         * Sends a data frame, numbered and kept by the session if there is one.
+         */
+        public boolean sendMessage(OutboundFrame frame) {
+            Session session = mSession;
+            if(session == null) {
+                return send(frame);
+            }
+            if(session.offer(frame, mWriter)) {
+                return true;
+            }
+            frame.frame.release();
+            return false;
+        }
+    }
+
+    /**
+     * What survives of the link to one peer between connections. Each end numbers the data frames
+     * it sends in a session from 1 and counts the ones it receives; the links are reliable and in
+     * order, so the numbers never travel with the frames. A resume frame (session id, the peer's
+     * session id as last seen, messages received from it) opens every link and an ack frame
+     * (messages received) follows every read that brought data, so the sender can let go of
+     * acknowledged frames and knows where to restart after a drop.
+     *
+     * At most {@link #setSendWindow} frames are unacknowledged at a time; the ones after them wait
+     * in the backlog, already numbered, and are queued as acknowledgements make room.
+     */
+    private class Session {
+
+        private final long mId = newSessionId();
+        private long mPeerId;
+        private long mSent;
+        private long mReceived;
+        private long mAcked;
+        private long mRead;
+        private final ArrayDeque<OutboundFrame> mUnacked = new ArrayDeque<>();
+        private final ArrayDeque<OutboundFrame> mBacklog = new ArrayDeque<>();
+        final ReportQueue mReports = new ReportQueue();
+        private int mLinks;
+        private long mDetachTime;
+        private boolean mEnded;
+
+        private long newSessionId() {
+            long id;
+            do {
+                id = mRandom.nextLong();
+            } while(id == 0);
+            return id;
+        }
+
+        synchronized void attach() {
+            mLinks++;
+        }
+
+        synchronized void detach() {
+            mLinks--;
+            mDetachTime = System.nanoTime();
+        }
+
+        synchronized boolean isExpired(long now) {
+            return mLinks == 0 && now - mDetachTime > TimeUnit.MILLISECONDS.toNanos(SESSION_EXPIRY_MS);
+        }
+
+        synchronized byte[] resumeRequest() {
+            byte[] payload = new byte[24];
+            FrameCodec.writeLong(payload, 0, mId);
+            FrameCodec.writeLong(payload, 8, mPeerId);
+            FrameCodec.writeLong(payload, 16, mReceived);
+            return payload;
+        }
+
+        /**
+         * @return true if the peer still knows this session.
+         */
+        synchronized boolean onResume(long peerId, long knownId) {
+            if(peerId != mPeerId) {
+                mPeerId = peerId;
+                mReceived = 0;
+                mAcked = 0;
+                mRead = 0;
             }
+            return knownId == mId;
+        }
 
-            Log.d(TAG, "ConnectedThread cancel END");
+        /**
+         * Numbers {@code frame} and queues it on {@code writer}, or in the backlog if the
+         * window is full, in one step so the numbers follow the order on the link.
+         */
+        synchronized boolean offer(OutboundFrame frame, Writer writer) {
+            if(mEnded || writer == null || mBacklog.size() >= MAX_BACKLOG_FRAMES) {
+                return false;
+            }
+            frame.seq = mSent + 1;
+            frame.reports = mReports;
+            frame.frame.retain();
+            if(mBacklog.isEmpty() && mUnacked.size() < mSendWindow) {
+                if(!writer.enqueue(frame)) {
+                    frame.frame.release();
+                    return false;
+                }
+                mUnacked.add(frame);
+            }
+            else {
+                // the backlog only holds the session's reference
+                frame.frame.release();
+                mBacklog.add(frame);
+            }
+            mSent++;
+            return true;
         }
 
-        public void sendData(byte[] data) {
+        /**
+         * Moves frames from the backlog to {@code writer} while the window has room.
+         */
+        synchronized void pump(Writer writer) {
+            while(!mBacklog.isEmpty() && mUnacked.size() < mSendWindow) {
+                if(!writer.enqueue(mBacklog.peek().retain())) {
+                    mBacklog.peek().frame.release();
+                    return;
+                }
+                mUnacked.add(mBacklog.poll());
+            }
+        }
+
+        /**
+         * Queues every unacknowledged frame on {@code writer} again, then fills the window.
+         *
+         * @return the number of frames sent again.
+         */
+        synchronized int replay(Writer writer) {
+            int replayed = 0;
+            for(OutboundFrame frame : mUnacked) {
+                if(!writer.enqueue(frame.retain())) {
+                    frame.frame.release();
+                    return replayed;
+                }
+                replayed++;
+            }
+            pump(writer);
+            return replayed;
+        }
+
+        synchronized void onReceived() {
+            mReceived++;
+        }
+
+        /**
+         * @return the count to acknowledge, or -1 if nothing arrived since the last ack.
+         */
+        synchronized long takeAck() {
+            if(mReceived == mAcked) {
+                return -1;
+            }
+            mAcked = mReceived;
+            return mReceived;
+        }
+
+        /**
+         * @return the count to report as read, or -1 if it was reported already.
+         */
+        synchronized long takeRead() {
+            if(mReceived == mRead) {
+                return -1;
+            }
+            mRead = mReceived;
+            return mReceived;
+        }
+
+        /**
+         * @return the frames the peer has now received.
+         */
+        synchronized List<OutboundFrame> acknowledge(long received) {
+            List<OutboundFrame> acked = new ArrayList<>();
+            while(!mUnacked.isEmpty() && mUnacked.peek().seq <= received) {
+                acked.add(mUnacked.poll());
+            }
+            return acked;
+        }
+
+        /**
+         * Starts numbering again for a peer that lost the session.
+         *
+         * @return the frames it will never get.
+         */
+        synchronized List<OutboundFrame> restart() {
+            mSent = 0;
+            List<OutboundFrame> lost = new ArrayList<>(mUnacked);
+            lost.addAll(mBacklog);
+            mUnacked.clear();
+            mBacklog.clear();
+            return lost;
+        }
+
+        /**
+         * @return the frames that were never acknowledged.
+         */
+        synchronized List<OutboundFrame> end() {
+            mEnded = true;
+            return restart();
+        }
+    }
+
+    /**
+     * An encoded frame waiting in a connection's send queue. Broadcasts share one encoded frame
+     * between all connections; each queued reference holds the frame until it has been written.
+     * Protocol frames have no {@code data} and are not reported to the listeners.
+     */
+    private static class OutboundFrame {
+
+        final byte[] data;
+        final PooledBuffer frame;
+        final Broadcast broadcast;
+        final long queueTime = System.nanoTime();
+        /** The number of the message in its session, or 0. */
+        long seq;
+        /** Where the session reports it, or null if it isn't in one. */
+        ReportQueue reports;
+        private boolean mReported;
+
+        OutboundFrame(byte[] data, PooledBuffer frame, Broadcast broadcast) {
+            this.data = data;
+            this.frame = frame;
+            this.broadcast = broadcast;
+        }
+
+        /**
+         * Takes another reference to the encoded frame, to queue it again.
+         */
+        OutboundFrame retain() {
+            frame.retain();
+            return this;
+        }
+
+        /**
+         * @return false if the outcome was reported already.
+         */
+        synchronized boolean markReported() {
+            if(mReported) {
+                return false;
+            }
+            mReported = true;
+            return true;
+        }
+    }
+
+    /**
+     * Runs a session's reports one at a time, in the order they were queued. Whichever thread
+     * queues one while none is running runs them, outside any lock, so a slow listener holds up
+     * only the reports of its own session.
+     */
+    private static class ReportQueue {
+
+        private final ArrayDeque<Runnable> mPending = new ArrayDeque<>();
+        private boolean mRunning;
+
+        /**
+         * @return true if no thread is running the queue; the caller must {@link #run()} it.
+         */
+        synchronized boolean add(Runnable report) {
+            mPending.add(report);
+            if(mRunning) {
+                return false;
+            }
+            mRunning = true;
+            return true;
+        }
+
+        void post(Runnable report) {
+            if(add(report)) {
+                run();
+            }
+        }
+
+        void run() {
+            boolean drained = false;
             try {
-                mOutStream.write(data);
+                while(true) {
+                    Runnable report;
+                    synchronized (this) {
+                        report = mPending.poll();
+                        if(report == null) {
+                            mRunning = false;
+                            drained = true;
+                            return;
+                        }
+                    }
+                    report.run();
+                }
+            } finally {
+                if(!drained) {
+                    // a listener threw; the next report to be queued picks up the rest
+                    synchronized (this) {
+                        mRunning = false;
+                    }
+                }
+            }
+        }
+    }
+
+    /**
+     * A message being sent to one or more peers. The raw and the compressed frame are each encoded
+     * at most once, the first time a peer needs them, and shared by every peer that takes them.
+     */
+    private class EncodedMessage {
+
+        private final byte[] mData;
+        private final boolean mCompress;
+        private PooledBuffer mRawFrame;
+        private PooledBuffer mCompressedFrame;
+        private boolean mCompressTried;
+
+        EncodedMessage(byte[] data) {
+            mData = data;
+            mCompress = mCompression && data.length >= mCompressionThreshold;
+        }
 
-                if(mConnectionListener != null) {
-                    mConnectionListener.onSendData(true, data);
+        PooledBuffer frameFor(PeerLink peerLink) {
+            if(mCompress && peerLink.mPeerInflates) {
+                if(!mCompressTried) {
+                    mCompressTried = true;
+                    mCompressedFrame = mCompressor.compress(mData, 0, mData.length, mSendPool);
                 }
-            } catch (IOException e) {
-                Log.e(TAG, "send data fail", e);
-                if(mConnectionListener != null) {
-                    mConnectionListener.onSendData(true, data);
+                if(mCompressedFrame != null) {
+                    return mCompressedFrame.retain();
                 }
             }
+            if(mRawFrame == null) {
+                mRawFrame = encode(FrameCodec.TYPE_DATA, mData);
+            }
+            return mRawFrame.retain();
+        }
+
+        void release() {
+            if(mRawFrame != null) {
+                mRawFrame.release();
+            }
+            if(mCompressedFrame != null) {
+                mCompressedFrame.release();
+            }
         }
     }
-}
 
+    /**
+     * Collects the per-peer outcomes of one {@link #broadcast} call.
+     */
+    private static class Broadcast {
+
+        private final BroadcastListener mListener;
+        private final byte[] mData;
+        private final long mStartTime = System.nanoTime();
+        private final String[] mPeers;
+        private final boolean[] mDelivered;
+        private final long[] mLatencies;
+        private int mReported;
+
+        Broadcast(byte[] data, int peers, BroadcastListener listener) {
+            mData = data;
+            mListener = listener;
+            mPeers = new String[peers];
+            mDelivered = new boolean[peers];
+            mLatencies = new long[peers];
+        }
 
+        void onPeerResult(String address, boolean suc) {
+            BroadcastReport report = null;
+            synchronized (this) {
+                mPeers[mReported] = address;
+                mDelivered[mReported] = suc;
+                mLatencies[mReported] = System.nanoTime() - mStartTime;
+                mReported++;
+                if(mReported == mPeers.length) {
+                    report = new BroadcastReport(mData, mPeers, mDelivered, mLatencies);
+                }
+            }
+            if(report != null && mListener != null) {
+                mListener.onBroadcastComplete(report);
+            }
+        }
+    }
+
+    /**
+     * Drains a connection's send queue. Frames that are queued together are coalesced into a
+     * single write of up to MAX_WRITE_SIZE bytes; larger frames are written straight from their
+     * encoded buffer.
+     */
+    private class Writer extends IoWorkers.Loop {
+
+        private final int SEND_QUEUE_CAPACITY = 256;
+        private final int MAX_WRITE_SIZE = 8 * 1024;
+
+        private final PeerLink mConnection;
+        private final OutputStream mOutStream;
+        private final BlockingQueue<OutboundFrame> mQueue = new ArrayBlockingQueue<>(SEND_QUEUE_CAPACITY);
+        private final ArrayList<OutboundFrame> mBatch = new ArrayList<>();
+        private final byte[] mWriteBuffer = new byte[MAX_WRITE_SIZE];
+        private volatile boolean mStopped;
+
+        public Writer(PeerLink connection, OutputStream outStream) {
+            mConnection = connection;
+            mOutStream = outStream;
+        }
+
+        public boolean enqueue(OutboundFrame frame) {
+            if(mStopped || !mQueue.offer(frame)) {
+                return false;
+            }
+            mSendQueueDepth.record(mQueue.size());
+            // the writer may have drained the queue for the last time in between
+            return !mStopped || !mQueue.remove(frame);
+        }
+
+        public void finish() {
+            mStopped = true;
+            interrupt();
+        }
+
+        @Override
+        public void run() {
+
+            Log.d(TAG, "Writer START");
+
+            while(!mStopped) {
+                try {
+                    mBatch.add(mQueue.take());
+                } catch (InterruptedException e) {
+                    break;
+                }
+
+                int size = mBatch.get(0).frame.length();
+                OutboundFrame next;
+                while((next = mQueue.peek()) != null && size + next.frame.length() <= MAX_WRITE_SIZE) {
+                    mBatch.add(mQueue.poll());
+                    size += next.frame.length();
+                }
+
+                boolean suc = writeBatch(size);
+                for(int i = 0; i < mBatch.size(); i++) {
+                    notifySent(suc, mBatch.get(i));
+                }
+                mBatch.clear();
+
+                if(!suc) {
+                    mConnection.closeSocket();
+                    break;
+                }
+            }
+
+            mStopped = true;
+            OutboundFrame frame;
+            while((frame = mQueue.poll()) != null) {
+                notifySent(false, frame);
+            }
+
+            Log.d(TAG, "Writer END");
+        }
+
+        private boolean writeBatch(int size) {
+            try {
+                if(size > MAX_WRITE_SIZE) {
+                    PooledBuffer frame = mBatch.get(0).frame;
+                    mOutStream.write(frame.array(), 0, frame.length());
+                }
+                else {
+                    int offset = 0;
+                    for(int i = 0; i < mBatch.size(); i++) {
+                        PooledBuffer frame = mBatch.get(i).frame;
+                        System.arraycopy(frame.array(), 0, mWriteBuffer, offset, frame.length());
+                        offset += frame.length();
+                    }
+                    mOutStream.write(mWriteBuffer, 0, offset);
+                }
+                mOutStream.flush();
+                mBytesOut.add(size);
+                return true;
+            } catch (IOException e) {
+                Log.e(TAG, "send data fail", e);
+                return false;
+            }
+        }
+
+        private void notifySent(boolean suc, OutboundFrame frame) {
+            frame.frame.release();
+            if(!suc && frame.seq > 0) {
+                // still held by the session, which replays it or reports it
+                return;
+            }
+            reportSent(mConnection.mAddress, suc, frame);
+        }
+    }
+}
@@ -1,6 +1,5 @@
 package com.anddle.anddlechat;
 
-import android.bluetooth.BluetoothDevice;
 import android.content.Context;
 import android.view.LayoutInflater;
 import android.view.View;
@@ -8,7 +7,7 @@ import android.view.ViewGroup;
 import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
-public class DeviceItemAdapter extends ArrayAdapter<BluetoothDevice> {
+public class DeviceItemAdapter extends ArrayAdapter<DeviceRegistry.Device> {
 
     private final LayoutInflater mInflater;
     private int mResource;
@@ -28,9 +27,18 @@ public class DeviceItemAdapter extends ArrayAdapter<BluetoothDevice> {
 
         TextView name = (TextView) convertView.findViewById(R.id.device_name);
         TextView info = (TextView) convertView.findViewById(R.id.device_info);
-        BluetoothDevice device = getItem(position);
-        name.setText(device.getName());
-        info.setText(device.getAddress());
+        DeviceRegistry.Device device = getItem(position);
+        name.setText(device.getName() != null ? device.getName() : getContext().getString(R.string.unknown));
+
+        StringBuilder text = new StringBuilder(device.getAddress());
+        if(device.getRssi() != DeviceRegistry.RSSI_UNKNOWN) {
+            text.append('\n').append(getContext().getString(R.string.device_rssi, device.getRssi()));
+        }
+        if(device.getConnectAttempts() > 0) {
+            text.append('\n').append(getContext().getString(R.string.device_connects,
+                    Math.round(device.getConnectSuccessRate() * 100), device.getConnectAttempts()));
+        }
+        info.setText(text);
 
         return convertView;
     }
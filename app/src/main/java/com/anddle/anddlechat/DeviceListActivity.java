@@ -16,9 +16,13 @@ import android.view.Menu;
 import android.view.MenuItem;
 import android.view.View;
 import android.widget.AdapterView;
-import android.widget.ArrayAdapter;
 import android.widget.ListView;
+
+import java.io.File;
+import java.io.IOException;
 import java.util.Set;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 public class DeviceListActivity extends AppCompatActivity {
 
@@ -30,6 +34,35 @@ public class DeviceListActivity extends AppCompatActivity {
     private BluetoothAdapter mBluetoothAdapter;
     private int mBTSearchingState;
     private MenuItem mSearchMenuItem;
+    private DeviceRegistry mDeviceRegistry;
+    private RadioScheduler mRadioScheduler;
+    /** Loads and saves the registry off the UI thread, one file operation at a time. */
+    private ExecutorService mRegistryIo;
+    private boolean mDestroyed;
+
+    private static DeviceRegistry sDeviceRegistry;
+    private static RadioScheduler sRadioScheduler;
+
+    /**
+     * The registry of known devices, shared by everything in the app and loaded the first time
+     * it's asked for.
+     */
+    static synchronized DeviceRegistry getDeviceRegistry(Context context) {
+        if(sDeviceRegistry == null) {
+            sDeviceRegistry = new DeviceRegistry(new File(context.getFilesDir(), "devices"));
+        }
+        return sDeviceRegistry;
+    }
+
+    /**
+     * The scheduler that owns discovery on the default adapter, shared by everything in the app.
+     */
+    static synchronized RadioScheduler getRadioScheduler() {
+        if(sRadioScheduler == null) {
+            sRadioScheduler = new RadioScheduler(RadioScheduler.bluetoothRadio(BluetoothAdapter.getDefaultAdapter()));
+        }
+        return sRadioScheduler;
+    }
 
     @Override
     protected void onCreate(Bundle savedInstanceState) {
@@ -46,12 +79,10 @@ public class DeviceListActivity extends AppCompatActivity {
             @Override
             public void onItemClick(AdapterView<?> parent, View view, int position, long id) {
 
-                if (mBluetoothAdapter.isDiscovering()) {
-                    mBluetoothAdapter.cancelDiscovery();
-                }
+                mRadioScheduler.cancelScan();
 
-                ArrayAdapter adapter = (ArrayAdapter) mBTDeviceListView.getAdapter();
-                BluetoothDevice device = (BluetoothDevice) adapter.getItem(position);
+                DeviceItemAdapter adapter = (DeviceItemAdapter) mBTDeviceListView.getAdapter();
+                DeviceRegistry.Device device = adapter.getItem(position);
 
                 Intent i = new Intent();
                 i.putExtra("DEVICE_ADDR", device.getAddress());
@@ -65,6 +96,32 @@ public class DeviceListActivity extends AppCompatActivity {
         mBTSearchingState = BT_SEARCH_STATE_IDLE;
 
         mBluetoothAdapter = BluetoothAdapter.getDefaultAdapter();
+        mRadioScheduler = getRadioScheduler();
+
+        mRegistryIo = Executors.newSingleThreadExecutor();
+        mRegistryIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                final DeviceRegistry deviceRegistry = getDeviceRegistry(getApplicationContext());
+                runOnUiThread(new Runnable() {
+                    @Override
+                    public void run() {
+                        onRegistryLoaded(deviceRegistry);
+                    }
+                });
+            }
+        });
+    }
+
+    private void onRegistryLoaded(DeviceRegistry deviceRegistry) {
+        if(mDestroyed) {
+            return;
+        }
+        mDeviceRegistry = deviceRegistry;
+
+        // known devices show up before discovery finds anything
+        DeviceItemAdapter adapter = (DeviceItemAdapter) mBTDeviceListView.getAdapter();
+        adapter.addAll(mDeviceRegistry.getDevices());
 
         IntentFilter filter = new IntentFilter();
         filter.addAction(BluetoothDevice.ACTION_FOUND);
@@ -76,24 +133,21 @@ public class DeviceListActivity extends AppCompatActivity {
     }
 
     private void updateDeviceList() {
-
-        DeviceItemAdapter adapter = (DeviceItemAdapter) mBTDeviceListView.getAdapter();
-        adapter.clear();
+        if(mDeviceRegistry == null) {
+            // starts once the registry is loaded
+            return;
+        }
 
         Set<BluetoothDevice> pairedDevices = mBluetoothAdapter.getBondedDevices();
         if (pairedDevices.size() > 0) {
             for (BluetoothDevice device : pairedDevices) {
                 Log.d(TAG, "BT device bounded:" + device.getName());
-                adapter.add(device);
+                if(mDeviceRegistry.bonded(device.getAddress(), device.getName())) {
+                    showDevice(device.getAddress());
+                }
             }
         }
 
-        adapter.notifyDataSetChanged();
-
-        if (mBluetoothAdapter.isDiscovering()) {
-            mBluetoothAdapter.cancelDiscovery();
-        }
-
         int hasPermission = ActivityCompat.checkSelfPermission(DeviceListActivity.this, Manifest.permission.ACCESS_COARSE_LOCATION);
         if (hasPermission != PackageManager.PERMISSION_GRANTED) {
 
@@ -102,19 +156,72 @@ public class DeviceListActivity extends AppCompatActivity {
                             android.Manifest.permission.ACCESS_COARSE_LOCATION},
                     0);
         } else {
-            boolean ret = mBluetoothAdapter.startDiscovery();
-            Log.d(TAG, "BT device discover about to start: ret=" + ret);
+            // a scan already running carries on; one asked for too soon, or while the radio is
+            // busy, starts by itself later
+            int ret = mRadioScheduler.requestScan();
+            Log.d(TAG, "BT device discover requested: ret=" + ret);
+            if(ret == RadioScheduler.SCAN_DEFERRED) {
+                mBTSearchingState = BT_SEARCH_STATE_SEARCHING;
+                updateUI();
+            }
+        }
+    }
+
+    /**
+     * Adds a device to the list where it sorts, or rebinds just its row if it's listed already.
+     * Rows already shown don't move, so they don't jump under the user's finger.
+     */
+    private void showDevice(String address) {
+        DeviceItemAdapter adapter = (DeviceItemAdapter) mBTDeviceListView.getAdapter();
+        DeviceRegistry.Device device = mDeviceRegistry.get(address);
+        int position = adapter.getPosition(device);
+        if(position < 0) {
+            position = 0;
+            while(position < adapter.getCount()
+                    && DeviceRegistry.RECENT_FIRST.compare(adapter.getItem(position), device) <= 0) {
+                position++;
+            }
+            adapter.insert(device, position);
+            return;
+        }
+
+        int first = mBTDeviceListView.getFirstVisiblePosition();
+        View row = mBTDeviceListView.getChildAt(position - first);
+        if(row != null) {
+            adapter.getView(position, row, mBTDeviceListView);
         }
     }
 
+    @Override
+    protected void onPause() {
+        super.onPause();
+        final DeviceRegistry deviceRegistry = mDeviceRegistry;
+        if(deviceRegistry == null) {
+            return;
+        }
+        mRegistryIo.execute(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    deviceRegistry.save();
+                } catch (IOException e) {
+                    Log.e(TAG, "save device registry failed", e);
+                }
+            }
+        });
+    }
+
     @Override
     protected void onDestroy() {
         super.onDestroy();
-        if (mBluetoothAdapter.isDiscovering()) {
-            mBluetoothAdapter.cancelDiscovery();
-        }
+        mDestroyed = true;
+        mRadioScheduler.cancelScan();
 
-        unregisterReceiver(mReceiver);
+        if(mDeviceRegistry != null) {
+            unregisterReceiver(mReceiver);
+        }
+        // a save queued by onPause() still runs
+        mRegistryIo.shutdown();
     }
 
     @Override
@@ -160,15 +267,12 @@ public class DeviceListActivity extends AppCompatActivity {
             case R.id.search_menu:
             {
                 if(mBTSearchingState == BT_SEARCH_STATE_IDLE) {
-                    if (mBluetoothAdapter.isDiscovering()) {
-                        mBluetoothAdapter.cancelDiscovery();
-                    }
                     updateDeviceList();
                 }
                 else if(mBTSearchingState == BT_SEARCH_STATE_SEARCHING) {
-                    if (mBluetoothAdapter.isDiscovering()) {
-                        mBluetoothAdapter.cancelDiscovery();
-                    }
+                    mRadioScheduler.cancelScan();
+                    mBTSearchingState = BT_SEARCH_STATE_IDLE;
+                    updateUI();
                 }
             }
             break;
@@ -190,12 +294,14 @@ public class DeviceListActivity extends AppCompatActivity {
             if (BluetoothDevice.ACTION_FOUND.equals(action)) {
                 BluetoothDevice device = intent.getParcelableExtra(BluetoothDevice.EXTRA_DEVICE);
 
-                Log.d(TAG, "BT device found:" + device.getName());
+                int rssi = intent.getShortExtra(BluetoothDevice.EXTRA_RSSI, (short) DeviceRegistry.RSSI_UNKNOWN);
+
+                Log.d(TAG, "BT device found:" + device.getName() + " rssi=" + rssi);
 
-                if (device.getBondState() != BluetoothDevice.BOND_BONDED) {
-                    DeviceItemAdapter adapter = (DeviceItemAdapter) mBTDeviceListView.getAdapter();
-                    adapter.add(device);
-                    adapter.notifyDataSetChanged();
+                // discovery reports a device many times over; only new devices and changed rows
+                // touch the list
+                if(mDeviceRegistry.seen(device.getAddress(), device.getName(), rssi, System.currentTimeMillis())) {
+                    showDevice(device.getAddress());
                 }
 
             } else if (BluetoothAdapter.ACTION_DISCOVERY_STARTED.equals(action)) {
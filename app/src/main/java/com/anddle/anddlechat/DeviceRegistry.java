@@ -0,0 +1,292 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileNotFoundException;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The devices this phone has paired with, discovered or connected to, kept across runs so the
+ * device list can show them before discovery finds anything. Devices are keyed by address, so a
+ * device found many times is one entry.
+ *
+ * The registry is a small file, rewritten whole by {@link #save()} through a temporary file so a
+ * crash leaves either the old list or the new one. Only the MAX_DEVICES most recently seen devices
+ * are kept. A file that can't be read is a lost cache, not an error: the registry starts empty.
+ *
+ * Thread safe.
+ */
+public class DeviceRegistry {
+
+    private final static String TAG = "DeviceRegistry";
+
+    public static final int MAX_DEVICES = 64;
+    /** What {@link Device#getRssi()} returns before discovery has measured the signal. */
+    public static final int RSSI_UNKNOWN = Short.MIN_VALUE;
+
+    private static final int VERSION = 1;
+
+    /**
+     * Most recently seen first; among devices seen equally recently, the ones that connect more
+     * reliably first.
+     */
+    static final Comparator<Device> RECENT_FIRST = new Comparator<Device>() {
+        @Override
+        public int compare(Device a, Device b) {
+            if(a.mLastSeen != b.mLastSeen) {
+                return a.mLastSeen > b.mLastSeen ? -1 : 1;
+            }
+            return Float.compare(b.getConnectSuccessRate(), a.getConnectSuccessRate());
+        }
+    };
+
+    /**
+     * What the registry knows about one device. Changed only by the registry; any thread may read it.
+     */
+    public static class Device {
+
+        private final String mAddress;
+        private volatile String mName;
+        private volatile boolean mBonded;
+        private volatile long mLastSeen;
+        private volatile int mRssi = RSSI_UNKNOWN;
+        private volatile int mConnectAttempts;
+        private volatile int mConnectSuccesses;
+
+        Device(String address) {
+            mAddress = address;
+        }
+
+        public String getAddress() {
+            return mAddress;
+        }
+
+        /**
+         * @return the name the device last gave, or null if it never gave one.
+         */
+        public String getName() {
+            return mName;
+        }
+
+        public boolean isBonded() {
+            return mBonded;
+        }
+
+        /**
+         * @return when discovery last found the device, in milliseconds since the epoch, or 0.
+         */
+        public long getLastSeen() {
+            return mLastSeen;
+        }
+
+        /**
+         * @return the signal strength in dBm when the device was last found, or RSSI_UNKNOWN.
+         */
+        public int getRssi() {
+            return mRssi;
+        }
+
+        public int getConnectAttempts() {
+            return mConnectAttempts;
+        }
+
+        /**
+         * @return the share of connects to the device that succeeded, or -1 if there were none.
+         */
+        public float getConnectSuccessRate() {
+            int attempts = mConnectAttempts;
+            return attempts == 0 ? -1 : (float) mConnectSuccesses / attempts;
+        }
+    }
+
+    private final File mFile;
+    private final Map<String, Device> mDevices = new HashMap<>();
+    private boolean mDirty;
+
+    public DeviceRegistry(File file) {
+        mFile = file;
+        try {
+            load();
+        } catch (IOException e) {
+            Log.w(TAG, "can't read device registry, starting empty", e);
+            mDevices.clear();
+        }
+    }
+
+    /**
+     * Adds a paired device without counting it as seen.
+     *
+     * @return true if the device wasn't in the registry or its name changed.
+     */
+    public synchronized boolean bonded(String address, String name) {
+        Device device = mDevices.get(address);
+        boolean changed = device == null;
+        if(device == null) {
+            device = add(address);
+        }
+        if(name != null && !name.equals(device.mName)) {
+            device.mName = name;
+            changed = true;
+        }
+        if(!device.mBonded) {
+            device.mBonded = true;
+            mDirty = true;
+        }
+        mDirty |= changed;
+        return changed;
+    }
+
+    /**
+     * Records that discovery found a device.
+     *
+     * @param rssi the signal strength in dBm, or RSSI_UNKNOWN.
+     * @return true if the device wasn't in the registry or its name or signal strength changed,
+     *         so a list showing it needs updating.
+     */
+    public synchronized boolean seen(String address, String name, int rssi, long now) {
+        Device device = mDevices.get(address);
+        boolean changed = device == null;
+        if(device == null) {
+            device = add(address);
+        }
+        if(name != null && !name.equals(device.mName)) {
+            device.mName = name;
+            changed = true;
+        }
+        if(rssi != RSSI_UNKNOWN && rssi != device.mRssi) {
+            device.mRssi = rssi;
+            changed = true;
+        }
+        device.mLastSeen = now;
+        mDirty = true;
+        return changed;
+    }
+
+    /**
+     * Records the outcome of a connect to a device.
+     */
+    public synchronized void recordConnect(String address, boolean suc) {
+        Device device = mDevices.get(address);
+        if(device == null) {
+            device = add(address);
+        }
+        device.mConnectAttempts++;
+        if(suc) {
+            device.mConnectSuccesses++;
+        }
+        mDirty = true;
+    }
+
+    /**
+     * @return the device, or null if the registry doesn't know it.
+     */
+    public synchronized Device get(String address) {
+        return mDevices.get(address);
+    }
+
+    /**
+     * @return every device, the most recently seen first.
+     */
+    public synchronized List<Device> getDevices() {
+        List<Device> devices = new ArrayList<>(mDevices.values());
+        Collections.sort(devices, RECENT_FIRST);
+        return devices;
+    }
+
+    public synchronized int size() {
+        return mDevices.size();
+    }
+
+    /**
+     * Writes the registry out if it changed since it was last loaded or saved. Only the
+     * MAX_DEVICES most recently seen devices are written; the rest stay until the next load, so
+     * lists showing them don't end up with stale entries.
+     */
+    public synchronized void save() throws IOException {
+        if(!mDirty) {
+            return;
+        }
+        List<Device> devices = getDevices();
+        devices = devices.subList(0, Math.min(devices.size(), MAX_DEVICES));
+
+        File temp = new File(mFile.getPath() + ".tmp");
+        FileOutputStream out = new FileOutputStream(temp);
+        try {
+            DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+            data.writeInt(VERSION);
+            data.writeInt(devices.size());
+            for(Device device : devices) {
+                data.writeUTF(device.mAddress);
+                data.writeBoolean(device.mName != null);
+                if(device.mName != null) {
+                    data.writeUTF(device.mName);
+                }
+                data.writeBoolean(device.mBonded);
+                data.writeLong(device.mLastSeen);
+                data.writeInt(device.mRssi);
+                data.writeInt(device.mConnectAttempts);
+                data.writeInt(device.mConnectSuccesses);
+            }
+            data.flush();
+            out.getFD().sync();
+        } finally {
+            out.close();
+        }
+        if(!temp.renameTo(mFile)) {
+            throw new IOException("can't replace " + mFile);
+        }
+        mDirty = false;
+    }
+
+    private Device add(String address) {
+        Device device = new Device(address);
+        mDevices.put(address, device);
+        return device;
+    }
+
+    private void load() throws IOException {
+        DataInputStream in;
+        try {
+            in = new DataInputStream(new BufferedInputStream(new FileInputStream(mFile)));
+        } catch (FileNotFoundException e) {
+            return;
+        }
+        try {
+            int version = in.readInt();
+            if(version != VERSION) {
+                throw new IOException("unknown device registry version " + version);
+            }
+            int count = in.readInt();
+            if(count < 0 || count > MAX_DEVICES) {
+                throw new IOException("bad device count " + count);
+            }
+            for(int i = 0; i < count; i++) {
+                Device device = add(in.readUTF());
+                device.mName = in.readBoolean() ? in.readUTF() : null;
+                device.mBonded = in.readBoolean();
+                device.mLastSeen = in.readLong();
+                device.mRssi = in.readInt();
+                device.mConnectAttempts = in.readInt();
+                device.mConnectSuccesses = in.readInt();
+            }
+        } catch (EOFException e) {
+            throw new IOException("device registry is truncated", e);
+        } finally {
+            in.close();
+        }
+    }
+}
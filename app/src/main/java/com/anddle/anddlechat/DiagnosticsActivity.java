@@ -0,0 +1,96 @@
+package com.anddle.anddlechat;
+
+import android.os.Bundle;
+import android.os.Handler;
+import android.support.v7.app.AppCompatActivity;
+import android.view.Menu;
+import android.view.MenuItem;
+import android.widget.TextView;
+
+import java.util.Locale;
+
+/**
+ * Shows the metrics of {@link MetricsRegistry#getDefault()}, refreshed every second. Histograms
+ * whose name ends in "_nanos" are shown in milliseconds.
+ */
+public class DiagnosticsActivity extends AppCompatActivity {
+
+    private static final long REFRESH_INTERVAL_MS = 1000;
+
+    private final Handler mHandler = new Handler();
+    private TextView mMetricsView;
+
+    private final Runnable mRefresh = new Runnable() {
+        @Override
+        public void run() {
+            mMetricsView.setText(format(MetricsRegistry.getDefault().snapshot()));
+            mHandler.postDelayed(this, REFRESH_INTERVAL_MS);
+        }
+    };
+
+    @Override
+    protected void onCreate(Bundle savedInstanceState) {
+        super.onCreate(savedInstanceState);
+
+        setContentView(R.layout.activity_diagnostics);
+
+        getSupportActionBar().setDisplayHomeAsUpEnabled(true);
+
+        mMetricsView = (TextView) findViewById(R.id.metrics_info);
+    }
+
+    @Override
+    protected void onResume() {
+        super.onResume();
+        mRefresh.run();
+    }
+
+    @Override
+    protected void onPause() {
+        super.onPause();
+        mHandler.removeCallbacks(mRefresh);
+    }
+
+    @Override
+    public boolean onCreateOptionsMenu(Menu menu) {
+        super.onCreateOptionsMenu(menu);
+
+        getMenuInflater().inflate(R.menu.diagnostics_menu, menu);
+
+        return true;
+    }
+
+    @Override
+    public boolean onOptionsItemSelected(MenuItem item) {
+        switch (item.getItemId()) {
+            case android.R.id.home:
+                this.finish();
+                return true;
+
+            case R.id.reset_menu:
+                MetricsRegistry.getDefault().reset();
+                mHandler.removeCallbacks(mRefresh);
+                mRefresh.run();
+                return true;
+
+            default:
+                return super.onOptionsItemSelected(item);
+        }
+    }
+
+    private static String format(MetricsRegistry.Snapshot snapshot) {
+        StringBuilder text = new StringBuilder();
+        for(String name : snapshot.getCounterNames()) {
+            text.append(String.format(Locale.US, "%s\n  %d\n", name, snapshot.getCounter(name)));
+        }
+        for(String name : snapshot.getHistogramNames()) {
+            Histogram.Snapshot histogram = snapshot.getHistogram(name);
+            double scale = name.endsWith("_nanos") ? 1e6 : 1;
+            text.append(String.format(Locale.US, "%s\n  n %d, mean %.2f, p50 %.2f, p90 %.2f, p99 %.2f, max %.2f\n",
+                    name, histogram.getCount(), histogram.getMean() / scale,
+                    histogram.getPercentile(0.50) / scale, histogram.getPercentile(0.90) / scale,
+                    histogram.getPercentile(0.99) / scale, histogram.getMax() / scale));
+        }
+        return text.toString();
+    }
+}
@@ -0,0 +1,598 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.charset.Charset;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Chunked, resumable file transfer on top of a {@link ConnectionManager}.
+ *
+ * The sender offers a file with its size and SHA-256, then streams it in chunks read straight from
+ * disk, keeping at most a window of unacknowledged chunks in flight. The receiver appends chunks to
+ * a partial file named after the content hash and acknowledges how many bytes it holds. After a
+ * disconnect the sender offers the file again once the peer is back and continues from the offset
+ * the receiver reports. When all bytes are in, the receiver checks the hash and reports the result.
+ *
+ * Frame payloads:
+ * OFFER: id (8), size (8), SHA-256 (32), file name (UTF-8)
+ * CHUNK: id (8), offset (8), data
+ * ACK:   id (8), bytes held by the receiver (8), resume flag (1)
+ * DONE:  id (8), verified flag (1)
+ */
+public class FileTransfer implements ConnectionManager.FrameHandler {
+
+    private final static String TAG = "FileTransfer";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_CHUNK_SIZE = 16 * 1024;
+    public static final int DEFAULT_WINDOW = 8;
+
+    private static final int HASH_SIZE = 32;
+    private static final int CHUNK_HEADER_SIZE = 16;
+    private static final int OFFER_HEADER_SIZE = 16 + HASH_SIZE;
+    private static final int ACK_SIZE = 17;
+    private static final int DONE_SIZE = 9;
+    private static final long VERIFIER_KEEP_ALIVE_MS = 1000;
+    private static final long RETRY_INTERVAL_MS = 1000;
+    private static final int FINISHED_HISTORY_SIZE = 64;
+
+    public interface TransferListener {
+
+        /**
+         * @param bytes bytes acknowledged by the receiver (outgoing) or written to disk (incoming).
+         */
+        public void onTransferProgress(long id, String address, boolean outgoing, long bytes, long total);
+        public void onTransferComplete(long id, String address, boolean outgoing, boolean verified, File file);
+    }
+
+    private final ConnectionManager mConnectionManager;
+    private final File mReceiveDir;
+    private final TransferListener mListener;
+    private final int mChunkSize;
+    private final int mWindow;
+    private final Random mRandom = new Random();
+    private final AtomicLong mChunkBytesSent = new AtomicLong();
+    private volatile RadioScheduler mRadioScheduler;
+    /** Hashes received files, so a connection's reads don't wait for it. */
+    private final ExecutorService mVerifier;
+
+    private final Map<Long, OutgoingTransfer> mOutgoing = new ConcurrentHashMap<>();
+    private final Map<Long, IncomingTransfer> mIncoming = new ConcurrentHashMap<>();
+    private final Map<Long, Boolean> mFinishedTransfers = new LinkedHashMap<Long, Boolean>() {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+            return size() > FINISHED_HISTORY_SIZE;
+        }
+    };
+
+    public FileTransfer(ConnectionManager manager, File receiveDir, TransferListener listener) {
+        this(manager, receiveDir, listener, DEFAULT_CHUNK_SIZE, DEFAULT_WINDOW);
+    }
+
+    public FileTransfer(ConnectionManager manager, File receiveDir, TransferListener listener,
+                        int chunkSize, int window) {
+        mConnectionManager = manager;
+        mReceiveDir = receiveDir;
+        mListener = listener;
+        mChunkSize = chunkSize;
+        mWindow = window;
+        ThreadPoolExecutor verifier = new ThreadPoolExecutor(1, 1, VERIFIER_KEEP_ALIVE_MS, TimeUnit.MILLISECONDS,
+                new LinkedBlockingQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "FileVerifier");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        verifier.allowCoreThreadTimeOut(true);
+        mVerifier = verifier;
+        manager.registerFrameHandler(this, FrameCodec.TYPE_FILE_OFFER, FrameCodec.TYPE_FILE_CHUNK,
+                FrameCodec.TYPE_FILE_ACK, FrameCodec.TYPE_FILE_DONE);
+    }
+
+    /**
+     * Starts sending {@code file} to the peer at {@code address}. The file is hashed on the calling
+     * thread first; chunks are then read and sent by a thread of the transfer's own.
+     *
+     * @return the transfer id reported to the listener.
+     */
+    public long send(String address, File file) throws IOException {
+        long size = file.length();
+        OutgoingTransfer transfer = new OutgoingTransfer(mRandom.nextLong(), address, file, size, sha256(file, size));
+        mOutgoing.put(transfer.mId, transfer);
+        setTransferring(transfer, true);
+        transfer.start();
+        transfer.offer();
+        return transfer.mId;
+    }
+
+    /**
+     * Lets {@code scheduler} keep discovery off the radio while transfers are moving data.
+     */
+    public void setRadioScheduler(RadioScheduler scheduler) {
+        mRadioScheduler = scheduler;
+    }
+
+    private void setTransferring(Object transfer, boolean transferring) {
+        RadioScheduler scheduler = mRadioScheduler;
+        if(scheduler == null) {
+            return;
+        }
+        if(transferring) {
+            scheduler.transferStarted(transfer);
+        }
+        else {
+            scheduler.transferEnded(transfer);
+        }
+    }
+
+    public void cancel(long id) {
+        OutgoingTransfer transfer = mOutgoing.remove(id);
+        if(transfer != null) {
+            transfer.finish();
+        }
+    }
+
+    /**
+     * @return chunk payload bytes handed to the connection so far, including chunks sent again
+     * after a resume.
+     */
+    public long getChunkBytesSent() {
+        return mChunkBytesSent.get();
+    }
+
+    @Override
+    public void onPeerConnected(String address) {
+        for(OutgoingTransfer transfer : mOutgoing.values()) {
+            if(transfer.mAddress.equals(address)) {
+                transfer.offer();
+            }
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(String address) {
+        for(OutgoingTransfer transfer : mOutgoing.values()) {
+            if(transfer.mAddress.equals(address)) {
+                transfer.pause();
+            }
+        }
+        for(IncomingTransfer transfer : mIncoming.values()) {
+            if(address.equals(transfer.mAddress)) {
+                transfer.close();
+            }
+        }
+    }
+
+    private static int minLength(int type) {
+        switch (type) {
+            case FrameCodec.TYPE_FILE_OFFER:
+                return OFFER_HEADER_SIZE;
+            case FrameCodec.TYPE_FILE_CHUNK:
+                return CHUNK_HEADER_SIZE;
+            case FrameCodec.TYPE_FILE_ACK:
+                return ACK_SIZE;
+            default:
+                return DONE_SIZE;
+        }
+    }
+
+    @Override
+    public void onFrame(String address, int type, byte[] buffer, int offset, int length) {
+
+        if(length < minLength(type)) {
+            Log.w(TAG, "bad file frame from " + address + ", type " + type + " with " + length + " bytes");
+            return;
+        }
+
+        long id = FrameCodec.readLong(buffer, offset);
+        switch (type) {
+            case FrameCodec.TYPE_FILE_OFFER: {
+                long size = FrameCodec.readLong(buffer, offset + 8);
+                if(size < 0) {
+                    Log.w(TAG, "bad file offer from " + address + ", size " + size);
+                    return;
+                }
+                byte[] hash = Arrays.copyOfRange(buffer, offset + 16, offset + OFFER_HEADER_SIZE);
+                String name = new String(buffer, offset + OFFER_HEADER_SIZE, length - OFFER_HEADER_SIZE, UTF8);
+                onOffer(address, id, size, hash, name);
+            }
+            break;
+
+            case FrameCodec.TYPE_FILE_CHUNK: {
+                IncomingTransfer transfer = mIncoming.get(id);
+                if(transfer != null) {
+                    transfer.write(FrameCodec.readLong(buffer, offset + 8), buffer,
+                            offset + CHUNK_HEADER_SIZE, length - CHUNK_HEADER_SIZE);
+                }
+            }
+            break;
+
+            case FrameCodec.TYPE_FILE_ACK: {
+                OutgoingTransfer transfer = mOutgoing.get(id);
+                if(transfer != null) {
+                    transfer.onAck(FrameCodec.readLong(buffer, offset + 8), buffer[offset + 16] != 0);
+                }
+            }
+            break;
+
+            case FrameCodec.TYPE_FILE_DONE: {
+                OutgoingTransfer transfer = mOutgoing.remove(id);
+                if(transfer != null) {
+                    transfer.finish();
+                    Log.d(TAG, "transfer " + id + " finished, verified=" + (buffer[offset + 8] != 0));
+                    if(mListener != null) {
+                        mListener.onTransferComplete(id, address, true, buffer[offset + 8] != 0, transfer.mFile);
+                    }
+                }
+            }
+            break;
+        }
+    }
+
+    private void onOffer(String address, long id, long size, byte[] hash, String name) {
+
+        Boolean verified;
+        synchronized (mFinishedTransfers) {
+            verified = mFinishedTransfers.get(id);
+        }
+        if(verified != null) {
+            sendDone(address, id, verified);
+            return;
+        }
+
+        IncomingTransfer transfer = mIncoming.get(id);
+        if(transfer == null) {
+            transfer = new IncomingTransfer(id, size, hash, new File(name).getName());
+            mIncoming.put(id, transfer);
+        }
+        transfer.open(address);
+    }
+
+    private void sendAck(String address, long id, long bytes, boolean resume) {
+        byte[] payload = new byte[17];
+        FrameCodec.writeLong(payload, 0, id);
+        FrameCodec.writeLong(payload, 8, bytes);
+        payload[16] = (byte) (resume ? 1 : 0);
+        mConnectionManager.sendFrame(address, FrameCodec.TYPE_FILE_ACK, payload);
+    }
+
+    private void sendDone(String address, long id, boolean verified) {
+        byte[] payload = new byte[9];
+        FrameCodec.writeLong(payload, 0, id);
+        payload[8] = (byte) (verified ? 1 : 0);
+        mConnectionManager.sendFrame(address, FrameCodec.TYPE_FILE_DONE, payload);
+    }
+
+    static byte[] sha256(File file, long length) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+
+        byte[] buffer = new byte[64 * 1024];
+        InputStream in = new FileInputStream(file);
+        try {
+            long remaining = length;
+            while(remaining > 0) {
+                int bytes = in.read(buffer, 0, (int) Math.min(buffer.length, remaining));
+                if(bytes < 0) {
+                    throw new IOException("file shorter than " + length + " bytes: " + file);
+                }
+                digest.update(buffer, 0, bytes);
+                remaining -= bytes;
+            }
+        } finally {
+            in.close();
+        }
+        return digest.digest();
+    }
+
+    private static String hex(byte[] bytes) {
+        StringBuilder builder = new StringBuilder(bytes.length * 2);
+        for(byte b : bytes) {
+            builder.append(Character.forDigit((b >> 4) & 0xf, 16)).append(Character.forDigit(b & 0xf, 16));
+        }
+        return builder.toString();
+    }
+
+    private class OutgoingTransfer extends Thread {
+
+        private final long mId;
+        private final String mAddress;
+        private final File mFile;
+        private final long mSize;
+        private final byte[] mHash;
+        private final byte[] mChunk = new byte[CHUNK_HEADER_SIZE + mChunkSize];
+
+        private long mAcked;
+        private long mNext;
+        private boolean mActive;
+        private boolean mFinished;
+
+        OutgoingTransfer(long id, String address, File file, long size, byte[] hash) {
+            setName("FileSender-" + id);
+            mId = id;
+            mAddress = address;
+            mFile = file;
+            mSize = size;
+            mHash = hash;
+        }
+
+        void offer() {
+            byte[] name = mFile.getName().getBytes(UTF8);
+            byte[] payload = new byte[16 + HASH_SIZE + name.length];
+            FrameCodec.writeLong(payload, 0, mId);
+            FrameCodec.writeLong(payload, 8, mSize);
+            System.arraycopy(mHash, 0, payload, 16, HASH_SIZE);
+            System.arraycopy(name, 0, payload, 16 + HASH_SIZE, name.length);
+            mConnectionManager.sendFrame(mAddress, FrameCodec.TYPE_FILE_OFFER, payload);
+        }
+
+        void onAck(long bytes, boolean resume) {
+            long acked;
+            synchronized (this) {
+                if(resume && !mFinished) {
+                    Log.d(TAG, "transfer " + mId + " resumes at " + bytes);
+                    mAcked = bytes;
+                    mNext = bytes;
+                    mActive = true;
+                    setTransferring(this, true);
+                }
+                else if(bytes > mAcked) {
+                    mAcked = bytes;
+                    mNext = Math.max(mNext, bytes);
+                }
+                acked = mAcked;
+                notifyAll();
+            }
+            if(mListener != null) {
+                mListener.onTransferProgress(mId, mAddress, true, acked, mSize);
+            }
+        }
+
+        synchronized void pause() {
+            mActive = false;
+            setTransferring(this, false);
+            notifyAll();
+        }
+
+        synchronized void finish() {
+            mFinished = true;
+            setTransferring(this, false);
+            notifyAll();
+        }
+
+        private boolean canSend() {
+            return mActive && mNext < mSize && mNext - mAcked < (long) mWindow * mChunkSize;
+        }
+
+        @Override
+        public void run() {
+
+            RandomAccessFile file = null;
+            try {
+                file = new RandomAccessFile(mFile, "r");
+                while(true) {
+                    long offset;
+                    int length;
+                    synchronized (this) {
+                        while(!mFinished && !canSend()) {
+                            long acked = mAcked;
+                            wait(RETRY_INTERVAL_MS);
+                            if(!mFinished && !canSend() && acked == mAcked) {
+                                // nothing moved for a while: ask the receiver where it stands
+                                offer();
+                            }
+                        }
+                        if(mFinished) {
+                            break;
+                        }
+                        offset = mNext;
+                        length = (int) Math.min(mChunkSize, mSize - offset);
+                    }
+
+                    file.seek(offset);
+                    file.readFully(mChunk, CHUNK_HEADER_SIZE, length);
+                    FrameCodec.writeLong(mChunk, 0, mId);
+                    FrameCodec.writeLong(mChunk, 8, offset);
+                    if(!mConnectionManager.sendFrame(mAddress, FrameCodec.TYPE_FILE_CHUNK, mChunk, 0,
+                            CHUNK_HEADER_SIZE + length)) {
+                        // send queue full or link down, try again shortly
+                        Thread.sleep(2);
+                        continue;
+                    }
+                    mChunkBytesSent.addAndGet(length);
+
+                    synchronized (this) {
+                        if(mNext == offset) {
+                            mNext = offset + length;
+                        }
+                    }
+                }
+            } catch (IOException e) {
+                Log.e(TAG, "transfer " + mId + " failed", e);
+                mOutgoing.remove(mId);
+                if(mListener != null) {
+                    mListener.onTransferComplete(mId, mAddress, true, false, mFile);
+                }
+            } catch (InterruptedException e) {
+                Log.d(TAG, "transfer " + mId + " interrupted");
+            } finally {
+                setTransferring(this, false);
+                if(file != null) {
+                    try {
+                        file.close();
+                    } catch (IOException e) {
+                        Log.e(TAG, "close failed", e);
+                    }
+                }
+            }
+        }
+    }
+
+    private class IncomingTransfer {
+
+        private final long mId;
+        private final long mSize;
+        private final byte[] mHash;
+        private final String mName;
+        private final File mPartFile;
+
+        private volatile String mAddress;
+        private RandomAccessFile mFile;
+        private long mReceived;
+        private boolean mVerifying;
+
+        IncomingTransfer(long id, long size, byte[] hash, String name) {
+            mId = id;
+            mSize = size;
+            mHash = hash;
+            mName = name;
+            mPartFile = new File(mReceiveDir, hex(hash) + ".part");
+        }
+
+        synchronized void open(String address) {
+            if(mVerifying) {
+                // the peer hears how it went once the hash is checked
+                return;
+            }
+            mAddress = address;
+            try {
+                if(mFile == null) {
+                    mFile = new RandomAccessFile(mPartFile, "rw");
+                }
+                long length = mFile.length();
+                if(length > mSize) {
+                    mFile.setLength(0);
+                    length = 0;
+                }
+                mReceived = length;
+            } catch (IOException e) {
+                Log.e(TAG, "can't open " + mPartFile, e);
+                close();
+                return;
+            }
+            setTransferring(this, true);
+
+            sendAck(address, mId, mReceived, true);
+            if(mReceived == mSize) {
+                complete();
+            }
+        }
+
+        synchronized void write(long offset, byte[] buffer, int start, int length) {
+            if(mFile == null) {
+                return;
+            }
+            if(offset + length > mSize) {
+                Log.w(TAG, "chunk at " + offset + " runs past the end of transfer " + mId);
+                return;
+            }
+            if(offset != mReceived) {
+                if(offset < mReceived) {
+                    sendAck(mAddress, mId, mReceived, false);
+                }
+                return;
+            }
+
+            try {
+                mFile.seek(offset);
+                mFile.write(buffer, start, length);
+            } catch (IOException e) {
+                Log.e(TAG, "write to " + mPartFile + " failed", e);
+                close();
+                return;
+            }
+            mReceived += length;
+            sendAck(mAddress, mId, mReceived, false);
+
+            if(mListener != null) {
+                mListener.onTransferProgress(mId, mAddress, false, mReceived, mSize);
+            }
+            if(mReceived == mSize) {
+                complete();
+            }
+        }
+
+        synchronized void close() {
+            setTransferring(this, false);
+            if(mFile != null) {
+                try {
+                    mFile.close();
+                } catch (IOException e) {
+                    Log.e(TAG, "close failed", e);
+                }
+                mFile = null;
+            }
+        }
+
+        /**
+         * Called with the transfer locked once every byte is in; the hash is checked on the
+         * verifier, since it reads the whole file.
+         */
+        private void complete() {
+            close();
+            mVerifying = true;
+            mVerifier.execute(new Runnable() {
+                @Override
+                public void run() {
+                    verify();
+                }
+            });
+        }
+
+        private void verify() {
+            boolean verified;
+            try {
+                verified = Arrays.equals(mHash, sha256(mPartFile, mSize));
+            } catch (IOException e) {
+                Log.e(TAG, "can't verify " + mPartFile, e);
+                verified = false;
+            }
+
+            File target = null;
+            if(verified) {
+                target = new File(mReceiveDir, mName);
+                for(int i = 1; target.exists(); i++) {
+                    target = new File(mReceiveDir, i + "-" + mName);
+                }
+                verified = mPartFile.renameTo(target);
+            }
+            if(!verified) {
+                Log.w(TAG, "transfer " + mId + " failed verification");
+                mPartFile.delete();
+            }
+
+            mIncoming.remove(mId);
+            synchronized (mFinishedTransfers) {
+                mFinishedTransfers.put(mId, verified);
+            }
+            sendDone(mAddress, mId, verified);
+
+            if(mListener != null) {
+                mListener.onTransferComplete(mId, mAddress, false, verified, target);
+            }
+        }
+    }
+}
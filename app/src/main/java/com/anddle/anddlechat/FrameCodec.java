@@ -0,0 +1,63 @@
+package com.anddle.anddlechat;
+
+/**
+ * Wire framing used between two {@link ConnectionManager}s. Every frame starts with a header of a
+ * 4-byte big-endian payload length followed by a 1-byte frame type, then the payload itself.
+ * Receivers skip frame types they don't know, so new types can be added without breaking older peers.
+ */
+public final class FrameCodec {
+
+    public static final int HEADER_SIZE = 5;
+    public static final int MAX_FRAME_SIZE = 16 * 1024 * 1024;
+
+    public static final int TYPE_DATA = 0;
+    public static final int TYPE_RELAY = 1;
+    public static final int TYPE_FILE_OFFER = 2;
+    public static final int TYPE_FILE_CHUNK = 3;
+    public static final int TYPE_FILE_ACK = 4;
+    public static final int TYPE_FILE_DONE = 5;
+    public static final int TYPE_HELLO = 6;
+    public static final int TYPE_DATA_DEFLATE = 7;
+    public static final int TYPE_PING = 8;
+    public static final int TYPE_PONG = 9;
+    public static final int TYPE_RESUME = 10;
+    public static final int TYPE_ACK = 11;
+    public static final int TYPE_READ = 12;
+
+    private FrameCodec() {
+    }
+
+    public static void writeHeader(byte[] dst, int offset, int type, int length) {
+        dst[offset] = (byte) (length >>> 24);
+        dst[offset + 1] = (byte) (length >>> 16);
+        dst[offset + 2] = (byte) (length >>> 8);
+        dst[offset + 3] = (byte) length;
+        dst[offset + 4] = (byte) type;
+    }
+
+    public static void writeLong(byte[] dst, int offset, long value) {
+        for(int i = 7; i >= 0; i--) {
+            dst[offset + i] = (byte) value;
+            value >>>= 8;
+        }
+    }
+
+    public static long readLong(byte[] src, int offset) {
+        long value = 0;
+        for(int i = 0; i < 8; i++) {
+            value = value << 8 | (src[offset + i] & 0xff);
+        }
+        return value;
+    }
+
+    public static byte[] encode(int type, byte[] data, int offset, int length) {
+        byte[] frame = new byte[HEADER_SIZE + length];
+        writeHeader(frame, 0, type, length);
+        System.arraycopy(data, offset, frame, HEADER_SIZE, length);
+        return frame;
+    }
+
+    public static byte[] encode(int type, byte[] data) {
+        return encode(type, data, 0, data.length);
+    }
+}
@@ -0,0 +1,129 @@
+package com.anddle.anddlechat;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.zip.DataFormatException;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+/**
+ * Deflates chat payloads against a preset dictionary of common chat text, so even short messages
+ * find something to back-reference. Every payload is compressed on its own, which keeps an encoded
+ * frame shareable between peers and lets it be dropped or resent without breaking a stream.
+ *
+ * A compressed payload is the 4-byte big-endian length of the original data followed by a raw
+ * deflate stream. Both ends must use the same {@link #DICTIONARY}; it is versioned through
+ * {@link #FEATURE_DEFLATE} in the connect-time hello.
+ */
+public final class FrameCompressor {
+
+    public static final int FEATURE_DEFLATE = 1;
+    public static final int DEFAULT_THRESHOLD = 48;
+
+    private static final int LENGTH_SIZE = 4;
+
+    /**
+     * Common chat phrases, Chinese first. The Chinese ones are written as escapes so the bytes,
+     * which both ends must agree on, don't depend on the encoding the source is compiled with.
+     */
+    static final byte[] DICTIONARY = (
+            "\u597d\u7684 \u8c22\u8c22 \u6ca1\u95ee\u9898 \u4e0d\u5ba2\u6c14 \u5bf9\u4e0d\u8d77 \u6ca1\u5173\u7cfb "
+            + "\u4f60\u597d \u5728\u5417 \u6211\u5728 \u6536\u5230 \u77e5\u9053\u4e86 \u54c8\u54c8\u54c8 "
+            + "\u55ef\u55ef \u665a\u5b89 \u65e9\u4e0a\u597d \u4ec0\u4e48\u65f6\u5019 \u5230\u4e86\u5417 \u6211\u9a6c\u4e0a\u5230 "
+            + "\u7b49\u4e00\u4e0b \u7a0d\u7b49 \u73b0\u5728 \u4eca\u5929 \u660e\u5929 \u6628\u5929 "
+            + "\u665a\u4e0a \u4e00\u8d77 \u5403\u996d \u6211\u4eec \u4f60\u4eec \u4ed6\u4eec "
+            + "\u53ef\u4ee5 \u4e0d\u53ef\u4ee5 \u662f\u7684 \u4e0d\u662f \u4e3a\u4ec0\u4e48 \u600e\u4e48\u4e86 "
+            + "\u771f\u7684\u5417 \u592a\u597d\u4e86 \u6ca1\u4e8b \u6587\u4ef6 \u56fe\u7247 \u53d1\u9001 "
+            + "\u8fde\u63a5 \u84dd\u7259 "
+            + "ok thanks thank you no problem sorry see you later where are you on my way "
+            + "what time are we still meeting today tomorrow tonight this morning let me know "
+            + "I'll be there in a minute sounds good haha lol yes no maybe can you please "
+            + "did you get the file the message I just sent http://www. https://www. .com "
+            ).getBytes(Charset.forName("UTF-8"));
+
+    private final Deflater mDeflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+
+    /**
+     * Encodes {@code data} as a complete {@link FrameCodec#TYPE_DATA_DEFLATE} frame.
+     *
+     * @return the frame, or null if compression would not make it smaller than the raw frame.
+     */
+    public synchronized PooledBuffer compress(byte[] data, int offset, int length, BufferPool pool) {
+        if(length <= LENGTH_SIZE) {
+            return null;
+        }
+
+        PooledBuffer frame = pool.acquire(FrameCodec.HEADER_SIZE + length);
+        byte[] out = frame.array();
+        int start = FrameCodec.HEADER_SIZE + LENGTH_SIZE;
+        int limit = FrameCodec.HEADER_SIZE + length;
+
+        mDeflater.reset();
+        mDeflater.setDictionary(DICTIONARY);
+        mDeflater.setInput(data, offset, length);
+        mDeflater.finish();
+        int end = start;
+        while(!mDeflater.finished() && end < limit) {
+            int bytes = mDeflater.deflate(out, end, limit - end);
+            if(bytes == 0) {
+                break;
+            }
+            end += bytes;
+        }
+        if(!mDeflater.finished()) {
+            frame.release();
+            return null;
+        }
+
+        FrameCodec.writeHeader(out, 0, FrameCodec.TYPE_DATA_DEFLATE, end - FrameCodec.HEADER_SIZE);
+        out[FrameCodec.HEADER_SIZE] = (byte) (length >>> 24);
+        out[FrameCodec.HEADER_SIZE + 1] = (byte) (length >>> 16);
+        out[FrameCodec.HEADER_SIZE + 2] = (byte) (length >>> 8);
+        out[FrameCodec.HEADER_SIZE + 3] = (byte) length;
+        frame.setLength(end);
+        return frame;
+    }
+
+    /**
+     * Restores the original data from a {@link FrameCodec#TYPE_DATA_DEFLATE} payload.
+     * {@code inflater} must have been created with {@link #newInflater()}.
+     */
+    public static PooledBuffer decompress(Inflater inflater, byte[] buffer, int offset, int length,
+                                          BufferPool pool) throws IOException {
+        if(length < LENGTH_SIZE) {
+            throw new IOException("truncated compressed frame");
+        }
+        int size = (buffer[offset] & 0xff) << 24 | (buffer[offset + 1] & 0xff) << 16
+                | (buffer[offset + 2] & 0xff) << 8 | (buffer[offset + 3] & 0xff);
+        if(size < 0 || size > FrameCodec.MAX_FRAME_SIZE) {
+            throw new IOException("bad compressed frame size " + size);
+        }
+
+        PooledBuffer data = pool.acquire(size);
+        inflater.reset();
+        inflater.setDictionary(DICTIONARY);
+        inflater.setInput(buffer, offset + LENGTH_SIZE, length - LENGTH_SIZE);
+        int inflated = 0;
+        try {
+            while(inflated < size) {
+                int bytes = inflater.inflate(data.array(), inflated, size - inflated);
+                if(bytes == 0) {
+                    break;
+                }
+                inflated += bytes;
+            }
+        } catch (DataFormatException e) {
+            data.release();
+            throw new IOException("corrupt compressed frame", e);
+        }
+        if(inflated != size) {
+            data.release();
+            throw new IOException("compressed frame ended after " + inflated + " of " + size + " bytes");
+        }
+        return data;
+    }
+
+    public static Inflater newInflater() {
+        return new Inflater(true);
+    }
+}
@@ -0,0 +1,140 @@
+package com.anddle.anddlechat;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+
+/**
+ * Reassembles {@link FrameCodec} frames from a byte stream.
+ *
+ * Bytes are read into a reusable ring buffer. A complete frame that lies contiguously in the ring
+ * is handed out as a slice of the ring itself; a frame that wraps around the end of the ring is
+ * copied once into a scratch buffer. Frames bigger than the ring are read straight from the stream
+ * into a buffer of their own size, so their size is only bounded by {@link FrameCodec#MAX_FRAME_SIZE}.
+ *
+ * Slices are only valid until {@link FrameListener#onFrame} returns.
+ */
+public class FrameDecoder {
+
+    private static final int SCRATCH_RETAIN_SIZE = 64 * 1024;
+
+    public interface FrameListener {
+
+        public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException;
+    }
+
+    private final byte[] mRing;
+    private final int mMask;
+    private final int mMaxFrameSize;
+    private long mReadPos;
+    private long mWritePos;
+    private byte[] mScratch;
+
+    /**
+     * @param ringSize size of the ring buffer, rounded up to a power of two.
+     */
+    public FrameDecoder(int ringSize, int maxFrameSize) {
+        int size = Integer.highestOneBit(Math.max(ringSize, FrameCodec.HEADER_SIZE) - 1) << 1;
+        mRing = new byte[size];
+        mMask = size - 1;
+        mMaxFrameSize = maxFrameSize;
+    }
+
+    public FrameDecoder(int ringSize) {
+        this(ringSize, FrameCodec.MAX_FRAME_SIZE);
+    }
+
+    /**
+     * Performs one blocking read from {@code in} and dispatches every frame that became complete.
+     *
+     * @return false when the stream has ended.
+     */
+    public boolean readFrom(InputStream in, FrameListener listener) throws IOException {
+
+        int writeIndex = (int) (mWritePos & mMask);
+        int free = mRing.length - (int) (mWritePos - mReadPos);
+        int bytes = in.read(mRing, writeIndex, Math.min(free, mRing.length - writeIndex));
+        if(bytes < 0) {
+            return false;
+        }
+        mWritePos += bytes;
+
+        dispatch(in, listener);
+        return true;
+    }
+
+    public int getBufferedBytes() {
+        return (int) (mWritePos - mReadPos);
+    }
+
+    private void dispatch(InputStream in, FrameListener listener) throws IOException {
+
+        while(mWritePos - mReadPos >= FrameCodec.HEADER_SIZE) {
+
+            int length = (get(0) & 0xff) << 24 | (get(1) & 0xff) << 16 | (get(2) & 0xff) << 8 | (get(3) & 0xff);
+            int type = get(4) & 0xff;
+            if(length < 0 || length > mMaxFrameSize) {
+                throw new IOException("bad frame length: " + length);
+            }
+
+            int available = (int) (mWritePos - mReadPos) - FrameCodec.HEADER_SIZE;
+            if(FrameCodec.HEADER_SIZE + length > mRing.length) {
+                readLargeFrame(in, listener, type, length, available);
+                continue;
+            }
+            if(available < length) {
+                return;
+            }
+
+            int start = (int) ((mReadPos + FrameCodec.HEADER_SIZE) & mMask);
+            if(start + length <= mRing.length) {
+                listener.onFrame(type, mRing, start, length);
+            }
+            else {
+                byte[] scratch = scratch(length);
+                int first = mRing.length - start;
+                System.arraycopy(mRing, start, scratch, 0, first);
+                System.arraycopy(mRing, 0, scratch, first, length - first);
+                listener.onFrame(type, scratch, 0, length);
+            }
+            mReadPos += FrameCodec.HEADER_SIZE + length;
+        }
+    }
+
+    private void readLargeFrame(InputStream in, FrameListener listener, int type, int length, int buffered)
+            throws IOException {
+
+        byte[] frame = scratch(length);
+        int start = (int) ((mReadPos + FrameCodec.HEADER_SIZE) & mMask);
+        int first = Math.min(buffered, mRing.length - start);
+        System.arraycopy(mRing, start, frame, 0, first);
+        System.arraycopy(mRing, 0, frame, first, buffered - first);
+        mReadPos = mWritePos;
+
+        int received = buffered;
+        while(received < length) {
+            int bytes = in.read(frame, received, length - received);
+            if(bytes < 0) {
+                throw new EOFException("stream ended inside a frame");
+            }
+            received += bytes;
+        }
+
+        listener.onFrame(type, frame, 0, length);
+
+        if(frame.length > SCRATCH_RETAIN_SIZE) {
+            mScratch = null;
+        }
+    }
+
+    private byte[] scratch(int length) {
+        if(mScratch == null || mScratch.length < length) {
+            mScratch = new byte[length];
+        }
+        return mScratch;
+    }
+
+    private byte get(int index) {
+        return mRing[(int) ((mReadPos + index) & mMask)];
+    }
+}
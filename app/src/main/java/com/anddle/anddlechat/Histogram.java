@@ -0,0 +1,145 @@
+package com.anddle.anddlechat;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Distribution of non-negative values in log-linear buckets: every power of two is split into 8
+ * buckets, so a value is known to within 12.5%. {@link #record} only touches atomics and never
+ * allocates, so it can sit on the send and receive paths of every connection.
+ *
+ * {@link #snapshot()} and {@link #reset()} may run while values are being recorded; a value
+ * recorded during a reset can end up on either side of it.
+ */
+public class Histogram {
+
+    private static final int SUB_BUCKET_BITS = 3;
+    private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+    private static final int BUCKETS = (64 - SUB_BUCKET_BITS) * SUB_BUCKETS;
+
+    private final AtomicLongArray mCounts = new AtomicLongArray(BUCKETS);
+    private final AtomicLong mCount = new AtomicLong();
+    private final AtomicLong mSum = new AtomicLong();
+    private final AtomicLong mMin = new AtomicLong(Long.MAX_VALUE);
+    private final AtomicLong mMax = new AtomicLong(Long.MIN_VALUE);
+
+    /**
+     * Negative values are recorded as 0.
+     */
+    public void record(long value) {
+        if(value < 0) {
+            value = 0;
+        }
+        mCounts.incrementAndGet(bucketOf(value));
+        mCount.incrementAndGet();
+        mSum.addAndGet(value);
+
+        long min;
+        while(value < (min = mMin.get()) && !mMin.compareAndSet(min, value)) {
+        }
+        long max;
+        while(value > (max = mMax.get()) && !mMax.compareAndSet(max, value)) {
+        }
+    }
+
+    public long getCount() {
+        return mCount.get();
+    }
+
+    public Snapshot snapshot() {
+        long[] counts = new long[BUCKETS];
+        long count = 0;
+        for(int i = 0; i < BUCKETS; i++) {
+            counts[i] = mCounts.get(i);
+            count += counts[i];
+        }
+        return new Snapshot(counts, count, mSum.get(), mMin.get(), mMax.get());
+    }
+
+    public void reset() {
+        for(int i = 0; i < BUCKETS; i++) {
+            mCounts.set(i, 0);
+        }
+        mCount.set(0);
+        mSum.set(0);
+        mMin.set(Long.MAX_VALUE);
+        mMax.set(Long.MIN_VALUE);
+    }
+
+    static int bucketOf(long value) {
+        if(value < SUB_BUCKETS) {
+            return (int) value;
+        }
+        int exponent = 63 - Long.numberOfLeadingZeros(value);
+        int sub = (int) (value >>> (exponent - SUB_BUCKET_BITS)) & (SUB_BUCKETS - 1);
+        return (exponent - SUB_BUCKET_BITS + 1) * SUB_BUCKETS + sub;
+    }
+
+    /**
+     * @return the largest value that falls into {@code bucket}.
+     */
+    static long highestValueOf(int bucket) {
+        if(bucket < SUB_BUCKETS) {
+            return bucket;
+        }
+        int shift = bucket / SUB_BUCKETS - 1;
+        long lowest = (long) (SUB_BUCKETS + bucket % SUB_BUCKETS) << shift;
+        return lowest + (1L << shift) - 1;
+    }
+
+    /**
+     * The state of a {@link Histogram} at one point in time.
+     */
+    public static class Snapshot {
+
+        private final long[] mCounts;
+        private final long mCount;
+        private final long mSum;
+        private final long mMin;
+        private final long mMax;
+
+        Snapshot(long[] counts, long count, long sum, long min, long max) {
+            mCounts = counts;
+            mCount = count;
+            mSum = sum;
+            mMin = min;
+            mMax = max;
+        }
+
+        public long getCount() {
+            return mCount;
+        }
+
+        public long getMin() {
+            return mCount == 0 ? 0 : mMin;
+        }
+
+        public long getMax() {
+            return mCount == 0 ? 0 : mMax;
+        }
+
+        public double getMean() {
+            return mCount == 0 ? 0 : (double) mSum / mCount;
+        }
+
+        /**
+         * @param fraction between 0 and 1, e.g. 0.99 for the 99th percentile.
+         * @return a value that at least {@code fraction} of the recorded values don't exceed,
+         * at most 12.5% above the exact one.
+         */
+        public long getPercentile(double fraction) {
+            if(mCount == 0) {
+                return 0;
+            }
+            long rank = Math.max(1, (long) Math.ceil(fraction * mCount));
+            long seen = 0;
+            for(int i = 0; i < mCounts.length; i++) {
+                seen += mCounts[i];
+                if(seen >= rank) {
+                    return Math.max(getMin(), Math.min(getMax(), highestValueOf(i)));
+                }
+            }
+            return getMax();
+        }
+    }
+}
@@ -0,0 +1,439 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+
+import java.io.BufferedOutputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.FilenameFilter;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.zip.CRC32;
+
+/**
+ * Durable chat history: an append-only log of messages numbered by a sequence that starts at 0.
+ *
+ * Messages go into memory-mapped segment files of a fixed size named after the sequence of their
+ * first message. When a message doesn't fit, the segment is forced to disk, its sparse index of
+ * every INDEX_INTERVAL-th record position is written next to it, and a new segment is started.
+ * A record is a 4-byte body length, the CRC32 of the body, then the body: an 8-byte timestamp,
+ * the 1-byte sender and the UTF-8 content.
+ *
+ * Appends only reach the page cache, so they survive the app being killed; {@link #flush()} makes
+ * them survive a power loss too. On open, the last segment is scanned up to the first record whose
+ * checksum doesn't match, appending continues from there and the remains of the torn write are wiped.
+ *
+ * One thread at a time may append; any thread may read while it does.
+ */
+public class HistoryLog implements Closeable {
+
+    private final static String TAG = "HistoryLog";
+
+    public static final int DEFAULT_SEGMENT_SIZE = 8 * 1024 * 1024;
+    public static final int DEFAULT_INDEX_INTERVAL = 64;
+
+    private static final int RECORD_HEADER_SIZE = 8;
+    private static final int BODY_HEADER_SIZE = 9;
+    private static final int TORN_WRITE_WINDOW = 64 * 1024;
+    private static final String SEGMENT_SUFFIX = ".log";
+    private static final String INDEX_SUFFIX = ".idx";
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface RecordReader {
+        /**
+         * {@code content} is only valid until this returns.
+         */
+        public void onRecord(long sequence, int sender, long timestamp, byte[] content, int offset, int length);
+    }
+
+    private final File mDir;
+    private final int mSegmentSize;
+    private final int mIndexInterval;
+    private final CRC32 mCrc = new CRC32();
+    private final byte[] mBodyHeader = new byte[BODY_HEADER_SIZE];
+    private volatile Segment[] mSegments;
+    private volatile long mNextSequence;
+    private boolean mClosed;
+
+    public HistoryLog(File dir) throws IOException {
+        this(dir, DEFAULT_SEGMENT_SIZE, DEFAULT_INDEX_INTERVAL);
+    }
+
+    public HistoryLog(File dir, int segmentSize, int indexInterval) throws IOException {
+        if(segmentSize <= RECORD_HEADER_SIZE + BODY_HEADER_SIZE || indexInterval < 1) {
+            throw new IllegalArgumentException("bad segment size " + segmentSize + " or index interval " + indexInterval);
+        }
+        if(!dir.isDirectory() && !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        mDir = dir;
+        mSegmentSize = segmentSize;
+        mIndexInterval = indexInterval;
+        open();
+    }
+
+    /**
+     * Appends a message and returns its sequence number.
+     */
+    public synchronized long append(int sender, long timestamp, byte[] content, int offset, int length) throws IOException {
+        if(mClosed) {
+            throw new IOException("history log is closed");
+        }
+        int recordSize = RECORD_HEADER_SIZE + BODY_HEADER_SIZE + length;
+        if(recordSize > mSegmentSize) {
+            throw new IllegalArgumentException("message of " + length + " bytes doesn't fit in a segment");
+        }
+
+        Segment segment = mSegments[mSegments.length - 1];
+        if(segment.mEnd + recordSize > segment.mSize) {
+            segment = roll(segment);
+        }
+
+        int position = segment.mEnd;
+        MappedByteBuffer buffer = segment.mBuffer;
+        FrameCodec.writeLong(mBodyHeader, 0, timestamp);
+        mBodyHeader[8] = (byte) sender;
+        buffer.position(position + RECORD_HEADER_SIZE);
+        buffer.put(mBodyHeader);
+        buffer.put(content, offset, length);
+
+        mCrc.reset();
+        mCrc.update(mBodyHeader);
+        mCrc.update(content, offset, length);
+        buffer.putInt(position + 4, (int) mCrc.getValue());
+        buffer.putInt(position, BODY_HEADER_SIZE + length);
+
+        long sequence = mNextSequence;
+        if((sequence - segment.mBase) % mIndexInterval == 0) {
+            segment.addIndex(position);
+        }
+        segment.mEnd = position + recordSize;
+        mNextSequence = sequence + 1;
+        return sequence;
+    }
+
+    public long append(int sender, long timestamp, byte[] content) throws IOException {
+        return append(sender, timestamp, content, 0, content.length);
+    }
+
+    /**
+     * Hands up to {@code count} messages starting at sequence {@code from} to {@code reader}, in order.
+     *
+     * @return the number of messages read, which is less than {@code count} at the end of the log.
+     */
+    public int read(long from, int count, RecordReader reader) {
+        if(from < 0) {
+            throw new IllegalArgumentException("bad sequence " + from);
+        }
+        long end = Math.min(mNextSequence, from + count);
+        Segment[] segments = mSegments;
+        if(from >= end) {
+            return 0;
+        }
+
+        int s = findSegment(segments, from);
+        Segment segment = segments[s];
+        long segmentEnd = s + 1 < segments.length ? segments[s + 1].mBase : Long.MAX_VALUE;
+        ByteBuffer buffer = segment.mBuffer.duplicate();
+        int position = segment.locate(buffer, (int) (from - segment.mBase), mIndexInterval);
+        byte[] scratch = new byte[256];
+
+        for(long sequence = from; sequence < end; sequence++) {
+            if(sequence == segmentEnd) {
+                segment = segments[++s];
+                segmentEnd = s + 1 < segments.length ? segments[s + 1].mBase : Long.MAX_VALUE;
+                buffer = segment.mBuffer.duplicate();
+                position = 0;
+            }
+
+            int length = buffer.getInt(position) - BODY_HEADER_SIZE;
+            long timestamp = buffer.getLong(position + RECORD_HEADER_SIZE);
+            int sender = buffer.get(position + RECORD_HEADER_SIZE + 8);
+            if(scratch.length < length) {
+                scratch = new byte[Math.max(length, scratch.length * 2)];
+            }
+            buffer.position(position + RECORD_HEADER_SIZE + BODY_HEADER_SIZE);
+            buffer.get(scratch, 0, length);
+            reader.onRecord(sequence, sender, timestamp, scratch, 0, length);
+            position += RECORD_HEADER_SIZE + BODY_HEADER_SIZE + length;
+        }
+        return (int) (end - from);
+    }
+
+    public List<ChatMessage> read(long from, int count) {
+        final List<ChatMessage> messages = new ArrayList<>();
+        read(from, count, new RecordReader() {
+            @Override
+            public void onRecord(long sequence, int sender, long timestamp, byte[] content, int offset, int length) {
+                ChatMessage message = new ChatMessage();
+                message.messageSender = sender;
+                message.messageTime = timestamp;
+                message.messageContent = new String(content, offset, length, UTF_8);
+                messages.add(message);
+            }
+        });
+        return messages;
+    }
+
+    /**
+     * @return the sequence the next appended message will get, which is also the number of messages.
+     */
+    public long getNextSequence() {
+        return mNextSequence;
+    }
+
+    public int getSegmentCount() {
+        return mSegments.length;
+    }
+
+    /**
+     * Forces everything appended so far to the storage device.
+     */
+    public synchronized void flush() {
+        if(!mClosed) {
+            mSegments[mSegments.length - 1].mBuffer.force();
+        }
+    }
+
+    @Override
+    public synchronized void close() throws IOException {
+        if(mClosed) {
+            return;
+        }
+        mClosed = true;
+        mSegments[mSegments.length - 1].mBuffer.force();
+        for(Segment segment : mSegments) {
+            segment.mChannel.close();
+        }
+    }
+
+    private void open() throws IOException {
+        File[] files = mDir.listFiles(new FilenameFilter() {
+            @Override
+            public boolean accept(File dir, String name) {
+                return name.endsWith(SEGMENT_SUFFIX);
+            }
+        });
+        long[] bases = new long[files.length];
+        for(int i = 0; i < files.length; i++) {
+            String name = files[i].getName();
+            try {
+                bases[i] = Long.parseLong(name.substring(0, name.length() - SEGMENT_SUFFIX.length()));
+            } catch (NumberFormatException e) {
+                throw new IOException("unexpected file " + files[i]);
+            }
+        }
+        Arrays.sort(bases);
+
+        if(bases.length == 0) {
+            mSegments = new Segment[] {new Segment(segmentFile(0), 0, mSegmentSize)};
+            mNextSequence = 0;
+            return;
+        }
+
+        Segment[] segments = new Segment[bases.length];
+        for(int i = 0; i < bases.length; i++) {
+            segments[i] = new Segment(segmentFile(bases[i]), bases[i], mSegmentSize);
+        }
+        for(int i = 0; i < bases.length - 1; i++) {
+            int count = (int) (bases[i + 1] - bases[i]);
+            if(!segments[i].loadIndex(indexFile(bases[i]), count, mIndexInterval)) {
+                if(segments[i].scan(count, mIndexInterval) != count) {
+                    throw new IOException("segment " + segments[i].mFile + " holds fewer than " + count + " messages");
+                }
+                segments[i].writeIndex(indexFile(bases[i]));
+            }
+        }
+
+        Segment last = segments[segments.length - 1];
+        int count = last.scan(Integer.MAX_VALUE, mIndexInterval);
+        if(last.recoverTail()) {
+            Log.d(TAG, "wiped a torn write after message " + (last.mBase + count) + " in " + last.mFile);
+        }
+        mSegments = segments;
+        mNextSequence = last.mBase + count;
+    }
+
+    private Segment roll(Segment full) throws IOException {
+        full.mBuffer.force();
+        full.writeIndex(indexFile(full.mBase));
+
+        Segment segment = new Segment(segmentFile(mNextSequence), mNextSequence, mSegmentSize);
+        Segment[] segments = Arrays.copyOf(mSegments, mSegments.length + 1);
+        segments[segments.length - 1] = segment;
+        mSegments = segments;
+        Log.d(TAG, "rolled to segment " + segment.mFile.getName());
+        return segment;
+    }
+
+    private static int findSegment(Segment[] segments, long sequence) {
+        int low = 0;
+        int high = segments.length - 1;
+        while(low < high) {
+            int mid = (low + high + 1) >>> 1;
+            if(segments[mid].mBase <= sequence) {
+                low = mid;
+            }
+            else {
+                high = mid - 1;
+            }
+        }
+        return low;
+    }
+
+    private File segmentFile(long base) {
+        return new File(mDir, String.format(Locale.US, "%020d", base) + SEGMENT_SUFFIX);
+    }
+
+    private File indexFile(long base) {
+        return new File(mDir, String.format(Locale.US, "%020d", base) + INDEX_SUFFIX);
+    }
+
+    private static class Segment {
+
+        final File mFile;
+        final long mBase;
+        final int mSize;
+        final FileChannel mChannel;
+        final MappedByteBuffer mBuffer;
+        volatile int[] mIndex = new int[16];
+        int mIndexCount;
+        int mEnd;
+
+        Segment(File file, long base, int size) throws IOException {
+            mFile = file;
+            mBase = base;
+            RandomAccessFile raf = new RandomAccessFile(file, "rw");
+            if(raf.length() == 0) {
+                raf.setLength(size);
+            }
+            mSize = (int) raf.length();
+            mChannel = raf.getChannel();
+            mBuffer = mChannel.map(FileChannel.MapMode.READ_WRITE, 0, mSize);
+        }
+
+        void addIndex(int position) {
+            int[] index = mIndex;
+            if(mIndexCount == index.length) {
+                index = Arrays.copyOf(index, index.length * 2);
+            }
+            index[mIndexCount++] = position;
+            mIndex = index;
+        }
+
+        /**
+         * @return the position of the record {@code local} messages into this segment.
+         */
+        int locate(ByteBuffer buffer, int local, int interval) {
+            int position = mIndex[local / interval];
+            for(int i = local % interval; i > 0; i--) {
+                position += RECORD_HEADER_SIZE + buffer.getInt(position);
+            }
+            return position;
+        }
+
+        /**
+         * Walks the records from the start, checking each checksum and building the index.
+         *
+         * @return the number of valid records found, up to {@code limit}.
+         */
+        int scan(int limit, int interval) {
+            CRC32 crc = new CRC32();
+            ByteBuffer buffer = mBuffer.duplicate();
+            byte[] body = new byte[256];
+            mIndexCount = 0;
+            int position = 0;
+            int count = 0;
+            while(count < limit && position + RECORD_HEADER_SIZE <= mSize) {
+                int length = buffer.getInt(position);
+                if(length < BODY_HEADER_SIZE || length > mSize - position - RECORD_HEADER_SIZE) {
+                    break;
+                }
+                if(body.length < length) {
+                    body = new byte[Math.max(length, body.length * 2)];
+                }
+                buffer.position(position + RECORD_HEADER_SIZE);
+                buffer.get(body, 0, length);
+                crc.reset();
+                crc.update(body, 0, length);
+                if((int) crc.getValue() != buffer.getInt(position + 4)) {
+                    break;
+                }
+
+                if(count % interval == 0) {
+                    addIndex(position);
+                }
+                position += RECORD_HEADER_SIZE + length;
+                count++;
+            }
+            mEnd = position;
+            return count;
+        }
+
+        /**
+         * Zeroes what is left of a partly written record after the last valid one.
+         *
+         * @return true if a torn write was found.
+         */
+        boolean recoverTail() {
+            int dirtyEnd = mEnd;
+            int windowEnd = (int) Math.min(mSize, (long) mEnd + TORN_WRITE_WINDOW);
+            for(int i = mEnd; i < windowEnd; i++) {
+                if(mBuffer.get(i) != 0) {
+                    dirtyEnd = i + 1;
+                }
+            }
+            if(dirtyEnd == mEnd) {
+                return false;
+            }
+            for(int i = mEnd; i < dirtyEnd; i++) {
+                mBuffer.put(i, (byte) 0);
+            }
+            mBuffer.force();
+            return true;
+        }
+
+        boolean loadIndex(File file, int count, int interval) throws IOException {
+            int entries = (count + interval - 1) / interval;
+            if(file.length() != entries * 4L) {
+                return false;
+            }
+            DataInputStream in = new DataInputStream(new FileInputStream(file));
+            try {
+                mIndexCount = 0;
+                for(int i = 0; i < entries; i++) {
+                    addIndex(in.readInt());
+                }
+            } finally {
+                in.close();
+            }
+            return true;
+        }
+
+        void writeIndex(File file) throws IOException {
+            FileOutputStream out = new FileOutputStream(file);
+            try {
+                DataOutputStream data = new DataOutputStream(new BufferedOutputStream(out));
+                for(int i = 0; i < mIndexCount; i++) {
+                    data.writeInt(mIndex[i]);
+                }
+                data.flush();
+                out.getFD().sync();
+            } finally {
+                out.close();
+            }
+        }
+    }
+}
@@ -0,0 +1,144 @@
+package com.anddle.anddlechat;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+
+/**
+ * Collects items posted from I/O threads and hands them to the UI at most once per display frame,
+ * as one batch in the order they were posted. The first item posted after a batch asks the
+ * {@link FrameScheduler} for the next frame; everything posted until that frame runs joins it.
+ *
+ * Records every batch's size into {@link #METRIC_BATCH_SIZE} and, for every item, the time from
+ * {@link #post} until its batch is published into {@link #METRIC_LATENCY_NANOS}.
+ */
+public class InboundDispatcher<T> {
+
+    public static final String METRIC_BATCH_SIZE = "inbound.batch_size";
+    public static final String METRIC_LATENCY_NANOS = "inbound.latency_nanos";
+
+    public interface FrameScheduler {
+        /**
+         * Runs {@code callback} on the UI thread at the start of the next frame. May be called
+         * from any thread.
+         */
+        public void postFrame(Runnable callback);
+    }
+
+    public interface BatchListener<T> {
+        /**
+         * {@code batch} is only valid until this returns.
+         */
+        public void onBatch(List<T> batch);
+    }
+
+    private final FrameScheduler mScheduler;
+    private final BatchListener<T> mListener;
+    private ArrayList<T> mPending = new ArrayList<>();
+    private ArrayList<T> mPublishing = new ArrayList<>();
+    private long[] mPendingNanos = new long[64];
+    private long[] mPublishingNanos = new long[64];
+    private boolean mScheduled;
+    private final Histogram mBatchSize;
+    private final Histogram mLatencyNanos;
+
+    private long mBatches;
+    private long mItems;
+    private int mMaxBatchSize;
+    private long mTotalLatencyNanos;
+    private long mMaxLatencyNanos;
+
+    private final Runnable mPublish = new Runnable() {
+        @Override
+        public void run() {
+            publish();
+        }
+    };
+
+    public InboundDispatcher(FrameScheduler scheduler, BatchListener<T> listener) {
+        this(scheduler, listener, MetricsRegistry.getDefault());
+    }
+
+    public InboundDispatcher(FrameScheduler scheduler, BatchListener<T> listener, MetricsRegistry metrics) {
+        mScheduler = scheduler;
+        mListener = listener;
+        mBatchSize = metrics.histogram(METRIC_BATCH_SIZE);
+        mLatencyNanos = metrics.histogram(METRIC_LATENCY_NANOS);
+    }
+
+    public void post(T item) {
+        boolean schedule;
+        synchronized (this) {
+            if(mPending.size() == mPendingNanos.length) {
+                mPendingNanos = Arrays.copyOf(mPendingNanos, mPendingNanos.length * 2);
+            }
+            mPendingNanos[mPending.size()] = System.nanoTime();
+            mPending.add(item);
+            schedule = !mScheduled;
+            mScheduled = true;
+        }
+        if(schedule) {
+            mScheduler.postFrame(mPublish);
+        }
+    }
+
+    private void publish() {
+        ArrayList<T> batch;
+        synchronized (this) {
+            batch = mPending;
+            mPending = mPublishing;
+            mPublishing = batch;
+            long[] nanos = mPendingNanos;
+            mPendingNanos = mPublishingNanos;
+            mPublishingNanos = nanos;
+            mScheduled = false;
+        }
+        if(batch.isEmpty()) {
+            return;
+        }
+
+        mListener.onBatch(batch);
+
+        long now = System.nanoTime();
+        mBatchSize.record(batch.size());
+        synchronized (this) {
+            mBatches++;
+            mItems += batch.size();
+            mMaxBatchSize = Math.max(mMaxBatchSize, batch.size());
+            for(int i = 0; i < batch.size(); i++) {
+                long latency = now - mPublishingNanos[i];
+                mLatencyNanos.record(latency);
+                mTotalLatencyNanos += latency;
+                mMaxLatencyNanos = Math.max(mMaxLatencyNanos, latency);
+            }
+        }
+        batch.clear();
+    }
+
+    public synchronized long getBatchCount() {
+        return mBatches;
+    }
+
+    public synchronized long getItemCount() {
+        return mItems;
+    }
+
+    public synchronized double getMeanBatchSize() {
+        return mBatches == 0 ? 0 : (double) mItems / mBatches;
+    }
+
+    public synchronized int getMaxBatchSize() {
+        return mMaxBatchSize;
+    }
+
+    /**
+     * @return the mean time from {@link #post} until the item's batch was handed to the listener.
+     */
+    public synchronized long getMeanLatencyNanos() {
+        return mItems == 0 ? 0 : mTotalLatencyNanos / mItems;
+    }
+
+    public synchronized long getMaxLatencyNanos() {
+        return mMaxLatencyNanos;
+    }
+}
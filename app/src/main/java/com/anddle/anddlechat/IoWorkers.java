@@ -0,0 +1,166 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.SynchronousQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * The threads that run blocking I/O loops: accepting, and reading and writing each connection.
+ * A thread whose loop ends waits a while for the next one instead of dying, so connecting again
+ * doesn't start new threads, and while it runs a loop it carries that loop's name.
+ *
+ * At most {@code maxThreads} loops run at once. A loop that would need another thread is refused
+ * rather than queued: it would only start once some connection ended, which may be never.
+ */
+class IoWorkers {
+
+    private final static String TAG = "IoWorkers";
+
+    /**
+     * A blocking loop run on a worker. Whoever starts a loop owns it: it stops the loop, by
+     * closing what the loop blocks on or by {@link #interrupt()}, and may wait for it to end.
+     */
+    abstract static class Loop implements Runnable {
+
+        private final CountDownLatch mEnded = new CountDownLatch(1);
+        private boolean mStarted;
+        private boolean mInterrupted;
+        private Thread mThread;
+
+        /**
+         * @return false if every worker is busy; the loop never runs then.
+         */
+        boolean startOn(IoWorkers workers, String name) {
+            synchronized (this) {
+                mStarted = true;
+            }
+            boolean started = workers.start(name, new Runnable() {
+                @Override
+                public void run() {
+                    runLoop();
+                }
+            });
+            if(!started) {
+                synchronized (this) {
+                    mStarted = false;
+                }
+            }
+            return started;
+        }
+
+        private void runLoop() {
+            Thread thread = Thread.currentThread();
+            synchronized (this) {
+                mThread = thread;
+                if(mInterrupted) {
+                    thread.interrupt();
+                }
+            }
+            try {
+                run();
+            } finally {
+                synchronized (this) {
+                    mThread = null;
+                }
+                // interrupts only come while mThread is set, so none can reach the next loop
+                Thread.interrupted();
+                mEnded.countDown();
+            }
+        }
+
+        /**
+         * Interrupts the loop, or makes it start interrupted if it hasn't started yet. Unlike
+         * interrupting its thread, this never reaches the loop the worker runs next.
+         */
+        synchronized void interrupt() {
+            mInterrupted = true;
+            if(mThread != null) {
+                mThread.interrupt();
+            }
+        }
+
+        /**
+         * Waits for the loop to end, if it was started.
+         */
+        void await() throws InterruptedException {
+            synchronized (this) {
+                if(!mStarted) {
+                    return;
+                }
+            }
+            mEnded.await();
+        }
+    }
+
+    private final String mName;
+    private final ThreadPoolExecutor mExecutor;
+    private final AtomicInteger mThreadNumber = new AtomicInteger();
+
+    /**
+     * @param threadsCreated counts every thread the workers start.
+     */
+    IoWorkers(String name, int maxThreads, long keepAliveMillis, final MetricsRegistry.Counter threadsCreated) {
+        mName = name;
+        mExecutor = new ThreadPoolExecutor(0, maxThreads, keepAliveMillis, TimeUnit.MILLISECONDS,
+                new SynchronousQueue<Runnable>(), new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                threadsCreated.increment();
+                Thread thread = new Thread(r, mName + "-" + mThreadNumber.incrementAndGet());
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+    }
+
+    void setMaxThreads(int maxThreads) {
+        mExecutor.setMaximumPoolSize(maxThreads);
+    }
+
+    /**
+     * @return the threads running a loop right now.
+     */
+    int getActiveCount() {
+        return mExecutor.getActiveCount();
+    }
+
+    /**
+     * @return the threads that exist, running a loop or waiting for one.
+     */
+    int getPoolSize() {
+        return mExecutor.getPoolSize();
+    }
+
+    /**
+     * Runs {@code loop} on a worker, named {@code name} while it runs.
+     *
+     * @return false if every worker is busy.
+     */
+    boolean start(final String name, final Runnable loop) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    Thread thread = Thread.currentThread();
+                    String idle = thread.getName();
+                    thread.setName(name);
+                    try {
+                        loop.run();
+                    } finally {
+                        thread.setName(idle);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            Log.w(TAG, "all " + mExecutor.getMaximumPoolSize() + " workers are busy, can't start " + name);
+            return false;
+        }
+    }
+}
@@ -0,0 +1,260 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+
+import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the live link to every peer with timestamped ping and pong frames, the way NTP does.
+ * A ping carries the local send time t0; the peer stamps when it received it (t1) and when it
+ * answered (t2), and the pong comes back at t3. Then
+ *
+ *   round trip = (t3 - t0) - (t2 - t1)
+ *   offset     = ((t1 - t0) + (t2 - t3)) / 2, the peer clock minus the local one
+ *
+ * The offset is only exact if both directions take equal time; it is always within half the
+ * round trip of the truth. Each peer keeps the last {@link #WINDOW} samples, and the offset of
+ * the sample with the shortest round trip is used as the estimate, since that one had the least
+ * room for asymmetric queueing.
+ *
+ * Both ends need a LinkProbe; pings to a peer without one are dropped there and never answered.
+ *
+ * Ping payload: t0 (8 bytes). Pong payload: t0, t1, t2 (8 bytes each).
+ */
+public class LinkProbe implements ConnectionManager.FrameHandler {
+
+    private final static String TAG = "LinkProbe";
+
+    public static final long DEFAULT_INTERVAL_MS = 5000;
+    public static final int WINDOW = 64;
+
+    public static final String METRIC_RTT_NANOS = "link.rtt_nanos";
+    public static final String METRIC_PINGS_SENT = "link.pings_sent";
+    public static final String METRIC_PONGS_RECEIVED = "link.pongs_received";
+
+    public interface Listener {
+        /**
+         * Called on a connection thread for every pong.
+         *
+         * @param clockOffsetNanos the current estimate of the peer clock minus the local clock.
+         */
+        public void onLinkSample(String address, long rttNanos, long clockOffsetNanos);
+    }
+
+    /**
+     * Source of the timestamps exchanged with peers.
+     */
+    public interface Clock {
+        public long nanos();
+    }
+
+    /**
+     * Wall-clock time in nanoseconds, advanced by the monotonic clock so it doesn't jump.
+     */
+    public static final Clock SYSTEM_CLOCK = new Clock() {
+
+        private final long mEpoch = System.currentTimeMillis() * 1000000 - System.nanoTime();
+
+        @Override
+        public long nanos() {
+            return mEpoch + System.nanoTime();
+        }
+    };
+
+    private final ConnectionManager mConnectionManager;
+    private final Listener mListener;
+    private final Clock mClock;
+    private final Map<String, PeerClock> mPeers = new ConcurrentHashMap<>();
+    private final Histogram mRttNanos;
+    private final MetricsRegistry.Counter mPingsSent;
+    private final MetricsRegistry.Counter mPongsReceived;
+    private ScheduledExecutorService mScheduler;
+
+    public LinkProbe(ConnectionManager manager, Listener listener) {
+        this(manager, listener, SYSTEM_CLOCK);
+    }
+
+    public LinkProbe(ConnectionManager manager, Listener listener, Clock clock) {
+        mConnectionManager = manager;
+        mListener = listener;
+        mClock = clock;
+        mRttNanos = manager.getMetrics().histogram(METRIC_RTT_NANOS);
+        mPingsSent = manager.getMetrics().counter(METRIC_PINGS_SENT);
+        mPongsReceived = manager.getMetrics().counter(METRIC_PONGS_RECEIVED);
+        manager.registerFrameHandler(this, FrameCodec.TYPE_PING, FrameCodec.TYPE_PONG);
+    }
+
+    /**
+     * Pings every connected peer every {@code intervalMillis} until {@link #stop()}.
+     */
+    public synchronized void start(long intervalMillis) {
+        stop();
+        mScheduler = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable r) {
+                Thread thread = new Thread(r, "LinkProbe");
+                thread.setDaemon(true);
+                return thread;
+            }
+        });
+        mScheduler.scheduleAtFixedRate(new Runnable() {
+            @Override
+            public void run() {
+                for(String address : mConnectionManager.getConnectedPeers()) {
+                    ping(address);
+                }
+            }
+        }, 0, intervalMillis, TimeUnit.MILLISECONDS);
+    }
+
+    public synchronized void stop() {
+        if(mScheduler != null) {
+            mScheduler.shutdownNow();
+            mScheduler = null;
+        }
+    }
+
+    /**
+     * Sends one ping to the peer at {@code address}.
+     *
+     * @return false if the peer is not connected or its send queue is full.
+     */
+    public boolean ping(String address) {
+        byte[] payload = new byte[8];
+        FrameCodec.writeLong(payload, 0, mClock.nanos());
+        boolean sent = mConnectionManager.sendFrame(address, FrameCodec.TYPE_PING, payload);
+        if(sent) {
+            mPingsSent.increment();
+        }
+        return sent;
+    }
+
+    /**
+     * @return the number of round trips measured to the peer at {@code address} that are still in
+     * the window.
+     */
+    public int getSampleCount(String address) {
+        PeerClock peer = mPeers.get(address);
+        return peer == null ? 0 : peer.getCount();
+    }
+
+    /**
+     * @return the round trip that {@code fraction} of the samples in the window don't exceed, or
+     * -1 if there are none.
+     */
+    public long getRttPercentile(String address, double fraction) {
+        PeerClock peer = mPeers.get(address);
+        return peer == null ? -1 : peer.getRttPercentile(fraction);
+    }
+
+    /**
+     * @return the estimated peer clock minus the local clock, or 0 if nothing was measured yet.
+     */
+    public long getClockOffsetNanos(String address) {
+        PeerClock peer = mPeers.get(address);
+        return peer == null ? 0 : peer.getOffset();
+    }
+
+    /**
+     * @return how long ago, on the local clock, the peer at {@code address} stamped
+     * {@code peerNanos} on its own clock; the one-way latency of a message it sent at that time.
+     */
+    public long getOneWayLatencyNanos(String address, long peerNanos) {
+        return mClock.nanos() - (peerNanos - getClockOffsetNanos(address));
+    }
+
+    @Override
+    public void onPeerConnected(String address) {
+        mPeers.put(address, new PeerClock());
+    }
+
+    @Override
+    public void onFrame(String address, int type, byte[] buffer, int offset, int length) {
+        long now = mClock.nanos();
+        if(type == FrameCodec.TYPE_PING && length >= 8) {
+            byte[] payload = new byte[24];
+            System.arraycopy(buffer, offset, payload, 0, 8);
+            FrameCodec.writeLong(payload, 8, now);
+            FrameCodec.writeLong(payload, 16, mClock.nanos());
+            mConnectionManager.sendFrame(address, FrameCodec.TYPE_PONG, payload);
+        }
+        else if(type == FrameCodec.TYPE_PONG && length >= 24) {
+            long t0 = FrameCodec.readLong(buffer, offset);
+            long t1 = FrameCodec.readLong(buffer, offset + 8);
+            long t2 = FrameCodec.readLong(buffer, offset + 16);
+            long rtt = Math.max(0, (now - t0) - (t2 - t1));
+            long clockOffset = ((t1 - t0) + (t2 - now)) / 2;
+
+            PeerClock peer = mPeers.get(address);
+            if(peer == null) {
+                return;
+            }
+            long estimate = peer.add(rtt, clockOffset);
+            mRttNanos.record(rtt);
+            mPongsReceived.increment();
+            if(mListener != null) {
+                mListener.onLinkSample(address, rtt, estimate);
+            }
+        }
+        else {
+            Log.w(TAG, "bad frame from " + address + ", type " + type + ", " + length + " bytes");
+        }
+    }
+
+    @Override
+    public void onPeerDisconnected(String address) {
+        mPeers.remove(address);
+    }
+
+    /**
+     * The last {@link #WINDOW} samples of one peer.
+     */
+    private static class PeerClock {
+
+        private final long[] mRtts = new long[WINDOW];
+        private final long[] mOffsets = new long[WINDOW];
+        private int mCount;
+        private int mNext;
+
+        /**
+         * @return the offset estimate with the new sample.
+         */
+        synchronized long add(long rtt, long offset) {
+            mRtts[mNext] = rtt;
+            mOffsets[mNext] = offset;
+            mNext = (mNext + 1) % WINDOW;
+            mCount = Math.min(WINDOW, mCount + 1);
+            return getOffset();
+        }
+
+        synchronized int getCount() {
+            return mCount;
+        }
+
+        synchronized long getOffset() {
+            int best = -1;
+            for(int i = 0; i < mCount; i++) {
+                if(best < 0 || mRtts[i] < mRtts[best]) {
+                    best = i;
+                }
+            }
+            return best < 0 ? 0 : mOffsets[best];
+        }
+
+        synchronized long getRttPercentile(double fraction) {
+            if(mCount == 0) {
+                return -1;
+            }
+            long[] sorted = Arrays.copyOf(mRtts, mCount);
+            Arrays.sort(sorted);
+            int index = (int) Math.ceil(fraction * mCount) - 1;
+            return sorted[Math.max(0, Math.min(mCount - 1, index))];
+        }
+    }
+}
@@ -0,0 +1,273 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+import java.nio.ByteBuffer;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+/**
+ * Store-and-forward relay on top of a {@link ConnectionManager}. Messages addressed to a peer that
+ * is not directly connected are flooded to the other neighbours, which forward them in turn until
+ * the hop limit runs out. Every node remembers the ids it has seen in a bounded cache and drops
+ * duplicates. A message that can't be forwarded anywhere is kept in a bounded store and sent on
+ * as soon as a peer connects that isn't its origin or the hop it came from; those have seen it
+ * already and would drop it.
+ *
+ * Relay frame payload: message id (8 bytes), hops left (1), hops taken (1), origin and destination
+ * as UTF-8 strings with a 2-byte length, then the message itself.
+ */
+public class MeshRelay implements ConnectionManager.FrameHandler {
+
+    private final static String TAG = "MeshRelay";
+    private static final Charset UTF8 = Charset.forName("UTF-8");
+
+    public static final int DEFAULT_HOP_LIMIT = 8;
+    private static final int DEFAULT_SEEN_CACHE_SIZE = 4096;
+    private static final int DEFAULT_STORE_SIZE = 256;
+
+    public interface RelayListener {
+
+        /**
+         * Called on a connection thread when a message addressed to this node arrives.
+         */
+        public void onRelayMessage(String origin, long messageId, int hops, byte[] data);
+    }
+
+    private final ConnectionManager mConnectionManager;
+    private final String mLocalAddress;
+    private final RelayListener mListener;
+    private final int mHopLimit;
+    private final int mStoreSize;
+    private final long mIdBase = new Random().nextLong();
+    private long mNextId;
+
+    private final LinkedHashMap<Long, Boolean> mSeen;
+    private final LinkedList<StoredMessage> mStore = new LinkedList<>();
+
+    private long mDelivered;
+    private long mForwarded;
+    private long mDuplicates;
+    private long mStored;
+    private long mDropped;
+
+    public MeshRelay(ConnectionManager manager, String localAddress, RelayListener listener) {
+        this(manager, localAddress, listener, DEFAULT_HOP_LIMIT, DEFAULT_SEEN_CACHE_SIZE, DEFAULT_STORE_SIZE);
+    }
+
+    public MeshRelay(ConnectionManager manager, String localAddress, RelayListener listener,
+                     int hopLimit, final int seenCacheSize, int storeSize) {
+        mConnectionManager = manager;
+        mLocalAddress = localAddress;
+        mListener = listener;
+        mHopLimit = hopLimit;
+        mStoreSize = storeSize;
+        mSeen = new LinkedHashMap<Long, Boolean>() {
+            @Override
+            protected boolean removeEldestEntry(Map.Entry<Long, Boolean> eldest) {
+                return size() > seenCacheSize;
+            }
+        };
+        manager.registerFrameHandler(this, FrameCodec.TYPE_RELAY);
+    }
+
+    /**
+     * Sends {@code data} to {@code destination}, directly if it is connected and through the mesh
+     * otherwise.
+     *
+     * @return the message id.
+     */
+    public synchronized long send(String destination, byte[] data) {
+        RelayMessage message = new RelayMessage(mIdBase + mNextId++, mHopLimit, 0, mLocalAddress, destination, data);
+        mSeen.put(message.id, Boolean.TRUE);
+        route(message, null);
+        return message.id;
+    }
+
+    public synchronized long getDeliveredCount() {
+        return mDelivered;
+    }
+
+    public synchronized long getForwardedCount() {
+        return mForwarded;
+    }
+
+    public synchronized long getDuplicateCount() {
+        return mDuplicates;
+    }
+
+    public synchronized long getStoredCount() {
+        return mStored;
+    }
+
+    public synchronized int getPendingCount() {
+        return mStore.size();
+    }
+
+    public synchronized long getDroppedCount() {
+        return mDropped;
+    }
+
+    @Override
+    public synchronized void onPeerConnected(String address) {
+
+        Iterator<StoredMessage> iterator = mStore.iterator();
+        while(iterator.hasNext()) {
+            StoredMessage stored = iterator.next();
+            RelayMessage message = stored.message;
+            if(address.equals(stored.from) || address.equals(message.origin)) {
+                continue;
+            }
+            if(mConnectionManager.sendFrame(address, FrameCodec.TYPE_RELAY, message.encode())) {
+                Log.d(TAG, "stored message " + message.id + " for " + message.destination + " sent via " + address);
+                iterator.remove();
+                mForwarded++;
+            }
+        }
+    }
+
+    @Override
+    public synchronized void onFrame(String address, int type, byte[] buffer, int offset, int length) {
+
+        RelayMessage message;
+        try {
+            message = RelayMessage.decode(buffer, offset, length);
+        } catch (RuntimeException e) {
+            Log.w(TAG, "bad relay frame from " + address, e);
+            return;
+        }
+
+        if(mSeen.containsKey(message.id)) {
+            mDuplicates++;
+            return;
+        }
+        mSeen.put(message.id, Boolean.TRUE);
+
+        RelayMessage hopped = new RelayMessage(message.id, message.hopsLeft - 1, message.hops + 1,
+                message.origin, message.destination, message.data);
+        if(mLocalAddress.equals(message.destination)) {
+            mDelivered++;
+            if(mListener != null) {
+                mListener.onRelayMessage(message.origin, message.id, hopped.hops, message.data);
+            }
+            return;
+        }
+
+        if(hopped.hopsLeft <= 0) {
+            Log.d(TAG, "message " + message.id + " ran out of hops");
+            mDropped++;
+            return;
+        }
+        route(hopped, address);
+    }
+
+    @Override
+    public void onPeerDisconnected(String address) {
+    }
+
+    private void route(RelayMessage message, String from) {
+
+        byte[] frame = message.encode();
+        if(mConnectionManager.getConnectState(message.destination) == ConnectionManager.CONNECT_STATE_CONNECTED) {
+            if(mConnectionManager.sendFrame(message.destination, FrameCodec.TYPE_RELAY, frame)) {
+                mForwarded++;
+                return;
+            }
+        }
+
+        boolean forwarded = false;
+        List<String> peers = mConnectionManager.getConnectedPeers();
+        for(String peer : peers) {
+            if(peer.equals(from) || peer.equals(message.origin)) {
+                continue;
+            }
+            if(mConnectionManager.sendFrame(peer, FrameCodec.TYPE_RELAY, frame)) {
+                mForwarded++;
+                forwarded = true;
+            }
+        }
+
+        if(!forwarded) {
+            store(message, from);
+        }
+    }
+
+    private void store(RelayMessage message, String from) {
+        if(mStore.size() >= mStoreSize) {
+            StoredMessage dropped = mStore.removeFirst();
+            Log.d(TAG, "store full, dropping message " + dropped.message.id);
+            mDropped++;
+        }
+        mStore.add(new StoredMessage(message, from));
+        mStored++;
+    }
+
+    private static class StoredMessage {
+
+        final RelayMessage message;
+        /** The neighbour the message arrived from, or null if it was sent here. */
+        final String from;
+
+        StoredMessage(RelayMessage message, String from) {
+            this.message = message;
+            this.from = from;
+        }
+    }
+
+    private static class RelayMessage {
+
+        final long id;
+        final int hopsLeft;
+        final int hops;
+        final String origin;
+        final String destination;
+        final byte[] data;
+
+        RelayMessage(long id, int hopsLeft, int hops, String origin, String destination, byte[] data) {
+            this.id = id;
+            this.hopsLeft = hopsLeft;
+            this.hops = hops;
+            this.origin = origin;
+            this.destination = destination;
+            this.data = data;
+        }
+
+        byte[] encode() {
+            byte[] originBytes = origin.getBytes(UTF8);
+            byte[] destinationBytes = destination.getBytes(UTF8);
+            ByteBuffer out = ByteBuffer.allocate(14 + originBytes.length + destinationBytes.length + data.length);
+            out.putLong(id);
+            out.put((byte) hopsLeft);
+            out.put((byte) hops);
+            out.putShort((short) originBytes.length);
+            out.put(originBytes);
+            out.putShort((short) destinationBytes.length);
+            out.put(destinationBytes);
+            out.put(data);
+            return out.array();
+        }
+
+        static RelayMessage decode(byte[] buffer, int offset, int length) {
+            ByteBuffer in = ByteBuffer.wrap(buffer, offset, length);
+            long id = in.getLong();
+            int hopsLeft = in.get() & 0xff;
+            int hops = in.get() & 0xff;
+            String origin = readString(in);
+            String destination = readString(in);
+            byte[] data = new byte[in.remaining()];
+            in.get(data);
+            return new RelayMessage(id, hopsLeft, hops, origin, destination, data);
+        }
+
+        private static String readString(ByteBuffer in) {
+            int length = in.getShort() & 0xffff;
+            String value = new String(in.array(), in.position(), length, UTF8);
+            in.position(in.position() + length);
+            return value;
+        }
+    }
+}
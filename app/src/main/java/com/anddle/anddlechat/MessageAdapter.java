@@ -1,37 +1,116 @@
 package com.anddle.anddlechat;
 
 import android.content.Context;
+import android.support.v7.widget.LinearLayoutManager;
+import android.support.v7.widget.RecyclerView;
+import android.support.v7.widget.SimpleItemAnimator;
 import android.view.LayoutInflater;
 import android.view.View;
 import android.view.ViewGroup;
-import android.widget.ArrayAdapter;
 import android.widget.TextView;
 
 /**
  * Created by Gym on 16/6/13.
  */
-public class MessageAdapter extends ArrayAdapter<ChatMessage> {
+public class MessageAdapter extends RecyclerView.Adapter<MessageAdapter.MessageHolder> implements MessagePager.Listener {
 
     private final LayoutInflater mInflater;
     private int mResourceMe;
     private int mResourceOthers;
+    private MessagePager mPager;
+
+    static class MessageHolder extends RecyclerView.ViewHolder {
+
+        final TextView mContent;
+
+        MessageHolder(View itemView) {
+            super(itemView);
+            mContent = (TextView) itemView.findViewById(R.id.message_content);
+        }
+    }
 
     public MessageAdapter(Context context, int resourceMe, int resourceOthers) {
-        super(context, 0);
         mInflater = LayoutInflater.from(context);
         mResourceMe = resourceMe;
         mResourceOthers = resourceOthers;
+        setHasStableIds(true);
+    }
+
+    public void setPager(MessagePager pager) {
+        mPager = pager;
+        notifyDataSetChanged();
+    }
+
+    /**
+     * Shows the messages in {@code list}, newest at the bottom. The pager's window follows the
+     * visible rows, and the list keeps scrolling to new messages unless the user has scrolled up.
+     */
+    public void attachTo(final RecyclerView list) {
+        final LinearLayoutManager layout = new LinearLayoutManager(list.getContext());
+        layout.setStackFromEnd(true);
+        list.setLayoutManager(layout);
+        // a loaded page only fills in placeholder text, there is nothing to animate
+        ((SimpleItemAnimator) list.getItemAnimator()).setSupportsChangeAnimations(false);
+        list.setAdapter(this);
+
+        list.addOnScrollListener(new RecyclerView.OnScrollListener() {
+            @Override
+            public void onScrolled(RecyclerView recyclerView, int dx, int dy) {
+                int first = layout.findFirstVisibleItemPosition();
+                if(first != RecyclerView.NO_POSITION) {
+                    mPager.setVisibleRange(first, layout.findLastVisibleItemPosition());
+                }
+            }
+        });
+        registerAdapterDataObserver(new RecyclerView.AdapterDataObserver() {
+            @Override
+            public void onItemRangeInserted(int positionStart, int itemCount) {
+                int last = layout.findLastVisibleItemPosition();
+                if(last == RecyclerView.NO_POSITION || last >= positionStart - 1) {
+                    list.scrollToPosition(getItemCount() - 1);
+                }
+            }
+        });
+    }
+
+    @Override
+    public int getItemCount() {
+        return mPager == null ? 0 : mPager.getCount();
     }
 
     @Override
-    public View getView(int position, View convertView, ViewGroup parent) {
+    public long getItemId(int position) {
+        return position;
+    }
+
+    /**
+     * Rows whose page is still being loaded are laid out as {@link ChatMessage#MSG_SENDER_OTHERS}
+     * with no text.
+     */
+    @Override
+    public int getItemViewType(int position) {
+        int sender = mPager.getSender(position);
+        return sender >= 0 ? sender : ChatMessage.MSG_SENDER_OTHERS;
+    }
+
+    @Override
+    public MessageHolder onCreateViewHolder(ViewGroup parent, int viewType) {
+        return new MessageHolder(mInflater.inflate(viewType == ChatMessage.MSG_SENDER_ME ? mResourceMe:mResourceOthers, parent, false));
+    }
 
-        ChatMessage message = getItem(position);
-        convertView = mInflater.inflate(message.messageSender == ChatMessage.MSG_SENDER_ME ? mResourceMe:mResourceOthers, parent, false);
+    @Override
+    public void onBindViewHolder(MessageHolder holder, int position) {
+        String text = mPager.getText(position);
+        holder.mContent.setText(text != null ? text : "");
+    }
 
-        TextView name = (TextView) convertView.findViewById(R.id.message_content);
-        name.setText(message.messageContent);
+    @Override
+    public void onMessagesLoaded(int position, int count) {
+        notifyItemRangeChanged(position, count);
+    }
 
-        return convertView;
+    @Override
+    public void onMessagesAppended(int position, int count) {
+        notifyItemRangeInserted(position, count);
     }
 }
@@ -0,0 +1,380 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+/**
+ * Data source for the message list that keeps only a window of pages around the visible range in
+ * memory, whatever the length of the conversation. The position of a message is its sequence in
+ * the {@link HistoryLog}.
+ *
+ * Missing pages are read from the log on the {@code loader} executor and handed back on the
+ * {@code main} executor; pages that fall out of the window are dropped. A page keeps its messages
+ * in a {@link MessageStore} and decodes a text the first time it is asked for, so only the rows
+ * that actually get bound are ever turned into Strings. Appended messages are
+ * batched by an {@link InboundDispatcher} and added once per frame. Apart from {@link #append},
+ * every method must be called on the main executor's thread, which is also where the
+ * {@link Listener} is called.
+ *
+ * Without a log, for when the history can't be opened, every message of the session is kept in
+ * memory instead and nothing is ever loaded or dropped.
+ */
+public class MessagePager {
+
+    private final static String TAG = "MessagePager";
+
+    public static final int DEFAULT_PAGE_SIZE = 50;
+    public static final int DEFAULT_MAX_PAGES = 8;
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    public interface Listener {
+        /**
+         * Messages at positions {@code [position, position + count)} can be bound now.
+         */
+        public void onMessagesLoaded(int position, int count);
+        public void onMessagesAppended(int position, int count);
+    }
+
+    private final HistoryLog mLog;
+    private final Object mSequenceLock = new Object();
+    private int mNextSequence;
+    private final Executor mLoader;
+    private final Executor mMain;
+    private final Listener mListener;
+    private final InboundDispatcher<Appended> mInbound;
+    private final int mPageSize;
+    private final int mMaxPages;
+
+    private final Map<Integer, Page> mPages = new HashMap<>();
+    private final Set<Integer> mLoading = new HashSet<>();
+    private int mCount;
+    private int mLowPage;
+    private int mHighPage;
+
+    /**
+     * @param log the history to page through, or null to keep this session's messages in memory.
+     */
+    public MessagePager(HistoryLog log, Executor loader, Executor main, Listener listener) {
+        this(log, loader, main, listener, DEFAULT_PAGE_SIZE, DEFAULT_MAX_PAGES);
+    }
+
+    /**
+     * Publishes appended messages in batches of whatever arrived until {@code main} got to them.
+     */
+    public MessagePager(HistoryLog log, Executor loader, final Executor main, Listener listener, int pageSize, int maxPages) {
+        this(log, loader, main, new InboundDispatcher.FrameScheduler() {
+            @Override
+            public void postFrame(Runnable callback) {
+                main.execute(callback);
+            }
+        }, listener, pageSize, maxPages);
+    }
+
+    public MessagePager(HistoryLog log, Executor loader, Executor main, InboundDispatcher.FrameScheduler frames,
+                        Listener listener, int pageSize, int maxPages) {
+        if(pageSize < 1 || maxPages < 1) {
+            throw new IllegalArgumentException("bad page size " + pageSize + " or page count " + maxPages);
+        }
+        mLog = log;
+        mLoader = loader;
+        mMain = main;
+        mListener = listener;
+        mPageSize = pageSize;
+        mMaxPages = maxPages;
+        mInbound = new InboundDispatcher<>(frames, new InboundDispatcher.BatchListener<Appended>() {
+            @Override
+            public void onBatch(List<Appended> batch) {
+                appended(batch);
+            }
+        });
+        mCount = log == null ? 0 : (int) log.getNextSequence();
+        setVisibleRange(mCount - 1, mCount - 1);
+    }
+
+    public int getCount() {
+        return mCount;
+    }
+
+    /**
+     * @return the message at {@code position}, or null if its page is still being loaded.
+     */
+    public ChatMessage get(int position) {
+        Page cached = find(position);
+        if(cached == null) {
+            return null;
+        }
+        int index = position % mPageSize;
+        ChatMessage message = new ChatMessage();
+        message.messageSender = cached.mStore.getSender(index);
+        message.messageTime = cached.mStore.getTimestamp(index);
+        message.messageContent = cached.getText(index);
+        return message;
+    }
+
+    /**
+     * @return the sender of the message at {@code position}, or -1 if its page is still being loaded.
+     */
+    public int getSender(int position) {
+        Page cached = find(position);
+        return cached == null ? -1 : cached.mStore.getSender(position % mPageSize);
+    }
+
+    /**
+     * @return the text of the message at {@code position}, or null if its page is still being
+     * loaded. Decoded on the first call and kept for as long as the page stays in the window.
+     */
+    public String getText(int position) {
+        Page cached = find(position);
+        return cached == null ? null : cached.getText(position % mPageSize);
+    }
+
+    /**
+     * Moves the window to cover {@code [first, last]} and the pages next to it, dropping pages that
+     * are no longer in it and loading the ones that are missing, visible ones first. More of the
+     * spare room goes to older pages, since that is the way a chat is scrolled.
+     */
+    public void setVisibleRange(int first, int last) {
+        int lastPage = Math.max(0, (mCount - 1) / mPageSize);
+        int firstVisible = clamp(first / mPageSize, 0, lastPage);
+        int lastVisible = clamp(Math.max(first, last) / mPageSize, firstVisible, lastPage);
+
+        int spare = Math.max(0, mMaxPages - (lastVisible - firstVisible + 1));
+        int low = firstVisible - (spare + 1) / 2;
+        int high = lastVisible + spare / 2;
+        if(low < 0) {
+            high = Math.min(lastPage, high - low);
+            low = 0;
+        }
+        if(high > lastPage) {
+            low = Math.max(0, low - (high - lastPage));
+            high = lastPage;
+        }
+        mLowPage = low;
+        mHighPage = high;
+
+        Iterator<Integer> pages = mPages.keySet().iterator();
+        while(mLog != null && pages.hasNext()) {
+            int page = pages.next();
+            if(page < low || page > high) {
+                pages.remove();
+            }
+        }
+
+        if(mCount == 0) {
+            return;
+        }
+        for(int page = firstVisible; page <= lastVisible; page++) {
+            load(page);
+        }
+        for(int distance = 1; firstVisible - distance >= low || lastVisible + distance <= high; distance++) {
+            if(firstVisible - distance >= low) {
+                load(firstVisible - distance);
+            }
+            if(lastVisible + distance <= high) {
+                load(lastVisible + distance);
+            }
+        }
+    }
+
+    /**
+     * Stores a message in the history log, if there is one, and adds it to the end of the list.
+     * May be called from any thread.
+     */
+    public void append(int sender, byte[] content, int offset, int length) {
+        append(sender, new String(content, offset, length, UTF_8), content, offset, length);
+    }
+
+    /**
+     * Same as {@link #append(int, byte[], int, int)} for a message that has already been decoded.
+     */
+    public void append(int sender, String text, byte[] content, int offset, int length) {
+        long timestamp = System.currentTimeMillis();
+        // content belongs to the caller, who may reuse it before the batch is published
+        byte[] copy = new byte[length];
+        System.arraycopy(content, offset, copy, 0, length);
+        if(mLog == null) {
+            // with no log to read a page back from, messages must reach the dispatcher in order
+            synchronized (mSequenceLock) {
+                mInbound.post(new Appended(mNextSequence++, sender, timestamp, text, copy));
+            }
+            return;
+        }
+        try {
+            long sequence = mLog.append(sender, timestamp, content, offset, length);
+            mInbound.post(new Appended((int) sequence, sender, timestamp, text, copy));
+        } catch (IOException e) {
+            Log.e(TAG, "can't append to chat history", e);
+        }
+    }
+
+    /**
+     * @return the dispatcher that batches appended messages, for its batch size and latency figures.
+     */
+    public InboundDispatcher<?> getInboundDispatcher() {
+        return mInbound;
+    }
+
+    /**
+     * @return how many messages are held in memory right now.
+     */
+    public int getCachedMessageCount() {
+        int messages = 0;
+        for(Page page : mPages.values()) {
+            messages += page.mStore.size();
+        }
+        return messages;
+    }
+
+    private void appended(List<Appended> batch) {
+        // messages from different I/O threads can reach the dispatcher out of order
+        Collections.sort(batch, APPENDED_ORDER);
+        int oldCount = mCount;
+        for(int i = 0; i < batch.size(); i++) {
+            appended(batch.get(i));
+        }
+        if(mCount > oldCount) {
+            mListener.onMessagesAppended(oldCount, mCount - oldCount);
+        }
+    }
+
+    private void appended(Appended message) {
+        int position = message.mPosition;
+        mCount = Math.max(mCount, position + 1);
+
+        int page = position / mPageSize;
+        int index = position % mPageSize;
+        Page cached = mPages.get(page);
+        if(cached == null && index == 0 && (mLog == null
+                || page >= mLowPage && page <= mHighPage && !mLoading.contains(page))) {
+            cached = new Page(mPageSize);
+            mPages.put(page, cached);
+        }
+        if(cached != null) {
+            if(index == cached.mStore.size()) {
+                cached.mStore.add(message.mSender, message.mTimestamp, message.mContent, 0, message.mContent.length);
+                cached.mTexts[index] = message.mText;
+            }
+            else if(index > cached.mStore.size()) {
+                // an earlier message is still on its way, read the page again once it's in the log
+                mPages.remove(page);
+                load(page);
+            }
+        }
+    }
+
+    private void load(final int page) {
+        if(mLog == null || mPages.containsKey(page) || mLoading.contains(page) || page < mLowPage || page > mHighPage) {
+            return;
+        }
+        mLoading.add(page);
+
+        final int position = page * mPageSize;
+        mLoader.execute(new Runnable() {
+            @Override
+            public void run() {
+                final Page loaded = new Page(mPageSize);
+                mLog.read(position, mPageSize, new HistoryLog.RecordReader() {
+                    @Override
+                    public void onRecord(long sequence, int sender, long timestamp, byte[] content, int offset, int length) {
+                        loaded.mStore.add(sender, timestamp, content, offset, length);
+                    }
+                });
+                mMain.execute(new Runnable() {
+                    @Override
+                    public void run() {
+                        loaded(page, loaded);
+                    }
+                });
+            }
+        });
+    }
+
+    private void loaded(int page, Page loaded) {
+        mLoading.remove(page);
+        if(page < mLowPage || page > mHighPage || mPages.containsKey(page)) {
+            return;
+        }
+
+        int count = loaded.mStore.size();
+        int expected = Math.min(mPageSize, mCount - page * mPageSize);
+        if(count < expected) {
+            load(page);
+        }
+        else {
+            mPages.put(page, loaded);
+            if(count > 0) {
+                mListener.onMessagesLoaded(page * mPageSize, count);
+            }
+        }
+    }
+
+    private Page find(int position) {
+        int page = position / mPageSize;
+        Page cached = mPages.get(page);
+        if(cached != null && position % mPageSize < cached.mStore.size()) {
+            return cached;
+        }
+        load(page);
+        return null;
+    }
+
+    private static int clamp(int value, int min, int max) {
+        return Math.max(min, Math.min(max, value));
+    }
+
+    private static final Comparator<Appended> APPENDED_ORDER = new Comparator<Appended>() {
+        @Override
+        public int compare(Appended lhs, Appended rhs) {
+            return lhs.mPosition < rhs.mPosition ? -1 : (lhs.mPosition == rhs.mPosition ? 0 : 1);
+        }
+    };
+
+    private static class Appended {
+
+        final int mPosition;
+        final int mSender;
+        final long mTimestamp;
+        final String mText;
+        final byte[] mContent;
+
+        Appended(int position, int sender, long timestamp, String text, byte[] content) {
+            mPosition = position;
+            mSender = sender;
+            mTimestamp = timestamp;
+            mText = text;
+            mContent = content;
+        }
+    }
+
+    private static class Page {
+
+        final MessageStore mStore;
+        final String[] mTexts;
+
+        Page(int size) {
+            mStore = new MessageStore(size, 64 * size);
+            mTexts = new String[size];
+        }
+
+        String getText(int index) {
+            String text = mTexts[index];
+            if(text == null) {
+                text = mStore.getText(index);
+                mTexts[index] = text;
+            }
+            return text;
+        }
+    }
+}
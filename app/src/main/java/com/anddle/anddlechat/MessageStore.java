@@ -0,0 +1,99 @@
+package com.anddle.anddlechat;
+
+import java.nio.charset.Charset;
+import java.util.Arrays;
+
+/**
+ * Messages packed into columns: primitive arrays for sender, timestamp and content offset, and one
+ * shared byte arena holding every content as UTF-8. Nothing is allocated per message, and text is
+ * only decoded when it is asked for, which is when a row gets bound.
+ */
+public class MessageStore {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    private byte[] mSenders;
+    private long[] mTimestamps;
+    private int[] mOffsets;
+    private byte[] mArena;
+    private int mSize;
+
+    public MessageStore() {
+        this(16, 1024);
+    }
+
+    public MessageStore(int messages, int bytes) {
+        messages = Math.max(1, messages);
+        mSenders = new byte[messages];
+        mTimestamps = new long[messages];
+        mOffsets = new int[messages + 1];
+        mArena = new byte[Math.max(16, bytes)];
+    }
+
+    /**
+     * @return the index of the added message.
+     */
+    public int add(int sender, long timestamp, byte[] content, int offset, int length) {
+        if(mSize == mSenders.length) {
+            int capacity = mSenders.length * 2;
+            mSenders = Arrays.copyOf(mSenders, capacity);
+            mTimestamps = Arrays.copyOf(mTimestamps, capacity);
+            mOffsets = Arrays.copyOf(mOffsets, capacity + 1);
+        }
+        int start = mOffsets[mSize];
+        if(start + length > mArena.length) {
+            mArena = Arrays.copyOf(mArena, Math.max(mArena.length * 2, start + length));
+        }
+
+        System.arraycopy(content, offset, mArena, start, length);
+        mSenders[mSize] = (byte) sender;
+        mTimestamps[mSize] = timestamp;
+        mOffsets[mSize + 1] = start + length;
+        return mSize++;
+    }
+
+    public int size() {
+        return mSize;
+    }
+
+    public int getSender(int index) {
+        checkIndex(index);
+        return mSenders[index];
+    }
+
+    public long getTimestamp(int index) {
+        checkIndex(index);
+        return mTimestamps[index];
+    }
+
+    public int getContentLength(int index) {
+        checkIndex(index);
+        return mOffsets[index + 1] - mOffsets[index];
+    }
+
+    /**
+     * Decodes the content of the message at {@code index}.
+     */
+    public String getText(int index) {
+        checkIndex(index);
+        return new String(mArena, mOffsets[index], mOffsets[index + 1] - mOffsets[index], UTF_8);
+    }
+
+    public ChatMessage get(int index) {
+        ChatMessage message = new ChatMessage();
+        message.messageSender = getSender(index);
+        message.messageTime = getTimestamp(index);
+        message.messageContent = getText(index);
+        return message;
+    }
+
+    public void clear() {
+        mSize = 0;
+    }
+
+    private void checkIndex(int index) {
+        if(index < 0 || index >= mSize) {
+            throw new IndexOutOfBoundsException("index " + index + ", size " + mSize);
+        }
+    }
+}
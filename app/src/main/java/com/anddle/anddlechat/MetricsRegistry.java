@@ -0,0 +1,132 @@
+package com.anddle.anddlechat;
+
+import java.util.Collections;
+import java.util.Map;
+import java.util.Set;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Named counters and {@link Histogram}s. Components look their metrics up once, when they are
+ * created, and keep the returned objects, so recording a value is a plain atomic update.
+ *
+ * The process-wide registry is {@link #getDefault()}; tests use their own.
+ */
+public class MetricsRegistry {
+
+    private static final MetricsRegistry sDefault = new MetricsRegistry();
+
+    private final Map<String, Counter> mCounters = new ConcurrentHashMap<>();
+    private final Map<String, Histogram> mHistograms = new ConcurrentHashMap<>();
+
+    public static MetricsRegistry getDefault() {
+        return sDefault;
+    }
+
+    /**
+     * @return the counter called {@code name}, created the first time it is asked for.
+     */
+    public synchronized Counter counter(String name) {
+        Counter counter = mCounters.get(name);
+        if(counter == null) {
+            counter = new Counter();
+            mCounters.put(name, counter);
+        }
+        return counter;
+    }
+
+    /**
+     * @return the histogram called {@code name}, created the first time it is asked for.
+     */
+    public synchronized Histogram histogram(String name) {
+        Histogram histogram = mHistograms.get(name);
+        if(histogram == null) {
+            histogram = new Histogram();
+            mHistograms.put(name, histogram);
+        }
+        return histogram;
+    }
+
+    public Snapshot snapshot() {
+        Map<String, Long> counters = new TreeMap<>();
+        for(Map.Entry<String, Counter> entry : mCounters.entrySet()) {
+            counters.put(entry.getKey(), entry.getValue().get());
+        }
+        Map<String, Histogram.Snapshot> histograms = new TreeMap<>();
+        for(Map.Entry<String, Histogram> entry : mHistograms.entrySet()) {
+            histograms.put(entry.getKey(), entry.getValue().snapshot());
+        }
+        return new Snapshot(counters, histograms);
+    }
+
+    /**
+     * Sets every counter back to 0 and empties every histogram. The metrics stay registered.
+     */
+    public void reset() {
+        for(Counter counter : mCounters.values()) {
+            counter.reset();
+        }
+        for(Histogram histogram : mHistograms.values()) {
+            histogram.reset();
+        }
+    }
+
+    public static class Counter {
+
+        private final AtomicLong mValue = new AtomicLong();
+
+        public void increment() {
+            mValue.incrementAndGet();
+        }
+
+        public void add(long delta) {
+            mValue.addAndGet(delta);
+        }
+
+        public long get() {
+            return mValue.get();
+        }
+
+        void reset() {
+            mValue.set(0);
+        }
+    }
+
+    /**
+     * The values of every metric at one point in time, sorted by name.
+     */
+    public static class Snapshot {
+
+        private final Map<String, Long> mCounters;
+        private final Map<String, Histogram.Snapshot> mHistograms;
+
+        Snapshot(Map<String, Long> counters, Map<String, Histogram.Snapshot> histograms) {
+            mCounters = counters;
+            mHistograms = histograms;
+        }
+
+        public Set<String> getCounterNames() {
+            return Collections.unmodifiableSet(mCounters.keySet());
+        }
+
+        public Set<String> getHistogramNames() {
+            return Collections.unmodifiableSet(mHistograms.keySet());
+        }
+
+        /**
+         * @return the counter's value, or 0 if there is no counter called {@code name}.
+         */
+        public long getCounter(String name) {
+            Long value = mCounters.get(name);
+            return value == null ? 0 : value;
+        }
+
+        /**
+         * @return the histogram called {@code name}, or null if there is none.
+         */
+        public Histogram.Snapshot getHistogram(String name) {
+            return mHistograms.get(name);
+        }
+    }
+}
@@ -0,0 +1,299 @@
+package com.anddle.anddlechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.HashMap;
+import java.util.LinkedList;
+import java.util.Map;
+
+/**
+ * In-process {@link Transport}. Every endpoint joins a {@link Network} under a local address and
+ * peers connect to each other by that address through bounded in-memory pipes.
+ */
+public class PipeTransport implements Transport {
+
+    private static final int DEFAULT_PIPE_SIZE = 64 * 1024;
+
+    private final Network mNetwork;
+    private final String mLocalAddress;
+    private final int mPipeSize;
+
+    public static class Network {
+
+        private final Map<String, PipeServerEndpoint> mEndpoints = new HashMap<>();
+
+        private synchronized void register(String address, PipeServerEndpoint endpoint) throws IOException {
+            if(mEndpoints.containsKey(address)) {
+                throw new IOException("address already in use: " + address);
+            }
+            mEndpoints.put(address, endpoint);
+        }
+
+        private synchronized void unregister(String address, PipeServerEndpoint endpoint) {
+            if(mEndpoints.get(address) == endpoint) {
+                mEndpoints.remove(address);
+            }
+        }
+
+        private synchronized PipeServerEndpoint lookup(String address) {
+            return mEndpoints.get(address);
+        }
+    }
+
+    public PipeTransport(Network network, String localAddress) {
+        this(network, localAddress, DEFAULT_PIPE_SIZE);
+    }
+
+    public PipeTransport(Network network, String localAddress, int pipeSize) {
+        mNetwork = network;
+        mLocalAddress = localAddress;
+        mPipeSize = pipeSize;
+    }
+
+    public String getLocalAddress() {
+        return mLocalAddress;
+    }
+
+    @Override
+    public ServerEndpoint listen() throws IOException {
+        PipeServerEndpoint endpoint = new PipeServerEndpoint();
+        mNetwork.register(mLocalAddress, endpoint);
+        return endpoint;
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return new PipeConnection(address);
+    }
+
+    private class PipeServerEndpoint implements ServerEndpoint {
+
+        private final LinkedList<PipeConnection> mPending = new LinkedList<>();
+        private boolean mClosed;
+
+        private synchronized void offer(PipeConnection connection) throws IOException {
+            if(mClosed) {
+                throw new IOException("connection refused");
+            }
+            mPending.add(connection);
+            notifyAll();
+        }
+
+        @Override
+        public synchronized Connection accept() throws IOException {
+            while(!mClosed && mPending.isEmpty()) {
+                try {
+                    wait();
+                } catch (InterruptedException e) {
+                    throw new InterruptedIOException();
+                }
+            }
+            if(mClosed) {
+                throw new IOException("endpoint closed");
+            }
+            return mPending.removeFirst();
+        }
+
+        @Override
+        public void close() throws IOException {
+            synchronized (this) {
+                mClosed = true;
+                notifyAll();
+            }
+            mNetwork.unregister(mLocalAddress, this);
+        }
+    }
+
+    private class PipeConnection implements Connection {
+
+        private final String mRemoteAddress;
+        private BytePipe mIn;
+        private BytePipe mOut;
+
+        PipeConnection(String remoteAddress) {
+            mRemoteAddress = remoteAddress;
+        }
+
+        PipeConnection(String remoteAddress, BytePipe in, BytePipe out) {
+            mRemoteAddress = remoteAddress;
+            mIn = in;
+            mOut = out;
+        }
+
+        @Override
+        public synchronized void connect() throws IOException {
+            if(mIn != null) {
+                return;
+            }
+
+            PipeServerEndpoint endpoint = mNetwork.lookup(mRemoteAddress);
+            if(endpoint == null) {
+                throw new IOException("no endpoint listening at " + mRemoteAddress);
+            }
+
+            BytePipe up = new BytePipe(mPipeSize);
+            BytePipe down = new BytePipe(mPipeSize);
+            endpoint.offer(new PipeConnection(mLocalAddress, up, down));
+            mIn = down;
+            mOut = up;
+        }
+
+        @Override
+        public synchronized InputStream getInputStream() throws IOException {
+            if(mIn == null) {
+                throw new IOException("not connected");
+            }
+            return mIn.mInput;
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(mOut == null) {
+                throw new IOException("not connected");
+            }
+            return mOut.mOutput;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemoteAddress;
+        }
+
+        @Override
+        public synchronized void close() throws IOException {
+            if(mIn != null) {
+                mIn.closeReader();
+                mOut.closeWriter();
+            }
+        }
+    }
+
+    /**
+     * A bounded single-producer single-consumer byte queue with blocking stream ends.
+     */
+    static class BytePipe {
+
+        private final byte[] mBuffer;
+        private int mHead;
+        private int mCount;
+        private boolean mReaderClosed;
+        private boolean mWriterClosed;
+
+        final InputStream mInput = new InputStream() {
+
+            @Override
+            public int read() throws IOException {
+                byte[] one = new byte[1];
+                return read(one, 0, 1) < 0 ? -1 : one[0] & 0xff;
+            }
+
+            @Override
+            public int read(byte[] b, int off, int len) throws IOException {
+                return BytePipe.this.read(b, off, len);
+            }
+
+            @Override
+            public int available() {
+                synchronized (BytePipe.this) {
+                    return mCount;
+                }
+            }
+
+            @Override
+            public void close() {
+                closeReader();
+            }
+        };
+
+        final OutputStream mOutput = new OutputStream() {
+
+            @Override
+            public void write(int b) throws IOException {
+                BytePipe.this.write(new byte[] {(byte) b}, 0, 1);
+            }
+
+            @Override
+            public void write(byte[] b, int off, int len) throws IOException {
+                BytePipe.this.write(b, off, len);
+            }
+
+            @Override
+            public void close() {
+                closeWriter();
+            }
+        };
+
+        BytePipe(int size) {
+            mBuffer = new byte[size];
+        }
+
+        private synchronized int read(byte[] b, int off, int len) throws IOException {
+            if(len == 0) {
+                return 0;
+            }
+
+            while(mCount == 0) {
+                if(mReaderClosed) {
+                    throw new IOException("pipe closed");
+                }
+                if(mWriterClosed) {
+                    return -1;
+                }
+                waitQuietly();
+            }
+            if(mReaderClosed) {
+                throw new IOException("pipe closed");
+            }
+
+            int n = Math.min(len, mCount);
+            int first = Math.min(n, mBuffer.length - mHead);
+            System.arraycopy(mBuffer, mHead, b, off, first);
+            System.arraycopy(mBuffer, 0, b, off + first, n - first);
+            mHead = (mHead + n) % mBuffer.length;
+            mCount -= n;
+            notifyAll();
+            return n;
+        }
+
+        private synchronized void write(byte[] b, int off, int len) throws IOException {
+            while(len > 0) {
+                while(mCount == mBuffer.length && !mReaderClosed && !mWriterClosed) {
+                    waitQuietly();
+                }
+                if(mReaderClosed || mWriterClosed) {
+                    throw new IOException("pipe closed");
+                }
+
+                int tail = (mHead + mCount) % mBuffer.length;
+                int n = Math.min(len, mBuffer.length - mCount);
+                int first = Math.min(n, mBuffer.length - tail);
+                System.arraycopy(b, off, mBuffer, tail, first);
+                System.arraycopy(b, off + first, mBuffer, 0, n - first);
+                mCount += n;
+                off += n;
+                len -= n;
+                notifyAll();
+            }
+        }
+
+        synchronized void closeReader() {
+            mReaderClosed = true;
+            notifyAll();
+        }
+
+        synchronized void closeWriter() {
+            mWriterClosed = true;
+            notifyAll();
+        }
+
+        private void waitQuietly() throws IOException {
+            try {
+                wait();
+            } catch (InterruptedException e) {
+                throw new InterruptedIOException();
+            }
+        }
+    }
+}
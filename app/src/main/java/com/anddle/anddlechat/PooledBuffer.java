@@ -0,0 +1,64 @@
+package com.anddle.anddlechat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A byte buffer borrowed from a {@link BufferPool}. The holder must call {@link #release()} once it
+ * no longer needs the contents; {@link #retain()} adds another holder that must release as well.
+ * The buffer goes back to its pool when the last holder releases it and must not be touched after that.
+ */
+public final class PooledBuffer {
+
+    private final BufferPool mPool;
+    private final byte[] mArray;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+    private int mLength;
+
+    PooledBuffer(BufferPool pool, byte[] array) {
+        mPool = pool;
+        mArray = array;
+    }
+
+    public byte[] array() {
+        return mArray;
+    }
+
+    public int length() {
+        return mLength;
+    }
+
+    public void setLength(int length) {
+        if(length < 0 || length > mArray.length) {
+            throw new IndexOutOfBoundsException("length " + length + " capacity " + mArray.length);
+        }
+        mLength = length;
+    }
+
+    public int capacity() {
+        return mArray.length;
+    }
+
+    public PooledBuffer retain() {
+        if(mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("buffer already released");
+        }
+        return this;
+    }
+
+    public void release() {
+        int refCount = mRefCount.decrementAndGet();
+        if(refCount == 0) {
+            if(mPool != null) {
+                mPool.recycle(this);
+            }
+        }
+        else if(refCount < 0) {
+            throw new IllegalStateException("buffer released twice");
+        }
+    }
+
+    void reset(int length) {
+        mLength = length;
+        mRefCount.set(1);
+    }
+}
@@ -0,0 +1,238 @@
+package com.anddle.anddlechat;
+
+import android.bluetooth.BluetoothAdapter;
+import android.util.Log;
+
+import java.util.Collections;
+import java.util.IdentityHashMap;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Owns Bluetooth discovery. An inquiry ties up the radio for about 12 seconds, slowing RFCOMM
+ * links several times over and stretching connects, so scans only run when nothing else needs
+ * the radio:
+ *
+ * - discovery is stopped before every connect, and no scan starts while a connect is under way;
+ * - a scan asked for during a transfer waits for the last transfer to end, and a transfer that
+ *   starts mid-scan stops the scan, which then runs again once the transfer is over;
+ * - scans start at most once every {@code minScanIntervalMillis}; one asked for sooner waits.
+ *
+ * A scan that waits starts by itself as soon as it may. Asking for a scan while one is running
+ * or waiting does nothing more.
+ *
+ * Thread safe.
+ */
+public class RadioScheduler {
+
+    private final static String TAG = "RadioScheduler";
+
+    public static final long DEFAULT_MIN_SCAN_INTERVAL_MS = 15 * 1000;
+
+    public static final int SCAN_STARTED = 0;
+    public static final int SCAN_RUNNING = 1;
+    public static final int SCAN_DEFERRED = 2;
+    public static final int SCAN_FAILED = 3;
+
+    public static final String METRIC_SCANS_STARTED = "radio.scans_started";
+    public static final String METRIC_SCANS_DEFERRED = "radio.scans_deferred";
+    public static final String METRIC_SCANS_STOPPED = "radio.scans_stopped";
+
+    /**
+     * The discovery controls of a radio.
+     */
+    public interface Radio {
+        public boolean startDiscovery();
+        public boolean cancelDiscovery();
+        public boolean isDiscovering();
+    }
+
+    public static Radio bluetoothRadio(final BluetoothAdapter adapter) {
+        return new Radio() {
+            @Override
+            public boolean startDiscovery() {
+                return adapter.startDiscovery();
+            }
+
+            @Override
+            public boolean cancelDiscovery() {
+                return adapter.cancelDiscovery();
+            }
+
+            @Override
+            public boolean isDiscovering() {
+                return adapter.isDiscovering();
+            }
+        };
+    }
+
+    private final Radio mRadio;
+    private final long mMinScanIntervalNanos;
+    private final Set<Object> mTransfers = Collections.newSetFromMap(new IdentityHashMap<Object, Boolean>());
+    private int mConnects;
+    private boolean mScanWanted;
+    private long mLastScanStart;
+    private boolean mScanned;
+    private ScheduledExecutorService mTimer;
+    private ScheduledFuture<?> mPendingScan;
+
+    private final MetricsRegistry.Counter mScansStarted;
+    private final MetricsRegistry.Counter mScansDeferred;
+    private final MetricsRegistry.Counter mScansStopped;
+
+    public RadioScheduler(Radio radio) {
+        this(radio, DEFAULT_MIN_SCAN_INTERVAL_MS, MetricsRegistry.getDefault());
+    }
+
+    public RadioScheduler(Radio radio, long minScanIntervalMillis, MetricsRegistry metrics) {
+        mRadio = radio;
+        mMinScanIntervalNanos = TimeUnit.MILLISECONDS.toNanos(minScanIntervalMillis);
+        mScansStarted = metrics.counter(METRIC_SCANS_STARTED);
+        mScansDeferred = metrics.counter(METRIC_SCANS_DEFERRED);
+        mScansStopped = metrics.counter(METRIC_SCANS_STOPPED);
+    }
+
+    /**
+     * Starts discovery now if nothing stands in the way, or as soon as nothing does.
+     *
+     * @return SCAN_STARTED, SCAN_RUNNING if discovery was running already, SCAN_DEFERRED if it
+     *         will start later, or SCAN_FAILED if the radio refused to start it.
+     */
+    public synchronized int requestScan() {
+        if(mRadio.isDiscovering()) {
+            return SCAN_RUNNING;
+        }
+        mScanWanted = true;
+        int result = startIfAllowed();
+        if(result == SCAN_DEFERRED) {
+            mScansDeferred.increment();
+        }
+        return result;
+    }
+
+    /**
+     * Stops discovery and drops any scan waiting to start.
+     */
+    public synchronized void cancelScan() {
+        mScanWanted = false;
+        cancelPendingScan();
+        if(mRadio.isDiscovering()) {
+            mRadio.cancelDiscovery();
+        }
+    }
+
+    /**
+     * @return true if a scan was asked for and is waiting to start.
+     */
+    public synchronized boolean isScanPending() {
+        return mScanWanted;
+    }
+
+    /**
+     * Stops discovery for a connect, which must be followed by {@link #connectEnded()}. A scan
+     * that was running is not started again: the user has picked a device.
+     */
+    public synchronized void connectStarted() {
+        mConnects++;
+        mScanWanted = false;
+        cancelPendingScan();
+        stopDiscovery("connect");
+    }
+
+    public synchronized void connectEnded() {
+        mConnects--;
+        startIfAllowed();
+    }
+
+    /**
+     * Marks {@code transfer} as moving data, stopping discovery until it ends. A running scan
+     * runs again after the last transfer ends. Marking the same transfer twice does nothing.
+     */
+    public synchronized void transferStarted(Object transfer) {
+        if(!mTransfers.add(transfer)) {
+            return;
+        }
+        if(stopDiscovery("transfer")) {
+            mScanWanted = true;
+        }
+        cancelPendingScan();
+    }
+
+    public synchronized void transferEnded(Object transfer) {
+        if(mTransfers.remove(transfer)) {
+            startIfAllowed();
+        }
+    }
+
+    private boolean stopDiscovery(String reason) {
+        if(!mRadio.isDiscovering()) {
+            return false;
+        }
+        Log.d(TAG, "stopping discovery for a " + reason);
+        mRadio.cancelDiscovery();
+        mScansStopped.increment();
+        return true;
+    }
+
+    private int startIfAllowed() {
+        if(!mScanWanted) {
+            return SCAN_FAILED;
+        }
+        if(mConnects > 0 || !mTransfers.isEmpty()) {
+            // started again by connectEnded() or transferEnded()
+            return SCAN_DEFERRED;
+        }
+
+        long now = System.nanoTime();
+        long wait = mScanned ? mLastScanStart + mMinScanIntervalNanos - now : 0;
+        if(wait > 0) {
+            if(mPendingScan == null) {
+                mPendingScan = getTimer().schedule(new Runnable() {
+                    @Override
+                    public void run() {
+                        synchronized (RadioScheduler.this) {
+                            mPendingScan = null;
+                            startIfAllowed();
+                        }
+                    }
+                }, wait, TimeUnit.NANOSECONDS);
+            }
+            return SCAN_DEFERRED;
+        }
+
+        mScanWanted = false;
+        if(!mRadio.startDiscovery()) {
+            Log.w(TAG, "radio refused to start discovery");
+            return SCAN_FAILED;
+        }
+        mScanned = true;
+        mLastScanStart = now;
+        mScansStarted.increment();
+        return SCAN_STARTED;
+    }
+
+    private void cancelPendingScan() {
+        if(mPendingScan != null) {
+            mPendingScan.cancel(false);
+            mPendingScan = null;
+        }
+    }
+
+    private ScheduledExecutorService getTimer() {
+        if(mTimer == null) {
+            mTimer = Executors.newSingleThreadScheduledExecutor(new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable r) {
+                    Thread thread = new Thread(r, "RadioScheduler");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+        }
+        return mTimer;
+    }
+}
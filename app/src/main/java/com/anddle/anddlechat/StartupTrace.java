@@ -0,0 +1,102 @@
+package com.anddle.anddlechat;
+
+import android.util.Log;
+
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Times the phases of a cold start. Each phase that ends goes into the {@code startup.<phase>_nanos}
+ * histogram, and {@link #interactive()} records the time since the trace was created into
+ * {@link #METRIC_TIME_TO_INTERACTIVE_NANOS} and logs every phase on one line, so releases can be
+ * compared from the log alone.
+ *
+ * Phases may begin and end on different threads, and may overlap.
+ */
+public class StartupTrace {
+
+    private final static String TAG = "StartupTrace";
+
+    public static final String METRIC_PREFIX = "startup.";
+    public static final String METRIC_TIME_TO_INTERACTIVE_NANOS = "startup.time_to_interactive_nanos";
+
+    private final MetricsRegistry mMetrics;
+    private final long mStart = System.nanoTime();
+    private final Map<String, Long> mStarted = new LinkedHashMap<>();
+    private final Map<String, Long> mPhases = new LinkedHashMap<>();
+    private long mInteractive = -1;
+    private boolean mAbandoned;
+
+    public StartupTrace(MetricsRegistry metrics) {
+        mMetrics = metrics;
+    }
+
+    public synchronized void begin(String phase) {
+        if(!mAbandoned) {
+            mStarted.put(phase, System.nanoTime());
+        }
+    }
+
+    /**
+     * Drops the phases still running and records nothing more, for a start that gave up before
+     * it was done and would only skew the histograms.
+     */
+    public synchronized void abandon() {
+        mAbandoned = true;
+        mStarted.clear();
+    }
+
+    /**
+     * @return how long the phase took, or -1 if it isn't running: it never began, or already ended.
+     */
+    public long end(String phase) {
+        long duration;
+        boolean late;
+        synchronized (this) {
+            Long start = mStarted.remove(phase);
+            if(start == null) {
+                return -1;
+            }
+            duration = System.nanoTime() - start;
+            mPhases.put(phase, duration);
+            late = mInteractive >= 0;
+        }
+        mMetrics.histogram(METRIC_PREFIX + phase + "_nanos").record(duration);
+        if(late) {
+            // background phases may well finish after the UI is usable
+            Log.i(TAG, String.format(Locale.US, "cold start, %s %.1f ms, ended after interactive", phase, duration / 1e6));
+        }
+        return duration;
+    }
+
+    /**
+     * Marks the start as done. Only the first call counts.
+     *
+     * @return the time to interactive, or -1 if the trace was abandoned.
+     */
+    public long interactive() {
+        StringBuilder line = new StringBuilder("cold start");
+        long interactive;
+        synchronized (this) {
+            if(mInteractive >= 0 || mAbandoned) {
+                return mInteractive;
+            }
+            mInteractive = interactive = System.nanoTime() - mStart;
+            for(Map.Entry<String, Long> phase : mPhases.entrySet()) {
+                line.append(String.format(Locale.US, ", %s %.1f ms", phase.getKey(), phase.getValue() / 1e6));
+            }
+        }
+        mMetrics.histogram(METRIC_TIME_TO_INTERACTIVE_NANOS).record(interactive);
+        line.append(String.format(Locale.US, ", interactive after %.1f ms", interactive / 1e6));
+        Log.i(TAG, line.toString());
+        return interactive;
+    }
+
+    /**
+     * @return the duration of every phase that has ended, in the order they ended.
+     */
+    public synchronized Map<String, Long> getPhases() {
+        return new LinkedHashMap<>(mPhases);
+    }
+}
@@ -0,0 +1,74 @@
+package com.anddle.anddlechat;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An int state that only moves along the transitions it was given. Changes are made with
+ * compare-and-set, so reading the state never blocks and two threads can't both make the same
+ * move.
+ */
+final class StateMachine {
+
+    private final String mName;
+    private final AtomicInteger mState;
+    private final boolean[][] mAllowed;
+
+    /**
+     * @param states the states are 0 to {@code states - 1}.
+     */
+    StateMachine(String name, int initial, int states) {
+        mName = name;
+        mState = new AtomicInteger(initial);
+        mAllowed = new boolean[states][states];
+    }
+
+    StateMachine allow(int from, int... to) {
+        for(int state : to) {
+            mAllowed[from][state] = true;
+        }
+        return this;
+    }
+
+    int get() {
+        return mState.get();
+    }
+
+    boolean isAllowed(int from, int to) {
+        return mAllowed[from][to];
+    }
+
+    /**
+     * Moves to {@code state} from whatever the state is now. Staying in the same state is not a
+     * transition and always succeeds.
+     *
+     * @return the state before the move.
+     * @throws IllegalStateException if the current state can't move to {@code state}.
+     */
+    int moveTo(int state) {
+        while(true) {
+            int current = mState.get();
+            if(current == state) {
+                return current;
+            }
+            if(!mAllowed[current][state]) {
+                throw new IllegalStateException(mName + " can't go from " + current + " to " + state);
+            }
+            if(mState.compareAndSet(current, state)) {
+                return current;
+            }
+        }
+    }
+
+    /**
+     * Moves from {@code from} to {@code to} if the state is still {@code from}.
+     *
+     * @return false if the state was something else.
+     * @throws IllegalStateException if {@code from} can't move to {@code to}.
+     */
+    boolean compareAndMove(int from, int to) {
+        if(!mAllowed[from][to]) {
+            throw new IllegalStateException(mName + " can't go from " + from + " to " + to);
+        }
+        return mState.compareAndSet(from, to);
+    }
+}
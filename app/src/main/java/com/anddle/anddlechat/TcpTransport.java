@@ -0,0 +1,118 @@
+package com.anddle.anddlechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+
+/**
+ * {@link Transport} over localhost TCP. Peer addresses are written as "host:port".
+ */
+public class TcpTransport implements Transport {
+
+    private final int mListenPort;
+    private volatile int mLocalPort;
+
+    /**
+     * @param listenPort port to listen on, or 0 to pick a free one (see {@link #getLocalPort()}).
+     */
+    public TcpTransport(int listenPort) {
+        mListenPort = listenPort;
+    }
+
+    public int getLocalPort() {
+        return mLocalPort;
+    }
+
+    public String getLocalAddress() {
+        return InetAddress.getLoopbackAddress().getHostAddress() + ":" + mLocalPort;
+    }
+
+    @Override
+    public ServerEndpoint listen() throws IOException {
+        ServerSocket serverSocket = new ServerSocket();
+        serverSocket.setReuseAddress(true);
+        serverSocket.bind(new InetSocketAddress(InetAddress.getLoopbackAddress(), mListenPort));
+        mLocalPort = serverSocket.getLocalPort();
+        return new TcpServerEndpoint(serverSocket);
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        int index = address.lastIndexOf(':');
+        if(index <= 0) {
+            throw new IOException("bad tcp address: " + address);
+        }
+
+        int port;
+        try {
+            port = Integer.parseInt(address.substring(index + 1));
+        } catch (NumberFormatException e) {
+            throw new IOException("bad tcp address: " + address);
+        }
+        return new TcpConnection(new Socket(), new InetSocketAddress(address.substring(0, index), port));
+    }
+
+    private static class TcpServerEndpoint implements ServerEndpoint {
+
+        private final ServerSocket mServerSocket;
+
+        TcpServerEndpoint(ServerSocket serverSocket) {
+            mServerSocket = serverSocket;
+        }
+
+        @Override
+        public Connection accept() throws IOException {
+            Socket socket = mServerSocket.accept();
+            socket.setTcpNoDelay(true);
+            return new TcpConnection(socket, (InetSocketAddress) socket.getRemoteSocketAddress());
+        }
+
+        @Override
+        public void close() throws IOException {
+            mServerSocket.close();
+        }
+    }
+
+    private static class TcpConnection implements Connection {
+
+        private final Socket mSocket;
+        private final InetSocketAddress mRemote;
+
+        TcpConnection(Socket socket, InetSocketAddress remote) {
+            mSocket = socket;
+            mRemote = remote;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            if(!mSocket.isConnected()) {
+                mSocket.connect(mRemote);
+            }
+            mSocket.setTcpNoDelay(true);
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mSocket.getInputStream();
+        }
+
+        @Override
+        public OutputStream getOutputStream() throws IOException {
+            return mSocket.getOutputStream();
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mRemote.getAddress().getHostAddress() + ":" + mRemote.getPort();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mSocket.close();
+        }
+    }
+}
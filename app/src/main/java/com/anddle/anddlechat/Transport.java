@@ -0,0 +1,40 @@
+package com.anddle.anddlechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * The link layer used by {@link ConnectionManager}. An implementation knows how to listen for
+ * incoming peers, how to open a connection to a peer address and how to expose its byte streams.
+ * The RFCOMM implementation is {@link BluetoothTransport}; {@link PipeTransport} and
+ * {@link TcpTransport} let the connection code run on a plain JVM.
+ */
+public interface Transport {
+
+    /**
+     * Starts listening for incoming connections. May block while the service is registered.
+     */
+    public ServerEndpoint listen() throws IOException;
+
+    /**
+     * Creates an unconnected connection to the given peer address. {@link Connection#connect()}
+     * is called later from the connection's own thread.
+     */
+    public Connection open(String address) throws IOException;
+
+    public interface ServerEndpoint {
+
+        public Connection accept() throws IOException;
+        public void close() throws IOException;
+    }
+
+    public interface Connection {
+
+        public void connect() throws IOException;
+        public InputStream getInputStream() throws IOException;
+        public OutputStream getOutputStream() throws IOException;
+        public String getRemoteAddress();
+        public void close() throws IOException;
+    }
+}
@@ -0,0 +1,126 @@
+package com.anddle.anddlechat;
+
+/**
+ * Streaming UTF-8 decoder. Input can be fed in any number of pieces: a multi-byte sequence split
+ * between two {@link #decode} calls is carried over instead of being mangled. Malformed or
+ * truncated sequences come out as U+FFFD.
+ *
+ * Decoded text accumulates in a reused buffer until {@link #takeString()}. Not thread-safe; each
+ * reader thread keeps its own.
+ */
+public final class Utf8Decoder {
+
+    private static final char REPLACEMENT = '\uFFFD';
+    private static final int MAX_RETAINED_CHARS = 64 * 1024;
+
+    private char[] mChars = new char[256];
+    private int mLength;
+    private int mCodePoint;
+    private int mNeeded;
+    private int mMinCodePoint;
+
+    public void decode(byte[] src, int offset, int length) {
+        // a byte adds at most two chars, when it interrupts a sequence and can't start one either
+        if(mChars.length < mLength + 2 * length + 1) {
+            char[] chars = new char[Math.max(mChars.length * 2, mLength + 2 * length + 1)];
+            System.arraycopy(mChars, 0, chars, 0, mLength);
+            mChars = chars;
+        }
+
+        char[] chars = mChars;
+        int n = mLength;
+        int i = offset;
+        int end = offset + length;
+        while(i < end) {
+            if(mNeeded == 0) {
+                while(i < end && src[i] >= 0) {
+                    chars[n++] = (char) src[i++];
+                }
+                if(i == end) {
+                    break;
+                }
+
+                int b = src[i++] & 0xff;
+                if(b >= 0xc2 && b <= 0xdf) {
+                    mNeeded = 1;
+                    mCodePoint = b & 0x1f;
+                    mMinCodePoint = 0x80;
+                }
+                else if(b >= 0xe0 && b <= 0xef) {
+                    mNeeded = 2;
+                    mCodePoint = b & 0x0f;
+                    mMinCodePoint = 0x800;
+                }
+                else if(b >= 0xf0 && b <= 0xf4) {
+                    mNeeded = 3;
+                    mCodePoint = b & 0x07;
+                    mMinCodePoint = 0x10000;
+                }
+                else {
+                    chars[n++] = REPLACEMENT;
+                }
+                continue;
+            }
+
+            int b = src[i] & 0xff;
+            if((b & 0xc0) != 0x80) {
+                // the sequence was cut short; this byte starts over
+                chars[n++] = REPLACEMENT;
+                mNeeded = 0;
+                continue;
+            }
+            i++;
+            mCodePoint = mCodePoint << 6 | (b & 0x3f);
+            if(--mNeeded == 0) {
+                int codePoint = mCodePoint;
+                if(codePoint < mMinCodePoint || codePoint > 0x10ffff || (codePoint >= 0xd800 && codePoint <= 0xdfff)) {
+                    chars[n++] = REPLACEMENT;
+                }
+                else if(codePoint >= 0x10000) {
+                    chars[n++] = Character.highSurrogate(codePoint);
+                    chars[n++] = Character.lowSurrogate(codePoint);
+                }
+                else {
+                    chars[n++] = (char) codePoint;
+                }
+            }
+        }
+        mLength = n;
+    }
+
+    /**
+     * Ends the input. A sequence still waiting for bytes becomes U+FFFD.
+     */
+    public void finish() {
+        if(mNeeded > 0) {
+            if(mLength == mChars.length) {
+                char[] chars = new char[mChars.length * 2];
+                System.arraycopy(mChars, 0, chars, 0, mLength);
+                mChars = chars;
+            }
+            mChars[mLength++] = REPLACEMENT;
+            mNeeded = 0;
+        }
+    }
+
+    /**
+     * @return the text decoded since the last call. Bytes of an unfinished sequence stay pending.
+     */
+    public String takeString() {
+        String text = new String(mChars, 0, mLength);
+        mLength = 0;
+        if(mChars.length > MAX_RETAINED_CHARS) {
+            mChars = new char[256];
+        }
+        return text;
+    }
+
+    /**
+     * Decodes one complete message; nothing is carried over to the next one.
+     */
+    public String decodeMessage(byte[] src, int offset, int length) {
+        decode(src, offset, length);
+        finish();
+        return takeString();
+    }
+}
@@ -0,0 +1,186 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class BroadcastTest {
+
+    private static final int PEERS = 4;
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final CountDownLatch mSlowPeerRelease = new CountDownLatch(1);
+    private final List<ConnectionManager> mClients = new ArrayList<>();
+    private final List<List<String>> mReceived = new ArrayList<>();
+    private final List<BroadcastReport> mReports = Collections.synchronizedList(new ArrayList<BroadcastReport>());
+    private ConnectionManager mHub;
+    private volatile String mSlowPeer;
+
+    @Before
+    public void setUp() throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        mHub = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+        }, new InterceptingTransport(new PipeTransport(mNetwork, "hub"), new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(final String address, OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        if(address.equals(mSlowPeer)) {
+                            try {
+                                mSlowPeerRelease.await();
+                            } catch (InterruptedException e) {
+                                throw new IOException(e);
+                            }
+                        }
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        }));
+        mHub.setMaxPeers(PEERS);
+        mHub.startListen();
+        LinkBenchmark.await(listening, "listen");
+
+        for(int i = 0; i < PEERS; i++) {
+            final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            mReceived.add(received);
+            ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+                @Override
+                public void onReadData(PooledBuffer data) {
+                    received.add(new String(data.array(), 0, data.length()));
+                    data.release();
+                }
+            }, new PipeTransport(mNetwork, "peer" + i));
+            mClients.add(client);
+            client.connect("hub");
+        }
+        LinkBenchmark.waitUntil("peers to connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mHub.getConnectedPeers().size() == PEERS;
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        mSlowPeerRelease.countDown();
+        for(ConnectionManager client : mClients) {
+            client.disconnect();
+        }
+        mHub.disconnect();
+        mHub.stopListen();
+    }
+
+    @Test
+    public void broadcastIsEncodedOnceAndReachesEveryPeer() throws Exception {
+        long allocations = mHub.getSendPool().getAllocationCount();
+
+        assertEquals(PEERS, mHub.broadcast("hello all".getBytes("UTF-8"), mReportListener));
+
+        waitForReports(1);
+        assertEquals(allocations + 1, mHub.getSendPool().getAllocationCount());
+        BroadcastReport report = mReports.get(0);
+        assertEquals(PEERS, report.getDeliveredCount());
+        for(int i = 0; i < PEERS; i++) {
+            assertTrue(report.isDelivered("peer" + i));
+        }
+        LinkBenchmark.waitUntil("peers to receive", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for(List<String> received : mReceived) {
+                    if(received.size() != 1) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        assertEquals(Collections.singletonList("hello all"), mReceived.get(0));
+    }
+
+    @Test
+    public void slowPeerDoesNotStallTheOthers() throws Exception {
+        mSlowPeer = "peer0";
+        for(int i = 0; i < 5; i++) {
+            mHub.broadcast(("message " + i).getBytes("UTF-8"), mReportListener);
+        }
+
+        LinkBenchmark.waitUntil("fast peers to receive", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                for(int i = 1; i < PEERS; i++) {
+                    if(mReceived.get(i).size() != 5) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+        assertTrue(mReceived.get(0).isEmpty());
+        assertTrue(mReports.isEmpty());
+
+        mSlowPeerRelease.countDown();
+        waitForReports(5);
+        for(BroadcastReport report : mReports) {
+            assertEquals(PEERS, report.getDeliveredCount());
+            assertEquals("peer0", report.getPeers().get(PEERS - 1));
+            assertTrue(report.getSpreadNanos() > 0);
+        }
+    }
+
+    @Test
+    public void burstOfBroadcastsIsReportedInFull() throws Exception {
+        int messages = 2000;
+        for(int i = 0; i < messages; i++) {
+            // keep the per-peer queues from overflowing so every broadcast is measured
+            while(i - mReports.size() >= 64) {
+                Thread.yield();
+            }
+            assertEquals(PEERS, mHub.broadcast(new byte[128], mReportListener));
+        }
+        waitForReports(messages);
+
+        for(int i = 0; i < messages; i++) {
+            BroadcastReport report = mReports.get(i);
+            // no queue-full drops
+            assertEquals(PEERS, report.getDeliveredCount());
+            assertTrue(report.getFastestNanos() > 0);
+            assertTrue(report.getSpreadNanos() >= 0 && report.getSpreadNanos() < report.getSlowestNanos());
+        }
+    }
+
+    private final ConnectionManager.BroadcastListener mReportListener = new ConnectionManager.BroadcastListener() {
+        @Override
+        public void onBroadcastComplete(BroadcastReport report) {
+            mReports.add(report);
+        }
+    };
+
+    private void waitForReports(final int count) throws Exception {
+        LinkBenchmark.waitUntil("broadcast reports", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mReports.size() == count;
+            }
+        });
+    }
+}
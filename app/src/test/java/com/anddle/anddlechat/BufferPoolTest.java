@@ -0,0 +1,169 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.lang.management.ManagementFactory;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class BufferPoolTest {
+
+    @Test
+    public void releasedBuffersAreReused() {
+        BufferPool pool = new BufferPool();
+
+        PooledBuffer first = pool.acquire(100);
+        first.release();
+        PooledBuffer second = pool.acquire(200);
+
+        assertSame(first, second);
+        assertEquals(200, second.length());
+        assertEquals(256, second.capacity());
+        assertEquals(1, pool.getAllocationCount());
+    }
+
+    @Test
+    public void buffersAreSizedByPowerOfTwoClass() {
+        BufferPool pool = new BufferPool();
+
+        assertEquals(256, pool.acquire(1).capacity());
+        assertEquals(512, pool.acquire(257).capacity());
+        assertEquals(1024, pool.acquire(1024).capacity());
+        assertEquals(64 * 1024, pool.acquire(64 * 1024).capacity());
+        assertEquals(100000, pool.acquire(100000).capacity());
+    }
+
+    @Test
+    public void retainedBufferIsRecycledAfterLastRelease() {
+        BufferPool pool = new BufferPool();
+
+        PooledBuffer buffer = pool.acquire(10).retain();
+        buffer.release();
+        assertNotSame(buffer, pool.acquire(10));
+
+        buffer.release();
+        assertSame(buffer, pool.acquire(10));
+    }
+
+    @Test(expected = IllegalStateException.class)
+    public void doubleReleaseIsRejected() {
+        PooledBuffer buffer = new BufferPool().acquire(10);
+        buffer.release();
+        buffer.release();
+    }
+
+    @Test
+    public void steadyStateDecodeLoopAllocatesNothing() throws Exception {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < 10000; i++) {
+            out.write(FrameCodec.encode(FrameCodec.TYPE_DATA, new byte[16 + i % 1000]));
+        }
+        byte[] stream = out.toByteArray();
+
+        final BufferPool pool = new BufferPool();
+        final FrameDecoder decoder = new FrameDecoder(16 * 1024);
+        final AtomicInteger frames = new AtomicInteger();
+        FrameDecoder.FrameListener listener = new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                pool.wrap(buffer, offset, length).release();
+                frames.incrementAndGet();
+            }
+        };
+
+        ByteArrayInputStream warmup = new ByteArrayInputStream(stream);
+        while(decoder.readFrom(warmup, listener)) {
+        }
+
+        ByteArrayInputStream in = new ByteArrayInputStream(stream);
+        long poolAllocations = pool.getAllocationCount();
+        long allocatedBytes = currentThreadAllocatedBytes();
+        while(decoder.readFrom(in, listener)) {
+        }
+        long allocated = currentThreadAllocatedBytes() - allocatedBytes;
+
+        assertEquals(20000, frames.get());
+        assertEquals(poolAllocations, pool.getAllocationCount());
+        // a few bytes may come from the measurement itself, but nothing per frame
+        assertTrue("allocated " + allocated + " bytes for 10000 frames", allocated < 1024);
+    }
+
+    @Test
+    public void steadyStateReceivePathDoesNotGrowThePool() throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(2);
+        final AtomicInteger received = new AtomicInteger();
+        PipeTransport.Network network = new PipeTransport.Network();
+
+        ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(PooledBuffer data) {
+                data.release();
+                received.incrementAndGet();
+            }
+        }, new PipeTransport(network, "server"));
+        ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+        }, new PipeTransport(network, "client"));
+
+        try {
+            server.startListen();
+            LinkBenchmark.await(listening, "listen");
+            client.connect("server");
+            LinkBenchmark.await(connected, "connect");
+
+            byte[] payload = new byte[200];
+            send(client, payload, 1000, received, 1000);
+            long allocations = server.getReceivePool().getAllocationCount();
+            send(client, payload, 10000, received, 11000);
+
+            assertEquals(allocations, server.getReceivePool().getAllocationCount());
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+
+    private static void send(ConnectionManager client, byte[] payload, int count, AtomicInteger received, int total)
+            throws InterruptedException {
+        for(int i = 0; i < count; i++) {
+            while(!client.sendData(payload)) {
+                Thread.yield();
+            }
+        }
+        long deadline = System.currentTimeMillis() + 10000;
+        while(received.get() < total && System.currentTimeMillis() < deadline) {
+            Thread.sleep(1);
+        }
+        assertEquals(total, received.get());
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
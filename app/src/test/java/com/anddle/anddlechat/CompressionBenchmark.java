@@ -0,0 +1,209 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Deflater;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+/**
+ * Compression ratio and CPU cost per message of {@link FrameCompressor} on a synthetic chat corpus,
+ * plus the bytes that actually go over a link with compression on and off.
+ */
+public class CompressionBenchmark {
+
+    private static final int MESSAGES = 20000;
+    private static final String[] WORDS = {
+            "好的", "谢谢", "我马上到", "等一下", "明天", "晚上", "一起吃饭", "没问题", "哈哈哈", "收到",
+            "ok", "thanks", "see you", "where are you", "on my way", "what time", "let me know",
+            "sounds good", "tomorrow", "tonight", "the file", "I just sent", "12:30", "room 204",
+    };
+
+    @Test
+    public void ratioAndCpuCostPerMessage() throws Exception {
+        List<byte[]> corpus = corpus(new Random(9));
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        FrameCompressor compressor = new FrameCompressor();
+        BufferPool pool = new BufferPool();
+        Inflater inflater = FrameCompressor.newInflater();
+
+        System.out.println(String.format(Locale.US, "%-8s %9s %9s %8s %8s %12s %12s",
+                "sizes", "messages", "raw B", "wire B", "ratio", "deflate ns", "inflate ns"));
+        int[][] buckets = {{0, 32}, {32, 64}, {64, 128}, {128, 256}, {256, Integer.MAX_VALUE}};
+        for(int[] bucket : buckets) {
+            List<byte[]> messages = new ArrayList<>();
+            for(byte[] message : corpus) {
+                if(message.length >= bucket[0] && message.length < bucket[1]) {
+                    messages.add(message);
+                }
+            }
+            if(messages.isEmpty()) {
+                continue;
+            }
+
+            long raw = 0;
+            long wire = 0;
+            long deflateCpu = 0;
+            long inflateCpu = 0;
+            for(int round = 0; round < 2; round++) {
+                raw = wire = deflateCpu = inflateCpu = 0;
+                for(byte[] message : messages) {
+                    long start = threads.getCurrentThreadCpuTime();
+                    PooledBuffer frame = compressor.compress(message, 0, message.length, pool);
+                    long compressed = threads.getCurrentThreadCpuTime();
+                    deflateCpu += compressed - start;
+
+                    raw += FrameCodec.HEADER_SIZE + message.length;
+                    if(frame == null) {
+                        wire += FrameCodec.HEADER_SIZE + message.length;
+                        continue;
+                    }
+                    wire += frame.length();
+                    PooledBuffer data = FrameCompressor.decompress(inflater, frame.array(), FrameCodec.HEADER_SIZE,
+                            frame.length() - FrameCodec.HEADER_SIZE, pool);
+                    inflateCpu += threads.getCurrentThreadCpuTime() - compressed;
+                    assertEquals(message.length, data.length());
+                    data.release();
+                    frame.release();
+                }
+            }
+            System.out.println(String.format(Locale.US, "%-8s %9d %9d %8d %8.3f %12d %12d",
+                    bucket[1] == Integer.MAX_VALUE ? bucket[0] + "+" : bucket[0] + "-" + bucket[1],
+                    messages.size(), raw, wire, (double) wire / raw,
+                    deflateCpu / messages.size(), inflateCpu / messages.size()));
+        }
+        inflater.end();
+
+        long raw = 0;
+        long plain = 0;
+        long withDictionary = 0;
+        Deflater deflater = new Deflater(Deflater.DEFAULT_COMPRESSION, true);
+        byte[] out = new byte[64 * 1024];
+        for(byte[] message : corpus) {
+            raw += message.length;
+            plain += deflate(deflater, null, message, out);
+            withDictionary += deflate(deflater, FrameCompressor.DICTIONARY, message, out);
+        }
+        deflater.end();
+        System.out.println(String.format(Locale.US, "payload only: plain deflate %.3f, with preset dictionary %.3f",
+                (double) plain / raw, (double) withDictionary / raw));
+    }
+
+    @Test
+    public void bytesOnTheLink() throws Exception {
+        List<byte[]> corpus = corpus(new Random(9));
+        for(boolean compression : new boolean[] {false, true}) {
+            long[] result = sendOverPipe(corpus, compression);
+            System.out.println(String.format(Locale.US, "compression %-5s %d messages, %d bytes on the link, %.1f ms",
+                    compression, corpus.size(), result[0], result[1] / 1e6));
+        }
+    }
+
+    private static int deflate(Deflater deflater, byte[] dictionary, byte[] message, byte[] out) {
+        deflater.reset();
+        if(dictionary != null) {
+            deflater.setDictionary(dictionary);
+        }
+        deflater.setInput(message);
+        deflater.finish();
+        int length = 0;
+        while(!deflater.finished()) {
+            length += deflater.deflate(out, length, out.length - length);
+        }
+        return length;
+    }
+
+    private static List<byte[]> corpus(Random random) throws Exception {
+        List<byte[]> corpus = new ArrayList<>(MESSAGES);
+        for(int i = 0; i < MESSAGES; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 1 + (int) Math.min(60, -Math.log(1 - random.nextDouble()) * 6);
+            for(int w = 0; w < words; w++) {
+                if(w > 0) {
+                    text.append(random.nextInt(4) == 0 ? "，" : " ");
+                }
+                text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            corpus.add(text.toString().getBytes("UTF-8"));
+        }
+        return corpus;
+    }
+
+    private long[] sendOverPipe(List<byte[]> corpus, final boolean compressing) throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final AtomicLong wire = new AtomicLong();
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch received = new CountDownLatch(corpus.size());
+
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(PooledBuffer data) {
+                data.release();
+                received.countDown();
+            }
+        }, new PipeTransport(network, "server"));
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new InterceptingTransport(new PipeTransport(network, "client"), new InterceptingTransport.OutputInterceptor() {
+                    @Override
+                    public OutputStream wrap(String address, OutputStream out) {
+                        return new FilterOutputStream(out) {
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                wire.addAndGet(len);
+                                out.write(b, off, len);
+                            }
+                        };
+                    }
+                }));
+        server.setCompression(compressing);
+        client.setCompression(compressing);
+
+        try {
+            server.startListen();
+            LinkBenchmark.await(listening, "listen");
+            client.connect("server");
+            LinkBenchmark.waitUntil("negotiation", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                            && client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                            && (!compressing || client.isCompressing("server"));
+                }
+            });
+            assertEquals(compressing, client.isCompressing("server"));
+
+            long start = System.nanoTime();
+            for(byte[] message : corpus) {
+                while(!client.sendData(message)) {
+                    Thread.yield();
+                }
+            }
+            LinkBenchmark.await(received, "receive");
+            return new long[] {wire.get(), System.nanoTime() - start};
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+}
@@ -0,0 +1,215 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+import static org.junit.Assert.*;
+
+public class CompressionTest {
+
+    private static final String[] PHRASES = {
+            "好的，我马上到，等我一下", "what time are we still meeting today?", "收到，谢谢！",
+            "did you get the file I just sent? let me know", "哈哈哈 没问题 明天晚上一起吃饭吧",
+    };
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final AtomicLong mServerBytes = new AtomicLong();
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private CountDownLatch mReceivedLatch;
+
+    @After
+    public void tearDown() {
+        if(mClient != null) {
+            mClient.disconnect();
+        }
+        if(mServer != null) {
+            mServer.disconnect();
+            mServer.stopListen();
+        }
+    }
+
+    @Test
+    public void negotiatedCompressionDeliversIntactMessagesInFewerBytes() throws Exception {
+        startServer(true);
+        connectClient(true, 200);
+        LinkBenchmark.waitUntil("hello", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.isCompressing("client");
+            }
+        });
+        awaitServerHello();
+
+        List<String> expected = new ArrayList<>();
+        long rawBytes = 0;
+        long helloBytes = mServerBytes.get();
+        for(int i = 0; i < 200; i++) {
+            String text = i % 10 == 0 ? "ok " + i : PHRASES[i % PHRASES.length] + " " + PHRASES[(i + 1) % PHRASES.length];
+            expected.add(text);
+            byte[] data = text.getBytes("UTF-8");
+            rawBytes += FrameCodec.HEADER_SIZE + data.length;
+            assertTrue(mServer.sendData(data));
+        }
+
+        LinkBenchmark.await(mReceivedLatch, "receive");
+        assertEquals(expected, mReceived);
+        long wireBytes = mServerBytes.get() - helloBytes;
+        assertTrue("sent " + wireBytes + " of " + rawBytes + " raw bytes", wireBytes < rawBytes * 3 / 4);
+    }
+
+    @Test
+    public void peersThatDontAnnounceItGetRawFrames() throws Exception {
+        startServer(true);
+        Transport.Connection oldPeer = new PipeTransport(mNetwork, "old").open("server");
+        oldPeer.connect();
+        final List<Integer> types = Collections.synchronizedList(new ArrayList<Integer>());
+        final List<String> payloads = Collections.synchronizedList(new ArrayList<String>());
+
+        String text = PHRASES[0] + PHRASES[1] + PHRASES[2] + PHRASES[3];
+        LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getConnectState("old") == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+        assertTrue(mServer.sendData(text.getBytes("UTF-8")));
+        assertFalse(mServer.isCompressing("old"));
+
+        FrameDecoder decoder = new FrameDecoder(4096);
+        while(!types.contains(FrameCodec.TYPE_DATA)) {
+            assertTrue(decoder.readFrom(oldPeer.getInputStream(), new FrameDecoder.FrameListener() {
+                @Override
+                public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+                    types.add(type);
+                    payloads.add(new String(buffer, offset, length, "UTF-8"));
+                }
+            }));
+        }
+        oldPeer.close();
+
+        assertEquals(FrameCodec.TYPE_HELLO, (int) types.get(0));
+        assertFalse(types.contains(FrameCodec.TYPE_DATA_DEFLATE));
+        assertEquals(text, payloads.get(types.indexOf(FrameCodec.TYPE_DATA)));
+    }
+
+    @Test
+    public void shortAndIncompressiblePayloadsAreLeftRaw() throws Exception {
+        FrameCompressor compressor = new FrameCompressor();
+        BufferPool pool = new BufferPool();
+
+        byte[] random = new byte[1024];
+        new Random(1).nextBytes(random);
+        assertNull(compressor.compress(random, 0, random.length, pool));
+        assertNull(compressor.compress(new byte[] {1, 2, 3}, 0, 3, pool));
+
+        byte[] text = (PHRASES[3] + PHRASES[4]).getBytes("UTF-8");
+        PooledBuffer frame = compressor.compress(text, 0, text.length, pool);
+        assertNotNull(frame);
+        assertEquals(FrameCodec.TYPE_DATA_DEFLATE, frame.array()[4]);
+        assertTrue(frame.length() < FrameCodec.HEADER_SIZE + text.length);
+
+        Inflater inflater = FrameCompressor.newInflater();
+        PooledBuffer data = FrameCompressor.decompress(inflater, frame.array(), FrameCodec.HEADER_SIZE,
+                frame.length() - FrameCodec.HEADER_SIZE, pool);
+        assertEquals(new String(text, "UTF-8"), new String(data.array(), 0, data.length(), "UTF-8"));
+
+        frame.array()[FrameCodec.HEADER_SIZE + 3] += 1;
+        try {
+            FrameCompressor.decompress(inflater, frame.array(), FrameCodec.HEADER_SIZE,
+                    frame.length() - FrameCodec.HEADER_SIZE, pool);
+            fail("a frame claiming more data than it holds must be rejected");
+        } catch (IOException expectedFailure) {
+        }
+        inflater.end();
+        data.release();
+        frame.release();
+    }
+
+    private void awaitServerHello() throws Exception {
+        LinkBenchmark.waitUntil("server hello", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServerBytes.get() == FrameCodec.HEADER_SIZE + 1;
+            }
+        });
+    }
+
+    private void startServer(boolean compression) throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        mServer = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+        }, new InterceptingTransport(new PipeTransport(mNetwork, "server"), new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        mServerBytes.addAndGet(len);
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        }));
+        mServer.setCompression(compression);
+        mServer.startListen();
+        LinkBenchmark.await(listening, "listen");
+    }
+
+    @Test
+    public void bothEndsMustTurnItOn() throws Exception {
+        startServer(true);
+        connectClient(false, 1);
+        LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getConnectState("client") == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+        awaitServerHello();
+
+        String text = PHRASES[3] + PHRASES[3] + PHRASES[3];
+        long before = mServerBytes.get();
+        assertTrue(mServer.sendData(text.getBytes("UTF-8")));
+        LinkBenchmark.await(mReceivedLatch, "receive");
+        assertEquals(Collections.singletonList(text), mReceived);
+        assertFalse(mServer.isCompressing("client"));
+        assertEquals(FrameCodec.HEADER_SIZE + text.getBytes("UTF-8").length, mServerBytes.get() - before);
+    }
+
+    private void connectClient(boolean compression, int messages) throws Exception {
+        mReceivedLatch = new CountDownLatch(messages);
+        mClient = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onReadData(PooledBuffer data) {
+                try {
+                    mReceived.add(new String(data.array(), 0, data.length(), "UTF-8"));
+                } catch (IOException e) {
+                    throw new AssertionError(e);
+                }
+                data.release();
+                mReceivedLatch.countDown();
+            }
+        }, new PipeTransport(mNetwork, "client"));
+        mClient.setCompression(compression);
+        mClient.connect("server");
+    }
+}
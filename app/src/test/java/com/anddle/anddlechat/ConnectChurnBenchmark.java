@@ -0,0 +1,84 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connects, waits for the first byte from the server, and disconnects, over and over: how long
+ * the first byte takes from connect(), and how many threads each cycle starts in the process.
+ */
+public class ConnectChurnBenchmark {
+
+    private static final int CYCLES = 200;
+    private static final byte[] GREETING = {'h', 'i'};
+
+    @Test
+    public void connectToFirstByteAndThreadChurn() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final ConnectionManager[] server = new ConnectionManager[1];
+        server[0] = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onConnectStateChange(int oldState, int state) {
+                if(state == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    server[0].sendData(GREETING);
+                }
+            }
+        }, new PipeTransport(network, "server"), new MetricsRegistry());
+        final AtomicReference<CountDownLatch> greeted = new AtomicReference<>();
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onReadData(PooledBuffer data) {
+                data.release();
+                greeted.get().countDown();
+            }
+        }, new PipeTransport(network, "client"), new MetricsRegistry());
+        ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+        Histogram firstByte = new Histogram();
+
+        try {
+            server[0].startListen();
+            LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server[0].getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+                }
+            });
+
+            long startedBefore = threads.getTotalStartedThreadCount();
+            for(int i = 0; i < CYCLES; i++) {
+                greeted.set(new CountDownLatch(1));
+                long start = System.nanoTime();
+                client.connect("server");
+                LinkBenchmark.await(greeted.get(), "greeting");
+                firstByte.record(System.nanoTime() - start);
+
+                client.disconnect();
+                LinkBenchmark.waitUntil("disconnect", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return server[0].getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+                    }
+                });
+            }
+            long started = threads.getTotalStartedThreadCount() - startedBefore;
+
+            Histogram.Snapshot snapshot = firstByte.snapshot();
+            System.out.println(String.format("%d cycles: first byte mean %.0f us, p50 %d us, p99 %d us; %.2f threads started per cycle",
+                    CYCLES, snapshot.getMean() / 1e3, TimeUnit.NANOSECONDS.toMicros(snapshot.getPercentile(0.5)),
+                    TimeUnit.NANOSECONDS.toMicros(snapshot.getPercentile(0.99)), (double) started / CYCLES));
+            assertEquals(CYCLES, snapshot.getCount());
+        } finally {
+            client.disconnect();
+            server[0].disconnect();
+            server[0].stopListen();
+        }
+    }
+}
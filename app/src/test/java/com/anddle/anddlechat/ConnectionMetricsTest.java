@@ -0,0 +1,158 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionMetricsTest {
+
+    private static final int MESSAGES = 500;
+    private static final int SIZE = 100;
+
+    private final MetricsRegistry mServerMetrics = new MetricsRegistry();
+    private final MetricsRegistry mClientMetrics = new MetricsRegistry();
+    private final AtomicInteger mReceived = new AtomicInteger();
+    private final AtomicInteger mSent = new AtomicInteger();
+    private final AtomicInteger mClientConnects = new AtomicInteger();
+    private final CountDownLatch mListening = new CountDownLatch(1);
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+
+    @After
+    public void tearDown() {
+        if(mClient != null) {
+            mClient.disconnect();
+        }
+        if(mServer != null) {
+            mServer.disconnect();
+            mServer.stopListen();
+        }
+    }
+
+    @Test
+    public void trafficAndTimingsAreRecorded() throws Exception {
+        connect();
+        byte[] payload = new byte[SIZE];
+        for(int i = 0; i < MESSAGES; i++) {
+            while(!mClient.sendData(payload)) {
+                Thread.yield();
+            }
+        }
+        waitFor(mReceived, MESSAGES);
+        waitFor(mSent, MESSAGES);
+
+        MetricsRegistry.Snapshot client = mClient.getMetrics().snapshot();
+        MetricsRegistry.Snapshot server = mServer.getMetrics().snapshot();
+        long wireBytes = (long) MESSAGES * (FrameCodec.HEADER_SIZE + SIZE);
+        assertEquals(MESSAGES, client.getCounter(ConnectionManager.METRIC_MESSAGES_OUT));
+        assertEquals(wireBytes, client.getCounter(ConnectionManager.METRIC_BYTES_OUT));
+        assertEquals(MESSAGES, server.getCounter(ConnectionManager.METRIC_MESSAGES_IN));
+        assertEquals(wireBytes, server.getCounter(ConnectionManager.METRIC_BYTES_IN));
+        assertEquals(0, server.getCounter(ConnectionManager.METRIC_MESSAGES_OUT));
+
+        Histogram.Snapshot latency = client.getHistogram(ConnectionManager.METRIC_SEND_LATENCY_NANOS);
+        assertEquals(MESSAGES, latency.getCount());
+        assertTrue(latency.getPercentile(0.5) > 0);
+        assertTrue(latency.getPercentile(0.5) <= latency.getMax());
+        assertEquals(MESSAGES, client.getHistogram(ConnectionManager.METRIC_SEND_QUEUE_DEPTH).getCount());
+        assertTrue(client.getHistogram(ConnectionManager.METRIC_SEND_QUEUE_DEPTH).getMax() >= 1);
+
+        assertEquals(1, client.getHistogram(ConnectionManager.METRIC_CONNECT_NANOS).getCount());
+        assertEquals(0, client.getHistogram(ConnectionManager.METRIC_ACCEPT_TO_CONNECTED_NANOS).getCount());
+        assertEquals(1, server.getHistogram(ConnectionManager.METRIC_ACCEPT_TO_CONNECTED_NANOS).getCount());
+        assertEquals(1, client.getCounter(ConnectionManager.METRIC_CONNECTS));
+        assertEquals(0, client.getCounter(ConnectionManager.METRIC_RECONNECTS));
+    }
+
+    @Test
+    public void reconnectsAndFailuresAreCounted() throws Exception {
+        connect();
+        mClient.disconnect();
+        LinkBenchmark.waitUntil("disconnect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE
+                        && mServer.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+            }
+        });
+        mClient.connect("server");
+        waitFor(mClientConnects, 2);
+        mClient.setMaxPeers(2);
+        mClient.connect("nobody");
+        LinkBenchmark.waitUntil("connect failure", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mClientMetrics.counter(ConnectionManager.METRIC_CONNECT_FAILURES).get() == 1;
+            }
+        });
+
+        MetricsRegistry.Snapshot client = mClientMetrics.snapshot();
+        assertEquals(2, client.getCounter(ConnectionManager.METRIC_CONNECTS));
+        assertEquals(1, client.getCounter(ConnectionManager.METRIC_RECONNECTS));
+        assertEquals(2, client.getHistogram(ConnectionManager.METRIC_CONNECT_NANOS).getCount());
+
+        mClientMetrics.reset();
+        client = mClientMetrics.snapshot();
+        assertEquals(0, client.getCounter(ConnectionManager.METRIC_CONNECTS));
+        assertEquals(0, client.getHistogram(ConnectionManager.METRIC_CONNECT_NANOS).getCount());
+        assertTrue(client.getCounterNames().contains(ConnectionManager.METRIC_RECONNECTS));
+    }
+
+    private void connect() throws Exception {
+        mServer = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    mListening.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(PooledBuffer data) {
+                data.release();
+                mReceived.incrementAndGet();
+            }
+        }, new PipeTransport(mNetwork, "server"), mServerMetrics);
+        mClient = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    mClientConnects.incrementAndGet();
+                }
+            }
+
+            @Override
+            public void onSendData(boolean suc, byte[] data) {
+                if(suc) {
+                    mSent.incrementAndGet();
+                }
+            }
+        }, new PipeTransport(mNetwork, "client"), mClientMetrics);
+
+        mServer.startListen();
+        LinkBenchmark.await(mListening, "listen");
+        mClient.connect("server");
+        waitFor(mClientConnects, 1);
+        LinkBenchmark.waitUntil("server connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+    }
+
+    private static void waitFor(final AtomicInteger counter, final int value) throws Exception {
+        LinkBenchmark.waitUntil(value + " events", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return counter.get() >= value;
+            }
+        });
+    }
+}
@@ -0,0 +1,248 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class ConnectionStateStressTest {
+
+    private static final int MAX_PEERS = 3;
+    private static final int CLIENTS = 6;
+    private static final int THREADS = 8;
+    private static final int OPERATIONS = 300;
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final List<Throwable> mErrors = Collections.synchronizedList(new ArrayList<Throwable>());
+    private final List<ConnectionManager> mClients = new ArrayList<>();
+    private final List<RecordingListener> mClientEvents = new ArrayList<>();
+    private final RecordingListener mHubEvents = new RecordingListener();
+    private final AtomicInteger mMaxConnected = new AtomicInteger();
+    private ConnectionManager mHub;
+
+    @Before
+    public void setUp() throws Exception {
+        mHub = new ConnectionManager(mHubEvents, new PipeTransport(mNetwork, "hub"));
+        mHub.setMaxPeers(MAX_PEERS);
+        mHub.setPeerListener(new ConnectionManager.PeerListener() {
+            @Override
+            public void onPeerConnectStateChange(String address, int oldState, int state) {
+                if(!isValidPeerTransition(oldState, state)) {
+                    mErrors.add(new AssertionError(address + " went from " + oldState + " to " + state));
+                }
+            }
+
+            @Override
+            public void onPeerSendData(String address, boolean suc, byte[] data) {
+            }
+
+            @Override
+            public void onPeerReadData(String address, PooledBuffer data) {
+                data.release();
+            }
+        });
+        mHub.startListen();
+        LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mHub.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+            }
+        });
+
+        for(int i = 1; i <= CLIENTS; i++) {
+            RecordingListener events = new RecordingListener();
+            mClientEvents.add(events);
+            mClients.add(new ConnectionManager(events, new PipeTransport(mNetwork, "c" + i)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(ConnectionManager client : mClients) {
+            client.disconnect();
+        }
+        mHub.disconnect();
+        mHub.stopListen();
+    }
+
+    @Test
+    public void concurrentConnectDisconnectAndSendKeepStateConsistent() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(THREADS);
+        for(int t = 0; t < THREADS; t++) {
+            final Random random = new Random(t);
+            new Thread("stress-" + t) {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                        for(int i = 0; i < OPERATIONS; i++) {
+                            step(random);
+                        }
+                    } catch (Throwable e) {
+                        mErrors.add(e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            }.start();
+        }
+        start.countDown();
+        LinkBenchmark.await(done, "stress threads");
+
+        // whatever the threads left connected, the hub's state and its last event agree with it
+        LinkBenchmark.waitUntil("hub state to settle", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                int state = mHub.getCurrentConnectState();
+                return state == hubStateFromPeers() && mHubEvents.getLastState() == state;
+            }
+        });
+
+        for(ConnectionManager client : mClients) {
+            client.disconnect();
+        }
+        mHub.disconnect();
+        LinkBenchmark.waitUntil("everyone to go idle", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                if(mHub.getCurrentConnectState() != ConnectionManager.CONNECT_STATE_IDLE
+                        || mHubEvents.getLastState() != ConnectionManager.CONNECT_STATE_IDLE) {
+                    return false;
+                }
+                for(int i = 0; i < CLIENTS; i++) {
+                    if(mClients.get(i).getCurrentConnectState() != ConnectionManager.CONNECT_STATE_IDLE
+                            || mClientEvents.get(i).getLastState() != ConnectionManager.CONNECT_STATE_IDLE) {
+                        return false;
+                    }
+                }
+                return true;
+            }
+        });
+
+        assertEquals(Collections.<Throwable>emptyList(), mErrors);
+        assertTrue(mHubEvents.getChanges() > 0);
+        assertTrue("saw " + mMaxConnected.get() + " peers", mMaxConnected.get() <= MAX_PEERS);
+        assertTrue(mHub.getConnectedPeers().isEmpty());
+    }
+
+    @Test
+    public void aThrowingListenerDoesNotStopLaterEvents() throws Exception {
+        final CountDownLatch idle = new CountDownLatch(1);
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int state) {
+                if(state == ConnectionManager.LISTEN_STATE_IDLE) {
+                    idle.countDown();
+                }
+                throw new RuntimeException("listener failure");
+            }
+        }, new PipeTransport(mNetwork, "thrower"));
+
+        server.startListen();
+        LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return server.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+            }
+        });
+        server.stopListen();
+        LinkBenchmark.await(idle, "stop to be reported");
+        assertEquals(ConnectionManager.LISTEN_STATE_IDLE, server.getCurrentListenState());
+    }
+
+    private void step(Random random) throws Exception {
+        ConnectionManager client = mClients.get(random.nextInt(CLIENTS));
+        switch (random.nextInt(5)) {
+            case 0:
+                client.connect("hub");
+                break;
+            case 1:
+                client.disconnect();
+                break;
+            case 2:
+                client.sendData("ping".getBytes("UTF-8"));
+                break;
+            case 3:
+                mHub.sendData("pong".getBytes("UTF-8"));
+                break;
+            case 4:
+                mHub.disconnect("c" + (1 + random.nextInt(CLIENTS)));
+                break;
+        }
+
+        int connected = mHub.getConnectedPeers().size();
+        int max;
+        while(connected > (max = mMaxConnected.get()) && !mMaxConnected.compareAndSet(max, connected)) {
+        }
+    }
+
+    /**
+     * @return the hub's overall state as its peers' states make it: connected if any peer is,
+     * otherwise connecting if any peer is.
+     */
+    private int hubStateFromPeers() {
+        int state = ConnectionManager.CONNECT_STATE_IDLE;
+        for(int i = 1; i <= CLIENTS; i++) {
+            int peerState = mHub.getConnectState("c" + i);
+            if(peerState == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                return peerState;
+            }
+            if(peerState == ConnectionManager.CONNECT_STATE_CONNECTING) {
+                state = peerState;
+            }
+        }
+        return state;
+    }
+
+    private static boolean isValidPeerTransition(int from, int to) {
+        switch (from) {
+            case ConnectionManager.CONNECT_STATE_IDLE:
+                return to == ConnectionManager.CONNECT_STATE_CONNECTING;
+            case ConnectionManager.CONNECT_STATE_CONNECTING:
+                return to == ConnectionManager.CONNECT_STATE_CONNECTED || to == ConnectionManager.CONNECT_STATE_IDLE;
+            case ConnectionManager.CONNECT_STATE_CONNECTED:
+                return to == ConnectionManager.CONNECT_STATE_IDLE;
+        }
+        return false;
+    }
+
+    /**
+     * Checks that every change starts where the one before it ended, and that changes arrive on
+     * the event thread.
+     */
+    private class RecordingListener extends LinkBenchmark.ListenerAdapter {
+
+        private volatile int mLastState = ConnectionManager.CONNECT_STATE_IDLE;
+        private volatile int mChanges;
+
+        @Override
+        public void onConnectStateChange(int oldState, int state) {
+            if(oldState != mLastState || oldState == state) {
+                mErrors.add(new AssertionError("change " + oldState + " -> " + state + " after " + mLastState));
+            }
+            if(!Thread.currentThread().getName().equals("ConnectionEvents")) {
+                mErrors.add(new AssertionError("called on " + Thread.currentThread().getName()));
+            }
+            mLastState = state;
+            mChanges++;
+        }
+
+        int getLastState() {
+            return mLastState;
+        }
+
+        int getChanges() {
+            return mChanges;
+        }
+    }
+}
@@ -0,0 +1,49 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import static org.junit.Assert.*;
+
+/**
+ * Throughput and latency of the full ConnectionManager send/receive path over the JVM transports.
+ */
+public class ConnectionThroughputBenchmark {
+
+    private static final int MESSAGES = 20000;
+
+    @Test
+    public void pipeTransport() throws Exception {
+        for(int size : new int[] {32, 256, 1024}) {
+            PipeTransport.Network network = new PipeTransport.Network();
+            LinkBenchmark.Result result = LinkBenchmark.run("pipe", new PipeTransport(network, "server"),
+                    new PipeTransport(network, "client"), fixed("server"), MESSAGES, size);
+            System.out.println(result);
+            assertEquals(MESSAGES, result.messages);
+        }
+    }
+
+    @Test
+    public void tcpTransport() throws Exception {
+        for(int size : new int[] {32, 256, 1024}) {
+            final TcpTransport server = new TcpTransport(0);
+            LinkBenchmark.Result result = LinkBenchmark.run("tcp", server, new TcpTransport(0),
+                    new LinkBenchmark.AddressSource() {
+                        @Override
+                        public String get() {
+                            return server.getLocalAddress();
+                        }
+                    }, MESSAGES, size);
+            System.out.println(result);
+            assertEquals(MESSAGES, result.messages);
+        }
+    }
+
+    private static LinkBenchmark.AddressSource fixed(final String address) {
+        return new LinkBenchmark.AddressSource() {
+            @Override
+            public String get() {
+                return address;
+            }
+        };
+    }
+}
@@ -0,0 +1,222 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+public class DeliveryReceiptTest {
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mSent = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicLong mDelivered = new AtomicLong();
+    private final AtomicLong mRead = new AtomicLong();
+    private final Object mGate = new Object();
+    private boolean mHoldServer;
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onReadData(PooledBuffer data) {
+                mReceived.add(new String(data.array(), 0, data.length()));
+                data.release();
+            }
+        }, new InterceptingTransport(new PipeTransport(mNetwork, "server"), new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        synchronized (mGate) {
+                            while(mHoldServer) {
+                                try {
+                                    mGate.wait();
+                                } catch (InterruptedException e) {
+                                    throw new InterruptedIOException();
+                                }
+                            }
+                        }
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        }), new MetricsRegistry());
+        mServer.setSessionResumption(true);
+        mServer.startListen();
+        LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+            }
+        });
+
+        mClient = new ConnectionManager(new LinkBenchmark.ListenerAdapter(), new PipeTransport(mNetwork, "client"),
+                new MetricsRegistry());
+        mClient.setSessionResumption(true);
+        mClient.setDeliveryListener(new ConnectionManager.DeliveryListener() {
+            @Override
+            public void onMessageSent(String address, long id, byte[] data) {
+                mSent.add(id + " " + new String(data));
+            }
+
+            @Override
+            public void onMessagesDelivered(String address, long id) {
+                mDelivered.set(id);
+            }
+
+            @Override
+            public void onMessagesRead(String address, long id) {
+                mRead.set(id);
+            }
+        });
+    }
+
+    @After
+    public void tearDown() {
+        hold(false);
+        mClient.disconnect();
+        mServer.disconnect();
+        mServer.stopListen();
+    }
+
+    @Test
+    public void messagesAreSentThenDeliveredThenRead() throws Exception {
+        connect();
+        send("m0", "m1", "m2");
+        waitFor("delivery", mDelivered, 3);
+
+        assertEquals(Arrays.asList("1 m0", "2 m1", "3 m2"), mSent);
+        assertEquals(0, mRead.get());
+
+        assertTrue(mServer.markRead("client"));
+        waitFor("read receipt", mRead, 3);
+        assertTrue(mServer.markRead("client"));
+        assertFalse(mServer.markRead("nobody"));
+    }
+
+    @Test
+    public void onlyTheWindowIsInFlightUntilAcksReturn() throws Exception {
+        mClient.setSendWindow(2);
+        connect();
+
+        hold(true);
+        send("m0", "m1", "m2", "m3", "m4");
+        LinkBenchmark.waitUntil("window to fill", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mSent.size() == 2 && mReceived.size() == 2;
+            }
+        });
+        Thread.sleep(100);
+        assertEquals(Arrays.asList("1 m0", "2 m1"), mSent);
+        assertEquals(0, mDelivered.get());
+
+        hold(false);
+        waitFor("delivery", mDelivered, 5);
+        assertEquals(Arrays.asList("1 m0", "2 m1", "3 m2", "4 m3", "5 m4"), mSent);
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4"), mReceived);
+    }
+
+    @Test
+    public void aSlowListenerOnlyHoldsUpItsOwnPeer() throws Exception {
+        final CountDownLatch blocked = new CountDownLatch(1);
+        final CountDownLatch release = new CountDownLatch(1);
+        final AtomicLong otherDelivered = new AtomicLong();
+        mServer.setDeliveryListener(new ConnectionManager.DeliveryListener() {
+            @Override
+            public void onMessageSent(String address, long id, byte[] data) {
+                if("client".equals(address)) {
+                    blocked.countDown();
+                    try {
+                        release.await();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    }
+                }
+            }
+
+            @Override
+            public void onMessagesDelivered(String address, long id) {
+                if("other".equals(address)) {
+                    otherDelivered.set(id);
+                }
+            }
+
+            @Override
+            public void onMessagesRead(String address, long id) {
+            }
+        });
+        final ConnectionManager other = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(mNetwork, "other"), new MetricsRegistry());
+        other.setSessionResumption(true);
+        mServer.setMaxPeers(2);
+        try {
+            connect();
+            other.connect("server");
+            LinkBenchmark.waitUntil("other to connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mServer.getConnectState("other") == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+
+            assertTrue(mServer.sendData("client", "m0".getBytes("UTF-8")));
+            LinkBenchmark.await(blocked, "listener to block");
+            assertTrue(mServer.sendData("other", "m1".getBytes("UTF-8")));
+            waitFor("delivery to the other peer", otherDelivered, 1);
+        } finally {
+            release.countDown();
+            other.disconnect();
+        }
+    }
+
+    private void hold(boolean hold) {
+        synchronized (mGate) {
+            mHoldServer = hold;
+            mGate.notifyAll();
+        }
+    }
+
+    private void connect() throws Exception {
+        mClient.connect("server");
+        LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                        && mServer.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+    }
+
+    private void send(String... messages) throws Exception {
+        for(String message : messages) {
+            assertTrue(message, mClient.sendData(message.getBytes("UTF-8")));
+        }
+    }
+
+    private static void waitFor(String what, final AtomicLong value, final long expected) throws Exception {
+        LinkBenchmark.waitUntil(what, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return value.get() >= expected;
+            }
+        });
+    }
+}
@@ -0,0 +1,165 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Arrays;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import static org.junit.Assert.*;
+
+/**
+ * Acknowledged throughput over a pipe link with a fixed one-way latency, for a range of send
+ * windows. A window of 1 is stop-and-wait: one message per round trip.
+ */
+public class DeliveryWindowBenchmark {
+
+    private static final int MESSAGES = 400;
+    private static final int SIZE = 256;
+    private static final long ONE_WAY_MILLIS = 2;
+
+    @Test
+    public void throughputBySendWindow() throws Exception {
+        for(int window : new int[] {1, 4, 16, 64}) {
+            long elapsed = run(window);
+            System.out.println(String.format("window %3d: %d messages of %d bytes in %d ms, %.0f msg/s",
+                    window, MESSAGES, SIZE, TimeUnit.NANOSECONDS.toMillis(elapsed),
+                    MESSAGES * 1e9 / elapsed));
+        }
+    }
+
+    private static long run(int window) throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new InterceptingTransport(new PipeTransport(network, "server"), delayed()), new MetricsRegistry());
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new InterceptingTransport(new PipeTransport(network, "client"), delayed()), new MetricsRegistry());
+        final AtomicLong delivered = new AtomicLong();
+        server.setSessionResumption(true);
+        client.setSessionResumption(true);
+        client.setSendWindow(window);
+        client.setDeliveryListener(new ConnectionManager.DeliveryListener() {
+            @Override
+            public void onMessageSent(String address, long id, byte[] data) {
+            }
+
+            @Override
+            public void onMessagesDelivered(String address, long id) {
+                delivered.set(id);
+            }
+
+            @Override
+            public void onMessagesRead(String address, long id) {
+            }
+        });
+
+        try {
+            server.startListen();
+            LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+                }
+            });
+            client.connect("server");
+            LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+
+            byte[] message = new byte[SIZE];
+            Arrays.fill(message, (byte) 'x');
+            long start = System.nanoTime();
+            for(int i = 0; i < MESSAGES; i++) {
+                while(!client.sendData(message)) {
+                    // the backlog is full
+                    Thread.sleep(1);
+                }
+            }
+            LinkBenchmark.waitUntil("delivery", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return delivered.get() == MESSAGES;
+                }
+            });
+            long elapsed = System.nanoTime() - start;
+            assertEquals(MESSAGES, delivered.get());
+            return elapsed;
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+
+    private static InterceptingTransport.OutputInterceptor delayed() {
+        return new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                DelayedOutputStream delayed = new DelayedOutputStream(out, TimeUnit.MILLISECONDS.toNanos(ONE_WAY_MILLIS));
+                Thread thread = new Thread(delayed, "DelayLine-" + address);
+                thread.setDaemon(true);
+                thread.start();
+                return delayed;
+            }
+        };
+    }
+
+    /**
+     * Passes writes on after a fixed delay without holding up the writer, like a link with
+     * latency but bandwidth to spare.
+     */
+    private static class DelayedOutputStream extends OutputStream implements Runnable {
+
+        private final OutputStream mOut;
+        private final long mDelayNanos;
+        private final BlockingQueue<Object[]> mChunks = new LinkedBlockingQueue<>();
+        private volatile IOException mFailure;
+
+        DelayedOutputStream(OutputStream out, long delayNanos) {
+            mOut = out;
+            mDelayNanos = delayNanos;
+        }
+
+        @Override
+        public void write(int b) throws IOException {
+            write(new byte[] {(byte) b}, 0, 1);
+        }
+
+        @Override
+        public void write(byte[] b, int off, int len) throws IOException {
+            if(mFailure != null) {
+                throw mFailure;
+            }
+            mChunks.add(new Object[] {System.nanoTime() + mDelayNanos, Arrays.copyOfRange(b, off, off + len)});
+        }
+
+        @Override
+        public void run() {
+            try {
+                while(true) {
+                    Object[] chunk = mChunks.take();
+                    long wait;
+                    while((wait = (Long) chunk[0] - System.nanoTime()) > 0) {
+                        LockSupport.parkNanos(wait);
+                    }
+                    byte[] bytes = (byte[]) chunk[1];
+                    mOut.write(bytes, 0, bytes.length);
+                    mOut.flush();
+                }
+            } catch (IOException e) {
+                mFailure = e;
+            } catch (InterruptedException e) {
+                mFailure = new IOException(e);
+            }
+        }
+    }
+}
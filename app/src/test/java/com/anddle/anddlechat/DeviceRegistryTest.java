@@ -0,0 +1,122 @@
+package com.anddle.anddlechat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class DeviceRegistryTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void devicesFoundAgainAreOneEntryAndOnlyChangesCount() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(new File(mFolder.getRoot(), "devices"));
+
+        assertTrue(registry.seen("00:11", null, -60, 1000));
+        assertFalse(registry.seen("00:11", null, -60, 1100));
+        assertTrue(registry.seen("00:11", "phone", -60, 1200));
+        assertFalse(registry.seen("00:11", null, DeviceRegistry.RSSI_UNKNOWN, 1300));
+        assertTrue(registry.seen("00:11", "phone", -72, 1400));
+        assertFalse(registry.bonded("00:11", "phone"));
+
+        assertEquals(1, registry.size());
+        DeviceRegistry.Device device = registry.get("00:11");
+        assertEquals("phone", device.getName());
+        assertEquals(-72, device.getRssi());
+        assertEquals(1400, device.getLastSeen());
+        assertTrue(device.isBonded());
+        assertEquals(-1, device.getConnectSuccessRate(), 0);
+    }
+
+    @Test
+    public void recentlySeenDevicesComeFirstThenReliableOnes() throws Exception {
+        DeviceRegistry registry = new DeviceRegistry(new File(mFolder.getRoot(), "devices"));
+        registry.bonded("paired", "never seen");
+        registry.seen("old", "old", -50, 1000);
+        registry.seen("flaky", "flaky", -50, 2000);
+        registry.seen("solid", "solid", -50, 2000);
+        registry.seen("new", "new", -50, 3000);
+        registry.recordConnect("flaky", false);
+        registry.recordConnect("flaky", true);
+        registry.recordConnect("solid", true);
+
+        assertEquals(0.5f, registry.get("flaky").getConnectSuccessRate(), 0);
+        assertEquals(2, registry.get("flaky").getConnectAttempts());
+        assertOrder(registry.getDevices(), "new", "solid", "flaky", "old", "paired");
+    }
+
+    @Test
+    public void devicesSurviveReloading() throws Exception {
+        File file = new File(mFolder.getRoot(), "devices");
+        DeviceRegistry registry = new DeviceRegistry(file);
+        registry.bonded("paired", "desk");
+        registry.seen("found", null, -80, 5000);
+        registry.recordConnect("found", true);
+        registry.save();
+        assertFalse(new File(file.getPath() + ".tmp").exists());
+
+        DeviceRegistry reloaded = new DeviceRegistry(file);
+        assertOrder(reloaded.getDevices(), "found", "paired");
+        DeviceRegistry.Device found = reloaded.get("found");
+        assertNull(found.getName());
+        assertFalse(found.isBonded());
+        assertEquals(-80, found.getRssi());
+        assertEquals(5000, found.getLastSeen());
+        assertEquals(1f, found.getConnectSuccessRate(), 0);
+        DeviceRegistry.Device paired = reloaded.get("paired");
+        assertEquals("desk", paired.getName());
+        assertTrue(paired.isBonded());
+        assertEquals(DeviceRegistry.RSSI_UNKNOWN, paired.getRssi());
+    }
+
+    @Test
+    public void onlyTheMostRecentDevicesAreKept() throws Exception {
+        File file = new File(mFolder.getRoot(), "devices");
+        DeviceRegistry registry = new DeviceRegistry(file);
+        for(int i = 0; i < DeviceRegistry.MAX_DEVICES + 10; i++) {
+            registry.seen("d" + i, null, -50, i);
+        }
+        registry.save();
+        // what's listed already stays until the next load
+        assertEquals(DeviceRegistry.MAX_DEVICES + 10, registry.size());
+
+        DeviceRegistry reloaded = new DeviceRegistry(file);
+        assertEquals(DeviceRegistry.MAX_DEVICES, reloaded.size());
+        assertNull(reloaded.get("d9"));
+        assertNotNull(reloaded.get("d10"));
+    }
+
+    @Test
+    public void aDamagedFileStartsEmpty() throws Exception {
+        File file = new File(mFolder.getRoot(), "devices");
+        DeviceRegistry registry = new DeviceRegistry(file);
+        registry.seen("a", "a", -50, 1);
+        registry.save();
+
+        // bytes after the last device are ignored
+        FileOutputStream out = new FileOutputStream(file, true);
+        out.write(new byte[] {1, 2, 3});
+        out.close();
+        assertEquals(1, new DeviceRegistry(file).size());
+
+        RandomAccessFile truncated = new RandomAccessFile(file, "rw");
+        truncated.setLength(file.length() - 10);
+        truncated.close();
+        assertEquals(0, new DeviceRegistry(file).size());
+    }
+
+    private static void assertOrder(List<DeviceRegistry.Device> devices, String... addresses) {
+        assertEquals(addresses.length, devices.size());
+        for(int i = 0; i < addresses.length; i++) {
+            assertEquals(addresses[i], devices.get(i).getAddress());
+        }
+    }
+}
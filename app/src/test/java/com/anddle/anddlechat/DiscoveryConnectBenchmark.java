@@ -0,0 +1,79 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+/**
+ * Connect latency while the device list keeps discovery running, with and without a
+ * {@link RadioScheduler} to stop it first. Connects make a tenth of their progress mid-scan.
+ */
+public class DiscoveryConnectBenchmark {
+
+    private static final int CONNECTS = 10;
+    private static final long CONNECT_MS = 20;
+    private static final int INQUIRY_SLOWDOWN = 10;
+
+    @Test
+    public void connectLatencyWithAndWithoutTheScheduler() throws Exception {
+        Histogram.Snapshot contended = run(false);
+        Histogram.Snapshot scheduled = run(true);
+        print("discovery running", contended);
+        print("scheduler", scheduled);
+        assertTrue(scheduled.getMean() * 2 < contended.getMean());
+    }
+
+    private static void print(String name, Histogram.Snapshot snapshot) {
+        System.out.println(String.format("%-18s %d connects, mean %.1f ms, p90 %d ms", name, snapshot.getCount(),
+                snapshot.getMean() / 1e6, TimeUnit.NANOSECONDS.toMillis(snapshot.getPercentile(0.9))));
+    }
+
+    private static Histogram.Snapshot run(boolean schedule) throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        FakeRadio radio = new FakeRadio(12 * 1000);
+        MetricsRegistry metrics = new MetricsRegistry();
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "server"), new MetricsRegistry());
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                radio.contending(new PipeTransport(network, "client"), CONNECT_MS, INQUIRY_SLOWDOWN), metrics);
+        if(schedule) {
+            client.setRadioScheduler(new RadioScheduler(radio, 0, new MetricsRegistry()));
+        }
+
+        try {
+            server.startListen();
+            LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+                }
+            });
+            for(int i = 0; i < CONNECTS; i++) {
+                radio.startDiscovery();
+                client.connect("server");
+                LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                                && server.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+                    }
+                });
+                client.disconnect();
+                LinkBenchmark.waitUntil("disconnect", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return server.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+                    }
+                });
+            }
+            return metrics.histogram(ConnectionManager.METRIC_CONNECT_NANOS).snapshot();
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+}
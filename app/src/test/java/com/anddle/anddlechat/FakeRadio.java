@@ -0,0 +1,100 @@
+package com.anddle.anddlechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A radio whose scans run for a fixed time unless cancelled. It can also wrap a {@link Transport}
+ * so that connects get slower while a scan is running, the way page scans lose air time to an
+ * inquiry.
+ */
+class FakeRadio implements RadioScheduler.Radio {
+
+    private final long mScanNanos;
+    private long mScanEnd;
+    final AtomicInteger mStarts = new AtomicInteger();
+    final AtomicInteger mCancels = new AtomicInteger();
+
+    FakeRadio(long scanMillis) {
+        mScanNanos = TimeUnit.MILLISECONDS.toNanos(scanMillis);
+    }
+
+    @Override
+    public synchronized boolean startDiscovery() {
+        mScanEnd = System.nanoTime() + mScanNanos;
+        mStarts.incrementAndGet();
+        return true;
+    }
+
+    @Override
+    public synchronized boolean cancelDiscovery() {
+        if(isDiscovering()) {
+            mScanEnd = 0;
+            mCancels.incrementAndGet();
+        }
+        return true;
+    }
+
+    @Override
+    public synchronized boolean isDiscovering() {
+        return mScanEnd != 0 && System.nanoTime() - mScanEnd < 0;
+    }
+
+    /**
+     * @param connectMillis how long a connect takes with the radio to itself.
+     * @param slowdown how many times slower a connect makes progress while a scan is running.
+     */
+    Transport contending(final Transport transport, final long connectMillis, final int slowdown) {
+        return new Transport() {
+            @Override
+            public ServerEndpoint listen() throws IOException {
+                return transport.listen();
+            }
+
+            @Override
+            public Connection open(String address) throws IOException {
+                final Connection connection = transport.open(address);
+                return new Connection() {
+                    @Override
+                    public void connect() throws IOException {
+                        // a millisecond of work per millisecond, or per slowdown milliseconds mid-scan
+                        long work = connectMillis * slowdown;
+                        try {
+                            while(work > 0) {
+                                Thread.sleep(1);
+                                work -= isDiscovering() ? 1 : slowdown;
+                            }
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        connection.connect();
+                    }
+
+                    @Override
+                    public InputStream getInputStream() throws IOException {
+                        return connection.getInputStream();
+                    }
+
+                    @Override
+                    public OutputStream getOutputStream() throws IOException {
+                        return connection.getOutputStream();
+                    }
+
+                    @Override
+                    public String getRemoteAddress() {
+                        return connection.getRemoteAddress();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        connection.close();
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,155 @@
+package com.anddle.anddlechat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.util.Locale;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Sustained file transfer rate against writing the same file straight into the link's output stream.
+ */
+public class FileTransferBenchmark {
+
+    private static final int FILE_SIZE = 32 * 1024 * 1024;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void fileTransferAgainstRawStream() throws Exception {
+        File file = mFolder.newFile("payload.bin");
+        byte[] block = new byte[1024 * 1024];
+        new Random(3).nextBytes(block);
+        OutputStream out = new FileOutputStream(file);
+        try {
+            for(int i = 0; i < FILE_SIZE / block.length; i++) {
+                out.write(block);
+            }
+        } finally {
+            out.close();
+        }
+
+        report("raw mOutStream.write", rawStream(file));
+        for(int window : new int[] {1, 4, 8, 32}) {
+            report("FileTransfer window=" + window, fileTransfer(file, window));
+        }
+    }
+
+    private static void report(String name, long nanos) {
+        System.out.println(String.format(Locale.US, "%-26s %d MB in %7.1f ms  %8.2f MB/s",
+                name, FILE_SIZE >> 20, nanos / 1e6, FILE_SIZE * 1e9 / nanos / (1024 * 1024)));
+    }
+
+    private long rawStream(File file) throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        Transport.ServerEndpoint endpoint = new PipeTransport(network, "server").listen();
+        Transport.Connection client = new PipeTransport(network, "client").open("server");
+        client.connect();
+        final Transport.Connection server = endpoint.accept();
+
+        final CountDownLatch done = new CountDownLatch(1);
+        Thread reader = new Thread() {
+            @Override
+            public void run() {
+                byte[] buffer = new byte[64 * 1024];
+                long total = 0;
+                try {
+                    InputStream in = server.getInputStream();
+                    while(total < FILE_SIZE) {
+                        int bytes = in.read(buffer);
+                        if(bytes < 0) {
+                            break;
+                        }
+                        total += bytes;
+                    }
+                } catch (Exception e) {
+                    e.printStackTrace();
+                }
+                done.countDown();
+            }
+        };
+        reader.start();
+
+        long start = System.nanoTime();
+        byte[] chunk = new byte[FileTransfer.DEFAULT_CHUNK_SIZE];
+        InputStream in = new FileInputStream(file);
+        OutputStream out = client.getOutputStream();
+        try {
+            int bytes;
+            while((bytes = in.read(chunk)) > 0) {
+                out.write(chunk, 0, bytes);
+            }
+        } finally {
+            in.close();
+        }
+        LinkBenchmark.await(done, "raw read");
+        long elapsed = System.nanoTime() - start;
+
+        client.close();
+        server.close();
+        endpoint.close();
+        return elapsed;
+    }
+
+    private long fileTransfer(File file, int window) throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch done = new CountDownLatch(1);
+        final boolean[] verified = new boolean[1];
+
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+        }, new PipeTransport(network, "server"));
+        new FileTransfer(server, mFolder.newFolder(), new FileTransferTest.ListenerAdapter() {
+            @Override
+            public void onTransferComplete(long id, String address, boolean outgoing, boolean ok, File received) {
+                verified[0] = ok;
+                done.countDown();
+            }
+        }, FileTransfer.DEFAULT_CHUNK_SIZE, window);
+
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "client"));
+        FileTransfer sender = new FileTransfer(client, mFolder.newFolder(), null, FileTransfer.DEFAULT_CHUNK_SIZE, window);
+
+        try {
+            server.startListen();
+            LinkBenchmark.await(listening, "listen");
+            client.connect("server");
+            LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+
+            long start = System.nanoTime();
+            sender.send("server", file);
+            LinkBenchmark.await(done, "transfer");
+            long elapsed = System.nanoTime() - start;
+
+            assertTrue(verified[0]);
+            return elapsed;
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+}
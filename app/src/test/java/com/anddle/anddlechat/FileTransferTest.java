@@ -0,0 +1,224 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class FileTransferTest {
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final CountDownLatch mReceived = new CountDownLatch(1);
+    private final CountDownLatch mSent = new CountDownLatch(1);
+    private final AtomicReference<File> mReceivedFile = new AtomicReference<>();
+    private final AtomicLong mReceivedBytes = new AtomicLong();
+    private final AtomicLong mLastAcked = new AtomicLong();
+    private volatile boolean mReceivedVerified;
+    private volatile boolean mSentVerified;
+    private volatile boolean mAckWentBackwards;
+    private volatile long mWriteDelayMillis;
+
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private FileTransfer mClientTransfer;
+
+    @Before
+    public void setUp() throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        mServer = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+        }, new PipeTransport(mNetwork, "server"));
+        new FileTransfer(mServer, mFolder.newFolder("inbox"), new ListenerAdapter() {
+            @Override
+            public void onTransferProgress(long id, String address, boolean outgoing, long bytes, long total) {
+                mReceivedBytes.set(bytes);
+            }
+
+            @Override
+            public void onTransferComplete(long id, String address, boolean outgoing, boolean verified, File file) {
+                mReceivedVerified = verified;
+                mReceivedFile.set(file);
+                mReceived.countDown();
+            }
+        });
+
+        mClient = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new InterceptingTransport(new PipeTransport(mNetwork, "client"), new InterceptingTransport.OutputInterceptor() {
+                    @Override
+                    public OutputStream wrap(String address, OutputStream out) {
+                        return new FilterOutputStream(out) {
+                            @Override
+                            public void write(byte[] b, int off, int len) throws IOException {
+                                if(mWriteDelayMillis > 0) {
+                                    try {
+                                        Thread.sleep(mWriteDelayMillis);
+                                    } catch (InterruptedException e) {
+                                        throw new IOException(e);
+                                    }
+                                }
+                                out.write(b, off, len);
+                            }
+                        };
+                    }
+                }));
+        mClientTransfer = new FileTransfer(mClient, mFolder.newFolder("client-inbox"), new ListenerAdapter() {
+            @Override
+            public void onTransferProgress(long id, String address, boolean outgoing, long bytes, long total) {
+                if(bytes < mLastAcked.getAndSet(bytes)) {
+                    mAckWentBackwards = true;
+                }
+            }
+
+            @Override
+            public void onTransferComplete(long id, String address, boolean outgoing, boolean verified, File file) {
+                mSentVerified = verified;
+                mSent.countDown();
+            }
+        });
+
+        mServer.startListen();
+        LinkBenchmark.await(listening, "listen");
+        connect();
+    }
+
+    @After
+    public void tearDown() {
+        mClient.disconnect();
+        mServer.disconnect();
+        mServer.stopListen();
+    }
+
+    @Test
+    public void fileArrivesIntactAndVerified() throws Exception {
+        File file = randomFile("photo.jpg", 1024 * 1024 + 123);
+
+        mClientTransfer.send("server", file);
+
+        LinkBenchmark.await(mReceived, "file");
+        LinkBenchmark.await(mSent, "sender completion");
+        assertTrue(mReceivedVerified);
+        assertTrue(mSentVerified);
+        assertEquals("photo.jpg", mReceivedFile.get().getName());
+        assertArrayEquals(FileTransfer.sha256(file, file.length()),
+                FileTransfer.sha256(mReceivedFile.get(), mReceivedFile.get().length()));
+        assertEquals(file.length(), mReceivedFile.get().length());
+        assertFalse(mAckWentBackwards);
+    }
+
+    @Test
+    public void truncatedFramesAreDroppedAndTheLinkStaysUp() throws Exception {
+        assertTrue(mClient.sendFrame("server", FrameCodec.TYPE_FILE_OFFER, new byte[4]));
+        assertTrue(mClient.sendFrame("server", FrameCodec.TYPE_FILE_OFFER, new byte[40]));
+        assertTrue(mClient.sendFrame("server", FrameCodec.TYPE_FILE_CHUNK, new byte[12]));
+        assertTrue(mClient.sendFrame("server", FrameCodec.TYPE_FILE_ACK, new byte[8]));
+        assertTrue(mClient.sendFrame("server", FrameCodec.TYPE_FILE_DONE, new byte[8]));
+
+        File file = randomFile("after.bin", 50 * 1000);
+        mClientTransfer.send("server", file);
+        LinkBenchmark.await(mReceived, "file");
+        assertTrue(mReceivedVerified);
+        assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, mServer.getConnectState("client"));
+    }
+
+    @Test
+    public void emptyFileIsTransferred() throws Exception {
+        File file = randomFile("empty.txt", 0);
+
+        mClientTransfer.send("server", file);
+
+        LinkBenchmark.await(mReceived, "file");
+        assertTrue(mReceivedVerified);
+        assertEquals(0, mReceivedFile.get().length());
+    }
+
+    @Test
+    public void transferResumesAfterDisconnect() throws Exception {
+        final File file = randomFile("video.mp4", 4 * 1024 * 1024);
+        mWriteDelayMillis = 1;
+
+        mClientTransfer.send("server", file);
+        LinkBenchmark.waitUntil("half of the file", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mReceivedBytes.get() >= file.length() / 2;
+            }
+        });
+
+        mClient.disconnect();
+        LinkBenchmark.waitUntil("link to drop", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE
+                        && mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+            }
+        });
+        long beforeResume = mReceivedBytes.get();
+        mWriteDelayMillis = 0;
+        connect();
+
+        LinkBenchmark.await(mReceived, "file");
+        assertTrue(mReceivedVerified);
+        assertEquals(file.length(), mReceivedFile.get().length());
+        assertTrue(beforeResume >= file.length() / 2);
+        long window = (long) FileTransfer.DEFAULT_WINDOW * FileTransfer.DEFAULT_CHUNK_SIZE;
+        assertTrue("sent " + mClientTransfer.getChunkBytesSent() + " bytes, expected a resume",
+                mClientTransfer.getChunkBytesSent() <= file.length() + window);
+    }
+
+    private void connect() throws Exception {
+        mClient.connect("server");
+        LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                        && mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+    }
+
+    private File randomFile(String name, int size) throws IOException {
+        File file = new File(mFolder.newFolder(), name);
+        byte[] data = new byte[size];
+        new Random(size).nextBytes(data);
+        FileOutputStream out = new FileOutputStream(file);
+        try {
+            out.write(data);
+        } finally {
+            out.close();
+        }
+        return file;
+    }
+
+    static class ListenerAdapter implements FileTransfer.TransferListener {
+
+        @Override
+        public void onTransferProgress(long id, String address, boolean outgoing, long bytes, long total) {
+        }
+
+        @Override
+        public void onTransferComplete(long id, String address, boolean outgoing, boolean verified, File file) {
+        }
+    }
+}
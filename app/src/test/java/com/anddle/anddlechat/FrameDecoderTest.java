@@ -0,0 +1,160 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class FrameDecoderTest {
+
+    @Test
+    public void mergedFramesAreSplitApart() throws Exception {
+        byte[] stream = concat(frame("hello"), frame("world"), frame(""), frame("!"));
+
+        List<String> frames = decodeAll(new FrameDecoder(64), new ByteArrayInputStream(stream));
+
+        assertEquals(Arrays.asList("hello", "world", "", "!"), frames);
+    }
+
+    @Test
+    public void splitFramesAreJoined() throws Exception {
+        byte[] stream = concat(frame("first message"), frame("second message"));
+
+        List<String> frames = decodeAll(new FrameDecoder(64), new TrickleInputStream(stream, 1));
+
+        assertEquals(Arrays.asList("first message", "second message"), frames);
+    }
+
+    @Test
+    public void framesWrappingTheRingAreReassembled() throws Exception {
+        Random random = new Random(42);
+        List<String> expected = new ArrayList<>();
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(int i = 0; i < 500; i++) {
+            char[] chars = new char[random.nextInt(40)];
+            Arrays.fill(chars, (char) ('a' + i % 26));
+            String text = new String(chars);
+            expected.add(text);
+            out.write(frame(text));
+        }
+
+        List<String> frames = decodeAll(new FrameDecoder(64), new TrickleInputStream(out.toByteArray(), 7));
+
+        assertEquals(expected, frames);
+    }
+
+    @Test
+    public void contiguousFramesAreSlicesOfTheRing() throws Exception {
+        final List<byte[]> buffers = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(1024);
+        InputStream in = new ByteArrayInputStream(concat(frame("one"), frame("two"), frame("three")));
+
+        decoder.readFrom(in, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                buffers.add(buffer);
+            }
+        });
+
+        assertEquals(3, buffers.size());
+        assertSame(buffers.get(0), buffers.get(1));
+        assertSame(buffers.get(1), buffers.get(2));
+    }
+
+    @Test
+    public void framesLargerThanTheRingAreDelivered() throws Exception {
+        byte[] big = new byte[1024 * 1024];
+        new Random(1).nextBytes(big);
+        byte[] stream = concat(frame("before"), FrameCodec.encode(FrameCodec.TYPE_DATA, big), frame("after"));
+
+        final List<byte[]> frames = new ArrayList<>();
+        FrameDecoder decoder = new FrameDecoder(1024);
+        InputStream in = new TrickleInputStream(stream, 1000);
+        while(decoder.readFrom(in, new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                frames.add(Arrays.copyOfRange(buffer, offset, offset + length));
+            }
+        })) {
+        }
+
+        assertEquals(3, frames.size());
+        assertEquals("before", new String(frames.get(0), "UTF-8"));
+        assertArrayEquals(big, frames.get(1));
+        assertEquals("after", new String(frames.get(2), "UTF-8"));
+    }
+
+    @Test
+    public void frameTypeIsReported() throws Exception {
+        final List<Integer> types = new ArrayList<>();
+        byte[] stream = concat(FrameCodec.encode(7, new byte[] {1}), frame("x"));
+
+        new FrameDecoder(64).readFrom(new ByteArrayInputStream(stream), new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                types.add(type);
+            }
+        });
+
+        assertEquals(Arrays.asList(7, FrameCodec.TYPE_DATA), types);
+    }
+
+    @Test(expected = IOException.class)
+    public void oversizedLengthIsRejected() throws Exception {
+        byte[] header = new byte[FrameCodec.HEADER_SIZE];
+        FrameCodec.writeHeader(header, 0, FrameCodec.TYPE_DATA, 1024);
+
+        decodeAll(new FrameDecoder(64, 512), new ByteArrayInputStream(header));
+    }
+
+    static byte[] frame(String text) throws IOException {
+        return FrameCodec.encode(FrameCodec.TYPE_DATA, text.getBytes("UTF-8"));
+    }
+
+    static byte[] concat(byte[]... parts) throws IOException {
+        ByteArrayOutputStream out = new ByteArrayOutputStream();
+        for(byte[] part : parts) {
+            out.write(part);
+        }
+        return out.toByteArray();
+    }
+
+    static List<String> decodeAll(FrameDecoder decoder, InputStream in) throws IOException {
+        final List<String> frames = new ArrayList<>();
+        FrameDecoder.FrameListener listener = new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) throws IOException {
+                frames.add(new String(buffer, offset, length, "UTF-8"));
+            }
+        };
+        while(decoder.readFrom(in, listener)) {
+        }
+        return frames;
+    }
+
+    /**
+     * Returns at most {@code chunk} bytes per read, like a slow socket.
+     */
+    static class TrickleInputStream extends ByteArrayInputStream {
+
+        private final int mChunk;
+
+        TrickleInputStream(byte[] data, int chunk) {
+            super(data);
+            mChunk = chunk;
+        }
+
+        @Override
+        public synchronized int read(byte[] b, int off, int len) {
+            return super.read(b, off, Math.min(len, mChunk));
+        }
+    }
+}
@@ -0,0 +1,118 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.lang.management.ManagementFactory;
+import java.util.Arrays;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+public class HistogramTest {
+
+    @Test
+    public void everyValueFallsIntoABucketThatHoldsIt() {
+        Random random = new Random(16);
+        for(int i = 0; i < 100000; i++) {
+            long value = i < 1000 ? i : random.nextLong() >>> (1 + random.nextInt(63));
+            int bucket = Histogram.bucketOf(value);
+            assertTrue(value + " above its bucket", value <= Histogram.highestValueOf(bucket));
+            assertTrue(value + " below its bucket", bucket == 0 || value > Histogram.highestValueOf(bucket - 1));
+        }
+        assertEquals(Long.MAX_VALUE, Histogram.highestValueOf(Histogram.bucketOf(Long.MAX_VALUE)));
+    }
+
+    @Test
+    public void percentilesAreWithinABucketOfTheExactOnes() {
+        Random random = new Random(17);
+        Histogram histogram = new Histogram();
+        long[] values = new long[50000];
+        for(int i = 0; i < values.length; i++) {
+            // roughly log-normal, like latencies
+            values[i] = (long) Math.exp(10 + 2 * random.nextGaussian());
+            histogram.record(values[i]);
+        }
+        Arrays.sort(values);
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(values.length, snapshot.getCount());
+        assertEquals(values[0], snapshot.getMin());
+        assertEquals(values[values.length - 1], snapshot.getMax());
+        for(double fraction : new double[] {0.01, 0.5, 0.9, 0.99, 0.999, 1}) {
+            long exact = LinkBenchmark.percentile(values, fraction);
+            long estimate = snapshot.getPercentile(fraction);
+            assertTrue("p" + fraction + " " + estimate + " below " + exact, estimate >= exact);
+            assertTrue("p" + fraction + " " + estimate + " too far above " + exact, estimate <= exact + exact / 8 + 1);
+        }
+    }
+
+    @Test
+    public void resetEmptiesTheHistogram() {
+        Histogram histogram = new Histogram();
+        histogram.record(-5);
+        histogram.record(42);
+        assertEquals(0, histogram.snapshot().getMin());
+
+        histogram.reset();
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(0, snapshot.getCount());
+        assertEquals(0, snapshot.getMax());
+        assertEquals(0, snapshot.getPercentile(0.99));
+
+        histogram.record(7);
+        assertEquals(7, histogram.snapshot().getMin());
+        assertEquals(7, histogram.snapshot().getPercentile(0.5));
+    }
+
+    @Test
+    public void concurrentRecordsAreAllCounted() throws Exception {
+        final Histogram histogram = new Histogram();
+        final MetricsRegistry.Counter counter = new MetricsRegistry().counter("test");
+        Thread[] threads = new Thread[4];
+        for(int t = 0; t < threads.length; t++) {
+            final int offset = t;
+            threads[t] = new Thread() {
+                @Override
+                public void run() {
+                    for(int i = 0; i < 100000; i++) {
+                        histogram.record(offset * 100000 + i);
+                        counter.increment();
+                    }
+                }
+            };
+            threads[t].start();
+        }
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        Histogram.Snapshot snapshot = histogram.snapshot();
+        assertEquals(400000, snapshot.getCount());
+        assertEquals(400000, counter.get());
+        assertEquals(0, snapshot.getMin());
+        assertEquals(399999, snapshot.getMax());
+    }
+
+    @Test
+    public void recordingAllocatesNothing() {
+        Histogram histogram = new Histogram();
+        MetricsRegistry.Counter counter = new MetricsRegistry().counter("test");
+        for(int i = 0; i < 100000; i++) {
+            histogram.record(i);
+            counter.add(i);
+        }
+
+        long allocatedBytes = currentThreadAllocatedBytes();
+        for(int i = 0; i < 100000; i++) {
+            histogram.record(i * 31L);
+            counter.add(i);
+        }
+        long allocated = currentThreadAllocatedBytes() - allocatedBytes;
+        assertTrue("allocated " + allocated + " bytes for 100000 records", allocated < 1024);
+    }
+
+    private static long currentThreadAllocatedBytes() {
+        com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+        return bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+    }
+}
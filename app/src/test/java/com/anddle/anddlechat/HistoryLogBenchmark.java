@@ -0,0 +1,80 @@
+package com.anddle.anddlechat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Append throughput and random page-read latency of {@link HistoryLog} at a million messages.
+ */
+public class HistoryLogBenchmark {
+
+    private static final int MESSAGES = 1000000;
+    private static final int PAGE_SIZE = 50;
+    private static final int PAGE_READS = 20000;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    @Test
+    public void appendAndRandomPageReads() throws Exception {
+        Random random = new Random(5);
+        byte[][] texts = new byte[64][];
+        for(int i = 0; i < texts.length; i++) {
+            StringBuilder text = new StringBuilder();
+            int length = 8 + random.nextInt(120);
+            while(text.length() < length) {
+                text.append(random.nextInt(3) == 0 ? "你好" : "hello ");
+            }
+            texts[i] = text.toString().getBytes("UTF-8");
+        }
+
+        HistoryLog log = new HistoryLog(mFolder.getRoot());
+        long bytes = 0;
+        long start = System.nanoTime();
+        for(int i = 0; i < MESSAGES; i++) {
+            byte[] text = texts[i & 63];
+            log.append(i & 1, i, text);
+            bytes += text.length;
+        }
+        long appendNanos = System.nanoTime() - start;
+        System.out.println(String.format(Locale.US, "append: %d messages in %.1f ms, %.0f messages/s, %.1f MB/s, %d segments",
+                MESSAGES, appendNanos / 1e6, MESSAGES * 1e9 / appendNanos, bytes * 1e9 / appendNanos / (1024 * 1024),
+                log.getSegmentCount()));
+
+        start = System.nanoTime();
+        log.close();
+        log = new HistoryLog(mFolder.getRoot());
+        System.out.println(String.format(Locale.US, "reopen: %.1f ms", (System.nanoTime() - start) / 1e6));
+        assertEquals(MESSAGES, log.getNextSequence());
+
+        final long[] checksum = new long[1];
+        HistoryLog.RecordReader reader = new HistoryLog.RecordReader() {
+            @Override
+            public void onRecord(long sequence, int sender, long timestamp, byte[] content, int offset, int length) {
+                checksum[0] += timestamp + length;
+            }
+        };
+        long[] latencies = new long[PAGE_READS];
+        for(int round = 0; round < 2; round++) {
+            for(int i = 0; i < PAGE_READS; i++) {
+                long from = (long) (random.nextDouble() * (MESSAGES - PAGE_SIZE));
+                long readStart = System.nanoTime();
+                assertEquals(PAGE_SIZE, log.read(from, PAGE_SIZE, reader));
+                latencies[i] = System.nanoTime() - readStart;
+            }
+        }
+        Arrays.sort(latencies);
+        System.out.println(String.format(Locale.US, "random %d-message page reads: p50 %.1f us, p99 %.1f us, max %.1f us",
+                PAGE_SIZE, LinkBenchmark.percentile(latencies, 0.50) / 1e3, LinkBenchmark.percentile(latencies, 0.99) / 1e3,
+                latencies[latencies.length - 1] / 1e3));
+        assertTrue(checksum[0] > 0);
+        log.close();
+    }
+}
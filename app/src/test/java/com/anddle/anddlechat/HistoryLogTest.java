@@ -0,0 +1,144 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.io.File;
+import java.io.RandomAccessFile;
+import java.util.List;
+
+import static org.junit.Assert.*;
+
+public class HistoryLogTest {
+
+    private static final int SEGMENT_SIZE = 4096;
+    private static final int INDEX_INTERVAL = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private HistoryLog mLog;
+
+    @After
+    public void tearDown() throws Exception {
+        if(mLog != null) {
+            mLog.close();
+        }
+    }
+
+    @Test
+    public void rangeReadsCrossSegments() throws Exception {
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        for(int i = 0; i < 1000; i++) {
+            assertEquals(i, mLog.append(i % 2, 1000L + i, text(i).getBytes("UTF-8")));
+        }
+        assertTrue(mLog.getSegmentCount() > 5);
+
+        for(int from : new int[] {0, 1, 3, 4, 5, 97, 500, 990}) {
+            List<ChatMessage> messages = mLog.read(from, 30);
+            assertEquals(Math.min(30, 1000 - from), messages.size());
+            for(int i = 0; i < messages.size(); i++) {
+                assertMessage(from + i, messages.get(i));
+            }
+        }
+        assertTrue(mLog.read(1000, 10).isEmpty());
+    }
+
+    @Test
+    public void reopenedLogKeepsMessagesAndNumbering() throws Exception {
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        for(int i = 0; i < 500; i++) {
+            mLog.append(i % 2, 1000L + i, text(i).getBytes("UTF-8"));
+        }
+        mLog.close();
+
+        // a lost index is rebuilt from its segment
+        File[] indexes = mFolder.getRoot().listFiles();
+        for(File file : indexes) {
+            if(file.getName().endsWith(".idx")) {
+                assertTrue(file.delete());
+                break;
+            }
+        }
+
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        assertEquals(500, mLog.getNextSequence());
+        assertEquals(500, mLog.append(0, 1500, text(500).getBytes("UTF-8")));
+        List<ChatMessage> messages = mLog.read(0, 501);
+        for(int i = 0; i <= 500; i++) {
+            assertMessage(i, messages.get(i));
+        }
+    }
+
+    @Test
+    public void tornTailIsDroppedOnOpen() throws Exception {
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        for(int i = 0; i < 10; i++) {
+            mLog.append(i % 2, 1000L + i, text(i).getBytes("UTF-8"));
+        }
+        mLog.close();
+
+        // a crash while writing message 9 left its length in place but not all of its content
+        File segment = new File(mFolder.getRoot(), String.format("%020d.log", 0));
+        RandomAccessFile file = new RandomAccessFile(segment, "rw");
+        long position = 0;
+        for(int i = 0; i < 9; i++) {
+            file.seek(position);
+            position += 8 + file.readInt();
+        }
+        file.seek(position + 8 + 9 + 2);
+        file.write(0);
+        file.close();
+
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        assertEquals(9, mLog.getNextSequence());
+        assertEquals(9, mLog.append(0, 2000, "after the crash".getBytes("UTF-8")));
+        mLog.close();
+
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        List<ChatMessage> messages = mLog.read(0, 20);
+        assertEquals(10, messages.size());
+        assertMessage(8, messages.get(8));
+        assertEquals("after the crash", messages.get(9).messageContent);
+        assertEquals(2000, messages.get(9).messageTime);
+    }
+
+    @Test
+    public void readersSeeAppendsFromAnotherThread() throws Exception {
+        mLog = new HistoryLog(mFolder.getRoot(), SEGMENT_SIZE, INDEX_INTERVAL);
+        Thread writer = new Thread() {
+            @Override
+            public void run() {
+                try {
+                    for(int i = 0; i < 5000; i++) {
+                        mLog.append(i % 2, 1000L + i, text(i).getBytes("UTF-8"));
+                    }
+                } catch (Exception e) {
+                    throw new AssertionError(e);
+                }
+            }
+        };
+        writer.start();
+        while(writer.isAlive() || mLog.getNextSequence() < 5000) {
+            long available = mLog.getNextSequence();
+            long from = Math.max(0, available - 20);
+            List<ChatMessage> messages = mLog.read(from, 20);
+            for(int i = 0; i < messages.size(); i++) {
+                assertMessage((int) from + i, messages.get(i));
+            }
+        }
+        writer.join();
+    }
+
+    private static String text(int i) {
+        return "message " + i + (i % 3 == 0 ? " 你好，在吗？" : "") + (i % 7 == 0 ? " with a somewhat longer tail" : "");
+    }
+
+    private static void assertMessage(int i, ChatMessage message) {
+        assertEquals(text(i), message.messageContent);
+        assertEquals(i % 2, message.messageSender);
+        assertEquals(1000L + i, message.messageTime);
+    }
+}
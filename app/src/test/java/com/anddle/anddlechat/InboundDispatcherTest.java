@@ -0,0 +1,104 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class InboundDispatcherTest {
+
+    private final List<Runnable> mFrames = new ArrayList<>();
+    private final List<List<Integer>> mBatches = new ArrayList<>();
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    private final InboundDispatcher<Integer> mDispatcher = new InboundDispatcher<>(new InboundDispatcher.FrameScheduler() {
+        @Override
+        public void postFrame(Runnable callback) {
+            synchronized (mFrames) {
+                mFrames.add(callback);
+            }
+        }
+    }, new InboundDispatcher.BatchListener<Integer>() {
+        @Override
+        public void onBatch(List<Integer> batch) {
+            mBatches.add(new ArrayList<>(batch));
+            if(batch.get(0) == 0) {
+                // posted while a batch is being published, so it waits for the next frame
+                mDispatcher.post(-1);
+            }
+        }
+    }, mMetrics);
+
+    @Test
+    public void burstFromSeveralThreadsIsPublishedAsOneBatch() throws Exception {
+        final CountDownLatch start = new CountDownLatch(1);
+        List<Thread> threads = new ArrayList<>();
+        for(int t = 0; t < 4; t++) {
+            final int thread = t;
+            threads.add(new Thread() {
+                @Override
+                public void run() {
+                    try {
+                        start.await();
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    for(int i = 0; i < 125; i++) {
+                        mDispatcher.post(1 + thread * 125 + i);
+                    }
+                }
+            });
+            threads.get(t).start();
+        }
+        start.countDown();
+        for(Thread thread : threads) {
+            thread.join();
+        }
+
+        assertEquals("one frame is asked for per batch", 1, mFrames.size());
+        runFrames();
+        assertEquals(1, mBatches.size());
+        assertEquals(500, mBatches.get(0).size());
+        assertEquals(1, mDispatcher.getBatchCount());
+        assertEquals(500, mDispatcher.getMaxBatchSize());
+        assertEquals(500.0, mDispatcher.getMeanBatchSize(), 0);
+        assertTrue(mDispatcher.getMaxLatencyNanos() >= mDispatcher.getMeanLatencyNanos());
+        assertTrue(mDispatcher.getMeanLatencyNanos() > 0);
+
+        Histogram.Snapshot batchSize = mMetrics.histogram(InboundDispatcher.METRIC_BATCH_SIZE).snapshot();
+        assertEquals(1, batchSize.getCount());
+        assertEquals(500, batchSize.getMax());
+        Histogram.Snapshot latency = mMetrics.histogram(InboundDispatcher.METRIC_LATENCY_NANOS).snapshot();
+        assertEquals(500, latency.getCount());
+        assertEquals(mDispatcher.getMaxLatencyNanos(), latency.getMax());
+    }
+
+    @Test
+    public void itemsPostedDuringPublishingWaitForTheNextFrame() throws Exception {
+        mDispatcher.post(0);
+        mDispatcher.post(1);
+        runFrames();
+
+        assertEquals(2, mBatches.size());
+        assertEquals(2, mBatches.get(0).size());
+        assertEquals(Integer.valueOf(-1), mBatches.get(1).get(0));
+        assertEquals(3, mDispatcher.getItemCount());
+        assertTrue(mFrames.isEmpty());
+    }
+
+    private void runFrames() {
+        while(true) {
+            Runnable frame;
+            synchronized (mFrames) {
+                if(mFrames.isEmpty()) {
+                    return;
+                }
+                frame = mFrames.remove(0);
+            }
+            frame.run();
+        }
+    }
+}
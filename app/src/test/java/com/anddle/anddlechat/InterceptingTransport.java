@@ -0,0 +1,84 @@
+package com.anddle.anddlechat;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Wraps another {@link Transport} so tests can slow down or break the output stream of every
+ * connection it opens.
+ */
+class InterceptingTransport implements Transport {
+
+    interface OutputInterceptor {
+
+        OutputStream wrap(String address, OutputStream out);
+    }
+
+    private final Transport mTransport;
+    private final OutputInterceptor mInterceptor;
+
+    InterceptingTransport(Transport transport, OutputInterceptor interceptor) {
+        mTransport = transport;
+        mInterceptor = interceptor;
+    }
+
+    @Override
+    public ServerEndpoint listen() throws IOException {
+        final ServerEndpoint endpoint = mTransport.listen();
+        return new ServerEndpoint() {
+            @Override
+            public Connection accept() throws IOException {
+                return new InterceptedConnection(endpoint.accept());
+            }
+
+            @Override
+            public void close() throws IOException {
+                endpoint.close();
+            }
+        };
+    }
+
+    @Override
+    public Connection open(String address) throws IOException {
+        return new InterceptedConnection(mTransport.open(address));
+    }
+
+    private class InterceptedConnection implements Connection {
+
+        private final Connection mConnection;
+        private OutputStream mOut;
+
+        InterceptedConnection(Connection connection) {
+            mConnection = connection;
+        }
+
+        @Override
+        public void connect() throws IOException {
+            mConnection.connect();
+        }
+
+        @Override
+        public InputStream getInputStream() throws IOException {
+            return mConnection.getInputStream();
+        }
+
+        @Override
+        public synchronized OutputStream getOutputStream() throws IOException {
+            if(mOut == null) {
+                mOut = mInterceptor.wrap(mConnection.getRemoteAddress(), mConnection.getOutputStream());
+            }
+            return mOut;
+        }
+
+        @Override
+        public String getRemoteAddress() {
+            return mConnection.getRemoteAddress();
+        }
+
+        @Override
+        public void close() throws IOException {
+            mConnection.close();
+        }
+    }
+}
@@ -0,0 +1,180 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.Assert.*;
+
+public class IoWorkersTest {
+
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    @Test
+    public void loopsReuseOneNamedThreadAndInterruptsStayWithTheirLoop() throws Exception {
+        IoWorkers workers = new IoWorkers("Io", 1, 10 * 1000, mMetrics.counter("threads"));
+        final AtomicReference<String> name = new AtomicReference<>();
+        final CountDownLatch running = new CountDownLatch(1);
+        IoWorkers.Loop blocked = new IoWorkers.Loop() {
+            @Override
+            public void run() {
+                name.set(Thread.currentThread().getName());
+                running.countDown();
+                try {
+                    Thread.sleep(60 * 1000);
+                } catch (InterruptedException e) {
+                    // stopped
+                }
+            }
+        };
+        assertTrue(blocked.startOn(workers, "Reader-a"));
+        LinkBenchmark.await(running, "loop to run");
+        assertEquals("Reader-a", name.get());
+
+        // the only worker is busy
+        assertFalse(new IoWorkers.Loop() {
+            @Override
+            public void run() {
+            }
+        }.startOn(workers, "Reader-b"));
+
+        blocked.interrupt();
+        blocked.await();
+
+        final AtomicBoolean interrupted = new AtomicBoolean(true);
+        IoWorkers.Loop next = new IoWorkers.Loop() {
+            @Override
+            public void run() {
+                name.set(Thread.currentThread().getName());
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        };
+        // the worker may not be back waiting for work the moment the last loop ends
+        LinkBenchmark.waitUntil("worker to be free", startsOn(workers, next, "Reader-c"));
+        next.await();
+        assertEquals("Reader-c", name.get());
+        assertFalse(interrupted.get());
+        assertEquals(1, mMetrics.counter("threads").get());
+    }
+
+    @Test
+    public void loopInterruptedBeforeItRunsStartsInterrupted() throws Exception {
+        IoWorkers workers = new IoWorkers("Io", 1, 10 * 1000, mMetrics.counter("threads"));
+        final AtomicBoolean interrupted = new AtomicBoolean();
+        IoWorkers.Loop loop = new IoWorkers.Loop() {
+            @Override
+            public void run() {
+                interrupted.set(Thread.currentThread().isInterrupted());
+            }
+        };
+        loop.interrupt();
+        assertTrue(loop.startOn(workers, "Writer-a"));
+        loop.await();
+        assertTrue(interrupted.get());
+
+        // a loop that never started has nothing to wait for
+        new IoWorkers.Loop() {
+            @Override
+            public void run() {
+            }
+        }.await();
+    }
+
+    @Test
+    public void connectionsBeyondTheThreadLimitAreRefused() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "server"), mMetrics);
+        server.setMaxPeers(3);
+        // one to accept, a reader and a writer for the first peer
+        server.setMaxIoThreads(3);
+        final ConnectionManager first = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "c1"), new MetricsRegistry());
+        final ConnectionManager second = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "c2"), new MetricsRegistry());
+        try {
+            startListen(server);
+            first.connect("server");
+            LinkBenchmark.waitUntil("c1 to connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getConnectState("c1") == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+
+            second.connect("server");
+            LinkBenchmark.waitUntil("c2 to be refused", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return second.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+                }
+            });
+            assertEquals(Arrays.asList("c1"), server.getConnectedPeers());
+            assertEquals(ConnectionManager.LISTEN_STATE_LISTENING, server.getCurrentListenState());
+            assertEquals(3, mMetrics.counter(ConnectionManager.METRIC_IO_THREADS_CREATED).get());
+        } finally {
+            first.disconnect();
+            second.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+
+    @Test
+    public void reconnectingReusesThreads() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "server"), new MetricsRegistry());
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "client"), mMetrics);
+        try {
+            startListen(server);
+            for(int i = 0; i < 20; i++) {
+                client.connect("server");
+                LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                                && server.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+                    }
+                });
+                client.disconnect();
+                LinkBenchmark.waitUntil("disconnect", new Callable<Boolean>() {
+                    @Override
+                    public Boolean call() {
+                        return server.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+                    }
+                });
+            }
+            // a reader and a writer, plus a few for loops that hadn't quite let go of theirs yet
+            assertTrue(mMetrics.counter(ConnectionManager.METRIC_IO_THREADS_CREATED).get() <= 6);
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+
+    private static void startListen(final ConnectionManager server) throws Exception {
+        server.startListen();
+        LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return server.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+            }
+        });
+    }
+
+    private static Callable<Boolean> startsOn(final IoWorkers workers, final IoWorkers.Loop loop, final String name) {
+        return new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return loop.startOn(workers, name);
+            }
+        };
+    }
+}
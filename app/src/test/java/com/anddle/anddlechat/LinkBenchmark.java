@@ -0,0 +1,188 @@
+package com.anddle.anddlechat;
+
+import java.util.Arrays;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Pushes messages from one {@link ConnectionManager} to another through a {@link Transport} and
+ * measures the whole sendData -> onReadData path.
+ */
+class LinkBenchmark {
+
+    private static final long TIMEOUT_SECONDS = 60;
+
+    static class Result {
+
+        final String name;
+        final int messages;
+        final int messageSize;
+        final long elapsedNanos;
+        final long p50Nanos;
+        final long p99Nanos;
+
+        Result(String name, int messages, int messageSize, long elapsedNanos, long[] latencies) {
+            this.name = name;
+            this.messages = messages;
+            this.messageSize = messageSize;
+            this.elapsedNanos = elapsedNanos;
+            Arrays.sort(latencies);
+            this.p50Nanos = percentile(latencies, 0.50);
+            this.p99Nanos = percentile(latencies, 0.99);
+        }
+
+        double messagesPerSecond() {
+            return messages * 1e9 / elapsedNanos;
+        }
+
+        double megabytesPerSecond() {
+            return (double) messages * messageSize * 1e9 / elapsedNanos / (1024 * 1024);
+        }
+
+        @Override
+        public String toString() {
+            return String.format(Locale.US, "%-28s %7d x %5dB  %10.0f msgs/s  %8.2f MB/s  p50=%7.1fus  p99=%8.1fus",
+                    name, messages, messageSize, messagesPerSecond(), megabytesPerSecond(),
+                    p50Nanos / 1e3, p99Nanos / 1e3);
+        }
+    }
+
+    static long percentile(long[] sorted, double p) {
+        if(sorted.length == 0) {
+            return 0;
+        }
+        int index = (int) Math.ceil(p * sorted.length) - 1;
+        return sorted[Math.max(0, Math.min(sorted.length - 1, index))];
+    }
+
+    /**
+     * Connects {@code client} to {@code server}, which must be listening at {@code serverAddress}
+     * once {@link ConnectionManager#startListen()} returns a LISTENING state, then sends
+     * {@code count} messages of {@code size} bytes and waits until all of them have been read.
+     */
+    static Result run(String name, Transport server, final Transport client, AddressSource serverAddress,
+                      final int count, final int size) throws Exception {
+
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(2);
+        final CountDownLatch done = new CountDownLatch(1);
+        final AtomicLongArray sendTimes = new AtomicLongArray(count);
+        final long[] latencies = new long[count];
+
+        ConnectionManager receiver = new ConnectionManager(new ListenerAdapter() {
+
+            private int mCompleted;
+
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(PooledBuffer data) {
+                int length = data.length();
+                data.release();
+                if(length != size) {
+                    throw new AssertionError("message " + mCompleted + " has " + length + " bytes, expected " + size);
+                }
+                latencies[mCompleted] = System.nanoTime() - sendTimes.get(mCompleted);
+                mCompleted++;
+                if(mCompleted == count) {
+                    done.countDown();
+                }
+            }
+        }, server);
+
+        ConnectionManager sender = new ConnectionManager(new ListenerAdapter() {
+
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+        }, client);
+
+        try {
+            receiver.startListen();
+            await(listening, "listen");
+            sender.connect(serverAddress.get());
+            await(connected, "connect");
+
+            byte[] payload = new byte[size];
+            Arrays.fill(payload, (byte) 'a');
+
+            long start = System.nanoTime();
+            for(int i = 0; i < count; i++) {
+                sendTimes.set(i, System.nanoTime());
+                while(!sender.sendData(payload)) {
+                    if(sender.getCurrentConnectState() != ConnectionManager.CONNECT_STATE_CONNECTED) {
+                        throw new AssertionError("connection lost at message " + i);
+                    }
+                    Thread.yield();
+                }
+            }
+            await(done, "receive");
+            long elapsed = System.nanoTime() - start;
+
+            return new Result(name, count, size, elapsed, latencies);
+        } finally {
+            sender.disconnect();
+            receiver.disconnect();
+            receiver.stopListen();
+        }
+    }
+
+    static void await(CountDownLatch latch, String what) throws InterruptedException {
+        if(!latch.await(TIMEOUT_SECONDS, TimeUnit.SECONDS)) {
+            throw new AssertionError("timed out waiting for " + what);
+        }
+    }
+
+    static void waitUntil(String what, Callable<Boolean> condition) throws Exception {
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(TIMEOUT_SECONDS);
+        while(!condition.call()) {
+            if(System.nanoTime() > deadline) {
+                throw new AssertionError("timed out waiting for " + what);
+            }
+            Thread.sleep(1);
+        }
+    }
+
+    interface AddressSource {
+
+        String get();
+    }
+
+    static class ListenerAdapter implements ConnectionManager.ConnectionListener {
+
+        @Override
+        public void onConnectStateChange(int oldState, int State) {
+        }
+
+        @Override
+        public void onListenStateChange(int oldState, int State) {
+        }
+
+        @Override
+        public void onSendData(boolean suc, byte[] data) {
+        }
+
+        @Override
+        public void onReadData(PooledBuffer data) {
+            data.release();
+        }
+    }
+}
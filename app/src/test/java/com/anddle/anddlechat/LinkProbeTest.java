@@ -0,0 +1,192 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.OutputStream;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Round trips and clock offsets over a pipe link whose writes are held back to simulate a slow
+ * radio, between two ends whose clocks disagree.
+ */
+public class LinkProbeTest {
+
+    private static final long MS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long TOLERANCE = 10 * MS;
+
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+    private final AtomicInteger mSamples = new AtomicInteger();
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private LinkProbe mServerProbe;
+    private LinkProbe mClientProbe;
+
+    @After
+    public void tearDown() {
+        if(mClientProbe != null) {
+            mClientProbe.stop();
+        }
+        if(mClient != null) {
+            mClient.disconnect();
+        }
+        if(mServer != null) {
+            mServer.disconnect();
+            mServer.stopListen();
+        }
+    }
+
+    @Test
+    public void symmetricDelayGivesTheRoundTripAndTheTrueOffset() throws Exception {
+        long skew = TimeUnit.SECONDS.toNanos(3);
+        connect(20, 20, skew);
+        pingAndWait(10);
+
+        long rtt = mClientProbe.getRttPercentile("server", 0.5);
+        assertTrue("rtt " + rtt, rtt >= 40 * MS && rtt < 40 * MS + TOLERANCE);
+        long offset = mClientProbe.getClockOffsetNanos("server");
+        assertTrue("offset " + offset, Math.abs(offset - skew) < TOLERANCE);
+
+        // something the server stamps now reached us "now", give or take the offset error
+        long latency = mClientProbe.getOneWayLatencyNanos("server", LinkProbe.SYSTEM_CLOCK.nanos() + skew);
+        assertTrue("one-way latency " + latency, Math.abs(latency) < TOLERANCE);
+    }
+
+    @Test
+    public void asymmetricDelayBiasesTheOffsetByAtMostHalfTheRoundTrip() throws Exception {
+        connect(30, 0, 0);
+        pingAndWait(10);
+
+        long rtt = mClientProbe.getRttPercentile("server", 0);
+        long offset = mClientProbe.getClockOffsetNanos("server");
+        assertTrue("rtt " + rtt, rtt >= 30 * MS);
+        // the clocks agree, but the slow way out looks like the server being ahead
+        assertTrue("offset " + offset, offset > 10 * MS);
+        assertTrue("offset " + offset + " outside rtt/2 " + rtt / 2, Math.abs(offset) <= rtt / 2 + MS);
+    }
+
+    @Test
+    public void samplesReachTheListenerAndTheMetrics() throws Exception {
+        connect(5, 5, -TimeUnit.SECONDS.toNanos(1));
+        pingAndWait(5);
+
+        assertEquals(5, mClientProbe.getSampleCount("server"));
+        MetricsRegistry.Snapshot snapshot = mMetrics.snapshot();
+        assertEquals(5, snapshot.getCounter(LinkProbe.METRIC_PINGS_SENT));
+        assertEquals(5, snapshot.getCounter(LinkProbe.METRIC_PONGS_RECEIVED));
+        Histogram.Snapshot rtt = snapshot.getHistogram(LinkProbe.METRIC_RTT_NANOS);
+        assertEquals(5, rtt.getCount());
+        assertTrue(rtt.getMin() >= 10 * MS);
+    }
+
+    @Test
+    public void connectedPeersArePingedOnTheInterval() throws Exception {
+        connect(0, 0, 0);
+        mClientProbe.start(10);
+        waitForSamples(5);
+        mClientProbe.stop();
+
+        assertTrue(mClientProbe.getSampleCount("server") >= 5);
+        assertTrue(mClientProbe.getRttPercentile("server", 0.99) >= 0);
+        assertEquals(-1, mClientProbe.getRttPercentile("nobody", 0.5));
+    }
+
+    private void pingAndWait(int count) throws Exception {
+        for(int i = 1; i <= count; i++) {
+            assertTrue(mClientProbe.ping("server"));
+            waitForSamples(i);
+        }
+    }
+
+    private void waitForSamples(final int count) throws Exception {
+        LinkBenchmark.waitUntil(count + " samples", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mSamples.get() >= count;
+            }
+        });
+    }
+
+    /**
+     * Connects a client whose writes take {@code outMillis} to a server whose writes take
+     * {@code backMillis} and whose clock is {@code skewNanos} ahead.
+     */
+    private void connect(int outMillis, int backMillis, final long skewNanos) throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(2);
+        PipeTransport.Network network = new PipeTransport.Network();
+        LinkBenchmark.ListenerAdapter server = new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+        };
+        LinkBenchmark.ListenerAdapter client = new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+        };
+
+        mServer = new ConnectionManager(server,
+                new InterceptingTransport(new PipeTransport(network, "server"), delayed(backMillis)), new MetricsRegistry());
+        mClient = new ConnectionManager(client,
+                new InterceptingTransport(new PipeTransport(network, "client"), delayed(outMillis)), mMetrics);
+        mServerProbe = new LinkProbe(mServer, null, new LinkProbe.Clock() {
+            @Override
+            public long nanos() {
+                return LinkProbe.SYSTEM_CLOCK.nanos() + skewNanos;
+            }
+        });
+        mClientProbe = new LinkProbe(mClient, new LinkProbe.Listener() {
+            @Override
+            public void onLinkSample(String address, long rttNanos, long clockOffsetNanos) {
+                assertEquals("server", address);
+                mSamples.incrementAndGet();
+            }
+        });
+
+        mServer.startListen();
+        LinkBenchmark.await(listening, "listen");
+        mClient.connect("server");
+        LinkBenchmark.await(connected, "connect");
+    }
+
+    private static InterceptingTransport.OutputInterceptor delayed(final int millis) {
+        return new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        try {
+                            Thread.sleep(millis);
+                        } catch (InterruptedException e) {
+                            throw new InterruptedIOException();
+                        }
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        };
+    }
+}
@@ -0,0 +1,266 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+/**
+ * Multi-node simulations of {@link MeshRelay} over the in-process transport.
+ */
+public class MeshRelayTest {
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final List<Node> mNodes = new ArrayList<>();
+    private final Map<Long, Long> mSendTimes = new ConcurrentHashMap<>();
+
+    @After
+    public void tearDown() {
+        for(Node node : mNodes) {
+            node.manager.disconnect();
+            node.manager.stopListen();
+        }
+    }
+
+    @Test
+    public void messageIsRelayedAcrossAnIntermediateNode() throws Exception {
+        Node a = node("A"), b = node("B"), c = node("C");
+        link(a, b);
+        link(b, c);
+
+        a.relay.send("C", "hi C".getBytes("UTF-8"));
+
+        waitForDeliveries(c, 1);
+        Delivery delivery = c.deliveries.get(0);
+        assertEquals("A", delivery.origin);
+        assertEquals("hi C", delivery.text);
+        assertEquals(2, delivery.hops);
+        assertTrue(b.deliveries.isEmpty());
+    }
+
+    @Test
+    public void duplicatesFromParallelPathsAreSuppressed() throws Exception {
+        Node a = node("A"), b = node("B"), c = node("C"), d = node("D");
+        link(a, b);
+        link(b, c);
+        link(c, d);
+        link(d, a);
+
+        a.relay.send("C", "around the ring".getBytes("UTF-8"));
+
+        waitForDeliveries(c, 1);
+        LinkBenchmark.waitUntil("second copy to arrive", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mNodes.get(2).relay.getDuplicateCount() == 1;
+            }
+        });
+        assertEquals(1, c.relay.getDeliveredCount());
+        assertEquals(1, c.deliveries.size());
+    }
+
+    @Test
+    public void messageIsStoredUntilARouteAppears() throws Exception {
+        final Node a = node("A"), b = node("B"), c = node("C");
+        link(a, b);
+
+        a.relay.send("C", "later".getBytes("UTF-8"));
+        LinkBenchmark.waitUntil("B to store the message", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mNodes.get(1).relay.getPendingCount() == 1;
+            }
+        });
+        assertTrue(c.deliveries.isEmpty());
+
+        link(c, b);
+
+        waitForDeliveries(c, 1);
+        assertEquals("later", c.deliveries.get(0).text);
+        assertEquals(0, b.relay.getPendingCount());
+    }
+
+    @Test
+    public void storedMessageIsNotHandedBackToWhereItCameFrom() throws Exception {
+        final Node a = node("A"), b = node("B"), c = node("C");
+        link(a, b);
+
+        a.relay.send("C", "not for A".getBytes("UTF-8"));
+        LinkBenchmark.waitUntil("B to store the message", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mNodes.get(1).relay.getPendingCount() == 1;
+            }
+        });
+
+        // A comes back first; it has seen the message and would drop it
+        a.manager.disconnect("B");
+        LinkBenchmark.waitUntil("A and B to part", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mNodes.get(1).manager.getConnectState("A") == ConnectionManager.CONNECT_STATE_IDLE;
+            }
+        });
+        link(a, b);
+        assertEquals(1, b.relay.getPendingCount());
+
+        link(c, b);
+        waitForDeliveries(c, 1);
+        assertEquals("not for A", c.deliveries.get(0).text);
+        assertEquals(0, a.relay.getDuplicateCount());
+    }
+
+    @Test
+    public void hopLimitStopsForwarding() throws Exception {
+        Node a = node("A", 2), b = node("B", 2), c = node("C", 2), d = node("D", 2);
+        link(a, b);
+        link(b, c);
+        link(c, d);
+
+        a.relay.send("D", "too far".getBytes("UTF-8"));
+
+        LinkBenchmark.waitUntil("C to drop the message", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mNodes.get(2).relay.getDroppedCount() == 1;
+            }
+        });
+        assertTrue(d.deliveries.isEmpty());
+    }
+
+    @Test
+    public void meshDeliversEveryMessageOnceToItsDestination() throws Exception {
+        int size = 8;
+        for(int i = 0; i < size; i++) {
+            node("N" + i);
+        }
+        for(int i = 0; i < size; i++) {
+            link(mNodes.get(i), mNodes.get((i + 1) % size));
+        }
+        link(mNodes.get(0), mNodes.get(4));
+        link(mNodes.get(2), mNodes.get(6));
+
+        final int messages = 400;
+        Map<Long, String> destinations = new HashMap<>();
+        Random random = new Random(7);
+        for(int i = 0; i < messages; i++) {
+            int from = random.nextInt(size);
+            int to = (from + 1 + random.nextInt(size - 1)) % size;
+            long start = System.nanoTime();
+            long id = mNodes.get(from).relay.send("N" + to, new byte[64]);
+            mSendTimes.put(id, start);
+            destinations.put(id, "N" + to);
+        }
+
+        LinkBenchmark.waitUntil("all deliveries", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                int delivered = 0;
+                for(Node node : mNodes) {
+                    delivered += node.deliveries.size();
+                }
+                return delivered == messages;
+            }
+        });
+        // let the remaining flooded copies drain before counting duplicates
+        Thread.sleep(200);
+
+        for(Node node : mNodes) {
+            for(Delivery delivery : node.deliveries) {
+                // only at its destination, only once, within the hop limit
+                assertEquals(node.name, destinations.remove(delivery.id));
+                assertTrue(delivery.hops >= 1 && delivery.hops <= MeshRelay.DEFAULT_HOP_LIMIT);
+                assertTrue(delivery.time > mSendTimes.get(delivery.id));
+            }
+            assertEquals(node.deliveries.size(), node.relay.getDeliveredCount());
+        }
+        assertTrue(destinations.isEmpty());
+    }
+
+    private Node node(String name) throws Exception {
+        return node(name, MeshRelay.DEFAULT_HOP_LIMIT);
+    }
+
+    private Node node(String name, int hopLimit) throws Exception {
+        Node node = new Node(mNetwork, name, hopLimit);
+        mNodes.add(node);
+        return node;
+    }
+
+    private static void link(final Node from, final Node to) throws Exception {
+        from.manager.connect(to.name);
+        LinkBenchmark.waitUntil(from.name + " <-> " + to.name, new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return from.manager.getConnectState(to.name) == ConnectionManager.CONNECT_STATE_CONNECTED
+                        && to.manager.getConnectState(from.name) == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+    }
+
+    private static void waitForDeliveries(final Node node, final int count) throws Exception {
+        LinkBenchmark.waitUntil(node.name + " deliveries", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return node.deliveries.size() >= count;
+            }
+        });
+    }
+
+    static class Delivery {
+
+        final String origin;
+        final long id;
+        final int hops;
+        final String text;
+        final long time;
+
+        Delivery(String origin, long id, int hops, String text, long time) {
+            this.origin = origin;
+            this.id = id;
+            this.hops = hops;
+            this.text = text;
+            this.time = time;
+        }
+    }
+
+    static class Node {
+
+        final String name;
+        final ConnectionManager manager;
+        final MeshRelay relay;
+        final List<Delivery> deliveries = Collections.synchronizedList(new ArrayList<Delivery>());
+
+        Node(PipeTransport.Network network, String name, int hopLimit) throws Exception {
+            this.name = name;
+            final CountDownLatch listening = new CountDownLatch(1);
+            manager = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+                @Override
+                public void onListenStateChange(int oldState, int State) {
+                    if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                        listening.countDown();
+                    }
+                }
+            }, new PipeTransport(network, name));
+            manager.setMaxPeers(8);
+            relay = new MeshRelay(manager, name, new MeshRelay.RelayListener() {
+                @Override
+                public void onRelayMessage(String origin, long messageId, int hops, byte[] data) {
+                    deliveries.add(new Delivery(origin, messageId, hops, new String(data), System.nanoTime()));
+                }
+            }, hopLimit, 1024, 64);
+            manager.startListen();
+            LinkBenchmark.await(listening, "listen");
+        }
+    }
+}
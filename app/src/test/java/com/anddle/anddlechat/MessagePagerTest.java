@@ -0,0 +1,231 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.TemporaryFolder;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.Executor;
+
+import static org.junit.Assert.*;
+
+public class MessagePagerTest {
+
+    private static final int PAGE_SIZE = 20;
+    private static final int MAX_PAGES = 4;
+
+    @Rule
+    public TemporaryFolder mFolder = new TemporaryFolder();
+
+    private final QueueExecutor mLoader = new QueueExecutor();
+    private final QueueExecutor mMain = new QueueExecutor();
+    private final List<int[]> mLoaded = new ArrayList<>();
+    private final List<int[]> mAppended = new ArrayList<>();
+    private HistoryLog mLog;
+
+    @After
+    public void tearDown() throws Exception {
+        if(mLog != null) {
+            mLog.close();
+        }
+    }
+
+    @Test
+    public void pagesAreLoadedAsynchronouslyAroundTheVisibleRange() throws Exception {
+        MessagePager pager = open(1000);
+        assertEquals(1000, pager.getCount());
+        assertNull(pager.get(999));
+        assertEquals(0, pager.getCachedMessageCount());
+
+        runAll();
+        assertEquals("message 999", pager.get(999).messageContent);
+        assertEquals(MAX_PAGES * PAGE_SIZE, pager.getCachedMessageCount());
+
+        pager.setVisibleRange(400, 415);
+        assertNull(pager.get(400));
+        runAll();
+        for(int i = 400; i <= 415; i++) {
+            assertEquals("message " + i, pager.get(i).messageContent);
+        }
+        assertNull("pages by the end were evicted", peek(pager, 999));
+        assertNotNull("an older page was prefetched", peek(pager, 400 - PAGE_SIZE));
+        assertTrue(containsRange(mLoaded, 400));
+    }
+
+    @Test
+    public void memoryStaysFlatWithTheLengthOfTheConversation() throws Exception {
+        int[] sizes = {1000, 100000};
+        int[] cached = new int[sizes.length];
+        for(int s = 0; s < sizes.length; s++) {
+            if(mLog != null) {
+                mLog.close();
+            }
+            mLog = null;
+            MessagePager pager = open(sizes[s]);
+            for(int first = sizes[s] - 10; first > 0; first -= Math.max(7, sizes[s] / 300)) {
+                pager.setVisibleRange(first, first + 10);
+                runAll();
+                cached[s] = Math.max(cached[s], pager.getCachedMessageCount());
+            }
+        }
+        assertEquals(cached[0], cached[1]);
+        assertTrue(cached[1] <= MAX_PAGES * PAGE_SIZE);
+    }
+
+    @Test
+    public void appendedMessagesShowUpAtTheEnd() throws Exception {
+        MessagePager pager = open(PAGE_SIZE - 2);
+        runAll();
+
+        for(int i = PAGE_SIZE - 2; i < PAGE_SIZE + 3; i++) {
+            byte[] text = ("message " + i).getBytes("UTF-8");
+            pager.append(i % 2, text, 0, text.length);
+        }
+        mMain.runAll();
+        assertEquals(PAGE_SIZE + 3, pager.getCount());
+        assertEquals(1, mAppended.size());
+        assertArrayEquals(new int[] {PAGE_SIZE - 2, 5}, mAppended.get(0));
+        assertEquals("message " + (PAGE_SIZE - 1), pager.get(PAGE_SIZE - 1).messageContent);
+
+        // the new page only comes in once the list scrolls to it
+        pager.setVisibleRange(PAGE_SIZE, PAGE_SIZE + 2);
+        runAll();
+        assertEquals("message " + (PAGE_SIZE + 2), pager.get(PAGE_SIZE + 2).messageContent);
+        assertEquals((PAGE_SIZE + 2) % 2, pager.get(PAGE_SIZE + 2).messageSender);
+    }
+
+    @Test
+    public void aBurstOfAppendsIsOneInsert() throws Exception {
+        MessagePager pager = open(0);
+        runAll();
+
+        for(int i = 0; i < 500; i++) {
+            byte[] text = ("message " + i).getBytes("UTF-8");
+            pager.append(i % 2, text, 0, text.length);
+        }
+        mMain.runAll();
+        assertEquals(1, mAppended.size());
+        assertArrayEquals(new int[] {0, 500}, mAppended.get(0));
+        assertEquals(500, pager.getInboundDispatcher().getMaxBatchSize());
+        assertEquals("message 0", pager.get(0).messageContent);
+    }
+
+    @Test
+    public void outOfOrderAppendsReloadThePage() throws Exception {
+        MessagePager pager = open(5);
+        runAll();
+
+        // two I/O threads append 5 and 6, but 6 reaches the main thread first
+        mLog.append(0, 0, "message 5".getBytes("UTF-8"));
+        byte[] text = "message 6".getBytes("UTF-8");
+        pager.append(0, text, 0, text.length);
+        mMain.runAll();
+        assertNull(pager.get(5));
+        runAll();
+        assertEquals("message 5", pager.get(5).messageContent);
+        assertEquals("message 6", pager.get(6).messageContent);
+    }
+
+    @Test
+    public void withoutALogMessagesStayInMemory() throws Exception {
+        MessagePager pager = new MessagePager(null, mLoader, mMain, new MessagePager.Listener() {
+            @Override
+            public void onMessagesLoaded(int position, int count) {
+                mLoaded.add(new int[] {position, count});
+            }
+
+            @Override
+            public void onMessagesAppended(int position, int count) {
+                mAppended.add(new int[] {position, count});
+            }
+        }, PAGE_SIZE, MAX_PAGES);
+        assertEquals(0, pager.getCount());
+
+        int messages = PAGE_SIZE * (MAX_PAGES + 2) + 5;
+        for(int i = 0; i < messages; i++) {
+            byte[] text = ("message " + i).getBytes("UTF-8");
+            pager.append(i % 2, text, 0, text.length);
+        }
+        mMain.runAll();
+        assertArrayEquals(new int[] {0, messages}, mAppended.get(0));
+
+        // pages out of the window can't be read back, so none are dropped
+        pager.setVisibleRange(0, 5);
+        pager.setVisibleRange(messages - 5, messages - 1);
+        for(int i = 0; i < messages; i++) {
+            assertEquals("message " + i, pager.get(i).messageContent);
+        }
+        assertEquals(0, mLoader.runAll());
+        assertTrue(mLoaded.isEmpty());
+    }
+
+    private MessagePager open(int messages) throws Exception {
+        mLog = new HistoryLog(mFolder.newFolder(), 64 * 1024, 16);
+        for(int i = 0; i < messages; i++) {
+            mLog.append(i % 2, i, ("message " + i).getBytes("UTF-8"));
+        }
+        return new MessagePager(mLog, mLoader, mMain, new MessagePager.Listener() {
+            @Override
+            public void onMessagesLoaded(int position, int count) {
+                mLoaded.add(new int[] {position, count});
+            }
+
+            @Override
+            public void onMessagesAppended(int position, int count) {
+                mAppended.add(new int[] {position, count});
+            }
+        }, PAGE_SIZE, MAX_PAGES);
+    }
+
+    private void runAll() {
+        while(mLoader.runAll() + mMain.runAll() > 0) {
+        }
+    }
+
+    /**
+     * Looks at a position without loading it. The pager thinks the dropped load is still running,
+     * so this can only be the last thing a test does with it.
+     */
+    private ChatMessage peek(MessagePager pager, int position) {
+        ChatMessage message = pager.get(position);
+        mLoader.clear();
+        return message;
+    }
+
+    private static boolean containsRange(List<int[]> ranges, int position) {
+        for(int[] range : ranges) {
+            if(position >= range[0] && position < range[0] + range[1]) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private static class QueueExecutor implements Executor {
+
+        private final Queue<Runnable> mQueue = new ArrayDeque<>();
+
+        @Override
+        public void execute(Runnable command) {
+            mQueue.add(command);
+        }
+
+        int runAll() {
+            int ran = 0;
+            Runnable command;
+            while((command = mQueue.poll()) != null) {
+                command.run();
+                ran++;
+            }
+            return ran;
+        }
+
+        void clear() {
+            mQueue.clear();
+        }
+    }
+}
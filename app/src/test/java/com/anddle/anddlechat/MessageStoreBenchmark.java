@@ -0,0 +1,124 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Heap held by 100k messages of a mixed CJK/Latin chat: a list of {@link ChatMessage}, the way
+ * the ArrayAdapter kept them, against a {@link MessageStore}. Also the cost of decoding a row's
+ * text at bind time, which is what the store trades for the space. The grown store carries the
+ * slack of its last doubling; a presized one, like a pager page, doesn't.
+ */
+public class MessageStoreBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 100000;
+    private static final String[] WORDS = {
+            "你好", "在吗", "收到了", "明天见", "ok", "hello", "thanks", "see you", "哈哈哈", "on my way",
+    };
+
+    @Test
+    public void heapPerMessage() throws Exception {
+        Random random = new Random(15);
+        byte[][] contents = new byte[MESSAGES][];
+        long bytes = 0;
+        for(int i = 0; i < MESSAGES; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 1 + random.nextInt(12);
+            for(int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(' ');
+            }
+            contents[i] = text.toString().getBytes(UTF_8);
+            bytes += contents[i].length;
+        }
+
+        // each representation is built from an empty heap and kept reachable while it is measured
+        final byte[][] messages = contents;
+        long objects = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                List<ChatMessage> list = new ArrayList<>();
+                for(int i = 0; i < MESSAGES; i++) {
+                    ChatMessage message = new ChatMessage();
+                    message.messageSender = i % 2;
+                    message.messageTime = i;
+                    message.messageContent = new String(messages[i], UTF_8);
+                    list.add(message);
+                }
+                return list;
+            }
+        });
+        final MessageStore store = new MessageStore();
+        long columns = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                for(int i = 0; i < MESSAGES; i++) {
+                    store.add(i % 2, i, messages[i], 0, messages[i].length);
+                }
+                return store;
+            }
+        });
+        assertEquals(MESSAGES, store.size());
+        final long total = bytes;
+        long presized = retainedBytes(new Builder() {
+            @Override
+            public Object build() {
+                MessageStore store = new MessageStore(MESSAGES, (int) total);
+                for(int i = 0; i < MESSAGES; i++) {
+                    store.add(i % 2, i, messages[i], 0, messages[i].length);
+                }
+                return store;
+            }
+        });
+
+        System.out.println(String.format(Locale.US, "%d messages, %.1f UTF-8 bytes each on average",
+                MESSAGES, (double) bytes / MESSAGES));
+        System.out.println(String.format(Locale.US, "%-26s %8.1f bytes/message", "List<ChatMessage>",
+                (double) objects / MESSAGES));
+        System.out.println(String.format(Locale.US, "%-26s %8.1f bytes/message", "MessageStore",
+                (double) columns / MESSAGES));
+        System.out.println(String.format(Locale.US, "%-26s %8.1f bytes/message", "MessageStore, presized",
+                (double) presized / MESSAGES));
+
+        long best = Long.MAX_VALUE;
+        int chars = 0;
+        for(int round = 0; round < 5; round++) {
+            long start = System.nanoTime();
+            for(int i = 0; i < MESSAGES; i++) {
+                chars += store.getText(i).length();
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        assertTrue(chars > 0);
+        System.out.println(String.format(Locale.US, "%-26s %8.0f ns/message", "decode at bind",
+                (double) best / MESSAGES));
+    }
+
+    private interface Builder {
+        Object build();
+    }
+
+    private static long retainedBytes(Builder builder) throws InterruptedException {
+        long base = usedHeap();
+        Object built = builder.build();
+        long retained = usedHeap() - base;
+        assertNotNull(built);
+        return retained;
+    }
+
+    private static long usedHeap() throws InterruptedException {
+        Runtime runtime = Runtime.getRuntime();
+        for(int i = 0; i < 3; i++) {
+            System.gc();
+            Thread.sleep(20);
+        }
+        return runtime.totalMemory() - runtime.freeMemory();
+    }
+}
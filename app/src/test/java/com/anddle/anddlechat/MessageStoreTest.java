@@ -0,0 +1,77 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+
+import static org.junit.Assert.*;
+
+public class MessageStoreTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+
+    @Test
+    public void messagesComeBackAsAdded() {
+        MessageStore store = new MessageStore(1, 1);
+        for(int i = 0; i < 1000; i++) {
+            byte[] content = ("message " + i + " " + Utf8DecoderTest.MIXED).getBytes(UTF_8);
+            assertEquals(i, store.add(i % 2, 1000L + i, content, 0, content.length));
+        }
+
+        assertEquals(1000, store.size());
+        for(int i = 0; i < 1000; i++) {
+            String text = "message " + i + " " + Utf8DecoderTest.MIXED;
+            assertEquals(i % 2, store.getSender(i));
+            assertEquals(1000L + i, store.getTimestamp(i));
+            assertEquals(text.getBytes(UTF_8).length, store.getContentLength(i));
+            assertEquals(text, store.getText(i));
+
+            ChatMessage message = store.get(i);
+            assertEquals(i % 2, message.messageSender);
+            assertEquals(1000L + i, message.messageTime);
+            assertEquals(text, message.messageContent);
+        }
+    }
+
+    @Test
+    public void onlyTheGivenRangeIsCopied() {
+        byte[] content = "xxhelloxx".getBytes(UTF_8);
+        MessageStore store = new MessageStore();
+        store.add(ChatMessage.MSG_SENDER_ME, 1, content, 2, 5);
+        store.add(ChatMessage.MSG_SENDER_OTHERS, 2, content, 0, 0);
+        content[3] = 'a';
+
+        assertEquals("hello", store.getText(0));
+        assertEquals("", store.getText(1));
+        assertEquals(0, store.getContentLength(1));
+    }
+
+    @Test
+    public void clearKeepsNothing() {
+        byte[] content = "one".getBytes(UTF_8);
+        MessageStore store = new MessageStore();
+        store.add(ChatMessage.MSG_SENDER_ME, 1, content, 0, content.length);
+        store.clear();
+        assertEquals(0, store.size());
+
+        content = "two".getBytes(UTF_8);
+        store.add(ChatMessage.MSG_SENDER_OTHERS, 2, content, 0, content.length);
+        assertEquals("two", store.getText(0));
+        assertEquals(ChatMessage.MSG_SENDER_OTHERS, store.getSender(0));
+    }
+
+    @Test
+    public void indexesOutsideTheStoreAreRejected() {
+        MessageStore store = new MessageStore();
+        byte[] content = "one".getBytes(UTF_8);
+        store.add(ChatMessage.MSG_SENDER_ME, 1, content, 0, content.length);
+        for(int index : new int[] {-1, 1, 16}) {
+            try {
+                store.getText(index);
+                fail("index " + index);
+            } catch (IndexOutOfBoundsException e) {
+                // expected
+            }
+        }
+    }
+}
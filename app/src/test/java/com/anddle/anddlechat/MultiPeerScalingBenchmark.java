@@ -0,0 +1,107 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.Assert.*;
+
+/**
+ * Aggregate throughput of one hub receiving from 1 to 8 peers over the in-process transport.
+ */
+public class MultiPeerScalingBenchmark {
+
+    private static final int MESSAGES_PER_PEER = 10000;
+    private static final int MESSAGE_SIZE = 256;
+
+    @Test
+    public void aggregateThroughputByPeerCount() throws Exception {
+        for(int peers : new int[] {1, 2, 4, 8}) {
+            run(peers);
+        }
+    }
+
+    private void run(final int peers) throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final CountDownLatch listening = new CountDownLatch(1);
+        final AtomicLong received = new AtomicLong();
+        final long expected = (long) peers * MESSAGES_PER_PEER;
+        final CountDownLatch done = new CountDownLatch(1);
+
+        final ConnectionManager hub = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(PooledBuffer data) {
+                data.release();
+                if(received.incrementAndGet() == expected) {
+                    done.countDown();
+                }
+            }
+        }, new PipeTransport(network, "hub"));
+        hub.setMaxPeers(peers);
+
+        final List<ConnectionManager> clients = new ArrayList<>();
+        try {
+            hub.startListen();
+            LinkBenchmark.await(listening, "listen");
+            for(int i = 0; i < peers; i++) {
+                ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                        new PipeTransport(network, "peer" + i));
+                clients.add(client);
+                client.connect("hub");
+            }
+            LinkBenchmark.waitUntil("peers to connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return hub.getConnectedPeers().size() == peers;
+                }
+            });
+
+            final byte[] payload = new byte[MESSAGE_SIZE];
+            Arrays.fill(payload, (byte) 'p');
+            List<Thread> senders = new ArrayList<>();
+            for(final ConnectionManager client : clients) {
+                senders.add(new Thread() {
+                    @Override
+                    public void run() {
+                        for(int i = 0; i < MESSAGES_PER_PEER; i++) {
+                            while(!client.sendData(payload)) {
+                                Thread.yield();
+                            }
+                        }
+                    }
+                });
+            }
+
+            long start = System.nanoTime();
+            for(Thread sender : senders) {
+                sender.start();
+            }
+            LinkBenchmark.await(done, "receive");
+            long elapsed = System.nanoTime() - start;
+
+            assertEquals(expected, received.get());
+            System.out.println(String.format(Locale.US, "hub with %d peer(s): %8d msgs  %10.0f msgs/s  %8.2f MB/s",
+                    peers, expected, expected * 1e9 / elapsed,
+                    (double) expected * MESSAGE_SIZE * 1e9 / elapsed / (1024 * 1024)));
+        } finally {
+            for(ConnectionManager client : clients) {
+                client.disconnect();
+            }
+            hub.disconnect();
+            hub.stopListen();
+        }
+    }
+}
@@ -0,0 +1,152 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class MultiPeerTest {
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final List<String> mHubReceived = Collections.synchronizedList(new ArrayList<String>());
+    private final List<ConnectionManager> mClients = new ArrayList<>();
+    private final List<List<String>> mClientReceived = new ArrayList<>();
+    private ConnectionManager mHub;
+
+    @Before
+    public void setUp() throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        mHub = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+        }, new PipeTransport(mNetwork, "hub"));
+        mHub.setMaxPeers(3);
+        mHub.setPeerListener(new ConnectionManager.PeerListener() {
+            @Override
+            public void onPeerConnectStateChange(String address, int oldState, int state) {
+            }
+
+            @Override
+            public void onPeerSendData(String address, boolean suc, byte[] data) {
+            }
+
+            @Override
+            public void onPeerReadData(String address, PooledBuffer data) {
+                mHubReceived.add(address + ":" + new String(data.array(), 0, data.length()));
+                data.release();
+            }
+        });
+        mHub.startListen();
+        LinkBenchmark.await(listening, "listen");
+
+        for(int i = 1; i <= 4; i++) {
+            final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+            mClientReceived.add(received);
+            mClients.add(new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+                @Override
+                public void onReadData(PooledBuffer data) {
+                    received.add(new String(data.array(), 0, data.length()));
+                    data.release();
+                }
+            }, new PipeTransport(mNetwork, "c" + i)));
+        }
+    }
+
+    @After
+    public void tearDown() {
+        for(ConnectionManager client : mClients) {
+            client.disconnect();
+        }
+        mHub.disconnect();
+        mHub.stopListen();
+    }
+
+    @Test
+    public void hubServesPeersUpToTheLimit() throws Exception {
+        connectClients(3);
+
+        mClients.get(3).connect("hub");
+        LinkBenchmark.waitUntil("refused client to go idle", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mClients.get(3).getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+            }
+        });
+
+        assertEquals(new HashSet<>(Arrays.asList("c1", "c2", "c3")), new HashSet<>(mHub.getConnectedPeers()));
+        assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, mHub.getCurrentConnectState());
+        assertEquals(ConnectionManager.CONNECT_STATE_IDLE, mHub.getConnectState("c4"));
+    }
+
+    @Test
+    public void dataIsReportedPerPeer() throws Exception {
+        connectClients(3);
+
+        assertTrue(mClients.get(1).sendData("hello".getBytes("UTF-8")));
+        assertTrue(mHub.sendData("c3", "only for c3".getBytes("UTF-8")));
+
+        LinkBenchmark.waitUntil("messages", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mHubReceived.size() == 1 && mClientReceived.get(2).size() == 1;
+            }
+        });
+        assertEquals(Collections.singletonList("c2:hello"), mHubReceived);
+        assertEquals(Collections.singletonList("only for c3"), mClientReceived.get(2));
+        assertTrue(mClientReceived.get(0).isEmpty());
+        assertTrue(mClientReceived.get(1).isEmpty());
+    }
+
+    @Test
+    public void disconnectingOnePeerKeepsTheOthers() throws Exception {
+        connectClients(3);
+
+        mHub.disconnect("c1");
+        LinkBenchmark.waitUntil("c1 to drop", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mHub.getConnectState("c1") == ConnectionManager.CONNECT_STATE_IDLE
+                        && mClients.get(0).getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+            }
+        });
+
+        assertEquals(new HashSet<>(Arrays.asList("c2", "c3")), new HashSet<>(mHub.getConnectedPeers()));
+        assertEquals(ConnectionManager.CONNECT_STATE_CONNECTED, mHub.getCurrentConnectState());
+
+        mClients.get(3).connect("hub");
+        LinkBenchmark.waitUntil("c4 to take the free slot", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mHub.getConnectState("c4") == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+    }
+
+    private void connectClients(int count) throws Exception {
+        for(int i = 0; i < count; i++) {
+            final ConnectionManager client = mClients.get(i);
+            final String address = "c" + (i + 1);
+            client.connect("hub");
+            LinkBenchmark.waitUntil(address + " to connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                            && mHub.getConnectState(address) == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+        }
+    }
+}
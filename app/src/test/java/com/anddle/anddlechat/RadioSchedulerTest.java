@@ -0,0 +1,142 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.util.concurrent.Callable;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.Assert.*;
+
+public class RadioSchedulerTest {
+
+    private static final long SCAN_MS = 10 * 1000;
+
+    private final FakeRadio mRadio = new FakeRadio(SCAN_MS);
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    @Test
+    public void connectsStopDiscoveryAndHoldScansBack() throws Exception {
+        RadioScheduler scheduler = new RadioScheduler(mRadio, 0, mMetrics);
+        assertEquals(RadioScheduler.SCAN_STARTED, scheduler.requestScan());
+        assertEquals(RadioScheduler.SCAN_RUNNING, scheduler.requestScan());
+
+        scheduler.connectStarted();
+        assertFalse(mRadio.isDiscovering());
+        assertEquals(1, mRadio.mCancels.get());
+
+        assertEquals(RadioScheduler.SCAN_DEFERRED, scheduler.requestScan());
+        assertFalse(mRadio.isDiscovering());
+        scheduler.connectEnded();
+        assertTrue(mRadio.isDiscovering());
+
+        // a scan that was running when the connect began is not started again
+        scheduler.connectStarted();
+        scheduler.connectEnded();
+        assertFalse(mRadio.isDiscovering());
+        assertEquals(2, mRadio.mStarts.get());
+        assertEquals(2, mMetrics.counter(RadioScheduler.METRIC_SCANS_STOPPED).get());
+        assertEquals(1, mMetrics.counter(RadioScheduler.METRIC_SCANS_DEFERRED).get());
+    }
+
+    @Test
+    public void transfersPauseScansUntilTheLastOneEnds() throws Exception {
+        RadioScheduler scheduler = new RadioScheduler(mRadio, 0, mMetrics);
+        Object first = new Object();
+        Object second = new Object();
+        scheduler.requestScan();
+
+        scheduler.transferStarted(first);
+        assertFalse(mRadio.isDiscovering());
+        assertTrue(scheduler.isScanPending());
+        scheduler.transferStarted(second);
+        scheduler.transferStarted(first);
+
+        scheduler.transferEnded(first);
+        scheduler.transferEnded(first);
+        assertFalse(mRadio.isDiscovering());
+        assertEquals(RadioScheduler.SCAN_DEFERRED, scheduler.requestScan());
+
+        scheduler.transferEnded(second);
+        assertTrue(mRadio.isDiscovering());
+        assertFalse(scheduler.isScanPending());
+        assertEquals(2, mRadio.mStarts.get());
+
+        // nothing was waiting this time, so nothing starts after the transfer
+        scheduler.cancelScan();
+        scheduler.transferStarted(first);
+        scheduler.transferEnded(first);
+        assertFalse(mRadio.isDiscovering());
+        assertEquals(2, mRadio.mStarts.get());
+    }
+
+    @Test
+    public void scansAskedForTooSoonWaitForTheInterval() throws Exception {
+        final FakeRadio radio = new FakeRadio(20);
+        RadioScheduler scheduler = new RadioScheduler(radio, 300, mMetrics);
+        long start = System.nanoTime();
+        assertEquals(RadioScheduler.SCAN_STARTED, scheduler.requestScan());
+        LinkBenchmark.waitUntil("scan to end", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !radio.isDiscovering();
+            }
+        });
+
+        assertEquals(RadioScheduler.SCAN_DEFERRED, scheduler.requestScan());
+        assertEquals(RadioScheduler.SCAN_DEFERRED, scheduler.requestScan());
+        assertEquals(1, radio.mStarts.get());
+        LinkBenchmark.waitUntil("second scan", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return radio.mStarts.get() == 2;
+            }
+        });
+        assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(300));
+
+        // a cancelled request never starts
+        LinkBenchmark.waitUntil("second scan to end", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return !radio.isDiscovering();
+            }
+        });
+        assertEquals(RadioScheduler.SCAN_DEFERRED, scheduler.requestScan());
+        scheduler.cancelScan();
+        Thread.sleep(400);
+        assertEquals(2, radio.mStarts.get());
+    }
+
+    @Test
+    public void connectManagerStopsDiscoveryBeforeConnecting() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "server"), new MetricsRegistry());
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                mRadio.contending(new PipeTransport(network, "client"), 5, 10), new MetricsRegistry());
+        RadioScheduler scheduler = new RadioScheduler(mRadio, 0, mMetrics);
+        client.setRadioScheduler(scheduler);
+        try {
+            server.startListen();
+            LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+                }
+            });
+            scheduler.requestScan();
+            client.connect("server");
+            LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+            assertFalse(mRadio.isDiscovering());
+            assertEquals(1, mRadio.mCancels.get());
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+}
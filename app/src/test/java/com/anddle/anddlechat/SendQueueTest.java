@@ -0,0 +1,168 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+public class SendQueueTest {
+
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mSent = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mFailed = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mWrites = new AtomicInteger();
+    private final CountDownLatch mRelease = new CountDownLatch(1);
+
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+    private CountDownLatch mReceivedLatch;
+    private CountDownLatch mReportedLatch;
+
+    @After
+    public void tearDown() {
+        mRelease.countDown();
+        if(mClient != null) {
+            mClient.disconnect();
+        }
+        if(mServer != null) {
+            mServer.disconnect();
+            mServer.stopListen();
+        }
+    }
+
+    @Test
+    public void sendDataDoesNotBlockOnAStalledLink() throws Exception {
+        connect(stalledOutput(), 10);
+
+        long start = System.nanoTime();
+        for(int i = 0; i < 10; i++) {
+            assertTrue(mClient.sendData(("message " + i).getBytes("UTF-8")));
+        }
+        assertTrue(TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start) < 1000);
+        assertEquals(0, mReceived.size());
+
+        mRelease.countDown();
+        LinkBenchmark.await(mReceivedLatch, "receive");
+        assertEquals(10, mReceived.size());
+    }
+
+    @Test
+    public void queuedMessagesAreCoalescedAndReportedInOrder() throws Exception {
+        connect(stalledOutput(), 50);
+
+        List<String> expected = new ArrayList<>();
+        for(int i = 0; i < 50; i++) {
+            expected.add("message " + i);
+            assertTrue(mClient.sendData(expected.get(i).getBytes("UTF-8")));
+        }
+        mRelease.countDown();
+
+        LinkBenchmark.await(mReceivedLatch, "receive");
+        LinkBenchmark.await(mReportedLatch, "send reports");
+        assertEquals(expected, mReceived);
+        assertEquals(expected, mSent);
+        assertTrue("expected coalesced writes, got " + mWrites.get(), mWrites.get() <= 3);
+    }
+
+    @Test
+    public void failedWriteIsReportedAsFailure() throws Exception {
+        connect(new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        throw new IOException("link broken");
+                    }
+                };
+            }
+        }, 0);
+
+        assertTrue(mClient.sendData("lost".getBytes("UTF-8")));
+
+        LinkBenchmark.await(mReportedLatch, "send report");
+        assertEquals(Collections.singletonList("lost"), mFailed);
+        assertTrue(mSent.isEmpty());
+    }
+
+    private InterceptingTransport.OutputInterceptor stalledOutput() {
+        return new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        try {
+                            mRelease.await();
+                        } catch (InterruptedException e) {
+                            throw new IOException(e);
+                        }
+                        mWrites.incrementAndGet();
+                        out.write(b, off, len);
+                    }
+                };
+            }
+        };
+    }
+
+    private void connect(InterceptingTransport.OutputInterceptor interceptor, int messages) throws Exception {
+        final CountDownLatch listening = new CountDownLatch(1);
+        final CountDownLatch connected = new CountDownLatch(2);
+        mReceivedLatch = new CountDownLatch(messages);
+        mReportedLatch = new CountDownLatch(Math.max(messages, 1));
+
+        PipeTransport.Network network = new PipeTransport.Network();
+        mServer = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+
+            @Override
+            public void onReadData(PooledBuffer data) {
+                mReceived.add(new String(data.array(), 0, data.length()));
+                data.release();
+                mReceivedLatch.countDown();
+            }
+        }, new PipeTransport(network, "server"));
+
+        mClient = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onConnectStateChange(int oldState, int State) {
+                if(State == ConnectionManager.CONNECT_STATE_CONNECTED) {
+                    connected.countDown();
+                }
+            }
+
+            @Override
+            public void onSendData(boolean suc, byte[] data) {
+                (suc ? mSent : mFailed).add(new String(data));
+                mReportedLatch.countDown();
+            }
+        }, new InterceptingTransport(new PipeTransport(network, "client"), interceptor));
+
+        mServer.startListen();
+        LinkBenchmark.await(listening, "listen");
+        mClient.connect("server");
+        LinkBenchmark.await(connected, "connect");
+    }
+}
@@ -0,0 +1,285 @@
+package com.anddle.anddlechat;
+
+import org.junit.After;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.io.FilterOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import static org.junit.Assert.*;
+
+/**
+ * Drops the client's first link in the middle of a conversation: first its writes silently go
+ * nowhere, the way frames sitting in a radio buffer are lost, then the link breaks.
+ */
+public class SessionResumptionTest {
+
+    private static final int PASS = 0;
+    private static final int SWALLOW = 1;
+    private static final int FAIL = 2;
+
+    private final PipeTransport.Network mNetwork = new PipeTransport.Network();
+    private final MetricsRegistry mClientMetrics = new MetricsRegistry();
+    private final List<String> mReceived = Collections.synchronizedList(new ArrayList<String>());
+    private final List<String> mSent = Collections.synchronizedList(new ArrayList<String>());
+    private final AtomicInteger mLinks = new AtomicInteger();
+    private volatile int mFirstLinkMode = PASS;
+    private ConnectionManager mServer;
+    private ConnectionManager mClient;
+
+    @Before
+    public void setUp() throws Exception {
+        mServer = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onReadData(PooledBuffer data) {
+                mReceived.add(new String(data.array(), 0, data.length()));
+                data.release();
+            }
+        }, new PipeTransport(mNetwork, "server"), new MetricsRegistry());
+        mServer.setSessionResumption(true);
+        mServer.startListen();
+        LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mServer.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+            }
+        });
+
+        Transport transport = new InterceptingTransport(new PipeTransport(mNetwork, "client"),
+                new InterceptingTransport.OutputInterceptor() {
+            @Override
+            public OutputStream wrap(String address, OutputStream out) {
+                final boolean first = mLinks.incrementAndGet() == 1;
+                return new FilterOutputStream(out) {
+                    @Override
+                    public void write(byte[] b, int off, int len) throws IOException {
+                        int mode = first ? mFirstLinkMode : PASS;
+                        if(mode == FAIL) {
+                            throw new IOException("link lost");
+                        }
+                        if(mode == PASS) {
+                            out.write(b, off, len);
+                        }
+                    }
+                };
+            }
+        });
+        mClient = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onSendData(boolean suc, byte[] data) {
+                mSent.add((suc ? "sent " : "failed ") + new String(data));
+            }
+        }, transport, mClientMetrics);
+        mClient.setSessionResumption(true);
+        mClient.setReconnectBackoff(10, 50, 3);
+    }
+
+    @After
+    public void tearDown() {
+        mClient.disconnect();
+        mServer.disconnect();
+        mServer.stopListen();
+    }
+
+    @Test
+    public void messagesLostWithTheLinkAreReplayedAfterReconnecting() throws Exception {
+        mClient.setAutoReconnect(true);
+        connect();
+        assertEquals("server", mClient.getLastPeerAddress());
+
+        send("m0", "m1");
+        waitForReceived(2);
+
+        mFirstLinkMode = SWALLOW;
+        send("m2", "m3", "m4");
+        waitForSent(5);
+
+        mFirstLinkMode = FAIL;
+        send("m5");
+        waitForReceived(6);
+
+        assertEquals(Arrays.asList("m0", "m1", "m2", "m3", "m4", "m5"), mReceived);
+        waitForSent(6);
+        assertEquals(Arrays.asList("sent m0", "sent m1", "sent m2", "sent m3", "sent m4", "sent m5"), mSent);
+        final MetricsRegistry.Counter replayed = mClientMetrics.counter(ConnectionManager.METRIC_REPLAYED_FRAMES);
+        LinkBenchmark.waitUntil("replay count", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return replayed.get() == 4;
+            }
+        });
+        assertTrue(mLinks.get() >= 2);
+
+        // the new link carries on the same session
+        send("m6");
+        waitForReceived(7);
+        assertEquals("m6", mReceived.get(6));
+    }
+
+    @Test
+    public void disconnectingGivesUpTheHeldMessages() throws Exception {
+        connect();
+
+        mFirstLinkMode = FAIL;
+        send("m0");
+        LinkBenchmark.waitUntil("link to drop", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+            }
+        });
+        assertTrue(mSent.isEmpty());
+
+        mClient.disconnect();
+        assertEquals(Collections.singletonList("failed m0"), mSent);
+        assertEquals(1, mLinks.get());
+        assertEquals(0, mClientMetrics.counter(ConnectionManager.METRIC_RECONNECT_ATTEMPTS).get());
+    }
+
+    @Test
+    public void reconnectingStopsAfterTheLastAttempt() throws Exception {
+        mClient.setAutoReconnect(true);
+        connect();
+
+        mServer.stopListen();
+        mServer.disconnect("client");
+        final MetricsRegistry.Counter attempts = mClientMetrics.counter(ConnectionManager.METRIC_RECONNECT_ATTEMPTS);
+        LinkBenchmark.waitUntil("three attempts", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return attempts.get() == 3;
+            }
+        });
+
+        Thread.sleep(200);
+        assertEquals(3, attempts.get());
+        assertEquals(ConnectionManager.CONNECT_STATE_IDLE, mClient.getCurrentConnectState());
+    }
+
+    @Test
+    public void dialingAnotherPeerDropsPendingReconnectsWhenOnlyOneIsAllowed() throws Exception {
+        mClient.setAutoReconnect(true);
+        mClient.setReconnectBackoff(300, 300, 3);
+        connect();
+
+        final ConnectionManager other = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(mNetwork, "other"), new MetricsRegistry());
+        other.setSessionResumption(true);
+        try {
+            other.startListen();
+            LinkBenchmark.waitUntil("other to listen", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return other.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+                }
+            });
+
+            mServer.disconnect("client");
+            LinkBenchmark.waitUntil("link to drop", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+                }
+            });
+            mClient.connect("other");
+            LinkBenchmark.waitUntil("other to connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return mClient.getConnectState("other") == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+
+            Thread.sleep(500);
+            assertEquals(0, mClientMetrics.counter(ConnectionManager.METRIC_RECONNECT_ATTEMPTS).get());
+            assertEquals(Collections.singletonList("other"), mClient.getConnectedPeers());
+        } finally {
+            other.disconnect();
+            other.stopListen();
+        }
+    }
+
+    @Test
+    public void aPeerDiallingAgainReplacesItsStaleLink() throws Exception {
+        connect();
+        send("m0");
+        waitForReceived(1);
+
+        // the same device, come back after losing a link the server never saw drop
+        final ConnectionManager redial = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(mNetwork, "client"), new MetricsRegistry());
+        redial.setSessionResumption(true);
+        try {
+            redial.connect("server");
+            LinkBenchmark.waitUntil("stale link to be replaced", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return redial.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                            && mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_IDLE;
+                }
+            });
+            assertEquals(Collections.singletonList("client"), mServer.getConnectedPeers());
+
+            assertTrue(redial.sendData("m1".getBytes("UTF-8")));
+            waitForReceived(2);
+            assertEquals(Arrays.asList("m0", "m1"), mReceived);
+        } finally {
+            redial.disconnect();
+        }
+    }
+
+    @Test
+    public void reconnectDelaysDoubleWithJitterUpToTheCap() {
+        Random random = new Random(42);
+        for(int attempt = 0; attempt < 70; attempt++) {
+            long full = Math.min(30000, 500L << Math.min(attempt, 30));
+            for(int i = 0; i < 100; i++) {
+                long delay = ConnectionManager.reconnectDelayMillis(attempt, 500, 30000, random);
+                assertTrue(attempt + ": " + delay, delay >= full / 2 && delay <= full);
+            }
+        }
+    }
+
+    private void connect() throws Exception {
+        mClient.connect("server");
+        LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mClient.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED
+                        && mServer.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+            }
+        });
+    }
+
+    private void send(String... messages) throws Exception {
+        for(String message : messages) {
+            assertTrue(message, mClient.sendData(message.getBytes("UTF-8")));
+        }
+    }
+
+    private void waitForReceived(final int count) throws Exception {
+        LinkBenchmark.waitUntil(count + " messages", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mReceived.size() >= count;
+            }
+        });
+    }
+
+    private void waitForSent(final int count) throws Exception {
+        LinkBenchmark.waitUntil(count + " send reports", new Callable<Boolean>() {
+            @Override
+            public Boolean call() {
+                return mSent.size() >= count;
+            }
+        });
+    }
+}
@@ -0,0 +1,120 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+import static org.junit.Assert.*;
+
+public class StartupTraceTest {
+
+    private final MetricsRegistry mMetrics = new MetricsRegistry();
+
+    @Test
+    public void phasesAndTimeToInteractiveAreRecorded() throws Exception {
+        StartupTrace trace = new StartupTrace(mMetrics);
+        trace.begin("views");
+        trace.begin("history_open");
+        Thread.sleep(5);
+        assertTrue(trace.end("history_open") >= 5 * 1000 * 1000);
+        assertTrue(trace.end("views") >= 0);
+        // a phase ends once
+        assertEquals(-1, trace.end("views"));
+        assertEquals(-1, trace.end("listen"));
+
+        long interactive = trace.interactive();
+        assertTrue(interactive >= 5 * 1000 * 1000);
+        assertEquals(interactive, trace.interactive());
+
+        trace.begin("listen");
+        trace.end("listen");
+        assertEquals(Arrays.asList("history_open", "views", "listen"), new ArrayList<>(trace.getPhases().keySet()));
+        assertEquals(1, mMetrics.histogram("startup.history_open_nanos").snapshot().getCount());
+        assertEquals(1, mMetrics.histogram("startup.listen_nanos").snapshot().getCount());
+        assertEquals(1, mMetrics.histogram(StartupTrace.METRIC_TIME_TO_INTERACTIVE_NANOS).snapshot().getCount());
+    }
+
+    @Test
+    public void anAbandonedTraceRecordsNothingMore() {
+        StartupTrace trace = new StartupTrace(mMetrics);
+        trace.begin("first_frame");
+        trace.begin("checks");
+        trace.end("checks");
+        trace.abandon();
+
+        assertEquals(-1, trace.end("first_frame"));
+        trace.begin("views");
+        assertEquals(-1, trace.end("views"));
+        assertEquals(-1, trace.interactive());
+        assertEquals(Arrays.asList("checks"), new ArrayList<>(trace.getPhases().keySet()));
+        assertEquals(0, mMetrics.histogram("startup.first_frame_nanos").snapshot().getCount());
+        assertEquals(0, mMetrics.histogram(StartupTrace.METRIC_TIME_TO_INTERACTIVE_NANOS).snapshot().getCount());
+    }
+
+    @Test
+    public void startListenDoesNotWaitForTheServerSocket() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final CountDownLatch registered = new CountDownLatch(1);
+        final AtomicBoolean closed = new AtomicBoolean();
+        final PipeTransport pipe = new PipeTransport(network, "server");
+        // like Bluetooth, where opening the server socket registers an SDP record first
+        final ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter(), new Transport() {
+            @Override
+            public ServerEndpoint listen() throws IOException {
+                try {
+                    registered.await();
+                } catch (InterruptedException e) {
+                    throw new IOException(e);
+                }
+                final ServerEndpoint endpoint = pipe.listen();
+                return new ServerEndpoint() {
+                    @Override
+                    public Connection accept() throws IOException {
+                        return endpoint.accept();
+                    }
+
+                    @Override
+                    public void close() throws IOException {
+                        closed.set(true);
+                        endpoint.close();
+                    }
+                };
+            }
+
+            @Override
+            public Connection open(String address) throws IOException {
+                return pipe.open(address);
+            }
+        }, mMetrics);
+        try {
+            server.startListen();
+            assertEquals(ConnectionManager.LISTEN_STATE_IDLE, server.getCurrentListenState());
+
+            // stopped before the socket was open: it is closed as soon as it is, and never listens
+            server.stopListen();
+            registered.countDown();
+            LinkBenchmark.waitUntil("socket to close", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return closed.get();
+                }
+            });
+            assertEquals(ConnectionManager.LISTEN_STATE_IDLE, server.getCurrentListenState());
+
+            server.startListen();
+            LinkBenchmark.waitUntil("listen", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return server.getCurrentListenState() == ConnectionManager.LISTEN_STATE_LISTENING;
+                }
+            });
+        } finally {
+            server.stopListen();
+        }
+    }
+}
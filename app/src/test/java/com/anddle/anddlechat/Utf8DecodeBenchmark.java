@@ -0,0 +1,136 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CodingErrorAction;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.Random;
+
+import static org.junit.Assert.*;
+
+/**
+ * Decode throughput on a mixed CJK/emoji chat corpus: {@link Utf8Decoder} against the
+ * {@code new String(data)} ChatActivity used, which depends on the platform charset, the String
+ * constructor with an explicit charset, and a JDK CharsetDecoder fed the same pieces. "Per read"
+ * rows split every message into pieces the size of a raw stream read, which is where
+ * stateless decoding breaks characters apart.
+ */
+public class Utf8DecodeBenchmark {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final int MESSAGES = 50000;
+    private static final int READ_SIZE = 61;
+    private static final String[] WORDS = {
+            "你好", "在吗", "收到了", "明天见", "😀", "👍🏽", "🇨🇳", "ok", "hello", "thanks", "ñandú", "𠜎", "哈哈哈",
+    };
+
+    private interface Approach {
+        String decode(byte[] data, int offset, int length);
+    }
+
+    @Test
+    public void decodeThroughput() throws Exception {
+        Random random = new Random(4);
+        List<byte[]> messages = new ArrayList<>();
+        List<String> texts = new ArrayList<>();
+        long bytes = 0;
+        for(int i = 0; i < MESSAGES; i++) {
+            StringBuilder text = new StringBuilder();
+            int words = 1 + random.nextInt(30);
+            for(int w = 0; w < words; w++) {
+                text.append(WORDS[random.nextInt(WORDS.length)]).append(w % 4 == 3 ? "，" : " ");
+            }
+            texts.add(text.toString());
+            messages.add(text.toString().getBytes(UTF_8));
+            bytes += messages.get(i).length;
+        }
+
+        final Utf8Decoder decoder = new Utf8Decoder();
+        final CharsetDecoder jdk = UTF_8.newDecoder()
+                .onMalformedInput(CodingErrorAction.REPLACE).onUnmappableCharacter(CodingErrorAction.REPLACE);
+        final ByteBuffer in = ByteBuffer.allocate(64 * 1024);
+        final CharBuffer out = CharBuffer.allocate(64 * 1024);
+
+        run("new String(data), per message", messages, texts, bytes, new Approach() {
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                return new String(data, offset, length);
+            }
+        }, Integer.MAX_VALUE);
+        run("new String(data, UTF_8), per message", messages, texts, bytes, new Approach() {
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                return new String(data, offset, length, UTF_8);
+            }
+        }, Integer.MAX_VALUE);
+        run("new String(data, UTF_8), per read", messages, texts, bytes, new Approach() {
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                return new String(data, offset, length, UTF_8);
+            }
+        }, READ_SIZE);
+        run("CharsetDecoder, per read", messages, texts, bytes, new Approach() {
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                in.put(data, offset, length);
+                in.flip();
+                jdk.decode(in, out, false);
+                in.compact();
+                out.flip();
+                String text = out.toString();
+                out.clear();
+                return text;
+            }
+        }, READ_SIZE);
+        run("Utf8Decoder, per message", messages, texts, bytes, new Approach() {
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                return decoder.decodeMessage(data, offset, length);
+            }
+        }, Integer.MAX_VALUE);
+        run("Utf8Decoder, per read", messages, texts, bytes, new Approach() {
+            @Override
+            public String decode(byte[] data, int offset, int length) {
+                decoder.decode(data, offset, length);
+                return decoder.takeString();
+            }
+        }, READ_SIZE);
+    }
+
+    /**
+     * Decodes every message, in pieces of at most {@code readSize} bytes the way a raw stream read
+     * would hand them over, and counts the messages that didn't come out intact.
+     */
+    private static void run(String name, List<byte[]> messages, List<String> texts, long bytes,
+                            Approach approach, int readSize) {
+        long best = Long.MAX_VALUE;
+        int corrupted = 0;
+        StringBuilder text = new StringBuilder();
+        for(int round = 0; round < 5; round++) {
+            corrupted = 0;
+            long start = System.nanoTime();
+            for(int i = 0; i < messages.size(); i++) {
+                byte[] data = messages.get(i);
+                text.setLength(0);
+                for(int offset = 0; offset < data.length; offset += readSize) {
+                    text.append(approach.decode(data, offset, Math.min(readSize, data.length - offset)));
+                }
+                if(!texts.get(i).contentEquals(text)) {
+                    corrupted++;
+                }
+            }
+            best = Math.min(best, System.nanoTime() - start);
+        }
+        System.out.println(String.format(Locale.US, "%-38s %8.1f MB/s  %6.0f ns/message  %d corrupted",
+                name, bytes * 1e9 / best / (1024 * 1024), (double) best / messages.size(), corrupted));
+        if(name.startsWith("Utf8Decoder")) {
+            assertEquals(0, corrupted);
+        }
+    }
+}
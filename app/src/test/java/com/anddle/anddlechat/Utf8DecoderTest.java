@@ -0,0 +1,110 @@
+package com.anddle.anddlechat;
+
+import org.junit.Test;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CountDownLatch;
+
+import static org.junit.Assert.*;
+
+public class Utf8DecoderTest {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    static final String MIXED = "hello 你好，在吗？ 😀👍🏽 ok… ñandú 𠜎𠜱 收到了 🇨🇳 end";
+
+    @Test
+    public void sequencesSplitAcrossCallsAreCarriedOver() {
+        byte[] bytes = MIXED.getBytes(UTF_8);
+        Utf8Decoder decoder = new Utf8Decoder();
+        for(int split = 0; split <= bytes.length; split++) {
+            decoder.decode(bytes, 0, split);
+            decoder.decode(bytes, split, bytes.length - split);
+            decoder.finish();
+            assertEquals("split at " + split, MIXED, decoder.takeString());
+        }
+
+        StringBuilder text = new StringBuilder();
+        for(int i = 0; i < bytes.length; i++) {
+            decoder.decode(bytes, i, 1);
+            text.append(decoder.takeString());
+        }
+        decoder.finish();
+        text.append(decoder.takeString());
+        assertEquals(MIXED, text.toString());
+    }
+
+    @Test
+    public void malformedInputBecomesReplacementCharacters() {
+        Utf8Decoder decoder = new Utf8Decoder();
+        assertEquals("a�b", decode(decoder, 'a', 0x80, 'b'));
+        assertEquals("��", decode(decoder, 0xc0, 0x80));
+        assertEquals("�", decode(decoder, 0xe0, 0x80, 0x80));
+        assertEquals("�", decode(decoder, 0xed, 0xa0, 0x80));
+        assertEquals("�x", decode(decoder, 0xe4, 0xbd, 'x'));
+        assertEquals("x�", decode(decoder, 'x', 0xf0, 0x9f, 0x98));
+        assertEquals("next", decode(decoder, 'n', 'e', 'x', 't'));
+    }
+
+    @Test
+    public void textListenerGetsDecodedMessages() throws Exception {
+        PipeTransport.Network network = new PipeTransport.Network();
+        final CountDownLatch listening = new CountDownLatch(1);
+        final List<String> received = Collections.synchronizedList(new ArrayList<String>());
+        ConnectionManager server = new ConnectionManager(new LinkBenchmark.ListenerAdapter() {
+            @Override
+            public void onListenStateChange(int oldState, int State) {
+                if(State == ConnectionManager.LISTEN_STATE_LISTENING) {
+                    listening.countDown();
+                }
+            }
+        }, new PipeTransport(network, "server"));
+        server.setTextListener(new ConnectionManager.TextListener() {
+            @Override
+            public void onReadText(String address, String text, PooledBuffer data) {
+                assertEquals(text, new String(data.array(), 0, data.length(), UTF_8));
+                received.add(address + ":" + text);
+                data.release();
+            }
+        });
+        final ConnectionManager client = new ConnectionManager(new LinkBenchmark.ListenerAdapter(),
+                new PipeTransport(network, "client"));
+
+        try {
+            server.startListen();
+            LinkBenchmark.await(listening, "listen");
+            client.connect("server");
+            LinkBenchmark.waitUntil("connect", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return client.getCurrentConnectState() == ConnectionManager.CONNECT_STATE_CONNECTED;
+                }
+            });
+            client.sendData(MIXED.getBytes(UTF_8));
+            client.sendData("第二条".getBytes(UTF_8));
+            LinkBenchmark.waitUntil("messages", new Callable<Boolean>() {
+                @Override
+                public Boolean call() {
+                    return received.size() == 2;
+                }
+            });
+            assertEquals("client:" + MIXED, received.get(0));
+            assertEquals("client:第二条", received.get(1));
+        } finally {
+            client.disconnect();
+            server.disconnect();
+            server.stopListen();
+        }
+    }
+
+    private static String decode(Utf8Decoder decoder, int... values) {
+        byte[] bytes = new byte[values.length];
+        for(int i = 0; i < values.length; i++) {
+            bytes[i] = (byte) values[i];
+        }
+        return decoder.decodeMessage(bytes, 0, bytes.length);
+    }
+}
@@ -0,0 +1,38 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Only here so BluetoothTransport and RadioScheduler compile on a plain JVM, which has no
+ * Bluetooth: there is no default adapter, as on a device without one.
+ */
+public final class BluetoothAdapter {
+
+    private BluetoothAdapter() {
+    }
+
+    public static BluetoothAdapter getDefaultAdapter() {
+        return null;
+    }
+
+    public BluetoothDevice getRemoteDevice(String address) {
+        throw new UnsupportedOperationException("no Bluetooth on the JVM");
+    }
+
+    public BluetoothServerSocket listenUsingRfcommWithServiceRecord(String name, UUID uuid) throws IOException {
+        throw new IOException("no Bluetooth on the JVM");
+    }
+
+    public boolean startDiscovery() {
+        return false;
+    }
+
+    public boolean cancelDiscovery() {
+        return false;
+    }
+
+    public boolean isDiscovering() {
+        return false;
+    }
+}
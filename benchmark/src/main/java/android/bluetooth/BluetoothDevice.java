@@ -0,0 +1,21 @@
+package android.bluetooth;
+
+import java.io.IOException;
+import java.util.UUID;
+
+/**
+ * Compile-time stand-in, see {@link BluetoothAdapter}.
+ */
+public final class BluetoothDevice {
+
+    private BluetoothDevice() {
+    }
+
+    public String getAddress() {
+        throw new UnsupportedOperationException("no Bluetooth on the JVM");
+    }
+
+    public BluetoothSocket createRfcommSocketToServiceRecord(UUID uuid) throws IOException {
+        throw new IOException("no Bluetooth on the JVM");
+    }
+}
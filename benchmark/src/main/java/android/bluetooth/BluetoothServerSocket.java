@@ -0,0 +1,21 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+
+/**
+ * Compile-time stand-in, see {@link BluetoothAdapter}.
+ */
+public final class BluetoothServerSocket implements Closeable {
+
+    private BluetoothServerSocket() {
+    }
+
+    public BluetoothSocket accept() throws IOException {
+        throw new IOException("no Bluetooth on the JVM");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
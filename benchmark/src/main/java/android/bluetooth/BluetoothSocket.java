@@ -0,0 +1,35 @@
+package android.bluetooth;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Compile-time stand-in, see {@link BluetoothAdapter}.
+ */
+public final class BluetoothSocket implements Closeable {
+
+    private BluetoothSocket() {
+    }
+
+    public void connect() throws IOException {
+        throw new IOException("no Bluetooth on the JVM");
+    }
+
+    public InputStream getInputStream() throws IOException {
+        throw new IOException("no Bluetooth on the JVM");
+    }
+
+    public OutputStream getOutputStream() throws IOException {
+        throw new IOException("no Bluetooth on the JVM");
+    }
+
+    public BluetoothDevice getRemoteDevice() {
+        throw new UnsupportedOperationException("no Bluetooth on the JVM");
+    }
+
+    @Override
+    public void close() throws IOException {
+    }
+}
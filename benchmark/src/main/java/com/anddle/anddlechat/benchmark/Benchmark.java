@@ -0,0 +1,38 @@
+package com.anddle.anddlechat.benchmark;
+
+/**
+ * One operation to time. The runner calls {@link #run} with batches big enough to take a few
+ * tens of milliseconds and reports the time per operation.
+ */
+public abstract class Benchmark {
+
+    private static volatile long sSink;
+
+    private final String mName;
+
+    protected Benchmark(String name) {
+        mName = name;
+    }
+
+    public String getName() {
+        return mName;
+    }
+
+    public void setUp() throws Exception {
+    }
+
+    /**
+     * Performs the operation {@code ops} times.
+     */
+    public abstract void run(int ops) throws Exception;
+
+    public void tearDown() throws Exception {
+    }
+
+    /**
+     * Keeps a result alive so the JIT can't drop the work that produced it.
+     */
+    protected static void consume(long value) {
+        sSink += value;
+    }
+}
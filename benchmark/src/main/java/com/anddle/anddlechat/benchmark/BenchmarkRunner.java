@@ -0,0 +1,188 @@
+package com.anddle.anddlechat.benchmark;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.Locale;
+import java.util.Map;
+import java.util.regex.Pattern;
+
+/**
+ * Runs the {@link MessagingBenchmarks} and writes the median time per operation of each to a
+ * results file, one "name&lt;tab&gt;ns/op" line per benchmark. Given a baseline in the same format,
+ * it lists the change against it and exits with status 1 if any benchmark got slower by more than
+ * the threshold.
+ *
+ * Arguments: [--output file] [--baseline file] [--threshold fraction] [--filter regex]
+ */
+public class BenchmarkRunner {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final double DEFAULT_THRESHOLD = 0.25;
+    private static final long BATCH_NANOS = 50000000;
+    private static final int WARMUP_BATCHES = 10;
+    private static final int MEASURED_BATCHES = 15;
+
+    public static void main(String[] args) throws Exception {
+        String output = null;
+        String baseline = null;
+        double threshold = DEFAULT_THRESHOLD;
+        Pattern filter = null;
+        for(int i = 0; i < args.length; i++) {
+            if(args[i].equals("--output") && i + 1 < args.length) {
+                output = args[++i];
+            }
+            else if(args[i].equals("--baseline") && i + 1 < args.length) {
+                baseline = args[++i];
+            }
+            else if(args[i].equals("--threshold") && i + 1 < args.length) {
+                threshold = Double.parseDouble(args[++i]);
+            }
+            else if(args[i].equals("--filter") && i + 1 < args.length) {
+                filter = Pattern.compile(args[++i]);
+            }
+            else {
+                System.err.println("usage: BenchmarkRunner [--output file] [--baseline file] [--threshold fraction] [--filter regex]");
+                System.exit(2);
+            }
+        }
+
+        Map<String, Double> results = new LinkedHashMap<>();
+        for(Benchmark benchmark : MessagingBenchmarks.all()) {
+            if(filter != null && !filter.matcher(benchmark.getName()).find()) {
+                continue;
+            }
+            double nanos = measure(benchmark);
+            results.put(benchmark.getName(), nanos);
+            System.out.println(String.format(Locale.US, "%-36s %12.1f ns/op", benchmark.getName(), nanos));
+        }
+
+        if(output != null) {
+            write(new File(output), results);
+        }
+        if(baseline != null) {
+            int regressions = compare(read(new File(baseline)), results, threshold);
+            if(regressions > 0) {
+                System.out.println(regressions + " regression(s) beyond " + Math.round(threshold * 100) + "%");
+                System.exit(1);
+            }
+        }
+    }
+
+    /**
+     * @return the median time per operation over the measured batches.
+     */
+    static double measure(Benchmark benchmark) throws Exception {
+        benchmark.setUp();
+        try {
+            int ops = 1;
+            long elapsed;
+            while((elapsed = time(benchmark, ops)) < BATCH_NANOS / 10 && ops < (1 << 30)) {
+                ops *= 2;
+            }
+            ops = batchSize(ops, elapsed);
+
+            // the code gets faster as it is compiled, so size the batches again once it's warm
+            for(int i = 0; i < WARMUP_BATCHES; i++) {
+                elapsed = time(benchmark, ops);
+            }
+            ops = batchSize(ops, elapsed);
+
+            double[] perOp = new double[MEASURED_BATCHES];
+            for(int i = 0; i < MEASURED_BATCHES; i++) {
+                perOp[i] = (double) time(benchmark, ops) / ops;
+            }
+            Arrays.sort(perOp);
+            return perOp[MEASURED_BATCHES / 2];
+        } finally {
+            benchmark.tearDown();
+        }
+    }
+
+    private static int batchSize(int ops, long elapsed) {
+        return (int) Math.max(1, Math.min(1 << 30, (long) ops * BATCH_NANOS / Math.max(1, elapsed)));
+    }
+
+    private static long time(Benchmark benchmark, int ops) throws Exception {
+        long start = System.nanoTime();
+        benchmark.run(ops);
+        return System.nanoTime() - start;
+    }
+
+    /**
+     * Prints every benchmark next to its baseline.
+     *
+     * @return the number of benchmarks slower than their baseline by more than {@code threshold}.
+     */
+    static int compare(Map<String, Double> baseline, Map<String, Double> results, double threshold) {
+        int regressions = 0;
+        System.out.println(String.format(Locale.US, "%-36s %12s %12s %8s", "benchmark", "baseline", "current", "change"));
+        for(Map.Entry<String, Double> result : results.entrySet()) {
+            Double before = baseline.get(result.getKey());
+            if(before == null) {
+                System.out.println(String.format(Locale.US, "%-36s %12s %12.1f %8s", result.getKey(), "-", result.getValue(), "new"));
+                continue;
+            }
+            double change = result.getValue() / before - 1;
+            String verdict = "";
+            if(change > threshold) {
+                verdict = "REGRESSION";
+                regressions++;
+            }
+            else if(change < -threshold) {
+                verdict = "improved";
+            }
+            System.out.println(String.format(Locale.US, "%-36s %12.1f %12.1f %+7.1f%% %s",
+                    result.getKey(), before, result.getValue(), change * 100, verdict));
+        }
+        return regressions;
+    }
+
+    static Map<String, Double> read(File file) throws IOException {
+        Map<String, Double> results = new LinkedHashMap<>();
+        BufferedReader reader = new BufferedReader(new InputStreamReader(new FileInputStream(file), UTF_8));
+        try {
+            String line;
+            while((line = reader.readLine()) != null) {
+                line = line.trim();
+                if(line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                String[] fields = line.split("\\s+");
+                if(fields.length >= 2) {
+                    results.put(fields[0], Double.parseDouble(fields[1]));
+                }
+            }
+        } finally {
+            reader.close();
+        }
+        return results;
+    }
+
+    static void write(File file, Map<String, Double> results) throws IOException {
+        File dir = file.getAbsoluteFile().getParentFile();
+        if(dir != null) {
+            dir.mkdirs();
+        }
+        Writer writer = new OutputStreamWriter(new FileOutputStream(file), UTF_8);
+        try {
+            writer.write("# benchmark\tns/op (median of " + MEASURED_BATCHES + " batches)\n");
+            writer.write("# " + System.getProperty("java.vm.name") + " " + System.getProperty("java.version")
+                    + ", " + System.getProperty("os.name") + " " + System.getProperty("os.arch")
+                    + ", " + Runtime.getRuntime().availableProcessors() + " cpus\n");
+            for(Map.Entry<String, Double> result : results.entrySet()) {
+                writer.write(String.format(Locale.US, "%s\t%.1f\n", result.getKey(), result.getValue()));
+            }
+        } finally {
+            writer.close();
+        }
+    }
+}
@@ -0,0 +1,545 @@
+package com.anddle.anddlechat.benchmark;
+
+import com.anddle.anddlechat.BufferPool;
+import com.anddle.anddlechat.ConnectionManager;
+import com.anddle.anddlechat.FrameCodec;
+import com.anddle.anddlechat.FrameCompressor;
+import com.anddle.anddlechat.FrameDecoder;
+import com.anddle.anddlechat.HistoryLog;
+import com.anddle.anddlechat.InboundDispatcher;
+import com.anddle.anddlechat.MessagePager;
+import com.anddle.anddlechat.MessageStore;
+import com.anddle.anddlechat.MetricsRegistry;
+import com.anddle.anddlechat.PipeTransport;
+import com.anddle.anddlechat.PooledBuffer;
+import com.anddle.anddlechat.Utf8Decoder;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.zip.Inflater;
+
+/**
+ * The benchmarks of the messaging core: framing, compression and decoding of single messages,
+ * the whole send/receive path between two {@link ConnectionManager}s, the list's data source, and
+ * connection state transitions. Connections run over {@link PipeTransport}, so the numbers leave
+ * out the radio and show what the code itself costs.
+ */
+public final class MessagingBenchmarks {
+
+    private static final Charset UTF_8 = Charset.forName("UTF-8");
+    private static final long TIMEOUT_NANOS = TimeUnit.SECONDS.toNanos(30);
+
+    /**
+     * A typical chat line, 200 bytes of mixed Chinese and English.
+     */
+    static final byte[] MESSAGE;
+
+    static {
+        StringBuilder text = new StringBuilder();
+        String[] words = {"你好", "在吗", "ok", "明天见", "see you at the station", "收到了", "thanks!", "哈哈哈"};
+        for(int i = 0; text.toString().getBytes(UTF_8).length < 200; i++) {
+            text.append(words[i % words.length]).append(' ');
+        }
+        MESSAGE = Arrays.copyOf(text.toString().getBytes(UTF_8), 200);
+    }
+
+    private static final Executor DIRECT = new Executor() {
+        @Override
+        public void execute(Runnable command) {
+            command.run();
+        }
+    };
+
+    private MessagingBenchmarks() {
+    }
+
+    public static List<Benchmark> all() {
+        List<Benchmark> benchmarks = new ArrayList<>();
+        benchmarks.add(new EncodeFrame());
+        benchmarks.add(new DecodeFrames());
+        benchmarks.add(new CompressFrame());
+        benchmarks.add(new DecompressFrame());
+        benchmarks.add(new DecodeText());
+        benchmarks.add(new SendReceive("link.send_receive_200b", false));
+        benchmarks.add(new SendReceive("link.send_receive_deflate_200b", true));
+        benchmarks.add(new ConnectDisconnect());
+        benchmarks.add(new StoreAddAndRead());
+        benchmarks.add(new DispatchBatch());
+        benchmarks.add(new PagerAppend());
+        benchmarks.add(new PagerScroll());
+        return benchmarks;
+    }
+
+    /**
+     * A message framed into a pooled buffer, the way ConnectionManager queues it.
+     */
+    static class EncodeFrame extends Benchmark {
+
+        private final BufferPool mPool = new BufferPool();
+
+        EncodeFrame() {
+            super("codec.encode_200b");
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                PooledBuffer frame = mPool.acquire(FrameCodec.HEADER_SIZE + MESSAGE.length);
+                FrameCodec.writeHeader(frame.array(), 0, FrameCodec.TYPE_DATA, MESSAGE.length);
+                System.arraycopy(MESSAGE, 0, frame.array(), FrameCodec.HEADER_SIZE, MESSAGE.length);
+                consume(frame.array()[4]);
+                frame.release();
+            }
+        }
+    }
+
+    /**
+     * Frames split out of a stream by the reader's ring buffer, per frame.
+     */
+    static class DecodeFrames extends Benchmark {
+
+        private static final int FRAMES = 1024;
+
+        private final FrameDecoder mDecoder = new FrameDecoder(16 * 1024);
+        private final long[] mFrames = new long[1];
+        private final FrameDecoder.FrameListener mListener = new FrameDecoder.FrameListener() {
+            @Override
+            public void onFrame(int type, byte[] buffer, int offset, int length) {
+                mFrames[0]++;
+                consume(buffer[offset]);
+            }
+        };
+        private ByteArrayInputStream mStream;
+
+        DecodeFrames() {
+            super("codec.decode_200b");
+        }
+
+        @Override
+        public void setUp() throws IOException {
+            ByteArrayOutputStream out = new ByteArrayOutputStream();
+            for(int i = 0; i < FRAMES; i++) {
+                out.write(FrameCodec.encode(FrameCodec.TYPE_DATA, MESSAGE));
+            }
+            mStream = new ByteArrayInputStream(out.toByteArray());
+        }
+
+        @Override
+        public void run(int ops) throws IOException {
+            long target = mFrames[0] + ops;
+            while(mFrames[0] < target) {
+                if(!mDecoder.readFrom(mStream, mListener)) {
+                    mStream.reset();
+                }
+            }
+        }
+    }
+
+    static class CompressFrame extends Benchmark {
+
+        private final FrameCompressor mCompressor = new FrameCompressor();
+        private final BufferPool mPool = new BufferPool();
+
+        CompressFrame() {
+            super("codec.deflate_200b");
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                PooledBuffer frame = mCompressor.compress(MESSAGE, 0, MESSAGE.length, mPool);
+                consume(frame.length());
+                frame.release();
+            }
+        }
+    }
+
+    static class DecompressFrame extends Benchmark {
+
+        private final BufferPool mPool = new BufferPool();
+        private Inflater mInflater;
+        private byte[] mFrame;
+
+        DecompressFrame() {
+            super("codec.inflate_200b");
+        }
+
+        @Override
+        public void setUp() {
+            PooledBuffer frame = new FrameCompressor().compress(MESSAGE, 0, MESSAGE.length, mPool);
+            mFrame = Arrays.copyOf(frame.array(), frame.length());
+            frame.release();
+            mInflater = FrameCompressor.newInflater();
+        }
+
+        @Override
+        public void run(int ops) throws IOException {
+            for(int i = 0; i < ops; i++) {
+                PooledBuffer data = FrameCompressor.decompress(mInflater, mFrame, FrameCodec.HEADER_SIZE,
+                        mFrame.length - FrameCodec.HEADER_SIZE, mPool);
+                consume(data.length());
+                data.release();
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            mInflater.end();
+        }
+    }
+
+    static class DecodeText extends Benchmark {
+
+        private final Utf8Decoder mDecoder = new Utf8Decoder();
+
+        DecodeText() {
+            super("text.decode_200b");
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                consume(mDecoder.decodeMessage(MESSAGE, 0, MESSAGE.length).length());
+            }
+        }
+    }
+
+    /**
+     * Messages from sendData on one manager to onReadData on the other, per message, with the
+     * send queue kept full.
+     */
+    static class SendReceive extends Benchmark {
+
+        private final boolean mCompression;
+        private Link mLink;
+
+        SendReceive(String name, boolean compression) {
+            super(name);
+            mCompression = compression;
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            mLink = new Link(mCompression);
+        }
+
+        @Override
+        public void run(int ops) throws Exception {
+            long target = mLink.mReceived.get() + ops;
+            for(int i = 0; i < ops; i++) {
+                while(!mLink.mClient.sendData(MESSAGE)) {
+                    Thread.yield();
+                }
+            }
+            mLink.waitForReceived(target);
+        }
+
+        @Override
+        public void tearDown() {
+            mLink.close();
+        }
+    }
+
+    /**
+     * connect() until both ends are connected, then disconnect() until both are idle again.
+     */
+    static class ConnectDisconnect extends Benchmark {
+
+        private Link mLink;
+
+        ConnectDisconnect() {
+            super("state.connect_disconnect");
+        }
+
+        @Override
+        public void setUp() throws Exception {
+            mLink = new Link(false);
+        }
+
+        @Override
+        public void run(int ops) throws Exception {
+            for(int i = 0; i < ops; i++) {
+                mLink.mClient.disconnect();
+                mLink.waitForState(ConnectionManager.CONNECT_STATE_IDLE);
+                mLink.mClient.connect("server");
+                mLink.waitForState(ConnectionManager.CONNECT_STATE_CONNECTED);
+            }
+        }
+
+        @Override
+        public void tearDown() {
+            mLink.close();
+        }
+    }
+
+    /**
+     * A page's worth of messages added to a store, then every row's text read back.
+     */
+    static class StoreAddAndRead extends Benchmark {
+
+        private final MessageStore mStore = new MessageStore(MessagePager.DEFAULT_PAGE_SIZE,
+                MessagePager.DEFAULT_PAGE_SIZE * MESSAGE.length);
+
+        StoreAddAndRead() {
+            super("list.store_add_read");
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                if(mStore.size() == MessagePager.DEFAULT_PAGE_SIZE) {
+                    mStore.clear();
+                }
+                int index = mStore.add(i & 1, i, MESSAGE, 0, MESSAGE.length);
+                consume(mStore.getText(index).length());
+            }
+        }
+    }
+
+    /**
+     * Items posted from a reader thread and published as one batch, per item.
+     */
+    static class DispatchBatch extends Benchmark {
+
+        private final Runnable[] mFrame = new Runnable[1];
+        private final InboundDispatcher<Object> mDispatcher = new InboundDispatcher<>(new InboundDispatcher.FrameScheduler() {
+            @Override
+            public void postFrame(Runnable callback) {
+                mFrame[0] = callback;
+            }
+        }, new InboundDispatcher.BatchListener<Object>() {
+            @Override
+            public void onBatch(List<Object> batch) {
+                consume(batch.size());
+            }
+        });
+
+        DispatchBatch() {
+            super("list.dispatch_batch_of_50");
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                mDispatcher.post(MESSAGE);
+                if(i % 50 == 49 || i == ops - 1) {
+                    mFrame[0].run();
+                }
+            }
+        }
+    }
+
+    /**
+     * Received messages appended to the history and published to the list, per message.
+     */
+    static class PagerAppend extends Benchmark {
+
+        private final Runnable[] mFrame = new Runnable[1];
+        private File mDir;
+        private HistoryLog mLog;
+        private MessagePager mPager;
+
+        PagerAppend() {
+            super("list.pager_append");
+        }
+
+        @Override
+        public void setUp() throws IOException {
+            mDir = createTempDir("pager-append");
+            mLog = new HistoryLog(mDir);
+            mPager = new MessagePager(mLog, DIRECT, DIRECT, new InboundDispatcher.FrameScheduler() {
+                @Override
+                public void postFrame(Runnable callback) {
+                    mFrame[0] = callback;
+                }
+            }, new CountingListener(), MessagePager.DEFAULT_PAGE_SIZE, MessagePager.DEFAULT_MAX_PAGES);
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                mPager.append(i & 1, "", MESSAGE, 0, MESSAGE.length);
+                if(i % 50 == 49 || i == ops - 1) {
+                    mFrame[0].run();
+                }
+            }
+        }
+
+        @Override
+        public void tearDown() throws IOException {
+            mLog.close();
+            deleteRecursively(mDir);
+        }
+    }
+
+    /**
+     * Scrolling through a long history a row at a time: the window moves, pages are read from the
+     * log as they come into it, and every row is bound.
+     */
+    static class PagerScroll extends Benchmark {
+
+        private static final int MESSAGES = 20000;
+        private static final int VISIBLE_ROWS = 12;
+
+        private File mDir;
+        private HistoryLog mLog;
+        private MessagePager mPager;
+        private int mPosition;
+
+        PagerScroll() {
+            super("list.pager_scroll_bind");
+        }
+
+        @Override
+        public void setUp() throws IOException {
+            mDir = createTempDir("pager-scroll");
+            mLog = new HistoryLog(mDir);
+            for(int i = 0; i < MESSAGES; i++) {
+                mLog.append(i & 1, i, MESSAGE);
+            }
+            mPager = new MessagePager(mLog, DIRECT, DIRECT, new CountingListener(),
+                    MessagePager.DEFAULT_PAGE_SIZE, MessagePager.DEFAULT_MAX_PAGES);
+        }
+
+        @Override
+        public void run(int ops) {
+            for(int i = 0; i < ops; i++) {
+                mPosition = (mPosition + 1) % (MESSAGES - VISIBLE_ROWS);
+                mPager.setVisibleRange(mPosition, mPosition + VISIBLE_ROWS - 1);
+                int row = mPosition + VISIBLE_ROWS - 1;
+                consume(mPager.getSender(row) + mPager.getText(row).length());
+            }
+        }
+
+        @Override
+        public void tearDown() throws IOException {
+            mLog.close();
+            deleteRecursively(mDir);
+        }
+    }
+
+    private static class CountingListener implements MessagePager.Listener {
+
+        @Override
+        public void onMessagesLoaded(int position, int count) {
+            Benchmark.consume(count);
+        }
+
+        @Override
+        public void onMessagesAppended(int position, int count) {
+            Benchmark.consume(count);
+        }
+    }
+
+    /**
+     * A client connected to a server over pipes.
+     */
+    private static class Link {
+
+        final AtomicLong mReceived = new AtomicLong();
+        final ConnectionManager mServer;
+        final ConnectionManager mClient;
+
+        Link(boolean compression) throws Exception {
+            PipeTransport.Network network = new PipeTransport.Network();
+            mServer = new ConnectionManager(new Listener() {
+                @Override
+                public void onReadData(PooledBuffer data) {
+                    data.release();
+                    mReceived.incrementAndGet();
+                }
+            }, new PipeTransport(network, "server"), new MetricsRegistry());
+            mClient = new ConnectionManager(new Listener(), new PipeTransport(network, "client"), new MetricsRegistry());
+            mServer.setCompression(compression);
+            mClient.setCompression(compression);
+
+            mServer.startListen();
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while(mServer.getCurrentListenState() != ConnectionManager.LISTEN_STATE_LISTENING) {
+                checkDeadline(deadline, "listen");
+                Thread.yield();
+            }
+            mClient.connect("server");
+            waitForState(ConnectionManager.CONNECT_STATE_CONNECTED);
+            if(compression) {
+                // the hellos cross right after connecting
+                Thread.sleep(100);
+            }
+        }
+
+        void waitForState(int state) {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while(mClient.getCurrentConnectState() != state || mServer.getCurrentConnectState() != state) {
+                checkDeadline(deadline, "state " + state);
+                Thread.yield();
+            }
+        }
+
+        void waitForReceived(long count) {
+            long deadline = System.nanoTime() + TIMEOUT_NANOS;
+            while(mReceived.get() < count) {
+                checkDeadline(deadline, count + " messages");
+                Thread.yield();
+            }
+        }
+
+        void close() {
+            mClient.disconnect();
+            mServer.disconnect();
+            mServer.stopListen();
+        }
+
+        private static void checkDeadline(long deadline, String what) {
+            if(System.nanoTime() > deadline) {
+                throw new IllegalStateException("timed out waiting for " + what);
+            }
+        }
+    }
+
+    private static class Listener implements ConnectionManager.ConnectionListener {
+
+        @Override
+        public void onConnectStateChange(int oldState, int State) {
+        }
+
+        @Override
+        public void onListenStateChange(int oldState, int State) {
+        }
+
+        @Override
+        public void onSendData(boolean suc, byte[] data) {
+        }
+
+        @Override
+        public void onReadData(PooledBuffer data) {
+            data.release();
+        }
+    }
+
+    private static File createTempDir(String prefix) throws IOException {
+        File dir = File.createTempFile(prefix, "");
+        if(!dir.delete() || !dir.mkdirs()) {
+            throw new IOException("can't create " + dir);
+        }
+        return dir;
+    }
+
+    private static void deleteRecursively(File file) {
+        File[] children = file.listFiles();
+        if(children != null) {
+            for(File child : children) {
+                deleteRecursively(child);
+            }
+        }
+        file.delete();
+    }
+}